@@ -0,0 +1,278 @@
+package com.github.loefberg.nitwit;
+
+import com.github.loefberg.nitwit.ds.DataStore;
+import com.github.loefberg.nitwit.ds.ObjectTransaction;
+import com.github.loefberg.nitwit.util.Parallel;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Adds many files to the object database and the index at once, like git add with a list of paths.
+ *
+ * The files are hashed and deflated on the threads of a fork/join pool. A file is read into memory once,
+ * hashed, and only deflated if no object with its ID exists yet, neither from before nor from another file
+ * with the same content in this batch. The files held in memory at the same time are bounded by a byte
+ * budget, and a file larger than all of it is streamed instead. A file whose stat data matches its index
+ * entry is not read at all.
+ *
+ * The objects are written in an {@link ObjectTransaction}, synced to disk together before the index that
+ * refers to them is updated, once at the end, with one merge of all the new entries.
+ */
+public class BulkAdder {
+    /** The default bound on the bytes of files held in memory at once. */
+    public static final long DEFAULT_MEMORY_LIMIT = 64L * 1024 * 1024;
+
+    private final Path workTree;
+    private final DataStore ds;
+    private final ForkJoinPool pool;
+    private long memoryLimit = DEFAULT_MEMORY_LIMIT;
+
+    public BulkAdder(Path workTree, DataStore ds) {
+        this(workTree, ds, ForkJoinPool.commonPool());
+    }
+
+    public BulkAdder(Path workTree, DataStore ds, ForkJoinPool pool) {
+        this.workTree = workTree.toAbsolutePath().normalize();
+        this.ds = ds;
+        this.pool = pool;
+    }
+
+    /**
+     * Sets the bound on the bytes of files read into memory at the same time.
+     */
+    public void setMemoryLimit(long memoryLimit) {
+        this.memoryLimit = Math.max(1, Math.min(memoryLimit, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Adds the files, and the files under the directories, that are not ignored, and removes the tracked
+     * files among them that are gone. Paths are relative to the top of the working tree. Returns the new
+     * index, which the caller writes.
+     *
+     * @param indexModified when the index file was last written, see {@link StatusScanner}
+     */
+    public Index add(Index index, FileTime indexModified, Collection<Path> paths) throws IOException {
+        Set<String> files = new TreeSet<>();
+        Set<String> removed = new TreeSet<>();
+        for(Path path: paths) {
+            collect(index, relativize(path), files, removed);
+        }
+
+        List<String> list = new ArrayList<>(files);
+        Added[] added = new Added[list.size()];
+        Instant racyTime = indexModified.toInstant();
+        Semaphore budget = new Semaphore((int)memoryLimit);
+        Set<ObjectID> written = ConcurrentHashMap.newKeySet();
+        try(ObjectTransaction transaction = ds.beginTransaction(pool)) {
+            Parallel.forEach(pool, list.size(), i -> added[i] = addFile(index, racyTime, list.get(i), budget, written));
+            transaction.commit();
+        }
+
+        Index.Builder builder = new Index.Builder(index);
+        for(Added file: added) {
+            if(file != null) {
+                builder.add(file.path, file.id, file.stat);
+                removeReplaced(index, file.path, builder);
+            }
+        }
+        removed.forEach(builder::remove);
+        return builder.build();
+    }
+
+    /**
+     * The path relative to the work tree, with '/' as separator, "" for the top.
+     */
+    private String relativize(Path path) throws IOException {
+        Path absolute = workTree.resolve(path).normalize();
+        if(!absolute.startsWith(workTree)) {
+            throw new IOException("Outside of the working tree: " + path);
+        }
+        StringBuilder relative = new StringBuilder();
+        for(Path name: workTree.relativize(absolute)) {
+            if(relative.length() > 0) {
+                relative.append('/');
+            }
+            relative.append(name);
+        }
+        return relative.toString();
+    }
+
+    private void collect(Index index, String path, Set<String> files, Set<String> removed) throws IOException {
+        Path file = workTree.resolve(path);
+        if(!Files.exists(file, LinkOption.NOFOLLOW_LINKS)) {
+            boolean tracked = false;
+            if(!path.isEmpty() && index.findPosition(path.getBytes(StandardCharsets.UTF_8), 0) >= 0) {
+                removed.add(path);
+                tracked = true;
+            }
+            for(Index.IndexEntry entry: index.getEntries(path)) {
+                removed.add(entry.getPathName());
+                tracked = true;
+            }
+            if(!tracked) {
+                throw new NoSuchFileException(path, null, "did not match any files");
+            }
+            return;
+        }
+        if(!Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS)) {
+            files.add(path);
+            return;
+        }
+
+        IgnoreRules rules = IgnoreRules.empty().load(workTree.resolve(".git/info/exclude"), "");
+        String prefix = "";
+        for(String component: path.isEmpty() ? new String[0] : path.split("/")) {
+            rules = rules.load(workTree.resolve(prefix + ".gitignore"), prefix);
+            prefix = prefix + component + "/";
+        }
+        walk(index, file, prefix, rules, false, files);
+
+        // the tracked files under the directory that are gone, and the file the directory replaced
+        Index.IndexEntry replaced = path.isEmpty() ? null : index.getEntry(path);
+        if(replaced != null && isGone(replaced)) {
+            removed.add(path);
+        }
+        for(Index.IndexEntry entry: path.isEmpty() ? index.getEntries() : index.getEntries(path)) {
+            if(entry.getStage() == 0 && !files.contains(entry.getPathName()) && isGone(entry)) {
+                removed.add(entry.getPathName());
+            }
+        }
+    }
+
+    /**
+     * Whether the file of a tracked entry is gone. A directory where the file was counts as gone, unless the
+     * entry is a submodule, whose directory it is.
+     */
+    private boolean isGone(Index.IndexEntry entry) {
+        Path file = workTree.resolve(entry.getPathName());
+        if(Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS)) {
+            return entry.getMode() != FileStat.MODE_GITLINK;
+        }
+        return !Files.exists(file, LinkOption.NOFOLLOW_LINKS);
+    }
+
+    /**
+     * Removes the entries that a file added at the path replaces, like git's ADD_CACHE_OK_TO_REPLACE: a file
+     * where one of its parent directories is, and the files under the path when it was a directory.
+     */
+    private static void removeReplaced(Index index, String path, Index.Builder builder) {
+        for(int slash = path.indexOf('/'); slash >= 0; slash = path.indexOf('/', slash + 1)) {
+            String parent = path.substring(0, slash);
+            if(index.findPosition(parent.getBytes(StandardCharsets.UTF_8), 0) >= 0) {
+                builder.remove(parent);
+            }
+        }
+        for(Index.IndexEntry entry: index.getEntries(path)) {
+            if(entry.getStage() == 0) {
+                builder.remove(entry.getPathName());
+            }
+        }
+    }
+
+    /**
+     * Collects the files under a directory that are not ignored. In an ignored directory, which is only
+     * walked when it has tracked files, only those are collected, like git add does.
+     */
+    private void walk(Index index, Path dir, String prefix, IgnoreRules rules, boolean trackedOnly, Set<String> files)
+            throws IOException {
+        if(!trackedOnly) {
+            rules = rules.load(dir.resolve(".gitignore"), prefix);
+        }
+        try(DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+            for(Path child: children) {
+                String name = child.getFileName().toString();
+                String path = prefix + name;
+                boolean tracked = index.findPosition(path.getBytes(StandardCharsets.UTF_8), 0) >= 0;
+                if(Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                    // the repository itself, and the ones inside it, are not added
+                    if(name.equals(".git") || Files.exists(child.resolve(".git"))) {
+                        continue;
+                    }
+                    if(!trackedOnly && !rules.isIgnored(path, true)) {
+                        walk(index, child, path + "/", rules, false, files);
+                    } else if(!index.getEntries(path).isEmpty()) {
+                        walk(index, child, path + "/", rules, true, files);
+                    }
+                } else if(tracked || !trackedOnly && !rules.isIgnored(path, false)) {
+                    files.add(path);
+                }
+            }
+        }
+    }
+
+    /**
+     * Hashes a file and writes its object unless it exists. Returns null for a file that matches its entry.
+     */
+    private Added addFile(Index index, Instant racyTime, String path, Semaphore budget, Set<ObjectID> written)
+            throws IOException {
+        Path file = workTree.resolve(path);
+        FileStat stat = FileStat.lstat(file);
+        int position = index.findPosition(path.getBytes(StandardCharsets.UTF_8), 0);
+        if(position >= 0 && stat.matches(index, position) && !StatusScanner.isRacilyClean(index, position, racyTime)) {
+            return null;
+        }
+
+        ObjectID id;
+        if(stat.isSymbolicLink()) {
+            byte[] target = Files.readSymbolicLink(file).toString().getBytes(StandardCharsets.UTF_8);
+            id = DataStore.hashBlob(target);
+            store(id, target, written);
+        } else if(stat.getSize() > memoryLimit) {
+            id = new ObjectID(ds.putBlob(file));
+        } else {
+            int size = (int)stat.getSize();
+            try {
+                budget.acquire(size);
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to read " + path);
+            }
+            try {
+                byte[] content = Files.readAllBytes(file);
+                if(content.length != size) {
+                    throw new IOException("File changed while it was added: " + path);
+                }
+                id = DataStore.hashBlob(content);
+                store(id, content, written);
+            } finally {
+                budget.release(size);
+            }
+        }
+        return new Added(path, id, stat);
+    }
+
+    private void store(ObjectID id, byte[] content, Set<ObjectID> written) throws IOException {
+        if(written.add(id) && !ds.hasObject(id)) {
+            ds.putBlob(id, content);
+        }
+    }
+
+    private static final class Added {
+        final String path;
+        final ObjectID id;
+        final FileStat stat;
+
+        Added(String path, ObjectID id, FileStat stat) {
+            this.path = path;
+            this.id = id;
+            this.stat = stat;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.github.loefberg.nitwit;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The cache tree, the TREE extension of the index: the tree IDs of the directories that have not changed
+ * since the tree was last written, so writing a tree only has to hash the directories that did.
+ *
+ * <pre>
+ * - NUL-terminated path component (empty for the root)
+ * - ASCII decimal number of index entries covered, -1 if the tree is invalid
+ * - a space
+ * - ASCII decimal number of subtrees
+ * - a newline
+ * - 160-bit object name of the tree, only if it is valid
+ * </pre>
+ *
+ * The entries are stored depth first, every one followed by its subtrees.
+ */
+public class CacheTree {
+    private final String name;
+    private final int entryCount;
+    private final ObjectID id;
+    private final List<CacheTree> children;
+
+    public CacheTree(String name, int entryCount, ObjectID id, List<CacheTree> children) {
+        this.name = name;
+        this.entryCount = entryCount;
+        this.id = id;
+        this.children = children;
+    }
+
+    static CacheTree parse(ByteBuffer buf) {
+        int start = buf.position();
+        while(buf.get() != 0) {
+            // path component
+        }
+        byte[] nameBytes = new byte[buf.position() - 1 - start];
+        buf.get(start, nameBytes);
+        String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+        int entryCount = readNumber(buf, ' ');
+        int subtreeCount = readNumber(buf, '\n');
+        ObjectID id = null;
+        if(entryCount >= 0) {
+            id = new ObjectID(buf, buf.position());
+            buf.position(buf.position() + ObjectID.RAW_LENGTH);
+        }
+
+        List<CacheTree> children = new ArrayList<>(subtreeCount);
+        for(int i = 0; i < subtreeCount; i++) {
+            children.add(parse(buf));
+        }
+        return new CacheTree(name, entryCount, id, children);
+    }
+
+    private static int readNumber(ByteBuffer buf, char terminator) {
+        int sign = 1;
+        int value = 0;
+        byte ch = buf.get();
+        if(ch == '-') {
+            sign = -1;
+            ch = buf.get();
+        }
+        while(ch != terminator) {
+            if(ch < '0' || ch > '9') {
+                throw new RuntimeException("Invalid cache tree, unexpected character: " + (char)ch);
+            }
+            value = value * 10 + (ch - '0');
+            ch = buf.get();
+        }
+        return sign * value;
+    }
+
+    /**
+     * Writes the tree in the format it is read in.
+     */
+    void write(ByteArrayOutputStream out) {
+        out.writeBytes(name.getBytes(StandardCharsets.UTF_8));
+        out.write(0);
+        out.writeBytes((entryCount + " " + children.size() + "\n").getBytes(StandardCharsets.US_ASCII));
+        if(id != null && entryCount >= 0) {
+            out.writeBytes(id.toByteArray());
+        }
+        for(CacheTree child: children) {
+            child.write(out);
+        }
+    }
+
+    /**
+     * Returns a copy with this tree and every tree on the way to the path invalidated, like git does for
+     * the directories of an entry that changed. The other subtrees are shared with this one.
+     */
+    public CacheTree invalidate(String path) {
+        int slash = path.indexOf('/');
+        List<CacheTree> invalidated = children;
+        if(slash >= 0) {
+            String component = path.substring(0, slash);
+            for(int i = 0; i < children.size(); i++) {
+                if(children.get(i).name.equals(component)) {
+                    invalidated = new ArrayList<>(children);
+                    invalidated.set(i, children.get(i).invalidate(path.substring(slash + 1)));
+                    break;
+                }
+            }
+        }
+        if(entryCount < 0 && invalidated == children) {
+            return this;
+        }
+        return new CacheTree(name, -1, null, invalidated);
+    }
+
+    /**
+     * The path component of this directory, empty for the root.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The number of index entries inside this directory, -1 if the tree has been invalidated.
+     */
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    public boolean isValid() {
+        return entryCount >= 0;
+    }
+
+    /**
+     * The ID of the tree, or null if it has been invalidated.
+     */
+    public ObjectID getId() {
+        return id;
+    }
+
+    public List<CacheTree> getChildren() {
+        return Collections.unmodifiableList(children);
+    }
+
+    public CacheTree getChild(String name) {
+        for(CacheTree child: children) {
+            if(child.name.equals(name)) {
+                return child;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %d %d %s", name.isEmpty() ? "/" : name, entryCount, children.size(), id);
+    }
+}
@@ -0,0 +1,272 @@
+package com.github.loefberg.nitwit;
+
+import com.github.loefberg.nitwit.ds.DataStore;
+import com.github.loefberg.nitwit.ds.StreamingBlob;
+import com.github.loefberg.nitwit.ds.Tree;
+import com.github.loefberg.nitwit.util.Parallel;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Writes the files of a tree into the working tree and makes an index of them, like the checkout at the end
+ * of git clone.
+ *
+ * The trees are walked first, on one thread, and the directories created, clearing what is in the way of
+ * them and of the files. The files are then written on the threads of a fork/join pool, each blob streamed
+ * from the data store to its file so that no file is ever held in memory whole, and stat'ed right after it
+ * is written. The index is built from that stat data, so that it sees the files as unchanged without
+ * reading them again, and with a cache tree made from the trees that were walked, so that writing the trees
+ * again costs nothing.
+ *
+ * A file or symbolic link that is already there is replaced, and a directory where a file should be is
+ * removed with what is in it. A file or symbolic link where a directory should be is removed, never
+ * followed. Files that are not in the tree are left alone. The paths are checked before anything is
+ * written, and a tree with a path that leaves the working tree, goes into .git or goes through one of its
+ * own symbolic links is refused as a whole.
+ */
+public class Checkout {
+    private static final boolean POSIX = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+
+    private final Path workTree;
+    private final DataStore ds;
+    private final ForkJoinPool pool;
+
+    public Checkout(Path workTree, DataStore ds) {
+        this(workTree, ds, ForkJoinPool.commonPool());
+    }
+
+    public Checkout(Path workTree, DataStore ds, ForkJoinPool pool) {
+        this.workTree = workTree.toAbsolutePath().normalize();
+        this.ds = ds;
+        this.pool = pool;
+    }
+
+    /**
+     * Writes the files of the tree, and returns an index of the given version with exactly its entries,
+     * which the caller writes. Nothing is written if a path in the tree is not one git would check out.
+     */
+    public Index checkout(ObjectID treeId, int indexVersion) throws IOException {
+        List<String> directories = new ArrayList<>();
+        List<String> paths = new ArrayList<>();
+        List<ObjectID> ids = new ArrayList<>();
+        List<Integer> modes = new ArrayList<>();
+        CacheTree cacheTree = walk(treeId, "", "", directories, paths, ids, modes);
+        verifyNoPathThroughSymlink(paths, modes);
+
+        // what is in the way is removed before any file is written, a file only where its directory was there
+        Set<String> existing = new HashSet<>();
+        existing.add("");
+        for(String directory: directories) {
+            if(createDirectory(workTree.resolve(directory))) {
+                existing.add(directory);
+            }
+        }
+        for(int i = 0; i < paths.size(); i++) {
+            String path = paths.get(i);
+            if(modes.get(i) != FileStat.MODE_GITLINK && existing.contains(parent(path))) {
+                removeDirectory(workTree.resolve(path));
+            }
+        }
+        FileStat[] stats = new FileStat[paths.size()];
+        Parallel.forEach(pool, paths.size(), i -> stats[i] = writeFile(paths.get(i), ids.get(i), modes.get(i)));
+
+        Index.Builder builder = new Index.Builder(indexVersion);
+        for(int i = 0; i < paths.size(); i++) {
+            if(stats[i] == null) {
+                builder.add(paths.get(i), ids.get(i), modes.get(i));
+            } else {
+                builder.add(paths.get(i), ids.get(i), stats[i]);
+            }
+        }
+        return builder.setCacheTree(cacheTree).build();
+    }
+
+    /**
+     * Collects the entries of the tree and the directories to create, parents first, and returns its part of
+     * the cache tree.
+     */
+    private CacheTree walk(ObjectID treeId, String prefix, String name, List<String> directories,
+                           List<String> paths, List<ObjectID> ids, List<Integer> modes) throws IOException {
+        Tree tree = ds.getTree(treeId);
+        int start = paths.size();
+        List<CacheTree> children = new ArrayList<>();
+        for(int i = 0; i < tree.size(); i++) {
+            String path = prefix + tree.name(i);
+            verifyName(tree.name(i), path);
+            int mode = (int)tree.mode(i);
+            if(mode == FileStat.MODE_DIRECTORY) {
+                directories.add(path);
+                children.add(walk(tree.id(i), path + "/", tree.name(i), directories, paths, ids, modes));
+                continue;
+            }
+            if(mode == FileStat.MODE_GITLINK) {
+                // like git, a submodule that is not cloned is an empty directory
+                directories.add(path);
+            }
+            paths.add(path);
+            ids.add(tree.id(i));
+            modes.add(mode);
+        }
+        children.sort(TreeWriter::compareSubtrees);
+        return new CacheTree(name, paths.size() - start, treeId, children);
+    }
+
+    /**
+     * Rejects a name that would leave the working tree or write into the repository, like git's verify_path:
+     * an empty name, "." and "..", a name with a '/' or a NUL in it, and ".git" in any case.
+     */
+    private static void verifyName(String name, String path) throws IOException {
+        if(name.isEmpty() || name.equals(".") || name.equals("..") || name.indexOf('/') >= 0
+                || name.indexOf('\0') >= 0 || name.equalsIgnoreCase(".git")) {
+            throw new IOException("Invalid path in tree: " + path);
+        }
+    }
+
+    /**
+     * Rejects a path under a symbolic link of the same tree, which would be written wherever the link points.
+     * The paths are compared ignoring case, since they may be the same file on the file system.
+     */
+    private static void verifyNoPathThroughSymlink(List<String> paths, List<Integer> modes) throws IOException {
+        Set<String> links = new HashSet<>();
+        for(int i = 0; i < paths.size(); i++) {
+            if(modes.get(i) == FileStat.MODE_SYMLINK) {
+                links.add(paths.get(i).toLowerCase(Locale.ROOT));
+            }
+        }
+        if(links.isEmpty()) {
+            return;
+        }
+        for(String path: paths) {
+            String folded = path.toLowerCase(Locale.ROOT);
+            for(int slash = folded.indexOf('/'); slash >= 0; slash = folded.indexOf('/', slash + 1)) {
+                if(links.contains(folded.substring(0, slash))) {
+                    throw new IOException("Path is beyond a symbolic link: " + path);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a directory whose parent exists, and returns whether it was there already. A file or symbolic
+     * link in its place is removed, a symbolic link is never followed.
+     */
+    private static boolean createDirectory(Path dir) throws IOException {
+        if(Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) {
+            return true;
+        }
+        Files.deleteIfExists(dir);
+        Files.createDirectory(dir);
+        return false;
+    }
+
+    /**
+     * Removes a directory where a file is to be written, with everything in it, like git does when it checks
+     * out by force. Symbolic links inside it are removed, not followed.
+     */
+    private static void removeDirectory(Path file) throws IOException {
+        if(!Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        Files.walkFileTree(file, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) throws IOException {
+                Files.delete(path);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException ex) throws IOException {
+                if(ex != null) {
+                    throw ex;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static String parent(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash < 0 ? "" : path.substring(0, slash);
+    }
+
+    /**
+     * Writes one file, and returns its stat data, or null for a submodule, whose directory says nothing about
+     * the commit it should be at.
+     */
+    private FileStat writeFile(String path, ObjectID id, int mode) throws IOException {
+        if(mode == FileStat.MODE_GITLINK) {
+            return null;
+        }
+        Path file = workTree.resolve(path);
+        try(StreamingBlob blob = ds.openBlob(id)) {
+            if(mode == FileStat.MODE_SYMLINK) {
+                String target = new String(blob.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+                Files.deleteIfExists(file);
+                Files.createSymbolicLink(file, Paths.get(target));
+            } else {
+                try(OutputStream out = create(file)) {
+                    blob.write(out);
+                }
+                if(mode == FileStat.MODE_EXECUTABLE) {
+                    setExecutable(file);
+                }
+            }
+        }
+        return FileStat.lstat(file);
+    }
+
+    /**
+     * Creates a new file, and only if there is one already replaces it, so that a fresh checkout does not
+     * pay for a delete per file, and a symbolic link in the way is not written through.
+     */
+    private static OutputStream create(Path file) throws IOException {
+        try {
+            return Files.newOutputStream(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        } catch(FileAlreadyExistsException ex) {
+            Files.delete(file);
+            return Files.newOutputStream(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        }
+    }
+
+    /**
+     * Lets everyone who may read the file execute it, which is what git does under the umask.
+     */
+    private static void setExecutable(Path file) throws IOException {
+        if(!POSIX) {
+            file.toFile().setExecutable(true);
+            return;
+        }
+        Set<PosixFilePermission> permissions = EnumSet.copyOf(Files.getPosixFilePermissions(file, LinkOption.NOFOLLOW_LINKS));
+        if(permissions.contains(PosixFilePermission.OWNER_READ)) {
+            permissions.add(PosixFilePermission.OWNER_EXECUTE);
+        }
+        if(permissions.contains(PosixFilePermission.GROUP_READ)) {
+            permissions.add(PosixFilePermission.GROUP_EXECUTE);
+        }
+        if(permissions.contains(PosixFilePermission.OTHERS_READ)) {
+            permissions.add(PosixFilePermission.OTHERS_EXECUTE);
+        }
+        Files.setPosixFilePermissions(file, permissions);
+    }
+}
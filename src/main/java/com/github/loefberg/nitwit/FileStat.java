@@ -0,0 +1,161 @@
+package com.github.loefberg.nitwit;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The lstat(2) data of a file as the index keeps it, every field truncated to 32 bits.
+ *
+ * Where the JDK offers the "unix" attribute view, as on Linux and macOS, all fields are read with one
+ * call. Elsewhere only the basic attributes are available, and dev, ino, uid and gid are left zero, the
+ * way git for Windows leaves them.
+ */
+public final class FileStat {
+    private static final boolean UNIX = FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+    private static final boolean POSIX = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+
+    /** Mode of a directory, only ever in the index as part of a gitlink. */
+    public static final int MODE_DIRECTORY = 0040000;
+    public static final int MODE_REGULAR = 0100644;
+    public static final int MODE_EXECUTABLE = 0100755;
+    public static final int MODE_SYMLINK = 0120000;
+    public static final int MODE_GITLINK = 0160000;
+
+    private static final int MODE_TYPE_MASK = 0170000;
+
+    private final int ctimeSeconds;
+    private final int ctimeNanos;
+    private final int mtimeSeconds;
+    private final int mtimeNanos;
+    private final int dev;
+    private final int ino;
+    private final int mode;
+    private final int uid;
+    private final int gid;
+    private final long size;
+
+    private FileStat(Instant ctime, Instant mtime, long dev, long ino, int mode, int uid, int gid, long size) {
+        this.ctimeSeconds = (int)ctime.getEpochSecond();
+        this.ctimeNanos = ctime.getNano();
+        this.mtimeSeconds = (int)mtime.getEpochSecond();
+        this.mtimeNanos = mtime.getNano();
+        this.dev = (int)dev;
+        this.ino = (int)ino;
+        this.mode = mode;
+        this.uid = uid;
+        this.gid = gid;
+        this.size = size;
+    }
+
+    /**
+     * Stats the file without following a symbolic link.
+     */
+    public static FileStat lstat(Path file) throws IOException {
+        if(UNIX) {
+            Map<String, Object> attributes = Files.readAttributes(file, "unix:*", LinkOption.NOFOLLOW_LINKS);
+            int mode = (Integer)attributes.get("mode");
+            return new FileStat(
+                    ((FileTime)attributes.get("ctime")).toInstant(),
+                    ((FileTime)attributes.get("lastModifiedTime")).toInstant(),
+                    (Long)attributes.get("dev"),
+                    (Long)attributes.get("ino"),
+                    toGitMode(mode, (mode & 0100) != 0),
+                    (Integer)attributes.get("uid"),
+                    (Integer)attributes.get("gid"),
+                    (Long)attributes.get("size"));
+        }
+
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        int type = attributes.isSymbolicLink() ? 0120000 : attributes.isDirectory() ? 0040000 : 0100000;
+        boolean executable = false;
+        if(POSIX && type == 0100000) {
+            Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(file, LinkOption.NOFOLLOW_LINKS);
+            executable = permissions.contains(PosixFilePermission.OWNER_EXECUTE);
+        }
+        return new FileStat(attributes.lastModifiedTime().toInstant(), attributes.lastModifiedTime().toInstant(),
+                0, 0, toGitMode(type, executable), 0, 0, attributes.size());
+    }
+
+    /**
+     * git only records the type and, for a regular file, whether the owner may execute it.
+     */
+    private static int toGitMode(int mode, boolean executable) {
+        switch(mode & MODE_TYPE_MASK) {
+            case 0120000: return MODE_SYMLINK;
+            case 0040000: return MODE_DIRECTORY;
+            default: return executable ? MODE_EXECUTABLE : MODE_REGULAR;
+        }
+    }
+
+    /**
+     * Whether the stat data is the same as that of entry i, like git's match_stat_data with the default
+     * core.checkStat: times to the nanosecond, inode, owner and size, but not the device, which is not
+     * stable on every file system. A different mode is a change too.
+     */
+    public boolean matches(Index index, int i) {
+        Index.Columns c = index.getColumns();
+        return c.mtimeSeconds[i] == mtimeSeconds && c.mtimeNanos[i] == mtimeNanos
+                && c.ctimeSeconds[i] == ctimeSeconds && c.ctimeNanos[i] == ctimeNanos
+                && c.ino[i] == ino && c.uid[i] == uid && c.gid[i] == gid
+                && c.size[i] == (int)size
+                && c.mode[i] == mode;
+    }
+
+    /**
+     * Copies the stat data to row i of the columns, for an entry that now matches the file.
+     */
+    void copyTo(Index.Columns c, int i) {
+        c.ctimeSeconds[i] = ctimeSeconds;
+        c.ctimeNanos[i] = ctimeNanos;
+        c.mtimeSeconds[i] = mtimeSeconds;
+        c.mtimeNanos[i] = mtimeNanos;
+        c.dev[i] = dev;
+        c.ino[i] = ino;
+        c.uid[i] = uid;
+        c.gid[i] = gid;
+        c.size[i] = (int)size;
+    }
+
+    /**
+     * The mode as git records it: {@link #MODE_REGULAR}, {@link #MODE_EXECUTABLE}, {@link #MODE_SYMLINK} or
+     * {@link #MODE_DIRECTORY}.
+     */
+    public int getMode() {
+        return mode;
+    }
+
+    public boolean isDirectory() {
+        return mode == MODE_DIRECTORY;
+    }
+
+    public boolean isSymbolicLink() {
+        return mode == MODE_SYMLINK;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getMtimeSeconds() {
+        return mtimeSeconds & 0xffffffffL;
+    }
+
+    public int getMtimeNanos() {
+        return mtimeNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("mode=%06o size=%d mtime=%d.%09d ctime=%d.%09d ino=%d", mode, size,
+                getMtimeSeconds(), mtimeNanos, ctimeSeconds & 0xffffffffL, ctimeNanos, ino & 0xffffffffL);
+    }
+}
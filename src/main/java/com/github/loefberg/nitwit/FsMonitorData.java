@@ -0,0 +1,62 @@
+package com.github.loefberg.nitwit;
+
+import com.github.loefberg.nitwit.util.Ewah;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+
+/**
+ * The FSMN extension of the index, what the file system monitor last reported.
+ *
+ * <pre>
+ * - 32-bit version, 1 or 2
+ * - version 1: 64-bit time of the last update in nanoseconds since the epoch
+ *   version 2: NUL-terminated token of the last update
+ * - 32-bit size of the bitmap
+ * - EWAH bitmap of the entries that are not known to be clean
+ * </pre>
+ */
+public class FsMonitorData {
+    private final int version;
+    private final String token;
+    private final BitSet dirty;
+
+    FsMonitorData(ByteBuffer buf) {
+        this.version = buf.getInt();
+        if(version == 1) {
+            this.token = Long.toUnsignedString(buf.getLong());
+        } else if(version == 2) {
+            int start = buf.position();
+            while(buf.get() != 0) {
+                // token
+            }
+            byte[] token = new byte[buf.position() - 1 - start];
+            buf.get(start, token);
+            this.token = new String(token, StandardCharsets.UTF_8);
+        } else {
+            throw new RuntimeException("Unsupported fsmonitor extension version=" + version);
+        }
+
+        buf.getInt();
+        this.dirty = Ewah.decode(buf);
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * The token to ask the monitor for changes since, for version 1 the time in nanoseconds.
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * Whether the monitor has not vouched for the entry at the given position since the last update.
+     */
+    public boolean isDirty(int position) {
+        return dirty.get(position);
+    }
+}
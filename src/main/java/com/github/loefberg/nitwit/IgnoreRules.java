@@ -0,0 +1,156 @@
+package com.github.loefberg.nitwit;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * The patterns of one .gitignore file, or of .git/info/exclude, chained to the files that apply to the
+ * directories above it.
+ *
+ * The last pattern in a file that matches decides, and a file deeper down decides before the ones above
+ * it. A pattern with a slash other than at the end is matched against the path relative to the directory
+ * of the file, one without only against the name. A trailing slash only matches directories, a leading
+ * '!' negates, and "**" matches any number of directories.
+ */
+class IgnoreRules {
+    private final IgnoreRules parent;
+    private final String base;
+    private final List<Rule> rules;
+
+    private IgnoreRules(IgnoreRules parent, String base, List<Rule> rules) {
+        this.parent = parent;
+        this.base = base;
+        this.rules = rules;
+    }
+
+    static IgnoreRules empty() {
+        return new IgnoreRules(null, "", List.of());
+    }
+
+    /**
+     * Reads the patterns of a file that applies to the directory {@code base} ("" or ending with '/'),
+     * on top of these. Returns these if the file does not exist or has no patterns.
+     */
+    IgnoreRules load(Path file, String base) throws IOException {
+        if(!Files.isRegularFile(file)) {
+            return this;
+        }
+        List<Rule> rules = new ArrayList<>();
+        for(String line: new String(Files.readAllBytes(file), StandardCharsets.UTF_8).split("\r?\n")) {
+            Rule rule = Rule.parse(line);
+            if(rule != null) {
+                rules.add(rule);
+            }
+        }
+        return rules.isEmpty() ? this : new IgnoreRules(this, base, rules);
+    }
+
+    /**
+     * Whether the path, relative to the top of the working tree, is ignored.
+     */
+    boolean isIgnored(String path, boolean directory) {
+        for(IgnoreRules rules = this; rules != null; rules = rules.parent) {
+            if(!path.startsWith(rules.base)) {
+                continue;
+            }
+            String relative = path.substring(rules.base.length());
+            String name = relative.substring(relative.lastIndexOf('/') + 1);
+            for(int i = rules.rules.size() - 1; i >= 0; i--) {
+                Rule rule = rules.rules.get(i);
+                if(rule.matches(relative, name, directory)) {
+                    return !rule.negated;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static final class Rule {
+        private final Pattern pattern;
+        private final boolean negated;
+        private final boolean directoryOnly;
+        private final boolean anchored;
+
+        private Rule(Pattern pattern, boolean negated, boolean directoryOnly, boolean anchored) {
+            this.pattern = pattern;
+            this.negated = negated;
+            this.directoryOnly = directoryOnly;
+            this.anchored = anchored;
+        }
+
+        static Rule parse(String line) {
+            if(line.isEmpty() || line.startsWith("#")) {
+                return null;
+            }
+            int end = line.length();
+            while(end > 0 && line.charAt(end - 1) == ' ' && (end < 2 || line.charAt(end - 2) != '\\')) {
+                end--;
+            }
+            line = line.substring(0, end);
+
+            boolean negated = line.startsWith("!");
+            if(negated || line.startsWith("\\!") || line.startsWith("\\#")) {
+                line = line.substring(1);
+            }
+            boolean directoryOnly = line.endsWith("/");
+            if(directoryOnly) {
+                line = line.substring(0, line.length() - 1);
+            }
+            if(line.isEmpty()) {
+                return null;
+            }
+            boolean anchored = line.indexOf('/') >= 0;
+            if(line.startsWith("/")) {
+                line = line.substring(1);
+            }
+            return new Rule(Pattern.compile(toRegex(line)), negated, directoryOnly, anchored);
+        }
+
+        boolean matches(String relative, String name, boolean directory) {
+            if(directoryOnly && !directory) {
+                return false;
+            }
+            return pattern.matcher(anchored ? relative : name).matches();
+        }
+
+        private static String toRegex(String glob) {
+            StringBuilder regex = new StringBuilder();
+            for(int i = 0; i < glob.length(); i++) {
+                char ch = glob.charAt(i);
+                if(glob.startsWith("**/", i) && (i == 0 || glob.charAt(i - 1) == '/')) {
+                    regex.append("(?:.*/)?");
+                    i += 2;
+                } else if(glob.startsWith("**", i) && i + 2 == glob.length() && (i == 0 || glob.charAt(i - 1) == '/')) {
+                    regex.append(".*");
+                    i++;
+                } else if(ch == '*') {
+                    regex.append("[^/]*");
+                } else if(ch == '?') {
+                    regex.append("[^/]");
+                } else if(ch == '[') {
+                    int close = glob.indexOf(']', i + 2);
+                    if(close < 0) {
+                        regex.append("\\[");
+                        continue;
+                    }
+                    String set = glob.substring(i + 1, close);
+                    if(set.startsWith("!")) {
+                        set = "^" + set.substring(1);
+                    }
+                    regex.append('[').append(set.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                    i = close;
+                } else if(ch == '\\' && i + 1 < glob.length()) {
+                    regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+                } else {
+                    regex.append(Pattern.quote(String.valueOf(ch)));
+                }
+            }
+            return regex.toString();
+        }
+    }
+}
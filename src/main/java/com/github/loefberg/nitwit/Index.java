@@ -1,37 +1,137 @@
 package com.github.loefberg.nitwit;
 
+import com.github.loefberg.nitwit.util.Parallel;
+
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
 
-import static com.github.loefberg.nitwit.util.ByteBufferUtils.getEpochSecond;
 import static com.github.loefberg.nitwit.util.ByteBufferUtils.getUnsignedInt;
 import static com.github.loefberg.nitwit.util.Hex.toHex;
 
+/**
+ * The index, .git/index, versions 2 to 4.
+ *
+ * <pre>
+ * - 4-byte signature { 'D', 'I', 'R', 'C' }
+ * - 4-byte version, 2, 3 or 4
+ * - 32-bit number of entries
+ * - the entries, sorted by path and stage
+ * - extensions: 4-byte signature, 32-bit size, data
+ * - SHA-1 over everything before it
+ * </pre>
+ *
+ * Version 3 adds 16 bits of extended flags to entries that have the extended bit set. Version 4 drops the
+ * padding and compresses each path against the one before it.
+ *
+ * The entries are not kept as objects but column by column: a primitive array for each stat field, one
+ * array holding all the IDs and one holding all the paths. A large index is then a handful of arrays
+ * instead of several objects per entry. {@link IndexEntry} is a view of one position, created when asked
+ * for, and the hot accessors take the position directly.
+ *
+ * Of the extensions TREE (the cache tree), FSMN (file system monitor), EOIE (end of index entries) and IEOT
+ * (index entry offset table) are parsed. The others whose signature starts with an upper case letter are
+ * optional and are kept as they are, like UNTR (untracked cache) and REUC (resolve undo). An extension git
+ * calls required, starting with a lower case letter like "link" for a split index, is not supported.
+ */
 public class Index {
     private static final int MAGIC = ('D' << 24) | ('I' << 16) | ('R' << 8) | ('C' << 0);
+
+    static final int EXT_TREE = ('T' << 24) | ('R' << 16) | ('E' << 8) | 'E';
+    static final int EXT_UNTRACKED = ('U' << 24) | ('N' << 16) | ('T' << 8) | 'R';
+    static final int EXT_FSMONITOR = ('F' << 24) | ('S' << 16) | ('M' << 8) | 'N';
+    static final int EXT_END_OF_INDEX_ENTRIES = ('E' << 24) | ('O' << 16) | ('I' << 8) | 'E';
+    static final int EXT_INDEX_ENTRY_OFFSET_TABLE = ('I' << 24) | ('E' << 16) | ('O' << 8) | 'T';
+
+    static final int HASH_LENGTH = 20;
+    private static final int EOIE_SIZE = 4 + HASH_LENGTH;
+
+    /** Flags: the assume-valid bit. */
+    static final int FLAG_ASSUME_VALID = 0x8000;
+
+    /** Flags: extended flags follow, version 3 and up. */
+    static final int FLAG_EXTENDED = 0x4000;
+
+    static final int FLAG_STAGE_MASK = 0x3000;
+    static final int FLAG_NAME_MASK = 0xfff;
+
+    /** Extended flags, kept in the upper half of the flags column. */
+    static final int FLAG_SKIP_WORKTREE = 0x4000 << 16;
+    static final int FLAG_INTENT_TO_ADD = 0x2000 << 16;
+
+    /** Everything before the path: ten 32-bit stat fields, the ID and the 16-bit flags. */
+    static final int ENTRY_HEADER_SIZE = 40 + HASH_LENGTH + 2;
+
     private final int version;
-    private List<IndexEntry> entries = new ArrayList<>();
+    private final Columns columns;
+    private final List<Extension> extensions = new ArrayList<>();
+    private CacheTree cacheTree;
+    private FsMonitorData fsMonitor;
 
-    public static void main(String[] args) throws IOException {
+    /** Where the entries are in the file the index was read from, or null. */
+    private Layout layout;
+
+    /** Offset of the first extension, from EOIE, or -1. */
+    private long endOfEntries = -1;
 
-        Path file = Paths.get("D:\\Bitbucket\\modeling-tool\\.git\\index");
-        byte[] content = Files.readAllBytes(file);
-        ByteBuffer buf = ByteBuffer.wrap(content);
-        Index index = new Index(buf);
+    /** Offsets and entry counts of the blocks of entries, from IEOT, or null. */
+    private int[] blockOffsets;
+    private int[] blockEntryCounts;
+
+    public static void main(String[] args) throws IOException {
+        Index index = read(Paths.get("D:\\Bitbucket\\modeling-tool\\.git\\index"));
 
         // index.entries.forEach(e -> System.out.println(e));
     }
 
+    /**
+     * Reads the index with a thread per processor. The file is read into memory rather than mapped, since a
+     * mapping stays until it is garbage collected, and on Windows a mapped file cannot be replaced by the
+     * rename of index.lock.
+     */
+    public static Index read(Path file) throws IOException {
+        return read(file, 0);
+    }
+
+    /**
+     * Reads the index with up to the given number of threads, 0 for one per processor, like git's
+     * index.threads.
+     */
+    public static Index read(Path file, int threads) throws IOException {
+        FileTime modified = Files.getLastModifiedTime(file);
+        Index index = new Index(ByteBuffer.wrap(Files.readAllBytes(file)), threads);
+        index.layout.modified = modified.toInstant();
+        return index;
+    }
+
     public Index(ByteBuffer buf) {
+        this(buf, 1);
+    }
+
+    /**
+     * Parses the index, with up to {@code threads} threads if the index has an entry offset table.
+     *
+     * The EOIE extension at the very end tells where the extensions start, so they can be read before the
+     * entries. The IEOT extension among them splits the entries into blocks that each start at a known
+     * offset with a fresh version 4 path prefix, and the blocks are parsed on separate threads, into the
+     * same positions a sequential parse would put them. The checksum is computed alongside.
+     */
+    public Index(ByteBuffer buf, int threads) {
         // 4-byte signature:
         // The signature is { 'D', 'I', 'R', 'C' } (stands for "dircache")
         int signature = buf.getInt();
@@ -42,35 +142,324 @@ public class Index {
         // 4-byte version number:
         // The current possible versions are 2, 3 and 4.
         version = buf.getInt();
-        if(version != 2) {
+        if(version < 2 || version > 4) {
             throw new RuntimeException("Unsupported index version=" + version);
         }
 
         // 32-bit number of index entries.
         long numberOfEntries = getUnsignedInt(buf);
 
-        // entries
-        for(long i = 0; i < numberOfEntries; i++) {
-            entries.add(new IndexEntry(buf));
+        if(numberOfEntries > Integer.MAX_VALUE - 8) {
+            throw new RuntimeException("Unsupported number of index entries=" + numberOfEntries);
+        }
+        int count = (int)numberOfEntries;
+        columns = new Columns(count);
+        columns.count = count;
+        int[] entryOffsets = new int[count + 1];
+        int entriesStart = buf.position();
+
+        // With EOIE the extensions can be read first, and IEOT among them allows a parallel parse.
+        endOfEntries = findEndOfEntries(buf);
+        if(endOfEntries >= 0) {
+            readExtensions(buf.position((int)endOfEntries));
+        }
+
+        if(threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
         }
+        if(threads > 1 && getBlockCount() > 1) {
+            readBlocks(buf, threads, entryOffsets);
+            entryOffsets[count] = (int)endOfEntries;
+        } else {
+            buf.position(entriesStart);
+            PathArena paths = new PathArena(Math.max(64, (buf.limit() - entriesStart) / 2));
+            readEntries(buf, 0, count, paths, entryOffsets);
+            columns.setPaths(paths.bytes, paths.length);
+            entryOffsets[count] = buf.position();
+            if(endOfEntries < 0) {
+                readExtensions(buf);
+            } else if(buf.position() != endOfEntries) {
+                throw new RuntimeException("Invalid index file format, entries end at " + buf.position() +
+                        " instead of " + endOfEntries);
+            }
+            verifyChecksum(buf);
+        }
+
+        for(int i = 0; i < count; i++) {
+            columns.source[i] = i;
+        }
+        byte[] checksum = new byte[HASH_LENGTH];
+        buf.get(buf.limit() - HASH_LENGTH, checksum);
+        layout = new Layout(version, checksum, entryOffsets);
+    }
+
+    /**
+     * An index made by a {@link Builder}.
+     */
+    private Index(int version, Columns columns, CacheTree cacheTree, FsMonitorData fsMonitor,
+                  List<Extension> extensions, Layout layout) {
+        this.version = version;
+        this.columns = columns;
+        this.cacheTree = cacheTree;
+        this.fsMonitor = fsMonitor;
+        this.extensions.addAll(extensions);
+        this.layout = layout;
+    }
+
+    /**
+     * Parses {@code count} entries into the columns from position {@code first} on. The path offsets are
+     * relative to the arena until the arenas of all blocks are joined.
+     */
+    private void readEntries(ByteBuffer buf, int first, int count, PathArena paths, int[] entryOffsets) {
+        Columns c = columns;
+        for(int i = first; i < first + count; i++) {
+            int start = buf.position();
+            entryOffsets[i] = start;
+
+            //  Index entries are sorted in ascending order on the name field,
+            //  interpreted as a string of unsigned bytes (i.e. memcmp() order, no
+            //  localization, no special casing of directory separator '/'). Entries
+            //  with the same name are sorted by their stage field.
+
+            //  32-bit ctime seconds and nanosecond fractions, 32-bit mtime seconds and nanosecond
+            //  fractions, 32-bit dev, 32-bit ino, all stat(2) data
+            c.ctimeSeconds[i] = buf.getInt();
+            c.ctimeNanos[i] = buf.getInt();
+            c.mtimeSeconds[i] = buf.getInt();
+            c.mtimeNanos[i] = buf.getInt();
+            c.dev[i] = buf.getInt();
+            c.ino[i] = buf.getInt();
+
+            //  32-bit mode, split into (high to low bits)
+            //    4-bit object type
+            //      valid values in binary are 1000 (regular file), 1010 (symbolic link)
+            //      and 1110 (git link)
+            //    3-bit unused
+            //    9-bit unix permission. Only 0755 and 0644 are valid for regular files.
+            //    Symbolic links and gitlinks have value 0 in this field.
+            c.mode[i] = buf.getInt();
+
+            //  32-bit uid, 32-bit gid, 32-bit file size truncated to 32-bit, all stat(2) data
+            c.uid[i] = buf.getInt();
+            c.gid[i] = buf.getInt();
+            c.size[i] = buf.getInt();
 
-        // TODO: extensions
+            //  160-bit SHA-1 for the represented object
+            buf.get(c.ids, i * HASH_LENGTH, HASH_LENGTH);
+
+            //  A 16-bit 'flags' field split into (high to low bits)
+            //    1-bit assume-valid flag
+            //    1-bit extended flag (must be zero in version 2)
+            //    2-bit stage (during merge)
+            //    12-bit name length if the length is less than 0xFFF; otherwise 0xFFF
+            //    is stored in this field.
+            int flags = buf.getShort() & 0xffff;
 
-        buf.position(buf.limit() - 20);
-        byte[] expectedHashSum = new byte[20];
-        buf.get(expectedHashSum);
+            //  (Version 3 or later) A 16-bit field, only applicable if the
+            //  "extended flag" above is 1, split into (high to low bits).
+            //    1-bit reserved for future
+            //    1-bit skip-worktree flag (used by sparse checkout)
+            //    1-bit intent-to-add flag (used by "git add -N")
+            //    13-bit unused, must be zero
+            if((flags & FLAG_EXTENDED) != 0) {
+                if(version < 3) {
+                    throw new RuntimeException("Invalid index file format, extended flag set in version " + version);
+                }
+                flags |= (buf.getShort() & 0xffff) << 16;
+            }
+            c.flags[i] = flags;
 
+            // Entry path name (variable length) relative to top level directory
+            //    (without leading slash). '/' is used as path separator.
+            c.pathOffsets[i] = paths.length;
+            if(version == 4) {
+                //  In version 4, the entry path name is prefix-compressed relative to
+                //  the path name for the previous entry, and there is no padding.
+                int drop = PathArena.readVarint(buf);
+                int previous = i == first ? 0 : paths.length - c.pathOffsets[i - 1];
+                if(i == first) {
+                    // git writes the first path of an IEOT block in full, but with the strip count of the
+                    // path before it, so a reader starting at the block has to ignore the count
+                    drop = 0;
+                }
+                if(drop > previous) {
+                    throw new RuntimeException("Invalid index file format, path prefix longer than previous path");
+                }
+                if(i > first) {
+                    paths.copyPrevious(c.pathOffsets[i - 1], previous - drop);
+                }
+                paths.readTerminated(buf);
+            } else {
+                paths.readTerminated(buf);
 
-        buf.rewind();
-        ByteBuffer window = buf.slice().limit(buf.remaining() - 20);
-        byte[] actualHashSum;
+                //  1-8 nul bytes as necessary to pad the entry to a multiple of eight bytes
+                //  while keeping the name NUL-terminated.
+                int length = buf.position() - 1 - start;
+                buf.position(start + ((length + 8) & ~7));
+            }
+        }
+    }
+
+    /**
+     * Parses the IEOT blocks on a pool of threads, every thread taking a run of consecutive blocks, and
+     * verifies the checksum as one more task. Every block gets its own path arena, and the arenas are
+     * joined when all blocks are done.
+     */
+    private void readBlocks(ByteBuffer buf, int threads, int[] entryOffsets) {
+        int blocks = blockOffsets.length;
+        int[] firstEntry = new int[blocks + 1];
+        for(int i = 0; i < blocks; i++) {
+            firstEntry[i + 1] = firstEntry[i] + blockEntryCounts[i];
+        }
+        if(firstEntry[blocks] != columns.count) {
+            throw new RuntimeException("Invalid index file format, offset table covers " + firstEntry[blocks] +
+                    " entries instead of " + columns.count);
+        }
+
+        PathArena[] arenas = new PathArena[blocks];
+        int tasks = Math.min(threads, blocks);
+        ForkJoinPool pool = new ForkJoinPool(tasks);
         try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-1");
-            digest.update(window);
-            actualHashSum = digest.digest();
-        } catch(NoSuchAlgorithmException ex) {
-            throw new RuntimeException(ex);
+            Parallel.forEach(pool, tasks + 1, task -> {
+                if(task == tasks) {
+                    verifyChecksum(buf);
+                    return;
+                }
+                for(int block = task * blocks / tasks; block < (task + 1) * blocks / tasks; block++) {
+                    int end = block + 1 < blocks ? blockOffsets[block + 1] : (int)endOfEntries;
+                    ByteBuffer view = buf.duplicate().position(blockOffsets[block]);
+                    arenas[block] = new PathArena(Math.max(64, (end - blockOffsets[block]) / 2));
+                    readEntries(view, firstEntry[block], blockEntryCounts[block], arenas[block], entryOffsets);
+                    if(view.position() != end) {
+                        throw new RuntimeException("Invalid index file format, block " + block + " ends at " +
+                                view.position() + " instead of " + end);
+                    }
+                }
+            });
+        } catch(IOException ex) {
+            throw new UncheckedIOException(ex);
+        } finally {
+            pool.shutdown();
+        }
+
+        int total = 0;
+        for(PathArena arena: arenas) {
+            total += arena.length;
+        }
+        byte[] paths = new byte[total];
+        int base = 0;
+        for(int block = 0; block < blocks; block++) {
+            System.arraycopy(arenas[block].bytes, 0, paths, base, arenas[block].length);
+            for(int i = firstEntry[block]; i < firstEntry[block + 1]; i++) {
+                columns.pathOffsets[i] += base;
+            }
+            base += arenas[block].length;
+        }
+        columns.setPaths(paths, total);
+    }
+
+    private void readExtensions(ByteBuffer buf) {
+        int extensionsEnd = buf.limit() - HASH_LENGTH;
+        while(buf.position() + 8 <= extensionsEnd) {
+            readExtension(buf);
+        }
+        if(buf.position() != extensionsEnd) {
+            throw new RuntimeException("Invalid index file format, extensions end at " + buf.position() +
+                    " instead of " + extensionsEnd);
+        }
+    }
+
+    private void readExtension(ByteBuffer buf) {
+        int signature = buf.getInt();
+        int size = buf.getInt();
+        if(size < 0 || buf.position() + size > buf.limit() - HASH_LENGTH) {
+            throw new RuntimeException("Invalid index extension size=" + Integer.toUnsignedString(size));
+        }
+        ByteBuffer data = buf.slice(buf.position(), size);
+        buf.position(buf.position() + size);
+
+        if(signature == EXT_TREE) {
+            // written from the cache tree itself, which changes as entries do
+            if(size > 0) {
+                cacheTree = CacheTree.parse(data);
+            }
+            return;
+        } else if(signature == EXT_FSMONITOR) {
+            fsMonitor = new FsMonitorData(data);
+        } else if(signature == EXT_END_OF_INDEX_ENTRIES) {
+            // EOIE and IEOT describe the layout of this file, they are not kept
+            return;
+        } else if(signature == EXT_INDEX_ENTRY_OFFSET_TABLE) {
+            readIndexEntryOffsetTable(data);
+            return;
+        } else if(!isOptional(signature)) {
+            throw new RuntimeException("Unsupported index extension: " + signatureName(signature));
+        }
+
+        byte[] raw = new byte[size];
+        data.get(0, raw);
+        extensions.add(new Extension(signature, raw));
+    }
+
+    /**
+     * EOIE is always the last extension: 32-bit offset of the end of the entries, then a SHA-1 over the
+     * signature and size of every extension from there to EOIE itself. Returns the offset, or -1 if there
+     * is no EOIE or it does not describe this file, in which case it is not used, like git does.
+     */
+    private static long findEndOfEntries(ByteBuffer buf) {
+        int eoieStart = buf.limit() - HASH_LENGTH - 8 - EOIE_SIZE;
+        if(eoieStart < 12 || buf.getInt(eoieStart) != EXT_END_OF_INDEX_ENTRIES || buf.getInt(eoieStart + 4) != EOIE_SIZE) {
+            return -1;
+        }
+
+        long offset = getUnsignedInt(buf, eoieStart + 8);
+        if(offset < 12 || offset > eoieStart) {
+            return -1;
+        }
+        MessageDigest digest = newSha1();
+        for(long pos = offset; pos < eoieStart;) {
+            if(pos + 8 > eoieStart) {
+                return -1;
+            }
+            digest.update(buf.slice((int)pos, 8));
+            pos += 8 + getUnsignedInt(buf, (int)pos + 4);
+        }
+        byte[] expected = new byte[HASH_LENGTH];
+        buf.get(eoieStart + 12, expected);
+        return Arrays.equals(expected, digest.digest()) ? offset : -1;
+    }
+
+    /**
+     * IEOT: 32-bit version (1), then for every block of entries its 32-bit offset and 32-bit entry count.
+     */
+    private void readIndexEntryOffsetTable(ByteBuffer data) {
+        int version = data.getInt();
+        if(version != 1) {
+            // an unknown table is only an optimization lost
+            return;
+        }
+        int blocks = data.remaining() / 8;
+        blockOffsets = new int[blocks];
+        blockEntryCounts = new int[blocks];
+        for(int i = 0; i < blocks; i++) {
+            blockOffsets[i] = data.getInt();
+            blockEntryCounts[i] = data.getInt();
         }
+    }
+
+    private static void verifyChecksum(ByteBuffer buf) {
+        byte[] expectedHashSum = new byte[HASH_LENGTH];
+        buf.get(buf.limit() - HASH_LENGTH, expectedHashSum);
+
+        // an index written with index.skipHash has a zero checksum
+        if(Arrays.equals(expectedHashSum, new byte[HASH_LENGTH])) {
+            return;
+        }
+
+        ByteBuffer window = buf.slice(0, buf.limit() - HASH_LENGTH);
+        MessageDigest digest = newSha1();
+        digest.update(window);
+        byte[] actualHashSum = digest.digest();
 
         if(!Arrays.equals(expectedHashSum, actualHashSum)) {
             throw new RuntimeException("index file has invalid checksum, expected=" + toHex(expectedHashSum) +
@@ -78,69 +467,707 @@ public class Index {
         }
     }
 
-    public static class IndexEntry {
-        /** The last time a file's metadata changed. */
-        private final Instant ctime;
+    private static MessageDigest newSha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch(NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
 
-        /** The last time a file's data changed. */
-        private final Instant mtime;
+    /**
+     * An extension whose signature starts with 'A'..'Z' can be ignored by a reader that does not know it.
+     */
+    private static boolean isOptional(int signature) {
+        int first = signature >>> 24;
+        return first >= 'A' && first <= 'Z';
+    }
+
+    static String signatureName(int signature) {
+        return new String(new byte[] {
+                (byte)(signature >>> 24), (byte)(signature >>> 16), (byte)(signature >>> 8), (byte)signature
+        }, StandardCharsets.US_ASCII);
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * The number of entries.
+     */
+    public int size() {
+        return columns.count;
+    }
+
+    /**
+     * A view of the entries, each one created when it is accessed.
+     */
+    public List<IndexEntry> getEntries() {
+        return new Entries(0, columns.count);
+    }
+
+    /**
+     * Returns the entry at stage 0 for the path, or null if there is none.
+     */
+    public IndexEntry getEntry(String path) {
+        int i = findPosition(path.getBytes(StandardCharsets.UTF_8), 0);
+        return i < 0 ? null : new IndexEntry(this, i);
+    }
+
+    /**
+     * Binary search for the entry with the given path and stage. Returns its position, or if there is none
+     * {@code -(insertion point) - 1}, like {@link Arrays#binarySearch(int[], int)}.
+     */
+    public int findPosition(byte[] path, int stage) {
+        int low = 0;
+        int high = columns.count - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compare(mid, path, stage);
+            if(cmp < 0) {
+                low = mid + 1;
+            } else if(cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * The entries inside a directory, all the paths starting with "{directory}/". The empty string is
+     * the whole index.
+     */
+    public List<IndexEntry> getEntries(String directory) {
+        if(directory.isEmpty()) {
+            return getEntries();
+        }
+        byte[] prefix = (directory + "/").getBytes(StandardCharsets.UTF_8);
+        int from = lowerBound(prefix);
+        // '/' + 1 is '0', the first byte that sorts after every path inside the directory
+        prefix[prefix.length - 1] = '/' + 1;
+        return new Entries(from, lowerBound(prefix));
+    }
+
+    /**
+     * The first position whose path is not less than {@code path}.
+     */
+    int lowerBound(byte[] path) {
+        int position = findPosition(path, 0);
+        return position >= 0 ? position : -position - 1;
+    }
+
+    /**
+     * Compares the entry at position i with a path and stage, in index order: paths as unsigned bytes,
+     * a prefix before the longer path, then by stage.
+     */
+    int compare(int i, byte[] path, int stage) {
+        byte[] paths = columns.paths;
+        int offset = columns.pathOffsets[i];
+        int length = columns.pathOffsets[i + 1] - offset;
+        int cmp = Arrays.compareUnsigned(paths, offset, offset + length, path, 0, path.length);
+        if(cmp != 0) {
+            return cmp;
+        }
+        return Integer.compare(getStage(i), stage);
+    }
+
+    public String getPathName(int i) {
+        int offset = columns.pathOffsets[i];
+        return new String(columns.paths, offset, columns.pathOffsets[i + 1] - offset, StandardCharsets.UTF_8);
+    }
+
+    public ObjectID getId(int i) {
+        return new ObjectID(columns.ids, i * HASH_LENGTH);
+    }
+
+    /**
+     * Compares the ID of entry {@code i} with {@code id} without creating an object for it.
+     */
+    public boolean idEquals(int i, ObjectID id) {
+        return id.compareTo(columns.ids, i * HASH_LENGTH) == 0;
+    }
+
+    /**
+     * The 32-bit mode, object type and permissions, as in a tree entry.
+     */
+    public int getMode(int i) {
+        return columns.mode[i];
+    }
+
+    public int getStage(int i) {
+        return (columns.flags[i] & FLAG_STAGE_MASK) >>> 12;
+    }
+
+    public long getCtimeSeconds(int i) {
+        return columns.ctimeSeconds[i] & 0xffffffffL;
+    }
+
+    public int getCtimeNanos(int i) {
+        return columns.ctimeNanos[i];
+    }
+
+    public long getMtimeSeconds(int i) {
+        return columns.mtimeSeconds[i] & 0xffffffffL;
+    }
+
+    public int getMtimeNanos(int i) {
+        return columns.mtimeNanos[i];
+    }
+
+    public long getDev(int i) {
+        return columns.dev[i] & 0xffffffffL;
+    }
+
+    public long getIno(int i) {
+        return columns.ino[i] & 0xffffffffL;
+    }
+
+    public long getUid(int i) {
+        return columns.uid[i] & 0xffffffffL;
+    }
+
+    public long getGid(int i) {
+        return columns.gid[i] & 0xffffffffL;
+    }
+
+    public long getSize(int i) {
+        return columns.size[i] & 0xffffffffL;
+    }
+
+    /**
+     * The 16-bit flags in the lower half and the 16-bit extended flags in the upper half.
+     */
+    int getFlags(int i) {
+        return columns.flags[i];
+    }
+
+    Columns getColumns() {
+        return columns;
+    }
+
+    Layout getLayout() {
+        return layout;
+    }
+
+    /**
+     * The cache tree, or null if the index has none.
+     */
+    public CacheTree getCacheTree() {
+        return cacheTree;
+    }
+
+    /**
+     * The state of the file system monitor, or null if the index has none.
+     */
+    public FsMonitorData getFsMonitor() {
+        return fsMonitor;
+    }
+
+    /**
+     * The extensions other than the cache tree and the ones describing the file layout, as they were read,
+     * like FSMN, UNTR and REUC. They are written back as they are.
+     */
+    public List<Extension> getExtensions() {
+        return Collections.unmodifiableList(extensions);
+    }
+
+    long getEndOfEntries() {
+        return endOfEntries;
+    }
+
+    int getBlockCount() {
+        return blockOffsets == null ? 0 : blockOffsets.length;
+    }
+
+    /**
+     * The entries column by column. Positions [0, count) are in use; the path of entry i is
+     * paths[pathOffsets[i] .. pathOffsets[i + 1]).
+     */
+    static final class Columns {
+        int count;
+        int[] ctimeSeconds;
+        int[] ctimeNanos;
+        int[] mtimeSeconds;
+        int[] mtimeNanos;
+        int[] dev;
+        int[] ino;
+        int[] mode;
+        int[] uid;
+        int[] gid;
+        int[] size;
+        int[] flags;
+        byte[] ids;
+        byte[] paths;
+        int[] pathOffsets;
+
+        /** The position of the entry in the file the index was read from, -1 for a new or changed entry. */
+        int[] source;
+
+        Columns(int capacity) {
+            ctimeSeconds = new int[capacity];
+            ctimeNanos = new int[capacity];
+            mtimeSeconds = new int[capacity];
+            mtimeNanos = new int[capacity];
+            dev = new int[capacity];
+            ino = new int[capacity];
+            mode = new int[capacity];
+            uid = new int[capacity];
+            gid = new int[capacity];
+            size = new int[capacity];
+            flags = new int[capacity];
+            ids = new byte[capacity * HASH_LENGTH];
+            pathOffsets = new int[capacity + 1];
+            source = new int[capacity];
+        }
 
         /**
-         * Within a POSIX system, this is the device ID (this identifies the device containing the file; that is, the
-         * scope of uniqueness of the serial number).
+         * Sets the path arena, {@code length} being where the path of the last entry ends.
          */
-        private final long dev;
+        void setPaths(byte[] paths, int length) {
+            this.paths = paths;
+            this.pathOffsets[count] = length;
+        }
 
-        /** Within a POSIX system, this is the inode (index node); the file's "serial number". */
-        private final long ino;
+        int getPathLength(int i) {
+            return pathOffsets[i + 1] - pathOffsets[i];
+        }
 
-        private final IndexFileType objectType;
+        void grow(int capacity) {
+            ctimeSeconds = Arrays.copyOf(ctimeSeconds, capacity);
+            ctimeNanos = Arrays.copyOf(ctimeNanos, capacity);
+            mtimeSeconds = Arrays.copyOf(mtimeSeconds, capacity);
+            mtimeNanos = Arrays.copyOf(mtimeNanos, capacity);
+            dev = Arrays.copyOf(dev, capacity);
+            ino = Arrays.copyOf(ino, capacity);
+            mode = Arrays.copyOf(mode, capacity);
+            uid = Arrays.copyOf(uid, capacity);
+            gid = Arrays.copyOf(gid, capacity);
+            size = Arrays.copyOf(size, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+            ids = Arrays.copyOf(ids, capacity * HASH_LENGTH);
+            pathOffsets = Arrays.copyOf(pathOffsets, capacity + 1);
+            source = Arrays.copyOf(source, capacity);
+        }
 
         /**
-         * Unix permission. Only 0755 and 0644 are valid for regular files.
-         * Symbolic links and gitlinks have value 0 in this field.
+         * Appends row i of another set of columns, with its path going to the end of the arena.
          */
-        private final short permissions;
+        void append(Columns from, int i, PathArena arena) {
+            if(count == ctimeSeconds.length) {
+                grow(Math.max(16, count * 2));
+            }
+            int j = count++;
+            ctimeSeconds[j] = from.ctimeSeconds[i];
+            ctimeNanos[j] = from.ctimeNanos[i];
+            mtimeSeconds[j] = from.mtimeSeconds[i];
+            mtimeNanos[j] = from.mtimeNanos[i];
+            dev[j] = from.dev[i];
+            ino[j] = from.ino[i];
+            mode[j] = from.mode[i];
+            uid[j] = from.uid[i];
+            gid[j] = from.gid[i];
+            size[j] = from.size[i];
+            flags[j] = from.flags[i];
+            System.arraycopy(from.ids, i * HASH_LENGTH, ids, j * HASH_LENGTH, HASH_LENGTH);
+            source[j] = from.source[i];
+            pathOffsets[j] = arena.length;
+            arena.append(from.paths, from.pathOffsets[i], from.getPathLength(i));
+            pathOffsets[j + 1] = arena.length;
+            paths = arena.bytes;
+        }
+    }
 
-        /** Within a POSIX system, this is the user ID of the file's owner. */
-        private final long uid;
+    /**
+     * A growing array of path bytes, the paths of a run of entries one after the other.
+     */
+    static final class PathArena {
+        byte[] bytes;
+        int length;
 
-        /** Within a POSIX system, this is the group ID of the file. */
-        private final long gid;
+        PathArena(int capacity) {
+            this.bytes = new byte[capacity];
+        }
 
-        /** This is the on-disk size from stat(2), truncated to 32-bit. */
-        private final long size;
+        void readTerminated(ByteBuffer buf) {
+            int start = buf.position();
+            int end = start;
+            while(buf.get(end) != 0) {
+                end++;
+            }
+            ensure(end - start);
+            buf.get(start, bytes, length, end - start);
+            length += end - start;
+            buf.position(end + 1);
+        }
 
-        /** 160-bit SHA-1 for the represented object */
-        private final byte[] hash;
+        void append(byte[] source, int offset, int count) {
+            ensure(count);
+            System.arraycopy(source, offset, bytes, length, count);
+            length += count;
+        }
+
+        void copyPrevious(int offset, int count) {
+            ensure(count);
+            System.arraycopy(bytes, offset, bytes, length, count);
+            length += count;
+        }
+
+        private void ensure(int extra) {
+            if(length + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(length + extra, bytes.length * 2));
+            }
+        }
 
         /**
-         * When the "assume unchanged" bit is on, the user promises not to change the file and allows Git to assume
-         * that the working tree file matches what is recorded in the index. If you want to change the working tree
-         * file, you need to unset the bit to tell Git. This is sometimes helpful when working with a big project
-         * on a filesystem that has very slow lstat(2) system call (e.g. cifs).
+         * git's offset varint: 7 bits a byte, most significant first, and each continuation adds one so
+         * that every value has exactly one encoding.
          */
-        private final boolean assumeUnchanged;
+        static int readVarint(ByteBuffer buf) {
+            int ch = buf.get() & 0xff;
+            int value = ch & 0x7f;
+            while((ch & 0x80) != 0) {
+                ch = buf.get() & 0xff;
+                value = ((value + 1) << 7) | (ch & 0x7f);
+            }
+            return value;
+        }
+    }
+
+    private class Entries extends AbstractList<IndexEntry> implements RandomAccess {
+        private final int from;
+        private final int to;
+
+        Entries(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public IndexEntry get(int i) {
+            if(i < 0 || i >= to - from) {
+                throw new IndexOutOfBoundsException("Index: " + i + ", size: " + (to - from));
+            }
+            return new IndexEntry(Index.this, from + i);
+        }
+
+        @Override
+        public int size() {
+            return to - from;
+        }
+    }
+
+    /**
+     * Where the entries of an index were in its file: the version, the checksum of the file and the offset
+     * of every entry, with the end of the entries last. An unchanged entry can be copied from there as it
+     * is when the index is written back.
+     */
+    static final class Layout {
+        final int version;
+        final byte[] checksum;
+        final int[] entryOffsets;
+
+        /** When the file was last modified, if it was read from a file. Entries modified since are racy. */
+        Instant modified;
+
+        Layout(int version, byte[] checksum, int[] entryOffsets) {
+            this.version = version;
+            this.checksum = checksum;
+            this.entryOffsets = entryOffsets;
+        }
+    }
+
+    /**
+     * Makes a new index from an existing one and a batch of changes. The changes are collected and then
+     * merged with the sorted entries in one pass, so adding many paths costs a sort and not an insertion
+     * each.
+     *
+     * Entries taken over from the existing index remember where they were in its file, for
+     * {@link IndexWriter} to copy them from there. The cache tree is invalidated along every changed path.
+     * The file system monitor and untracked cache extensions are dropped when anything changed, git then
+     * rebuilds them the next time it looks at the working tree.
+     */
+    public static class Builder {
+        private static final int REMOVE = -1;
+
+        private final Index base;
+        private final int version;
+        private final Columns pending = new Columns(16);
+        private final PathArena pendingPaths = new PathArena(256);
+
+        /** The stage of every pending row, or REMOVE for a removal of all stages of the path. */
+        private int[] operations = new int[16];
+
+        private CacheTree cacheTree;
+        private boolean cacheTreeSet;
 
         /**
-         * Determines if the extended flags are present or not. Must be 0 on version 2 which does not have
-         * extended flags.
+         * Starts an empty index of the given version.
          */
-        private final boolean extended;
+        public Builder(int version) {
+            if(version < 2 || version > 4) {
+                throw new IllegalArgumentException("Unsupported index version=" + version);
+            }
+            this.base = null;
+            this.version = version;
+        }
 
-        /***
-         * 2-bit stage (during merge).
-         * 0: regular file, not in a merge conflict
-         * 1: base, the common ancestor
-         * 2: ours, the target (HEAD) version
-         * 3: theirs, the being-merged-in version.
+        /**
+         * Starts from the entries and extensions of an existing index.
+         */
+        public Builder(Index base) {
+            this.base = base;
+            this.version = base.version;
+        }
+
+        /**
+         * Adds or replaces the entry at stage 0 of the path, which also resolves any conflict on it. The
+         * stat data is left zero, so git will look at the file the next time it refreshes the index.
+         */
+        public Builder add(String path, ObjectID id, int mode) {
+            int row = addRow(path.getBytes(StandardCharsets.UTF_8), 0);
+            pending.mode[row] = mode;
+            id.copyTo(pending.ids, row * HASH_LENGTH);
+            return this;
+        }
+
+        /**
+         * Adds or replaces the entry at stage 0 of the path with the stat data of the file it was made from,
+         * so that git and {@link StatusScanner} see it as unchanged without reading it.
+         */
+        public Builder add(String path, ObjectID id, FileStat stat) {
+            add(path, id, stat.getMode());
+            stat.copyTo(pending, pending.count - 1);
+            return this;
+        }
+
+        /**
+         * Adds or replaces an entry with everything it has, from this or any other index. Adding an entry
+         * of the index the builder started from, unchanged, keeps it as it was.
+         */
+        public Builder add(IndexEntry entry) {
+            Columns from = entry.index.columns;
+            int i = entry.position;
+            int row = pending.count;
+            if(row == operations.length) {
+                operations = Arrays.copyOf(operations, row * 2);
+            }
+            operations[row] = (from.flags[i] & FLAG_STAGE_MASK) >>> 12;
+            pending.append(from, i, pendingPaths);
+            if(entry.index != base) {
+                pending.source[row] = -1;
+            }
+            return this;
+        }
+
+        /**
+         * Removes all stages of the path.
+         */
+        public Builder remove(String path) {
+            int row = addRow(path.getBytes(StandardCharsets.UTF_8), REMOVE);
+            operations[row] = REMOVE;
+            return this;
+        }
+
+        /**
+         * Replaces the cache tree, null to drop it. Otherwise the cache tree of the index the builder started
+         * from is kept, invalidated where entries changed.
+         */
+        public Builder setCacheTree(CacheTree cacheTree) {
+            this.cacheTree = cacheTree;
+            this.cacheTreeSet = true;
+            return this;
+        }
+
+        /**
+         * Appends a row for a new entry, or a removal, with zero stat data and the flags for the path and
+         * stage. Returns its position among the pending rows.
          */
-        private final short stage;
+        int addRow(byte[] path, int stage) {
+            int row = pending.count;
+            if(row == pending.ctimeSeconds.length) {
+                pending.grow(row * 2);
+            }
+            if(row == operations.length) {
+                operations = Arrays.copyOf(operations, row * 2);
+            }
+            pending.count++;
+            operations[row] = stage;
+            pending.ctimeSeconds[row] = 0;
+            pending.ctimeNanos[row] = 0;
+            pending.mtimeSeconds[row] = 0;
+            pending.mtimeNanos[row] = 0;
+            pending.dev[row] = 0;
+            pending.ino[row] = 0;
+            pending.mode[row] = 0;
+            pending.uid[row] = 0;
+            pending.gid[row] = 0;
+            pending.size[row] = 0;
+            pending.source[row] = -1;
+            pending.pathOffsets[row] = pendingPaths.length;
+            if(path != null) {
+                pending.flags[row] = (Math.max(stage, 0) << 12) | Math.min(path.length, FLAG_NAME_MASK);
+                pendingPaths.append(path, 0, path.length);
+            }
+            pending.pathOffsets[row + 1] = pendingPaths.length;
+            pending.paths = pendingPaths.bytes;
+            return row;
+        }
+
+        Columns getPending() {
+            return pending;
+        }
+
+        public Index build() {
+            Columns b = base == null ? new Columns(0) : base.columns;
+            Columns p = pending;
+            p.paths = pendingPaths.bytes;
+
+            // the pending rows by path, in the order they were made for the same path
+            Integer[] order = new Integer[p.count];
+            for(int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (x, y) -> comparePaths(p, x, p, y));
+
+            Columns out = new Columns(b.count + p.count);
+            PathArena paths = new PathArena(Math.max(64, b.pathOffsets[b.count] + pendingPaths.length));
+            List<String> changedPaths = new ArrayList<>();
+            int[] stageRows = new int[4];
+            int i = 0;
+            int k = 0;
+            while(i < b.count || k < order.length) {
+                int cmp = k == order.length ? -1 : i == b.count ? 1 : comparePaths(b, i, p, order[k]);
+                if(cmp < 0) {
+                    out.append(b, i++, paths);
+                    continue;
+                }
+
+                // all the pending rows and entries of one path
+                int end = k + 1;
+                while(end < order.length && comparePaths(p, order[k], p, order[end]) == 0) {
+                    end++;
+                }
+                int baseEnd = i;
+                while(cmp == 0 && baseEnd < b.count && comparePaths(b, baseEnd, p, order[k]) == 0) {
+                    baseEnd++;
+                }
+
+                // replay the operations on the path: -2 leaves a stage as it was, -1 removes it
+                Arrays.fill(stageRows, -2);
+                for(int j = k; j < end; j++) {
+                    int row = order[j];
+                    int stage = operations[row];
+                    if(stage == REMOVE || stage == 0) {
+                        Arrays.fill(stageRows, -1);
+                    }
+                    if(stage != REMOVE) {
+                        stageRows[stage] = row;
+                    }
+                }
+
+                boolean changed = false;
+                int next = i;
+                for(int stage = 0; stage < 4; stage++) {
+                    int baseRow = -1;
+                    while(next < baseEnd && ((b.flags[next] & FLAG_STAGE_MASK) >>> 12) <= stage) {
+                        if(((b.flags[next] & FLAG_STAGE_MASK) >>> 12) == stage) {
+                            baseRow = next;
+                        }
+                        next++;
+                    }
+                    if(stageRows[stage] >= 0) {
+                        int row = stageRows[stage];
+                        out.append(p, row, paths);
+                        changed |= baseRow < 0 || p.source[row] < 0 || p.source[row] != b.source[baseRow];
+                    } else if(stageRows[stage] == -2 && baseRow >= 0) {
+                        out.append(b, baseRow, paths);
+                    } else if(baseRow >= 0) {
+                        changed = true;
+                    }
+                }
+                if(changed) {
+                    changedPaths.add(new String(p.paths, p.pathOffsets[order[k]], p.getPathLength(order[k]),
+                            StandardCharsets.UTF_8));
+                }
+                i = baseEnd;
+                k = end;
+            }
+            out.setPaths(paths.bytes, paths.length);
+
+            CacheTree tree = cacheTreeSet ? cacheTree : base == null ? null : base.cacheTree;
+            FsMonitorData fsMonitor = base == null ? null : base.fsMonitor;
+            List<Extension> extensions = base == null ? List.of() : base.extensions;
+            if(!changedPaths.isEmpty()) {
+                for(String path: changedPaths) {
+                    tree = tree == null || cacheTreeSet ? tree : tree.invalidate(path);
+                }
+                fsMonitor = null;
+                List<Extension> kept = new ArrayList<>();
+                for(Extension extension: extensions) {
+                    if(extension.signature != EXT_FSMONITOR && extension.signature != EXT_UNTRACKED) {
+                        kept.add(extension);
+                    }
+                }
+                extensions = kept;
+            }
+            return new Index(version, out, tree, fsMonitor, extensions, base == null ? null : base.layout);
+        }
+
+        private static int comparePaths(Columns a, int i, Columns b, int j) {
+            int ai = a.pathOffsets[i];
+            int bj = b.pathOffsets[j];
+            return Arrays.compareUnsigned(a.paths, ai, ai + a.getPathLength(i), b.paths, bj, bj + b.getPathLength(j));
+        }
+    }
+
+    public static class Extension {
+        private final int signature;
+        private final byte[] data;
+
+        Extension(int signature, byte[] data) {
+            this.signature = signature;
+            this.data = data;
+        }
+
+        public String getSignature() {
+            return signatureName(signature);
+        }
+
+        int getSignatureValue() {
+            return signature;
+        }
+
+        public byte[] getData() {
+            return data.clone();
+        }
+
+        @Override
+        public String toString() {
+            return getSignature() + " (" + data.length + " bytes)";
+        }
+    }
+
+    /**
+     * A view of the entry at one position of an index.
+     */
+    public static class IndexEntry {
+        private final Index index;
+        private final int position;
+
+        IndexEntry(Index index, int position) {
+            this.index = index;
+            this.position = position;
+        }
 
         /**
-         * 12-bit name length if the length is less than 0xFFF; otherwise 0xFFF is stored in this field.
+         * The position of the entry in the index.
          */
-        private final short nameLength;
+        public int getPosition() {
+            return position;
+        }
 
         // Entry path name (variable length) relative to top level directory
         //    (without leading slash). '/' is used as path separator. The special
@@ -150,130 +1177,117 @@ public class Index {
         //    The exact encoding is undefined, but the '.' and '/' characters
         //    are encoded in 7-bit ASCII and the encoding cannot contain a NUL
         //    byte (iow, this is a UNIX pathname).
-        private final String pathName;
-
-        public IndexEntry(ByteBuffer buf) {
-            //  Index entries are sorted in ascending order on the name field,
-            //  interpreted as a string of unsigned bytes (i.e. memcmp() order, no
-            //  localization, no special casing of directory separator '/'). Entries
-            //  with the same name are sorted by their stage field.
-
-            // 32-bit ctime seconds, the last time a file's metadata changed
-            //    this is stat(2) data
-            //  32-bit ctime nanosecond fractions
-            //    this is stat(2) data
-            this.ctime = getEpochSecond(buf);
-
-            //  32-bit mtime seconds, the last time a file's data changed
-            //    this is stat(2) data
-            //
-            //  32-bit mtime nanosecond fractions
-            //    this is stat(2) data
-            this.mtime = getEpochSecond(buf);
+        public String getPathName() {
+            return index.getPathName(position);
+        }
 
-            //  32-bit dev
-            //    this is stat(2) data
-            this.dev = getUnsignedInt(buf);
+        /** 160-bit SHA-1 for the represented object */
+        public ObjectID getId() {
+            return index.getId(position);
+        }
 
-            //
-            //  32-bit ino
-            //    this is stat(2) data
-            this.ino = getUnsignedInt(buf);
+        public IndexFileType getObjectType() {
+            return IndexFileType.fromValue((byte)((index.getMode(position) & 0xf000) >> 12));
+        }
 
-            //  32-bit mode, split into (high to low bits)
-            long mode = getUnsignedInt(buf);
+        /**
+         * Unix permission. Only 0755 and 0644 are valid for regular files.
+         * Symbolic links and gitlinks have value 0 in this field.
+         */
+        public short getPermissions() {
+            return (short)(index.getMode(position) & 0x1ff);
+        }
 
-            // mode is split up like this:
-            //
-            //    4-bit object type
-            //      valid values in binary are 1000 (regular file), 1010 (symbolic link)
-            //      and 1110 (git link)
-            this.objectType = IndexFileType.fromValue((byte)((mode & 0xf000) >> 12));
+        public int getMode() {
+            return index.getMode(position);
+        }
 
-            //    3-bit unused
-            //
-            // 1ff
-            //    9-bit unix permission. Only 0755 and 0644 are valid for regular files.
-            //    Symbolic links and gitlinks have value 0 in this field.
-            this.permissions = (short)(mode & 0x1ff);
+        /** The last time a file's metadata changed. */
+        public Instant getCtime() {
+            return Instant.ofEpochSecond(index.getCtimeSeconds(position), index.getCtimeNanos(position));
+        }
 
+        /** The last time a file's data changed. */
+        public Instant getMtime() {
+            return Instant.ofEpochSecond(index.getMtimeSeconds(position), index.getMtimeNanos(position));
+        }
 
-            //  32-bit uid
-            //    this is stat(2) data
-            this.uid = getUnsignedInt(buf);
+        /**
+         * Within a POSIX system, this is the device ID (this identifies the device containing the file; that is, the
+         * scope of uniqueness of the serial number).
+         */
+        public long getDev() {
+            return index.getDev(position);
+        }
 
-            //
-            //  32-bit gid
-            //    this is stat(2) data
-            this.gid = getUnsignedInt(buf);
+        /** Within a POSIX system, this is the inode (index node); the file's "serial number". */
+        public long getIno() {
+            return index.getIno(position);
+        }
 
-            //
-            //  32-bit file size
-            //    This is the on-disk size from stat(2), truncated to 32-bit.
-            this.size = getUnsignedInt(buf);
+        /** Within a POSIX system, this is the user ID of the file's owner. */
+        public long getUid() {
+            return index.getUid(position);
+        }
 
+        /** Within a POSIX system, this is the group ID of the file. */
+        public long getGid() {
+            return index.getGid(position);
+        }
 
-            //  160-bit SHA-1 for the represented object
-            this.hash = new byte[20];
-            buf.get(hash);
+        /** This is the on-disk size from stat(2), truncated to 32-bit. */
+        public long getSize() {
+            return index.getSize(position);
+        }
 
-            //
-            //  A 16-bit 'flags' field split into (high to low bits)
-            //
-            //    1-bit assume-valid flag
-            //
-            //    1-bit extended flag (must be zero in version 2)
-            //
-            //    2-bit stage (during merge)
-            //
-            //    12-bit name length if the length is less than 0xFFF; otherwise 0xFFF
-            //    is stored in this field.
-            int flags = buf.getShort();
-            this.assumeUnchanged = ((flags & 0b1000000000000000) != 0);
-            this.extended = ((flags & 0b0100000000000000) != 0);
-            this.stage = (short)((flags & 0b0011000000000000) >> 12);
-            this.nameLength = (short)(flags & 0xfff);
+        /***
+         * 2-bit stage (during merge).
+         * 0: regular file, not in a merge conflict
+         * 1: base, the common ancestor
+         * 2: ours, the target (HEAD) version
+         * 3: theirs, the being-merged-in version.
+         */
+        public int getStage() {
+            return index.getStage(position);
+        }
 
-            // Entry path name (variable length) relative to top level directory
-            //    (without leading slash). '/' is used as path separator. The special
-            //    path components ".", ".." and ".git" (without quotes) are disallowed.
-            //    Trailing slash is also disallowed.
-            //
-            //    The exact encoding is undefined, but the '.' and '/' characters
-            //    are encoded in 7-bit ASCII and the encoding cannot contain a NUL
-            //    byte (iow, this is a UNIX pathname).
-
-            StringBuilder entryPathName = new StringBuilder();
-            byte ch;
-            while ((ch = buf.get()) != 0) {
-                entryPathName.append((char) ch);
-            }
+        /**
+         * When the "assume unchanged" bit is on, the user promises not to change the file and allows Git to assume
+         * that the working tree file matches what is recorded in the index. If you want to change the working tree
+         * file, you need to unset the bit to tell Git. This is sometimes helpful when working with a big project
+         * on a filesystem that has very slow lstat(2) system call (e.g. cifs).
+         */
+        public boolean isAssumeUnchanged() {
+            return (index.getFlags(position) & FLAG_ASSUME_VALID) != 0;
+        }
 
-            //  1-8 nul bytes as necessary to pad the entry to a multiple of eight bytes
-            //  while keeping the name NUL-terminated.
-            while (buf.get(buf.position()) == 0) {
-                buf.get();
-            }
+        /** Version 3 and up, extended flag: the file is outside the sparse checkout. */
+        public boolean isSkipWorktree() {
+            return (index.getFlags(position) & FLAG_SKIP_WORKTREE) != 0;
+        }
 
-            this.pathName = entryPathName.toString();
+        /** Version 3 and up, extended flag: the path was added with git add -N. */
+        public boolean isIntentToAdd() {
+            return (index.getFlags(position) & FLAG_INTENT_TO_ADD) != 0;
         }
 
         @Override
         public String toString() {
             StringBuilder builder = new StringBuilder();
-            builder .append("  File: ").append(pathName).append('\n')
-                    .append("  Size: ").append(size).append('\t').append(objectType).append('\n')
-                    .append("Device: ").append(dev).append('\t')
-                        .append("Inode: ").append(ino).append('\n')
-                    .append("Access: ").append(Integer.toOctalString(permissions)).append('\t')
-                        .append("Uid: ").append(uid).append('\t')
-                        .append("Gid: ").append(gid).append('\n')
-                    .append("Modify: ").append(mtime).append('\n')
-                    .append("Change: ").append(ctime).append('\n')
-                    .append("Assume-unchanged: ").append(assumeUnchanged).append(", ")
-                        .append("Extended: ").append(extended).append(", ")
-                        .append("Stage: ").append(stage).append('\n')
-                    .append("Hash: ").append(toHex(hash));
+            builder .append("  File: ").append(getPathName()).append('\n')
+                    .append("  Size: ").append(getSize()).append('\t').append(getObjectType()).append('\n')
+                    .append("Device: ").append(getDev()).append('\t')
+                        .append("Inode: ").append(getIno()).append('\n')
+                    .append("Access: ").append(Integer.toOctalString(getPermissions())).append('\t')
+                        .append("Uid: ").append(getUid()).append('\t')
+                        .append("Gid: ").append(getGid()).append('\n')
+                    .append("Modify: ").append(getMtime()).append('\n')
+                    .append("Change: ").append(getCtime()).append('\n')
+                    .append("Assume-unchanged: ").append(isAssumeUnchanged()).append(", ")
+                        .append("Stage: ").append(getStage()).append(", ")
+                        .append("Skip-worktree: ").append(isSkipWorktree()).append(", ")
+                        .append("Intent-to-add: ").append(isIntentToAdd()).append('\n')
+                    .append("Hash: ").append(getId());
 
             return builder.toString();
         }
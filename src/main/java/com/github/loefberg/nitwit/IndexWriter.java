@@ -0,0 +1,379 @@
+package com.github.loefberg.nitwit;
+
+import com.github.loefberg.nitwit.Index.Columns;
+import com.github.loefberg.nitwit.Index.Extension;
+import com.github.loefberg.nitwit.Index.Layout;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes an {@link Index} in the format it is read in, version 2, 3 or 4.
+ *
+ * Like git the file is first written to index.lock next to it, which also locks the index against other
+ * writers, and then renamed over the index. Versions 2 and 3 are chosen by need: 3 only if an entry has
+ * extended flags.
+ *
+ * An incremental write copies the bytes of every entry that is unchanged since the index was read, straight
+ * from the file it was read from, and only encodes the others. This is done as long as that file is still
+ * the one the index was read from. In version 4 an entry is compressed against the one before it, so it is
+ * only copied if that one is unchanged as well.
+ *
+ * An entry that was modified no earlier than the index file it was read from is racily clean: the file
+ * may have changed again within the same clock tick, without that showing in its stat data. Like git, the
+ * size of such an entry is written as 0, so the next one to look at the file compares the content.
+ */
+public class IndexWriter {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private boolean incremental = true;
+    private int offsetTableBlocks;
+
+    /**
+     * Whether to copy unchanged entries from the file the index was read from. On by default.
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    /**
+     * Writes the EOIE and IEOT extensions with the entries split into this many blocks, for a reader to
+     * parse them in parallel, like git's index.recordOffsetTable with index.threads. 0, the default, writes
+     * neither.
+     */
+    public void setOffsetTableBlocks(int offsetTableBlocks) {
+        this.offsetTableBlocks = offsetTableBlocks;
+    }
+
+    /**
+     * Writes the index to the file through file.lock. Fails if the lock file exists, as another writer
+     * holds it.
+     */
+    public void write(Index index, Path file) throws IOException {
+        Path lock = file.resolveSibling(file.getFileName() + ".lock");
+        try {
+            try(FileChannel channel = FileChannel.open(lock, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                FileChannel source = openSource(index, file)) {
+                write(index, new Output(channel), source);
+            }
+            try {
+                Files.move(lock, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch(AtomicMoveNotSupportedException ex) {
+                Files.move(lock, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch(FileAlreadyExistsException ex) {
+            throw new IOException("Unable to create " + lock + ": the index is locked by another process", ex);
+        } catch(IOException | RuntimeException ex) {
+            Files.deleteIfExists(lock);
+            throw ex;
+        }
+    }
+
+    /**
+     * Opens the file the index was read from, if it is still there unchanged, or returns null.
+     */
+    private FileChannel openSource(Index index, Path file) throws IOException {
+        Layout layout = index.getLayout();
+        if(!incremental || layout == null || Arrays.equals(layout.checksum, new byte[Index.HASH_LENGTH])) {
+            return null;
+        }
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+        } catch(NoSuchFileException ex) {
+            return null;
+        }
+        ByteBuffer checksum = ByteBuffer.allocate(Index.HASH_LENGTH);
+        long size = channel.size();
+        if(size >= Index.HASH_LENGTH) {
+            while(checksum.hasRemaining() && channel.read(checksum, size - Index.HASH_LENGTH + checksum.position()) > 0) {
+                // read the trailer
+            }
+        }
+        if(checksum.hasRemaining() || !Arrays.equals(checksum.array(), layout.checksum)) {
+            channel.close();
+            return null;
+        }
+        return channel;
+    }
+
+    private void write(Index index, Output out, FileChannel source) throws IOException {
+        Columns c = index.getColumns();
+        int count = c.count;
+        int version = index.getVersion();
+        if(version < 4) {
+            version = 2;
+            for(int i = 0; i < count; i++) {
+                if((c.flags[i] >>> 16) != 0) {
+                    version = 3;
+                    break;
+                }
+            }
+        }
+        Instant racyTime = index.getLayout() == null ? null : index.getLayout().modified;
+        Layout layout = source == null ? null : index.getLayout();
+        if(layout != null && (layout.version == 4) != (version == 4)) {
+            layout = null;
+        }
+
+        out.putInt(('D' << 24) | ('I' << 16) | ('R' << 8) | 'C');
+        out.putInt(version);
+        out.putInt(count);
+
+        int blocks = Math.min(offsetTableBlocks, count);
+        int[] blockOffsets = new int[Math.max(blocks, 0)];
+        int[] blockEntryCounts = new int[blockOffsets.length];
+        int block = 0;
+        int nextBlock = 0;
+
+        for(int i = 0; i < count; i++) {
+            boolean blockStart = false;
+            if(blocks > 1 && i == nextBlock) {
+                blockOffsets[block] = (int)out.position();
+                blockEntryCounts[block] = (int)((long)(block + 1) * count / blocks) - i;
+                nextBlock = i + blockEntryCounts[block];
+                blockStart = true;
+                block++;
+            }
+
+            int s = c.source[i];
+            boolean racy = racyTime != null && isRacy(c, i, racyTime);
+            boolean copy = layout != null && s >= 0 && !racy;
+            if(copy && version == 4) {
+                // the bytes have the path compressed against the entry before it in the old file
+                copy = !blockStart && (i == 0 ? s == 0 : c.source[i - 1] == s - 1);
+            }
+            if(copy) {
+                out.copy(source, layout.entryOffsets[s], layout.entryOffsets[s + 1] - layout.entryOffsets[s]);
+            } else {
+                writeEntry(c, i, version, blockStart, racy, out);
+            }
+        }
+        long endOfEntries = out.position();
+
+        List<byte[]> headers = new ArrayList<>();
+        if(blocks > 1) {
+            ByteBuffer table = ByteBuffer.allocate(4 + 8 * blocks);
+            table.putInt(1);
+            for(int i = 0; i < blocks; i++) {
+                table.putInt(blockOffsets[i]).putInt(blockEntryCounts[i]);
+            }
+            headers.add(writeExtension(out, Index.EXT_INDEX_ENTRY_OFFSET_TABLE, table.array()));
+        }
+        if(index.getCacheTree() != null) {
+            ByteArrayOutputStream tree = new ByteArrayOutputStream();
+            index.getCacheTree().write(tree);
+            headers.add(writeExtension(out, Index.EXT_TREE, tree.toByteArray()));
+        }
+        for(Extension extension: index.getExtensions()) {
+            headers.add(writeExtension(out, extension.getSignatureValue(), extension.getData()));
+        }
+
+        if(blocks > 1) {
+            // EOIE: the offset of the extensions and a hash over their signatures and sizes, always last
+            MessageDigest digest = newSha1();
+            headers.forEach(digest::update);
+            ByteBuffer eoie = ByteBuffer.allocate(4 + Index.HASH_LENGTH);
+            eoie.putInt((int)endOfEntries).put(digest.digest());
+            writeExtension(out, Index.EXT_END_OF_INDEX_ENTRIES, eoie.array());
+        }
+
+        out.finish();
+    }
+
+    private static boolean isRacy(Columns c, int i, Instant racyTime) {
+        long seconds = c.mtimeSeconds[i] & 0xffffffffL;
+        return seconds > racyTime.getEpochSecond()
+                || (seconds == racyTime.getEpochSecond() && c.mtimeNanos[i] >= racyTime.getNano());
+    }
+
+    private static void writeEntry(Columns c, int i, int version, boolean blockStart, boolean smudge, Output out)
+            throws IOException {
+        long start = out.position();
+        out.putInt(c.ctimeSeconds[i]);
+        out.putInt(c.ctimeNanos[i]);
+        out.putInt(c.mtimeSeconds[i]);
+        out.putInt(c.mtimeNanos[i]);
+        out.putInt(c.dev[i]);
+        out.putInt(c.ino[i]);
+        out.putInt(c.mode[i]);
+        out.putInt(c.uid[i]);
+        out.putInt(c.gid[i]);
+        out.putInt(smudge ? 0 : c.size[i]);
+        out.put(c.ids, i * Index.HASH_LENGTH, Index.HASH_LENGTH);
+
+        int pathOffset = c.pathOffsets[i];
+        int pathLength = c.getPathLength(i);
+        int extended = c.flags[i] >>> 16;
+        int flags = (c.flags[i] & (Index.FLAG_ASSUME_VALID | Index.FLAG_STAGE_MASK))
+                | Math.min(pathLength, Index.FLAG_NAME_MASK)
+                | (extended != 0 ? Index.FLAG_EXTENDED : 0);
+        out.putShort(flags);
+        if(extended != 0) {
+            out.putShort(extended);
+        }
+
+        if(version == 4) {
+            // the number of bytes to drop from the end of the previous path, then the rest of this one
+            int previousLength = i == 0 ? 0 : c.getPathLength(i - 1);
+            int common = 0;
+            if(!blockStart && i > 0) {
+                int previousOffset = c.pathOffsets[i - 1];
+                int max = Math.min(previousLength, pathLength);
+                while(common < max && c.paths[previousOffset + common] == c.paths[pathOffset + common]) {
+                    common++;
+                }
+            }
+            // the first path of a block is written in full, and dropping all of the previous path keeps
+            // the file readable from the start as well
+            out.putVarint(previousLength - common);
+            out.put(c.paths, pathOffset + common, pathLength - common);
+            out.putByte(0);
+        } else {
+            out.put(c.paths, pathOffset, pathLength);
+            long length = out.position() - start;
+            out.pad((int)(((length + 8) & ~7) - length));
+        }
+    }
+
+    /**
+     * Writes an extension and returns its 8-byte header, which the EOIE hash covers.
+     */
+    private static byte[] writeExtension(Output out, int signature, byte[] data) throws IOException {
+        byte[] header = ByteBuffer.allocate(8).putInt(signature).putInt(data.length).array();
+        out.put(header, 0, header.length);
+        out.put(data, 0, data.length);
+        return header;
+    }
+
+    private static MessageDigest newSha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch(NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * A buffered channel that hashes what goes through it, for the trailing checksum.
+     */
+    private static final class Output {
+        private final FileChannel channel;
+        private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+        private final MessageDigest digest = newSha1();
+        private long written;
+
+        Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        long position() {
+            return written + buf.position();
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(4);
+            buf.putInt(value);
+        }
+
+        void putShort(int value) throws IOException {
+            ensure(2);
+            buf.putShort((short)value);
+        }
+
+        void putByte(int value) throws IOException {
+            ensure(1);
+            buf.put((byte)value);
+        }
+
+        void pad(int count) throws IOException {
+            ensure(count);
+            for(int i = 0; i < count; i++) {
+                buf.put((byte)0);
+            }
+        }
+
+        void put(byte[] data, int offset, int length) throws IOException {
+            while(length > 0) {
+                ensure(1);
+                int chunk = Math.min(length, buf.remaining());
+                buf.put(data, offset, chunk);
+                offset += chunk;
+                length -= chunk;
+            }
+        }
+
+        /**
+         * git's offset varint, see {@link Index.PathArena#readVarint}.
+         */
+        void putVarint(int value) throws IOException {
+            byte[] varint = new byte[5];
+            int pos = varint.length - 1;
+            varint[pos] = (byte)(value & 0x7f);
+            while((value >>>= 7) != 0) {
+                varint[--pos] = (byte)(0x80 | (--value & 0x7f));
+            }
+            put(varint, pos, varint.length - pos);
+        }
+
+        /**
+         * Copies bytes from another file, through the buffer so that they are hashed.
+         */
+        void copy(FileChannel source, long position, int length) throws IOException {
+            while(length > 0) {
+                ensure(1);
+                int limit = buf.limit();
+                buf.limit(buf.position() + Math.min(length, buf.remaining()));
+                int read = source.read(buf, position);
+                buf.limit(limit);
+                if(read < 0) {
+                    throw new IOException("Index file changed while it was copied from");
+                }
+                position += read;
+                length -= read;
+            }
+        }
+
+        private void ensure(int count) throws IOException {
+            if(buf.remaining() < count) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buf.flip();
+            digest.update(buf.duplicate());
+            while(buf.hasRemaining()) {
+                written += channel.write(buf);
+            }
+            buf.clear();
+        }
+
+        /**
+         * Writes the checksum of everything before it.
+         */
+        void finish() throws IOException {
+            flush();
+            buf.put(digest.digest());
+            buf.flip();
+            while(buf.hasRemaining()) {
+                written += channel.write(buf);
+            }
+        }
+    }
+}
@@ -2,23 +2,178 @@ package com.github.loefberg.nitwit;
 
 import com.github.loefberg.nitwit.util.Hex;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Objects;
 
-public class ObjectID {
-    private final String hash;
+/**
+ * A SHA-1 object name. The 160 bits are kept as two longs and an int, big endian, so comparing, hashing
+ * and storing object IDs in maps and sets never touches a byte array or a string.
+ */
+public final class ObjectID implements Comparable<ObjectID> {
+    /** Length of the raw hash in bytes. */
+    public static final int RAW_LENGTH = 20;
+
+    /** Length of the hash as a hex string. */
+    public static final int HEX_LENGTH = 40;
+
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private final long w1;
+    private final long w2;
+    private final int w3;
 
     public ObjectID(String hash) {
-        this.hash = hash;
+        if(Objects.requireNonNull(hash).length() != HEX_LENGTH) {
+            throw new IllegalArgumentException("Invalid hash length: " + hash.length());
+        }
+        this.w1 = Hex.decode(hash, 0, 16);
+        this.w2 = Hex.decode(hash, 16, 16);
+        this.w3 = (int)Hex.decode(hash, 32, 8);
     }
 
     public ObjectID(byte[] hash) {
-        if(Objects.requireNonNull(hash).length != 20) {
-            throw new IllegalArgumentException("Invalid hash length: " + hash.length);
-        }
-        this.hash = Hex.toHex(hash);
+        this(checkLength(hash), 0);
+    }
+
+    /**
+     * Copies the 20 bytes starting at {@code offset}.
+     */
+    public ObjectID(byte[] buf, int offset) {
+        this.w1 = getLong(buf, offset);
+        this.w2 = getLong(buf, offset + 8);
+        this.w3 = getInt(buf, offset + 16);
+    }
+
+    /**
+     * Copies the 20 bytes starting at the absolute {@code position}, the buffer's position is not changed.
+     */
+    public ObjectID(ByteBuffer buf, int position) {
+        this.w1 = buf.getLong(position);
+        this.w2 = buf.getLong(position + 8);
+        this.w3 = buf.getInt(position + 16);
     }
 
     public String getHashString() {
+        char[] chars = new char[HEX_LENGTH];
+        Hex.encode(w1, 16, chars, 0);
+        Hex.encode(w2, 16, chars, 16);
+        Hex.encode(w3 & 0xffffffffL, 8, chars, 32);
+        return new String(chars);
+    }
+
+    public byte[] toByteArray() {
+        byte[] result = new byte[RAW_LENGTH];
+        copyTo(result, 0);
+        return result;
+    }
+
+    public void copyTo(byte[] dst, int offset) {
+        putLong(dst, offset, w1);
+        putLong(dst, offset + 8, w2);
+        putInt(dst, offset + 16, w3);
+    }
+
+    public void copyTo(ByteBuffer dst) {
+        dst.putLong(w1).putLong(w2).putInt(w3);
+    }
+
+    /**
+     * The first byte of the hash, which is what fan-out tables are indexed by.
+     */
+    public int getFirstByte() {
+        return (int)(w1 >>> 56);
+    }
+
+    /**
+     * Compares with the raw hash at the absolute {@code position} in {@code buf}, without copying it.
+     */
+    public int compareTo(ByteBuffer buf, int position) {
+        int cmp = Long.compareUnsigned(w1, buf.getLong(position));
+        if(cmp != 0) {
+            return cmp;
+        }
+        cmp = Long.compareUnsigned(w2, buf.getLong(position + 8));
+        if(cmp != 0) {
+            return cmp;
+        }
+        return Integer.compareUnsigned(w3, buf.getInt(position + 16));
+    }
+
+    /**
+     * Compares with the raw hash at {@code offset} in {@code buf}, without copying it.
+     */
+    public int compareTo(byte[] buf, int offset) {
+        int cmp = Long.compareUnsigned(w1, getLong(buf, offset));
+        if(cmp != 0) {
+            return cmp;
+        }
+        cmp = Long.compareUnsigned(w2, getLong(buf, offset + 8));
+        if(cmp != 0) {
+            return cmp;
+        }
+        return Integer.compareUnsigned(w3, getInt(buf, offset + 16));
+    }
+
+    @Override
+    public int compareTo(ObjectID other) {
+        int cmp = Long.compareUnsigned(w1, other.w1);
+        if(cmp != 0) {
+            return cmp;
+        }
+        cmp = Long.compareUnsigned(w2, other.w2);
+        if(cmp != 0) {
+            return cmp;
+        }
+        return Integer.compareUnsigned(w3, other.w3);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o) {
+            return true;
+        }
+        if(!(o instanceof ObjectID)) {
+            return false;
+        }
+        ObjectID other = (ObjectID)o;
+        return w1 == other.w1 && w2 == other.w2 && w3 == other.w3;
+    }
+
+    @Override
+    public int hashCode() {
+        // SHA-1 is uniformly distributed, any 32 bits of it make a good hash code
+        return (int)(w1 >>> 32);
+    }
+
+    @Override
+    public String toString() {
+        return getHashString();
+    }
+
+    private static byte[] checkLength(byte[] hash) {
+        if(Objects.requireNonNull(hash).length != RAW_LENGTH) {
+            throw new IllegalArgumentException("Invalid hash length: " + hash.length);
+        }
         return hash;
     }
+
+    private static long getLong(byte[] buf, int offset) {
+        return (long)LONG.get(buf, offset);
+    }
+
+    private static int getInt(byte[] buf, int offset) {
+        return (int)INT.get(buf, offset);
+    }
+
+    private static void putLong(byte[] buf, int offset, long value) {
+        LONG.set(buf, offset, value);
+    }
+
+    private static void putInt(byte[] buf, int offset, int value) {
+        INT.set(buf, offset, value);
+    }
 }
@@ -0,0 +1,61 @@
+package com.github.loefberg.nitwit;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * How the working tree differs from the index: the part of git status under "Changes not staged for
+ * commit", "Untracked files" and "Unmerged paths". All paths are relative to the top of the working tree
+ * and sorted, an untracked directory that holds no tracked file is reported once, ending with '/'.
+ */
+public class Status {
+    private final List<String> modified;
+    private final List<String> deleted;
+    private final List<String> untracked;
+    private final List<String> conflicting;
+
+    Status(List<String> modified, List<String> deleted, List<String> untracked, List<String> conflicting) {
+        this.modified = modified;
+        this.deleted = deleted;
+        this.untracked = untracked;
+        this.conflicting = conflicting;
+    }
+
+    /**
+     * Tracked files whose content, type or executable bit differs from the index.
+     */
+    public List<String> getModified() {
+        return Collections.unmodifiableList(modified);
+    }
+
+    /**
+     * Tracked files that are gone from the working tree.
+     */
+    public List<String> getDeleted() {
+        return Collections.unmodifiableList(deleted);
+    }
+
+    /**
+     * Files that are neither tracked nor ignored.
+     */
+    public List<String> getUntracked() {
+        return Collections.unmodifiableList(untracked);
+    }
+
+    /**
+     * Paths with entries at stage 1, 2 or 3, left by a merge.
+     */
+    public List<String> getConflicting() {
+        return Collections.unmodifiableList(conflicting);
+    }
+
+    public boolean isClean() {
+        return modified.isEmpty() && deleted.isEmpty() && untracked.isEmpty() && conflicting.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "Status{modified=" + modified + ", deleted=" + deleted + ", untracked=" + untracked +
+                ", conflicting=" + conflicting + "}";
+    }
+}
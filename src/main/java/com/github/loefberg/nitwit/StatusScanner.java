@@ -0,0 +1,251 @@
+package com.github.loefberg.nitwit;
+
+import com.github.loefberg.nitwit.ds.DataStore;
+import com.github.loefberg.nitwit.util.Parallel;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Compares the working tree with the index, on the threads of a fork/join pool.
+ *
+ * The tracked files are checked in chunks of consecutive entries, one lstat each. A file whose stat data
+ * matches the entry is unchanged without reading it, like git's refresh. Only when the stat data differs,
+ * or the entry is racily clean, is the content hashed and compared with the ID in the index. An entry is
+ * racily clean when the file was modified no earlier than the index was written: a change in the same
+ * clock tick would then not show in the stat data.
+ *
+ * At the same time the untracked files are found by walking the directories, every directory a task of
+ * its own, with the ignore rules of .git/info/exclude and the .gitignore files on the way. A directory
+ * with no tracked file in it is only looked into to find out whether anything in it is not ignored.
+ */
+public class StatusScanner {
+    private static final int CHUNK_SIZE = 256;
+
+    private final Path workTree;
+    private final Index index;
+    private final Instant indexModified;
+    private final ForkJoinPool pool;
+    private boolean untracked = true;
+
+    /**
+     * @param indexModified when the index file was last written, entries modified since are racily clean
+     */
+    public StatusScanner(Path workTree, Index index, FileTime indexModified, ForkJoinPool pool) {
+        this.workTree = workTree;
+        this.index = index;
+        this.indexModified = indexModified.toInstant();
+        this.pool = pool;
+    }
+
+    /**
+     * Whether to look for untracked files. On by default.
+     */
+    public void setUntracked(boolean untracked) {
+        this.untracked = untracked;
+    }
+
+    public Status scan() throws IOException {
+        ForkJoinTask<List<String>> walk = null;
+        if(untracked) {
+            IgnoreRules rules = IgnoreRules.empty().load(workTree.resolve(".git/info/exclude"), "");
+            walk = pool.submit(new DirectoryTask(workTree, "", rules, false));
+        }
+
+        int chunks = (index.size() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        List<List<String>> modified = new ArrayList<>(Collections.nCopies(chunks, null));
+        List<List<String>> deleted = new ArrayList<>(Collections.nCopies(chunks, null));
+        List<String> conflicting = new ArrayList<>();
+        Parallel.forEach(pool, chunks, chunk -> {
+            List<String> chunkModified = new ArrayList<>();
+            List<String> chunkDeleted = new ArrayList<>();
+            int end = Math.min(index.size(), (chunk + 1) * CHUNK_SIZE);
+            for(int i = chunk * CHUNK_SIZE; i < end; i++) {
+                if(index.getStage(i) != 0) {
+                    continue;
+                }
+                switch(check(i)) {
+                    case MODIFIED: chunkModified.add(index.getPathName(i)); break;
+                    case DELETED: chunkDeleted.add(index.getPathName(i)); break;
+                    default: break;
+                }
+            }
+            modified.set(chunk, chunkModified);
+            deleted.set(chunk, chunkDeleted);
+        });
+        for(int i = 0; i < index.size(); i++) {
+            if(index.getStage(i) != 0) {
+                String path = index.getPathName(i);
+                if(conflicting.isEmpty() || !conflicting.get(conflicting.size() - 1).equals(path)) {
+                    conflicting.add(path);
+                }
+            }
+        }
+
+        List<String> untrackedFiles = List.of();
+        if(walk != null) {
+            try {
+                untrackedFiles = walk.get();
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while looking for untracked files");
+            } catch(ExecutionException ex) {
+                if(ex.getCause() instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException)ex.getCause()).getCause();
+                }
+                throw new RuntimeException(ex.getCause());
+            }
+        }
+        return new Status(flatten(modified), flatten(deleted), untrackedFiles, conflicting);
+    }
+
+    private enum Change {
+        NONE, MODIFIED, DELETED
+    }
+
+    private Change check(int i) throws IOException {
+        if((index.getFlags(i) & Index.FLAG_SKIP_WORKTREE) != 0) {
+            return Change.NONE;
+        }
+        Path file = workTree.resolve(index.getPathName(i));
+        FileStat stat;
+        try {
+            stat = FileStat.lstat(file);
+        } catch(NoSuchFileException ex) {
+            return Change.DELETED;
+        } catch(FileSystemException ex) {
+            // a file where the path expects a directory
+            return Change.DELETED;
+        }
+
+        int mode = index.getMode(i);
+        if(mode == FileStat.MODE_GITLINK) {
+            // a submodule, whose own state is its own business
+            return stat.isDirectory() ? Change.NONE : Change.MODIFIED;
+        }
+        if(stat.isDirectory()) {
+            return Change.DELETED;
+        }
+        if(stat.getMode() != mode) {
+            return Change.MODIFIED;
+        }
+        if(stat.matches(index, i) && !isRacilyClean(index, i, indexModified)) {
+            return Change.NONE;
+        }
+        // a zero size is what read-tree leaves, not a size, so only a known size settles it
+        if(index.getSize(i) != 0 && index.getSize(i) != (stat.getSize() & 0xffffffffL)) {
+            return Change.MODIFIED;
+        }
+        return index.idEquals(i, DataStore.hashBlob(file)) ? Change.NONE : Change.MODIFIED;
+    }
+
+    /**
+     * Whether entry i was modified no earlier than the index file, so that its stat data cannot be trusted.
+     */
+    static boolean isRacilyClean(Index index, int i, Instant indexModified) {
+        long seconds = index.getMtimeSeconds(i);
+        return seconds > indexModified.getEpochSecond()
+                || (seconds == indexModified.getEpochSecond() && index.getMtimeNanos(i) >= indexModified.getNano());
+    }
+
+    private boolean isTracked(String path) {
+        byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+        int position = index.lowerBound(bytes);
+        return position < index.size() && index.compare(position, bytes, index.getStage(position)) == 0;
+    }
+
+    private static List<String> flatten(List<List<String>> chunks) {
+        List<String> result = new ArrayList<>();
+        chunks.forEach(result::addAll);
+        return result;
+    }
+
+    /**
+     * Finds the untracked files in one directory and, by forking, below it.
+     */
+    private class DirectoryTask extends RecursiveTask<List<String>> {
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final String prefix;
+        private final IgnoreRules rules;
+        private final boolean untrackedDirectory;
+
+        DirectoryTask(Path dir, String prefix, IgnoreRules rules, boolean untrackedDirectory) {
+            this.dir = dir;
+            this.prefix = prefix;
+            this.rules = rules;
+            this.untrackedDirectory = untrackedDirectory;
+        }
+
+        @Override
+        protected List<String> compute() {
+            try {
+                return walk();
+            } catch(IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        private List<String> walk() throws IOException {
+            IgnoreRules rules = this.rules.load(dir.resolve(".gitignore"), prefix);
+            List<String> result = new ArrayList<>();
+            List<DirectoryTask> subdirectories = new ArrayList<>();
+            try(DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+                for(Path child: children) {
+                    String name = child.getFileName().toString();
+                    if(name.equals(".git")) {
+                        continue;
+                    }
+                    String path = prefix + name;
+                    BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class,
+                            LinkOption.NOFOLLOW_LINKS);
+                    if(attributes.isDirectory()) {
+                        if(rules.isIgnored(path, true) || (!untrackedDirectory && isTracked(path))) {
+                            // ignored, or a submodule
+                            continue;
+                        }
+                        boolean untracked = untrackedDirectory || index.getEntries(path).isEmpty();
+                        if(untracked && Files.exists(child.resolve(".git"))) {
+                            // a repository of its own
+                            result.add(path + "/");
+                        } else {
+                            subdirectories.add(new DirectoryTask(child, path + "/", rules, untracked));
+                        }
+                    } else if((untrackedDirectory || !isTracked(path)) && !rules.isIgnored(path, false)) {
+                        result.add(path);
+                    }
+                }
+            }
+
+            for(DirectoryTask task: ForkJoinTask.invokeAll(subdirectories)) {
+                List<String> found = task.join();
+                if(task.untrackedDirectory && !untrackedDirectory && !found.isEmpty()) {
+                    result.add(task.prefix);
+                } else {
+                    result.addAll(found);
+                }
+            }
+            Collections.sort(result);
+            return result;
+        }
+    }
+}
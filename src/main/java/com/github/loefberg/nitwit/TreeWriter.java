@@ -0,0 +1,114 @@
+package com.github.loefberg.nitwit;
+
+import com.github.loefberg.nitwit.ds.DataStore;
+import com.github.loefberg.nitwit.ds.Tree;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes the trees of the entries of an index, like git write-tree.
+ *
+ * A directory whose tree in the cache tree is still valid, with as many entries as the index has inside it,
+ * is taken as it is without looking at its entries. Since the index invalidates the cache tree along the
+ * path of every entry that changes, writing the trees after changing one file only hashes the trees on the
+ * way to it. The trees that are written go back into the cache tree of the index that is returned.
+ *
+ * Like git an entry that is only intended to be added is left out of the trees, and the directories it is
+ * in stay invalid in the cache tree.
+ */
+public class TreeWriter {
+    private static final ObjectID EMPTY_TREE = new ObjectID("4b825dc642cb6eb9a060e54bf8d69288fbee4904");
+    private static final int MODE_DIRECTORY = 0040000;
+
+    private final DataStore ds;
+
+    public TreeWriter(DataStore ds) {
+        this.ds = ds;
+    }
+
+    /**
+     * Writes the trees, and returns the index with a cache tree whose root is the top tree. It is the same
+     * index if its cache tree was valid all through.
+     *
+     * @throws IllegalStateException if the index has unmerged entries, or a file and entries under it
+     */
+    public Index write(Index index) throws IOException {
+        CacheTree cached = index.getCacheTree();
+        CacheTree root = update(index, 0, index.size(), "", cached, "");
+        if(root == cached) {
+            return index;
+        }
+        return new Index.Builder(index).setCacheTree(root).build();
+    }
+
+    /**
+     * Writes the tree of the entries from {@code start} to {@code end}, which are the ones in the directory
+     * with the given prefix, empty for the root or ending in '/'.
+     */
+    private CacheTree update(Index index, int start, int end, String prefix, CacheTree cached, String name)
+            throws IOException {
+        if(cached != null && cached.isValid() && cached.getEntryCount() == end - start
+                && ds.hasObject(cached.getId())) {
+            return cached;
+        }
+
+        Tree.Builder tree = new Tree.Builder();
+        List<CacheTree> children = new ArrayList<>();
+        boolean invalid = false;
+        int i = start;
+        while(i < end) {
+            String path = index.getPathName(i);
+            int slash = path.indexOf('/', prefix.length());
+            if(slash >= 0) {
+                String component = path.substring(prefix.length(), slash);
+                if(index.findPosition(path.substring(0, slash).getBytes(StandardCharsets.UTF_8), 0) >= 0) {
+                    throw new IllegalStateException("You have both " + path.substring(0, slash) + " and " + path);
+                }
+                // '/' + 1 is '0', the first byte that sorts after every path inside the directory
+                int subEnd = index.lowerBound((path.substring(0, slash) + "0").getBytes(StandardCharsets.UTF_8));
+                CacheTree child = update(index, i, subEnd, path.substring(0, slash + 1),
+                        cached == null ? null : cached.getChild(component), component);
+                children.add(child);
+                if(!child.isValid()) {
+                    invalid = true;
+                    if(child.getId().equals(EMPTY_TREE)) {
+                        // nothing but entries intended to be added
+                        i = subEnd;
+                        continue;
+                    }
+                }
+                tree.add(MODE_DIRECTORY, component, child.getId());
+                i = subEnd;
+                continue;
+            }
+
+            if(index.getStage(i) != 0) {
+                throw new IllegalStateException("Cannot write a tree with unmerged entries: " + path);
+            }
+            if((index.getFlags(i) & Index.FLAG_INTENT_TO_ADD) != 0) {
+                invalid = true;
+            } else {
+                tree.add(index.getMode(i), path.substring(prefix.length()), index.getId(i));
+            }
+            i++;
+        }
+
+        ObjectID id = new ObjectID(ds.putTree(tree.build()));
+        // git keeps the subtrees by the length of their names, then by name
+        children.sort(TreeWriter::compareSubtrees);
+        return new CacheTree(name, invalid ? -1 : end - start, id, children);
+    }
+
+    /**
+     * The order git keeps the subtrees of a cache tree in.
+     */
+    static int compareSubtrees(CacheTree a, CacheTree b) {
+        byte[] x = a.getName().getBytes(StandardCharsets.UTF_8);
+        byte[] y = b.getName().getBytes(StandardCharsets.UTF_8);
+        return x.length != y.length ? Integer.compare(x.length, y.length) : Arrays.compareUnsigned(x, y);
+    }
+}
@@ -1,6 +1,5 @@
 package com.github.loefberg.nitwit;
 
-import com.github.loefberg.nitwit.ds.Blob;
 import com.github.loefberg.nitwit.ds.DataStore;
 
 import java.io.FileOutputStream;
@@ -9,6 +8,9 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
 
 public class Workspace {
     public static Workspace create(Path dir) throws IOException {
@@ -34,15 +36,81 @@ public class Workspace {
         return new Workspace(dir);
     }
 
+    private final Path dir;
     private final DataStore ds;
 
     public Workspace(Path workspace) {
+        this.dir = workspace;
         this.ds = new DataStore(workspace.resolve(".git"));
     }
 
     public String createObject(Path file) throws IOException {
-        Blob blob = Blob.createFromFile(file);
-        return ds.putBlob(blob);
+        return ds.putBlob(file);
+    }
+
+    /**
+     * Compares the working tree with the index, see {@link StatusScanner}.
+     */
+    public Status status() throws IOException {
+        return status(ForkJoinPool.commonPool());
+    }
+
+    public Status status(ForkJoinPool pool) throws IOException {
+        // the time is taken first, so that a file changed while the index is read counts as racy
+        FileTime modified = getIndexModified();
+        return new StatusScanner(dir, readIndex(), modified, pool).scan();
+    }
+
+    /**
+     * Adds the files, and the files under the directories, to the objects and the index, see
+     * {@link BulkAdder}. Paths are relative to the top of the working tree.
+     */
+    public Index add(Collection<Path> paths) throws IOException {
+        return add(paths, ForkJoinPool.commonPool());
+    }
+
+    public Index add(Collection<Path> paths, ForkJoinPool pool) throws IOException {
+        FileTime modified = getIndexModified();
+        Index index = new BulkAdder(dir, ds, pool).add(readIndex(), modified, paths);
+        new IndexWriter().write(index, dir.resolve(".git/index"));
+        return index;
+    }
+
+    /**
+     * Writes the trees of the index, see {@link TreeWriter}, and returns the ID of the top one. The index is
+     * written back with the trees in its cache tree, unless they were there already.
+     */
+    public ObjectID writeTree() throws IOException {
+        Index index = readIndex();
+        Index written = new TreeWriter(ds).write(index);
+        if(written != index) {
+            new IndexWriter().write(written, dir.resolve(".git/index"));
+        }
+        return written.getCacheTree().getId();
+    }
+
+    /**
+     * Writes the files of the tree into the working tree and replaces the index with them, see
+     * {@link Checkout}.
+     */
+    public Index checkout(ObjectID tree) throws IOException {
+        return checkout(tree, ForkJoinPool.commonPool());
+    }
+
+    public Index checkout(ObjectID tree, ForkJoinPool pool) throws IOException {
+        Index index = new Checkout(dir, ds, pool).checkout(tree, readIndex().getVersion());
+        new IndexWriter().write(index, dir.resolve(".git/index"));
+        return index;
+    }
+
+    private Index readIndex() throws IOException {
+        Path indexFile = dir.resolve(".git/index");
+        return Files.exists(indexFile) ? Index.read(indexFile) : new Index.Builder(2).build();
+    }
+
+    private FileTime getIndexModified() throws IOException {
+        Path indexFile = dir.resolve(".git/index");
+        return Files.exists(indexFile) ? Files.getLastModifiedTime(indexFile) : FileTime.fromMillis(0);
     }
 
     private static void copyResource(String name, Path target) throws IOException {
@@ -0,0 +1,29 @@
+package com.github.loefberg.nitwit.diff;
+
+/**
+ * What happened to a path, with the letter git diff --raw shows for it.
+ */
+public enum ChangeType {
+    ADD('A'),
+    DELETE('D'),
+    /** The content or the executable bit changed. */
+    MODIFY('M'),
+    /** Changed between a file, a symbolic link and a submodule. */
+    TYPE_CHANGE('T'),
+    /** Deleted from the old path and added with similar content at the new one. */
+    RENAME('R'),
+    /** Added with content similar to a path that is still there. */
+    COPY('C'),
+    /** In the index at stages 1 to 3 only. */
+    UNMERGED('U');
+
+    private final char letter;
+
+    ChangeType(char letter) {
+        this.letter = letter;
+    }
+
+    public char getLetter() {
+        return letter;
+    }
+}
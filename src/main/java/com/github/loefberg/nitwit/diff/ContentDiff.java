@@ -0,0 +1,121 @@
+package com.github.loefberg.nitwit.diff;
+
+import com.github.loefberg.nitwit.ObjectID;
+import com.github.loefberg.nitwit.ds.DataStore;
+import com.github.loefberg.nitwit.ds.StreamingBlob;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Compares the content of two versions of a file line by line, like git diff does for one path.
+ *
+ * Blobs are opened as streams. A blob larger than the big file threshold is not read at all: the IDs alone
+ * tell whether it differs, and that is all that is answered for it. Otherwise the first 8000 bytes are
+ * read to see whether it is binary, which is again only compared by ID, and the rest of the content is
+ * only read for text.
+ */
+public class ContentDiff {
+    /** Like git's core.bigFileThreshold. */
+    public static final long DEFAULT_BIG_FILE_THRESHOLD = 512L * 1024 * 1024;
+
+    private static final byte[] EMPTY = new byte[0];
+    /** The largest content that fits in an array. */
+    private static final long MAX_CONTENT_SIZE = Integer.MAX_VALUE - 8;
+
+    private final DataStore ds;
+    private DiffAlgorithm algorithm = DiffAlgorithm.MYERS;
+    private long bigFileThreshold = DEFAULT_BIG_FILE_THRESHOLD;
+
+    public ContentDiff(DataStore ds) {
+        this.ds = ds;
+    }
+
+    public void setAlgorithm(DiffAlgorithm algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Files larger than this many bytes are only compared by ID, or by content when there is no data store.
+     */
+    public void setBigFileThreshold(long bigFileThreshold) {
+        this.bigFileThreshold = bigFileThreshold;
+    }
+
+    /**
+     * Compares two blobs, where null is a file that does not exist.
+     */
+    public FileDiff diff(ObjectID oldId, ObjectID newId) throws IOException {
+        if(oldId == null ? newId == null : oldId.equals(newId)) {
+            return FileDiff.identical();
+        }
+        try(StreamingBlob oldBlob = open(oldId); StreamingBlob newBlob = open(newId)) {
+            long oldSize = oldBlob == null ? 0 : oldBlob.getSize();
+            long newSize = newBlob == null ? 0 : newBlob.getSize();
+            long limit = Math.min(bigFileThreshold, MAX_CONTENT_SIZE);
+            if(oldSize > limit || newSize > limit) {
+                return FileDiff.tooLarge(true);
+            }
+
+            byte[] oldContent = readStart(oldBlob);
+            byte[] newContent = readStart(newBlob);
+            if(RawText.isBinary(oldContent) || RawText.isBinary(newContent)) {
+                return FileDiff.binary(true);
+            }
+            return diffText(readRest(oldBlob, oldContent), readRest(newBlob, newContent));
+        }
+    }
+
+    /**
+     * Compares two versions of a file in memory.
+     */
+    public FileDiff diff(byte[] oldContent, byte[] newContent) {
+        boolean differs = !Arrays.equals(oldContent, newContent);
+        if(!differs) {
+            return FileDiff.identical();
+        }
+        if(oldContent.length > bigFileThreshold || newContent.length > bigFileThreshold) {
+            return FileDiff.tooLarge(true);
+        }
+        if(RawText.isBinary(oldContent) || RawText.isBinary(newContent)) {
+            return FileDiff.binary(true);
+        }
+        return diffText(oldContent, newContent);
+    }
+
+    private FileDiff diffText(byte[] oldContent, byte[] newContent) {
+        RawText a = new RawText(oldContent);
+        RawText b = new RawText(newContent);
+        return FileDiff.text(a, b, algorithm.diff(a, b));
+    }
+
+    private StreamingBlob open(ObjectID id) throws IOException {
+        return id == null ? null : ds.openBlob(id);
+    }
+
+    /**
+     * Reads as much of the blob as is needed to tell whether it is binary.
+     */
+    private static byte[] readStart(StreamingBlob blob) throws IOException {
+        if(blob == null) {
+            return EMPTY;
+        }
+        return readFully(blob, new byte[(int)Math.min(blob.getSize(), RawText.BINARY_CHECK_LENGTH)], 0);
+    }
+
+    private static byte[] readRest(StreamingBlob blob, byte[] start) throws IOException {
+        if(blob == null || start.length == blob.getSize()) {
+            return start;
+        }
+        return readFully(blob, Arrays.copyOf(start, (int)blob.getSize()), start.length);
+    }
+
+    private static byte[] readFully(StreamingBlob blob, byte[] content, int offset) throws IOException {
+        InputStream input = blob.getInputStream();
+        if(input.readNBytes(content, offset, content.length - offset) != content.length - offset) {
+            throw new IOException("Blob ended before its size");
+        }
+        return content;
+    }
+}
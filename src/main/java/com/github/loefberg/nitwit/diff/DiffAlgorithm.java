@@ -0,0 +1,28 @@
+package com.github.loefberg.nitwit.diff;
+
+import java.util.List;
+
+/**
+ * The algorithms to compare the lines of two texts with. Both work on the lines numbered by
+ * {@link LineClasses}, and return the regions that differ.
+ */
+public enum DiffAlgorithm {
+    /** The shortest edit script, git's default. */
+    MYERS,
+
+    /** Anchored on the lines that occur least often, which keeps moved blocks of code together. */
+    HISTOGRAM;
+
+    public List<Edit> diff(RawText a, RawText b) {
+        LineClasses lines = new LineClasses(a, b);
+        boolean[] changedA = new boolean[lines.a.length];
+        boolean[] changedB = new boolean[lines.b.length];
+        if(this == MYERS) {
+            new MyersDiff(lines.a, lines.b, changedA, changedB).diff(0, lines.a.length, 0, lines.b.length);
+        } else {
+            new HistogramDiff(lines.a, lines.b, lines.count, changedA, changedB)
+                    .diff(0, lines.a.length, 0, lines.b.length);
+        }
+        return Edit.fromChanges(changedA, changedB);
+    }
+}
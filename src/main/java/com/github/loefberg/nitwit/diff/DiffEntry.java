@@ -0,0 +1,93 @@
+package com.github.loefberg.nitwit.diff;
+
+import com.github.loefberg.nitwit.ObjectID;
+
+/**
+ * One changed path. The old side of an added path and the new side of a deleted one have no path, a mode of
+ * 0 and no ID. A rename or copy has both paths, and the similarity of the two sides as its score.
+ */
+public class DiffEntry {
+    private static final String ZERO_ID = "0".repeat(ObjectID.HEX_LENGTH);
+
+    private final ChangeType changeType;
+    private final String oldPath;
+    private final String newPath;
+    private final int oldMode;
+    private final int newMode;
+    private final ObjectID oldId;
+    private final ObjectID newId;
+    private final int score;
+
+    public DiffEntry(ChangeType changeType, String oldPath, int oldMode, ObjectID oldId,
+                     String newPath, int newMode, ObjectID newId) {
+        this(changeType, oldPath, oldMode, oldId, newPath, newMode, newId, 0);
+    }
+
+    public DiffEntry(ChangeType changeType, String oldPath, int oldMode, ObjectID oldId,
+                     String newPath, int newMode, ObjectID newId, int score) {
+        this.changeType = changeType;
+        this.oldPath = oldPath;
+        this.newPath = newPath;
+        this.oldMode = oldMode;
+        this.newMode = newMode;
+        this.oldId = oldId;
+        this.newId = newId;
+        this.score = score;
+    }
+
+    public ChangeType getChangeType() {
+        return changeType;
+    }
+
+    public String getOldPath() {
+        return oldPath;
+    }
+
+    public String getNewPath() {
+        return newPath;
+    }
+
+    /**
+     * The new path, or for a deleted path the old one.
+     */
+    public String getPath() {
+        return newPath != null ? newPath : oldPath;
+    }
+
+    public int getOldMode() {
+        return oldMode;
+    }
+
+    public int getNewMode() {
+        return newMode;
+    }
+
+    public ObjectID getOldId() {
+        return oldId;
+    }
+
+    public ObjectID getNewId() {
+        return newId;
+    }
+
+    /**
+     * How similar the sides of a rename or copy are, in percent.
+     */
+    public int getScore() {
+        return score;
+    }
+
+    /**
+     * The line git diff --raw --no-abbrev shows, ":100644 100644 {old} {new} M\tpath", or for a rename
+     * ":100644 100644 {old} {new} R090\told path\tnew path".
+     */
+    @Override
+    public String toString() {
+        String ids = String.format(":%06o %06o %s %s ", oldMode, newMode,
+                oldId == null ? ZERO_ID : oldId.getHashString(), newId == null ? ZERO_ID : newId.getHashString());
+        if(changeType == ChangeType.RENAME || changeType == ChangeType.COPY) {
+            return String.format("%s%c%03d\t%s\t%s", ids, changeType.getLetter(), score, oldPath, newPath);
+        }
+        return ids + changeType.getLetter() + "\t" + getPath();
+    }
+}
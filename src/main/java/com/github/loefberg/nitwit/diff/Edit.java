@@ -0,0 +1,85 @@
+package com.github.loefberg.nitwit.diff;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A region of lines that differs: lines {@code beginA} to {@code endA} of the old content were replaced by
+ * lines {@code beginB} to {@code endB} of the new, counted from 0 with the ends exclusive. An insertion
+ * has an empty old range, a deletion an empty new one.
+ */
+public class Edit {
+    private final int beginA;
+    private final int endA;
+    private final int beginB;
+    private final int endB;
+
+    public Edit(int beginA, int endA, int beginB, int endB) {
+        this.beginA = beginA;
+        this.endA = endA;
+        this.beginB = beginB;
+        this.endB = endB;
+    }
+
+    public int getBeginA() {
+        return beginA;
+    }
+
+    public int getEndA() {
+        return endA;
+    }
+
+    public int getBeginB() {
+        return beginB;
+    }
+
+    public int getEndB() {
+        return endB;
+    }
+
+    /**
+     * The edits from the lines marked as changed on each side. The lines that are not marked match each
+     * other in order.
+     */
+    static List<Edit> fromChanges(boolean[] changedA, boolean[] changedB) {
+        List<Edit> result = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while(i < changedA.length || j < changedB.length) {
+            if(i < changedA.length && j < changedB.length && !changedA[i] && !changedB[j]) {
+                i++;
+                j++;
+                continue;
+            }
+            int beginA = i;
+            int beginB = j;
+            while(i < changedA.length && changedA[i]) {
+                i++;
+            }
+            while(j < changedB.length && changedB[j]) {
+                j++;
+            }
+            result.add(new Edit(beginA, i, beginB, j));
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(!(o instanceof Edit)) {
+            return false;
+        }
+        Edit other = (Edit)o;
+        return beginA == other.beginA && endA == other.endA && beginB == other.beginB && endB == other.endB;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((beginA * 31 + endA) * 31 + beginB) * 31 + endB;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Edit[%d-%d,%d-%d]", beginA, endA, beginB, endB);
+    }
+}
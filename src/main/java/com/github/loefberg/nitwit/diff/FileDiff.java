@@ -0,0 +1,196 @@
+package com.github.loefberg.nitwit.diff;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The differences between two versions of a file. For text they are the edits, grouped into hunks with
+ * lines of context around them. For a binary file, or one too large to compare line by line, only whether
+ * it differs is known.
+ */
+public class FileDiff {
+    private final boolean differs;
+    private final boolean binary;
+    private final boolean tooLarge;
+    private final RawText a;
+    private final RawText b;
+    private final List<Edit> edits;
+
+    private FileDiff(boolean differs, boolean binary, boolean tooLarge, RawText a, RawText b, List<Edit> edits) {
+        this.differs = differs;
+        this.binary = binary;
+        this.tooLarge = tooLarge;
+        this.a = a;
+        this.b = b;
+        this.edits = edits;
+    }
+
+    static FileDiff identical() {
+        return new FileDiff(false, false, false, null, null, List.of());
+    }
+
+    static FileDiff binary(boolean differs) {
+        return new FileDiff(differs, true, false, null, null, List.of());
+    }
+
+    static FileDiff tooLarge(boolean differs) {
+        return new FileDiff(differs, false, true, null, null, List.of());
+    }
+
+    static FileDiff text(RawText a, RawText b, List<Edit> edits) {
+        return new FileDiff(!edits.isEmpty(), false, false, a, b, edits);
+    }
+
+    public boolean differs() {
+        return differs;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Whether the file was larger than the big file threshold, so that it was not compared line by line.
+     */
+    public boolean isTooLarge() {
+        return tooLarge;
+    }
+
+    /**
+     * The regions that differ, empty unless the file is text.
+     */
+    public List<Edit> getEdits() {
+        return edits;
+    }
+
+    /**
+     * The edits in groups that are no further apart than twice the context, each with the lines of context
+     * around it.
+     */
+    public List<Hunk> getHunks(int context) {
+        List<Hunk> result = new ArrayList<>();
+        int first = 0;
+        while(first < edits.size()) {
+            int last = first + 1;
+            while(last < edits.size() && edits.get(last).getBeginA() - edits.get(last - 1).getEndA() <= 2 * context) {
+                last++;
+            }
+            Edit begin = edits.get(first);
+            Edit end = edits.get(last - 1);
+            int before = Math.min(context, begin.getBeginA());
+            int after = Math.min(context, a.size() - end.getEndA());
+            result.add(new Hunk(begin.getBeginA() - before, end.getEndA() + after,
+                    begin.getBeginB() - before, end.getEndB() + after, edits.subList(first, last)));
+            first = last;
+        }
+        return result;
+    }
+
+    /**
+     * The hunks of a unified diff, as git diff shows them after the file header, with the given lines of
+     * context. A binary file gives "Binary files differ".
+     */
+    public String format(int context) {
+        if(binary || tooLarge) {
+            return differs ? "Binary files differ\n" : "";
+        }
+        StringBuilder out = new StringBuilder();
+        for(Hunk hunk: getHunks(context)) {
+            out.append("@@ -").append(range(hunk.beginA, hunk.endA)).append(" +").append(range(hunk.beginB, hunk.endB))
+                    .append(" @@");
+            String function = functionBefore(hunk.beginA);
+            if(function != null) {
+                out.append(' ').append(function);
+            }
+            out.append('\n');
+            int i = hunk.beginA;
+            for(Edit edit: hunk.edits) {
+                for(; i < edit.getBeginA(); i++) {
+                    line(out, ' ', a, i);
+                }
+                for(int k = edit.getBeginA(); k < edit.getEndA(); k++) {
+                    line(out, '-', a, k);
+                }
+                for(int k = edit.getBeginB(); k < edit.getEndB(); k++) {
+                    line(out, '+', b, k);
+                }
+                i = edit.getEndA();
+            }
+            for(; i < hunk.endA; i++) {
+                line(out, ' ', a, i);
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * The closest function header in the old file above a hunk, which git shows after the ranges.
+     */
+    private String functionBefore(int line) {
+        for(int i = line - 1; i >= 0; i--) {
+            String function = a.getFunctionName(i);
+            if(function != null) {
+                return function;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The range of a hunk header, "start,count" with the count left out when it is 1, and an empty range
+     * given by the line before it.
+     */
+    private static String range(int begin, int end) {
+        int count = end - begin;
+        if(count == 0) {
+            return begin + ",0";
+        }
+        return count == 1 ? String.valueOf(begin + 1) : (begin + 1) + "," + count;
+    }
+
+    private static void line(StringBuilder out, char prefix, RawText text, int i) {
+        out.append(prefix).append(text.getLine(i)).append('\n');
+        if(i == text.size() - 1 && text.isMissingNewlineAtEnd()) {
+            out.append("\\ No newline at end of file\n");
+        }
+    }
+
+    /**
+     * Edits close to each other, and the lines they cover with their context.
+     */
+    public static class Hunk {
+        private final int beginA;
+        private final int endA;
+        private final int beginB;
+        private final int endB;
+        private final List<Edit> edits;
+
+        Hunk(int beginA, int endA, int beginB, int endB, List<Edit> edits) {
+            this.beginA = beginA;
+            this.endA = endA;
+            this.beginB = beginB;
+            this.endB = endB;
+            this.edits = edits;
+        }
+
+        public int getBeginA() {
+            return beginA;
+        }
+
+        public int getEndA() {
+            return endA;
+        }
+
+        public int getBeginB() {
+            return beginB;
+        }
+
+        public int getEndB() {
+            return endB;
+        }
+
+        public List<Edit> getEdits() {
+            return edits;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.github.loefberg.nitwit.diff;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * The histogram diff of git and JGit, a faster relative of patience diff.
+ *
+ * In a region the lines of the old side are counted, and of the lines both sides have the one that occurs
+ * least often is taken as an anchor, extended in both directions as far as the lines match. The regions
+ * before and after the anchor are solved the same way. A region whose common lines all occur more than 64
+ * times is left to {@link MyersDiff}, and one without common lines is changed as a whole.
+ *
+ * The regions are kept on a work list rather than the call stack, since a long file can split into as
+ * many regions as it has lines.
+ */
+final class HistogramDiff {
+    private static final int MAX_CHAIN = 64;
+
+    private final int[] a;
+    private final int[] b;
+    private final boolean[] changedA;
+    private final boolean[] changedB;
+    private final MyersDiff fallback;
+
+    /** For every line class its occurrences in the old side of the region, and the first of them. */
+    private final int[] counts;
+    private final int[] heads;
+    /** For every line of the old side the next line of the same class in the region, or -1. */
+    private final int[] next;
+
+    HistogramDiff(int[] a, int[] b, int classes, boolean[] changedA, boolean[] changedB) {
+        this.a = a;
+        this.b = b;
+        this.changedA = changedA;
+        this.changedB = changedB;
+        this.fallback = new MyersDiff(a, b, changedA, changedB);
+        this.counts = new int[classes];
+        this.heads = new int[classes];
+        this.next = new int[a.length];
+        Arrays.fill(heads, -1);
+    }
+
+    void diff(int aStart, int aEnd, int bStart, int bEnd) {
+        ArrayDeque<int[]> regions = new ArrayDeque<>();
+        regions.push(new int[] { aStart, aEnd, bStart, bEnd });
+        while(!regions.isEmpty()) {
+            int[] region = regions.pop();
+            diffRegion(region[0], region[1], region[2], region[3], regions);
+        }
+    }
+
+    private void diffRegion(int aStart, int aEnd, int bStart, int bEnd, ArrayDeque<int[]> regions) {
+        while(aStart < aEnd && bStart < bEnd && a[aStart] == b[bStart]) {
+            aStart++;
+            bStart++;
+        }
+        while(aStart < aEnd && bStart < bEnd && a[aEnd - 1] == b[bEnd - 1]) {
+            aEnd--;
+            bEnd--;
+        }
+        if(aStart == aEnd || bStart == bEnd) {
+            MyersDiff.mark(changedA, aStart, aEnd);
+            MyersDiff.mark(changedB, bStart, bEnd);
+            return;
+        }
+
+        for(int i = aEnd - 1; i >= aStart; i--) {
+            counts[a[i]]++;
+            next[i] = heads[a[i]];
+            heads[a[i]] = i;
+        }
+
+        boolean common = false;
+        int bestCount = MAX_CHAIN + 1;
+        int bestA = -1;
+        int bestAEnd = -1;
+        int bestB = -1;
+        int bestBEnd = -1;
+        for(int j = bStart; j < bEnd;) {
+            int count = counts[b[j]];
+            int nextJ = j + 1;
+            if(count > 0) {
+                common = true;
+            }
+            if(count == 0 || count > bestCount) {
+                j = nextJ;
+                continue;
+            }
+            for(int i = heads[b[j]]; i >= 0;) {
+                int as = i;
+                int bs = j;
+                int ae = i + 1;
+                int be = j + 1;
+                int lowest = count;
+                while(as > aStart && bs > bStart && a[as - 1] == b[bs - 1]) {
+                    as--;
+                    bs--;
+                    lowest = Math.min(lowest, counts[a[as]]);
+                }
+                while(ae < aEnd && be < bEnd && a[ae] == b[be]) {
+                    lowest = Math.min(lowest, counts[a[ae]]);
+                    ae++;
+                    be++;
+                }
+                nextJ = Math.max(nextJ, be);
+                if(bestAEnd - bestA < ae - as || lowest < bestCount) {
+                    bestA = as;
+                    bestAEnd = ae;
+                    bestB = bs;
+                    bestBEnd = be;
+                    bestCount = lowest;
+                }
+                // the next occurrence that is not inside this match
+                int following = next[i];
+                while(following >= 0 && following < ae) {
+                    following = next[following];
+                }
+                i = following;
+            }
+            j = nextJ;
+        }
+
+        for(int i = aStart; i < aEnd; i++) {
+            counts[a[i]] = 0;
+            heads[a[i]] = -1;
+        }
+
+        if(!common) {
+            MyersDiff.mark(changedA, aStart, aEnd);
+            MyersDiff.mark(changedB, bStart, bEnd);
+        } else if(bestA < 0) {
+            fallback.diff(aStart, aEnd, bStart, bEnd);
+        } else {
+            regions.push(new int[] { aStart, bestA, bStart, bestB });
+            regions.push(new int[] { bestAEnd, aEnd, bestBEnd, bEnd });
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.github.loefberg.nitwit.diff;
+
+import java.util.Arrays;
+
+/**
+ * Numbers the distinct lines of two texts, so that the diff algorithms compare ints instead of bytes: two
+ * lines get the same number exactly when they are equal. Lines are looked up by hash in an open addressing
+ * table, and only lines with the same hash are compared byte by byte.
+ */
+final class LineClasses {
+    final int[] a;
+    final int[] b;
+    /** The number of distinct lines. */
+    final int count;
+
+    private final int[] table;
+    private final int mask;
+    private int[] classHashes;
+    /** For every class the text and line it was first seen at, the line of b after those of a. */
+    private int[] classLines;
+    private int classes;
+
+    LineClasses(RawText textA, RawText textB) {
+        int size = Integer.highestOneBit(Math.max(textA.size() + textB.size(), 1) * 2) << 1;
+        this.table = new int[size];
+        this.mask = size - 1;
+        Arrays.fill(table, -1);
+        this.classHashes = new int[64];
+        this.classLines = new int[64];
+
+        this.a = new int[textA.size()];
+        for(int i = 0; i < a.length; i++) {
+            a[i] = classify(textA, i, textA, textB, 0);
+        }
+        this.b = new int[textB.size()];
+        for(int j = 0; j < b.length; j++) {
+            b[j] = classify(textB, j, textA, textB, textA.size());
+        }
+        this.count = classes;
+    }
+
+    private int classify(RawText text, int line, RawText textA, RawText textB, int lineBase) {
+        int hash = text.hashLine(line);
+        int slot = mix(hash) & mask;
+        while(table[slot] >= 0) {
+            int c = table[slot];
+            if(classHashes[c] == hash) {
+                int first = classLines[c];
+                boolean equal = first < textA.size()
+                        ? text.lineEquals(line, textA, first)
+                        : text.lineEquals(line, textB, first - textA.size());
+                if(equal) {
+                    return c;
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+        if(classes == classHashes.length) {
+            classHashes = Arrays.copyOf(classHashes, classes * 2);
+            classLines = Arrays.copyOf(classLines, classes * 2);
+        }
+        classHashes[classes] = hash;
+        classLines[classes] = lineBase + line;
+        table[slot] = classes;
+        return classes++;
+    }
+
+    private static int mix(int hash) {
+        hash *= 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+}
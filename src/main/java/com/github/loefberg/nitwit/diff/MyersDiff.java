@@ -0,0 +1,123 @@
+package com.github.loefberg.nitwit.diff;
+
+/**
+ * Myers' O(ND) difference algorithm in linear space, "An O(ND) Difference Algorithm and Its Variations".
+ *
+ * The shortest edit script is found by searching for the middle snake from both ends at once, and the
+ * halves before and after it are solved the same way. Common lines at the ends of every region are
+ * skipped first. The lines that are not part of the longest common subsequence are marked as changed.
+ */
+final class MyersDiff {
+    private final int[] a;
+    private final int[] b;
+    private final boolean[] changedA;
+    private final boolean[] changedB;
+
+    /** The furthest x reached on every diagonal, searching forward and backward. */
+    private int[] forward = new int[0];
+    private int[] backward = new int[0];
+    private final int[] snake = new int[4];
+
+    MyersDiff(int[] a, int[] b, boolean[] changedA, boolean[] changedB) {
+        this.a = a;
+        this.b = b;
+        this.changedA = changedA;
+        this.changedB = changedB;
+    }
+
+    void diff(int aStart, int aEnd, int bStart, int bEnd) {
+        while(aStart < aEnd && bStart < bEnd && a[aStart] == b[bStart]) {
+            aStart++;
+            bStart++;
+        }
+        while(aStart < aEnd && bStart < bEnd && a[aEnd - 1] == b[bEnd - 1]) {
+            aEnd--;
+            bEnd--;
+        }
+        if(aStart == aEnd || bStart == bEnd) {
+            mark(changedA, aStart, aEnd);
+            mark(changedB, bStart, bEnd);
+            return;
+        }
+
+        middleSnake(aStart, aEnd, bStart, bEnd);
+        int x = snake[0];
+        int y = snake[1];
+        int u = snake[2];
+        int v = snake[3];
+        diff(aStart, x, bStart, y);
+        diff(u, aEnd, v, bEnd);
+    }
+
+    /**
+     * Finds the middle snake of the region, from (snake[0], snake[1]) to (snake[2], snake[3]). The ends of
+     * the region must differ, so the edit script is at least two long and both halves are shorter.
+     */
+    private void middleSnake(int aStart, int aEnd, int bStart, int bEnd) {
+        int n = aEnd - aStart;
+        int m = bEnd - bStart;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        int max = (n + m + 1) / 2;
+        int offset = max + 1;
+        if(forward.length < 2 * max + 3) {
+            forward = new int[2 * max + 3];
+            backward = new int[2 * max + 3];
+        }
+        int[] fv = forward;
+        int[] bv = backward;
+        fv[offset + 1] = 0;
+        bv[offset + 1] = 0;
+
+        for(int d = 0; d <= max; d++) {
+            for(int k = -d; k <= d; k += 2) {
+                int x = k == -d || k != d && fv[offset + k - 1] < fv[offset + k + 1]
+                        ? fv[offset + k + 1] : fv[offset + k - 1] + 1;
+                int y = x - k;
+                int x0 = x;
+                int y0 = y;
+                while(x < n && y < m && a[aStart + x] == b[bStart + y]) {
+                    x++;
+                    y++;
+                }
+                fv[offset + k] = x;
+                int kb = delta - k;
+                if(odd && kb >= -(d - 1) && kb <= d - 1 && x + bv[offset + kb] >= n) {
+                    setSnake(aStart + x0, bStart + y0, aStart + x, bStart + y);
+                    return;
+                }
+            }
+            for(int k = -d; k <= d; k += 2) {
+                int x = k == -d || k != d && bv[offset + k - 1] < bv[offset + k + 1]
+                        ? bv[offset + k + 1] : bv[offset + k - 1] + 1;
+                int y = x - k;
+                int x0 = x;
+                int y0 = y;
+                while(x < n && y < m && a[aEnd - 1 - x] == b[bEnd - 1 - y]) {
+                    x++;
+                    y++;
+                }
+                bv[offset + k] = x;
+                int kf = delta - k;
+                if(!odd && kf >= -d && kf <= d && x + fv[offset + kf] >= n) {
+                    setSnake(aEnd - x, bEnd - y, aEnd - x0, bEnd - y0);
+                    return;
+                }
+            }
+        }
+        throw new IllegalStateException("No middle snake found");
+    }
+
+    private void setSnake(int x, int y, int u, int v) {
+        snake[0] = x;
+        snake[1] = y;
+        snake[2] = u;
+        snake[3] = v;
+    }
+
+    static void mark(boolean[] changed, int from, int to) {
+        for(int i = from; i < to; i++) {
+            changed[i] = true;
+        }
+    }
+}
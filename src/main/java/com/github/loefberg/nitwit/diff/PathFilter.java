@@ -0,0 +1,72 @@
+package com.github.loefberg.nitwit.diff;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Limits a diff to some paths, literal pathspecs without wildcards: a path is included if it is one of them
+ * or inside a directory that is. A directory outside all of them is not descended into at all.
+ */
+public class PathFilter {
+    /** Includes every path. */
+    public static final PathFilter ALL = new PathFilter(List.of());
+
+    private final List<String> paths = new ArrayList<>();
+
+    /**
+     * The paths are slash separated and relative to the top of the tree. An empty collection includes
+     * everything.
+     */
+    public PathFilter(Collection<String> paths) {
+        for(String path: paths) {
+            while(path.endsWith("/")) {
+                path = path.substring(0, path.length() - 1);
+            }
+            if(path.isEmpty()) {
+                this.paths.clear();
+                break;
+            }
+            this.paths.add(path);
+        }
+    }
+
+    public boolean includesAll() {
+        return paths.isEmpty();
+    }
+
+    /**
+     * Whether the path, or everything in it if it is a directory, is included.
+     */
+    public boolean includes(String path) {
+        if(paths.isEmpty()) {
+            return true;
+        }
+        for(String filter: paths) {
+            if(isInside(path, filter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether anything inside the directory can be included.
+     */
+    public boolean includesAnythingIn(String directory) {
+        if(paths.isEmpty()) {
+            return true;
+        }
+        for(String filter: paths) {
+            if(isInside(directory, filter) || isInside(filter, directory)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isInside(String path, String directory) {
+        return path.startsWith(directory)
+                && (path.length() == directory.length() || path.charAt(directory.length()) == '/');
+    }
+}
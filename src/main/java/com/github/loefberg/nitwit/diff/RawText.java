@@ -0,0 +1,105 @@
+package com.github.loefberg.nitwit.diff;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The content of a file cut into lines, without copying it. A line includes its newline, so a last line
+ * without one differs from the same line with it, like in git.
+ */
+public class RawText {
+    /** Like git, content with a NUL in its first 8000 bytes is binary. */
+    static final int BINARY_CHECK_LENGTH = 8000;
+
+    private final byte[] content;
+    /** The offset of every line, and the length of the content at the end. */
+    private final int[] lineStarts;
+    private final int lineCount;
+
+    public RawText(byte[] content) {
+        this.content = content;
+        int[] starts = new int[content.length / 32 + 2];
+        int count = 0;
+        for(int position = 0; position < content.length;) {
+            if(count + 1 >= starts.length) {
+                starts = Arrays.copyOf(starts, starts.length * 2);
+            }
+            starts[count++] = position;
+            while(position < content.length && content[position++] != '\n') {
+                // rest of the line
+            }
+        }
+        starts[count] = content.length;
+        this.lineStarts = starts;
+        this.lineCount = count;
+    }
+
+    public int size() {
+        return lineCount;
+    }
+
+    /**
+     * The line without its newline.
+     */
+    public String getLine(int i) {
+        int end = lineStarts[i + 1];
+        if(end > lineStarts[i] && content[end - 1] == '\n') {
+            end--;
+        }
+        return new String(content, lineStarts[i], end - lineStarts[i], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Whether the last line has no newline.
+     */
+    public boolean isMissingNewlineAtEnd() {
+        return content.length > 0 && content[content.length - 1] != '\n';
+    }
+
+    /**
+     * The line as a function header for the hunks after it, by git's default rule: a line that starts with a
+     * letter, '_' or '$', cut to 80 bytes and without trailing white space. Null for any other line.
+     */
+    String getFunctionName(int i) {
+        int start = lineStarts[i];
+        int end = lineStarts[i + 1];
+        if(start == end) {
+            return null;
+        }
+        int c = content[start] & 0xff;
+        if(!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_' || c == '$')) {
+            return null;
+        }
+        end = Math.min(end, start + 80);
+        while(end > start && Character.isWhitespace(content[end - 1])) {
+            end--;
+        }
+        return new String(content, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    int hashLine(int i) {
+        int hash = 5381;
+        for(int position = lineStarts[i]; position < lineStarts[i + 1]; position++) {
+            hash = (hash << 5) + hash + content[position];
+        }
+        return hash;
+    }
+
+    boolean lineEquals(int i, RawText other, int j) {
+        return Arrays.equals(content, lineStarts[i], lineStarts[i + 1],
+                other.content, other.lineStarts[j], other.lineStarts[j + 1]);
+    }
+
+    /**
+     * Whether the content is binary, going by its first 8000 bytes.
+     */
+    public static boolean isBinary(byte[] content) {
+        int length = Math.min(content.length, BINARY_CHECK_LENGTH);
+        for(int i = 0; i < length; i++) {
+            if(content[i] == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,276 @@
+package com.github.loefberg.nitwit.diff;
+
+import com.github.loefberg.nitwit.ObjectID;
+import com.github.loefberg.nitwit.ds.DataStore;
+import com.github.loefberg.nitwit.util.Parallel;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Turns the deleted and added paths of a diff into renames, and with copies enabled the added paths into
+ * copies of modified ones, like git diff -M and -C.
+ *
+ * Paths with the same ID are paired first, through a map by ID, preferring a source with the same file
+ * name. Only the paths left over are compared by content: a {@link SimilarityIndex} is built once for each
+ * of them, every destination is scored against every source on the threads of a fork/join pool, and the
+ * best pairs above the minimum score are taken, highest first. Pairs whose sizes alone rule out the minimum
+ * score are not compared. When the sources times the destinations are more than the square of the rename
+ * limit, the content is not compared at all, like git, and only the exact renames are found.
+ *
+ * A source deleted and found for several destinations is renamed to the last of them and copied to the
+ * others. Only files and symbolic links are paired, each with its own kind, and empty files only when
+ * they are exactly the same.
+ */
+public class RenameDetector {
+    /** Like git, for the destinations of each path the best four sources are kept. */
+    private static final int CANDIDATES_PER_DESTINATION = 4;
+    private static final int TYPE_MASK = 0170000;
+    private static final int TYPE_REGULAR_FILE = 0100000;
+    private static final int TYPE_SYMBOLIC_LINK = 0120000;
+
+    private final DataStore ds;
+    private final ForkJoinPool pool;
+    private int renameScore = 50;
+    private int renameLimit = 1000;
+    private boolean detectCopies;
+    private boolean overRenameLimit;
+
+    public RenameDetector(DataStore ds) {
+        this(ds, ForkJoinPool.commonPool());
+    }
+
+    public RenameDetector(DataStore ds, ForkJoinPool pool) {
+        this.ds = ds;
+        this.pool = pool;
+    }
+
+    /**
+     * The similarity in percent a pair needs to count as a rename or copy, 50 by default.
+     */
+    public void setRenameScore(int percent) {
+        if(percent < 0 || percent > 100) {
+            throw new IllegalArgumentException("Score must be between 0 and 100: " + percent);
+        }
+        this.renameScore = percent;
+    }
+
+    /**
+     * Bounds the content comparisons to the square of the limit, 1000 by default like git's diff.renameLimit.
+     * A limit of 0 has no bound.
+     */
+    public void setRenameLimit(int renameLimit) {
+        this.renameLimit = renameLimit;
+    }
+
+    /**
+     * Also looks for the added paths among the modified ones, and for sources used more than once.
+     */
+    public void setDetectCopies(boolean detectCopies) {
+        this.detectCopies = detectCopies;
+    }
+
+    /**
+     * Whether the last {@link #compute(List)} had too many paths to compare their content.
+     */
+    public boolean isOverRenameLimit() {
+        return overRenameLimit;
+    }
+
+    /**
+     * Returns the changes, as {@link TreeDiff} gives them, with the renames and copies found. A rename or
+     * copy takes the place of the added path, and a renamed source is left out.
+     */
+    public List<DiffEntry> compute(List<DiffEntry> changes) throws IOException {
+        overRenameLimit = false;
+        List<Integer> sources = new ArrayList<>();
+        List<Integer> destinations = new ArrayList<>();
+        for(int i = 0; i < changes.size(); i++) {
+            DiffEntry entry = changes.get(i);
+            if(entry.getChangeType() == ChangeType.ADD && isPairable(entry.getNewMode())) {
+                destinations.add(i);
+            } else if((entry.getChangeType() == ChangeType.DELETE
+                    || detectCopies && entry.getChangeType() == ChangeType.MODIFY)
+                    && isPairable(entry.getOldMode())) {
+                sources.add(i);
+            }
+        }
+        if(sources.isEmpty() || destinations.isEmpty()) {
+            return changes;
+        }
+
+        // for every change that is a destination the source it was paired with and the score
+        int[] pairedWith = new int[changes.size()];
+        int[] scores = new int[changes.size()];
+        Arrays.fill(pairedWith, -1);
+        int[] uses = new int[changes.size()];
+
+        findExact(changes, sources, destinations, pairedWith, scores, uses);
+
+        List<Integer> leftSources = new ArrayList<>();
+        for(int source: sources) {
+            if(uses[source] == 0 || detectCopies) {
+                leftSources.add(source);
+            }
+        }
+        List<Integer> leftDestinations = new ArrayList<>();
+        for(int destination: destinations) {
+            if(pairedWith[destination] < 0) {
+                leftDestinations.add(destination);
+            }
+        }
+        if(!leftSources.isEmpty() && !leftDestinations.isEmpty() && renameScore < 100) {
+            long limit = renameLimit;
+            if(renameLimit > 0 && (long)leftSources.size() * leftDestinations.size() > limit * limit) {
+                overRenameLimit = true;
+            } else {
+                findSimilar(changes, leftSources, leftDestinations, pairedWith, scores, uses);
+            }
+        }
+        return buildResult(changes, pairedWith, scores, uses);
+    }
+
+    private void findExact(List<DiffEntry> changes, List<Integer> sources, List<Integer> destinations,
+                           int[] pairedWith, int[] scores, int[] uses) {
+        Map<ObjectID, List<Integer>> sourcesById = new HashMap<>();
+        for(int source: sources) {
+            sourcesById.computeIfAbsent(changes.get(source).getOldId(), id -> new ArrayList<>()).add(source);
+        }
+        for(int destination: destinations) {
+            DiffEntry added = changes.get(destination);
+            List<Integer> candidates = sourcesById.get(added.getNewId());
+            if(candidates == null) {
+                continue;
+            }
+            int best = -1;
+            int bestRank = -1;
+            for(int source: candidates) {
+                DiffEntry entry = changes.get(source);
+                if(!sameType(entry.getOldMode(), added.getNewMode()) || uses[source] > 0 && !detectCopies) {
+                    continue;
+                }
+                // unused before used, then the same file name
+                int rank = (uses[source] == 0 ? 2 : 0)
+                        + (fileName(entry.getOldPath()).equals(fileName(added.getNewPath())) ? 1 : 0);
+                if(rank > bestRank) {
+                    best = source;
+                    bestRank = rank;
+                }
+            }
+            if(best >= 0) {
+                pairedWith[destination] = best;
+                scores[destination] = 100;
+                uses[best]++;
+            }
+        }
+    }
+
+    private void findSimilar(List<DiffEntry> changes, List<Integer> sources, List<Integer> destinations,
+                             int[] pairedWith, int[] scores, int[] uses) throws IOException {
+        int minScore = renameScore * SimilarityIndex.MAX_SCORE / 100;
+        SimilarityIndex[] sourceIndexes = new SimilarityIndex[sources.size()];
+        SimilarityIndex[] destinationIndexes = new SimilarityIndex[destinations.size()];
+        Parallel.forEach(pool, sources.size() + destinations.size(), i -> {
+            if(i < sources.size()) {
+                sourceIndexes[i] = index(changes.get(sources.get(i)).getOldId());
+            } else {
+                int d = i - sources.size();
+                destinationIndexes[d] = index(changes.get(destinations.get(d)).getNewId());
+            }
+        });
+
+        // the best sources of every destination, each as its score above the index of the source
+        long[][] candidates = new long[destinations.size()][];
+        Parallel.forEach(pool, destinations.size(), d -> {
+            DiffEntry added = changes.get(destinations.get(d));
+            long[] best = new long[CANDIDATES_PER_DESTINATION];
+            int found = 0;
+            for(int s = 0; s < sources.size(); s++) {
+                long sourceSize = sourceIndexes[s].getSize();
+                long destinationSize = destinationIndexes[d].getSize();
+                if(!sameType(changes.get(sources.get(s)).getOldMode(), added.getNewMode())
+                        || sourceSize == 0 || destinationSize == 0
+                        || !SimilarityIndex.canReach(sourceSize, destinationSize, minScore)) {
+                    continue;
+                }
+                int score = sourceIndexes[s].score(destinationIndexes[d]);
+                if(score < minScore) {
+                    continue;
+                }
+                long candidate = ((long)score << 32) | s;
+                if(found < best.length) {
+                    best[found++] = candidate;
+                } else {
+                    int worst = 0;
+                    for(int k = 1; k < best.length; k++) {
+                        worst = best[k] < best[worst] ? k : worst;
+                    }
+                    best[worst] = Math.max(best[worst], candidate);
+                }
+            }
+            candidates[d] = Arrays.copyOf(best, found);
+        });
+
+        List<long[]> pairs = new ArrayList<>();
+        for(int d = 0; d < candidates.length; d++) {
+            for(long candidate: candidates[d]) {
+                pairs.add(new long[] { candidate >>> 32, d, (int)candidate });
+            }
+        }
+        // highest score first, then in the order of the paths
+        pairs.sort((a, b) -> a[0] != b[0] ? Long.compare(b[0], a[0])
+                : a[1] != b[1] ? Long.compare(a[1], b[1]) : Long.compare(a[2], b[2]));
+        for(long[] pair: pairs) {
+            int destination = destinations.get((int)pair[1]);
+            int source = sources.get((int)pair[2]);
+            if(pairedWith[destination] >= 0 || uses[source] > 0 && !detectCopies) {
+                continue;
+            }
+            pairedWith[destination] = source;
+            scores[destination] = (int)(pair[0] * 100 / SimilarityIndex.MAX_SCORE);
+            uses[source]++;
+        }
+    }
+
+    private List<DiffEntry> buildResult(List<DiffEntry> changes, int[] pairedWith, int[] scores, int[] uses) {
+        List<DiffEntry> result = new ArrayList<>(changes.size());
+        int[] remaining = uses.clone();
+        for(int i = 0; i < changes.size(); i++) {
+            DiffEntry entry = changes.get(i);
+            int source = pairedWith[i];
+            if(source >= 0) {
+                DiffEntry from = changes.get(source);
+                // the last destination of a deleted source is its rename, the others are copies
+                boolean rename = from.getChangeType() == ChangeType.DELETE && --remaining[source] == 0;
+                result.add(new DiffEntry(rename ? ChangeType.RENAME : ChangeType.COPY,
+                        from.getOldPath(), from.getOldMode(), from.getOldId(),
+                        entry.getNewPath(), entry.getNewMode(), entry.getNewId(), scores[i]));
+            } else if(entry.getChangeType() != ChangeType.DELETE || uses[i] == 0) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    private SimilarityIndex index(ObjectID id) throws IOException {
+        return new SimilarityIndex(ds.getBlob(id).getContent());
+    }
+
+    private static boolean isPairable(int mode) {
+        int type = mode & TYPE_MASK;
+        return type == TYPE_REGULAR_FILE || type == TYPE_SYMBOLIC_LINK;
+    }
+
+    private static boolean sameType(int mode1, int mode2) {
+        return (mode1 & TYPE_MASK) == (mode2 & TYPE_MASK);
+    }
+
+    private static String fileName(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+}
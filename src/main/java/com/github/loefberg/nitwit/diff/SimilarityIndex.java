@@ -0,0 +1,110 @@
+package com.github.loefberg.nitwit.diff;
+
+import java.util.Arrays;
+
+/**
+ * The content of a file as counts of hashed chunks, to estimate how much of one file is in another the way
+ * git's diffcore-delta does.
+ *
+ * The content is cut into chunks that end at a newline or after 64 bytes, and for every distinct hash of a
+ * chunk the bytes in such chunks are counted. The bytes two files have in common are the sum over the
+ * hashes of the smaller count, and their similarity is that relative to the larger file. For text a CR
+ * before a LF is not counted, so line endings do not matter.
+ */
+public class SimilarityIndex {
+    /** The score of identical content. */
+    public static final int MAX_SCORE = 60000;
+
+    private static final int HASH_BASE = 107927;
+    private static final int MAX_CHUNK = 64;
+
+    private final long size;
+    /** The distinct hashes, sorted. */
+    private final int[] hashes;
+    /** The bytes counted for each of the hashes. */
+    private final int[] counts;
+
+    public SimilarityIndex(byte[] content) {
+        this.size = content.length;
+        boolean text = !RawText.isBinary(content);
+
+        // every chunk as its hash in the upper and its length in the lower half, sorted to merge by hash
+        long[] chunks = new long[content.length / 8 + 16];
+        int chunkCount = 0;
+        int position = 0;
+        while(position < content.length) {
+            int accum1 = 0;
+            int accum2 = 0;
+            int length = 0;
+            while(position < content.length) {
+                int c = content[position++] & 0xff;
+                if(text && c == '\r' && position < content.length && content[position] == '\n') {
+                    continue;
+                }
+                int old1 = accum1;
+                accum1 = (accum1 << 7) ^ (accum2 >>> 25);
+                accum2 = (accum2 << 7) ^ (old1 >>> 25);
+                accum1 += c;
+                if(++length == MAX_CHUNK || c == '\n') {
+                    break;
+                }
+            }
+            int hash = Integer.remainderUnsigned(accum1 + accum2 * 0x61, HASH_BASE);
+            if(chunkCount == chunks.length) {
+                chunks = Arrays.copyOf(chunks, chunks.length * 2);
+            }
+            chunks[chunkCount++] = ((long)hash << 32) | length;
+        }
+        Arrays.sort(chunks, 0, chunkCount);
+
+        int[] hashes = new int[chunkCount];
+        int[] counts = new int[chunkCount];
+        int distinct = 0;
+        for(int i = 0; i < chunkCount; i++) {
+            int hash = (int)(chunks[i] >>> 32);
+            if(distinct == 0 || hashes[distinct - 1] != hash) {
+                hashes[distinct++] = hash;
+            }
+            counts[distinct - 1] += (int)chunks[i];
+        }
+        this.hashes = Arrays.copyOf(hashes, distinct);
+        this.counts = Arrays.copyOf(counts, distinct);
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * How similar the content is to another, from 0 to {@link #MAX_SCORE}.
+     */
+    public int score(SimilarityIndex other) {
+        long maxSize = Math.max(size, other.size);
+        if(maxSize == 0) {
+            return MAX_SCORE;
+        }
+        long common = 0;
+        int i = 0;
+        int j = 0;
+        while(i < hashes.length && j < other.hashes.length) {
+            if(hashes[i] < other.hashes[j]) {
+                i++;
+            } else if(hashes[i] > other.hashes[j]) {
+                j++;
+            } else {
+                common += Math.min(counts[i++], other.counts[j++]);
+            }
+        }
+        return (int)(Math.min(common, maxSize) * MAX_SCORE / maxSize);
+    }
+
+    /**
+     * Whether two files of these sizes can be similar enough to reach the score at all, since the one cannot
+     * have more in common with the other than its own size.
+     */
+    static boolean canReach(long size1, long size2, int score) {
+        long maxSize = Math.max(size1, size2);
+        long delta = maxSize - Math.min(size1, size2);
+        return maxSize * (MAX_SCORE - score) >= delta * MAX_SCORE;
+    }
+}
@@ -0,0 +1,233 @@
+package com.github.loefberg.nitwit.diff;
+
+import com.github.loefberg.nitwit.CacheTree;
+import com.github.loefberg.nitwit.Index;
+import com.github.loefberg.nitwit.ObjectID;
+import com.github.loefberg.nitwit.ds.DataStore;
+import com.github.loefberg.nitwit.ds.Tree;
+import com.github.loefberg.nitwit.ds.TreeFileType;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Compares two trees, or a tree and the index, like git diff-tree -r and git diff-index --cached.
+ *
+ * Both sides are sorted the same way, so they are walked together in one merge pass per directory. A
+ * directory with the same ID on both sides is skipped without reading it, which makes comparing two
+ * commits cost in proportion to what changed rather than to the size of the tree. Against the index the
+ * same is done with the cache tree: a directory whose cached tree is valid and has the ID of the tree is
+ * skipped without looking at its entries.
+ *
+ * Only files are reported. A path that changes between a file and a directory is reported as the file
+ * deleted and the files of the directory added, or the other way around, like git does.
+ */
+public class TreeDiff {
+    private static final Tree EMPTY_TREE = new Tree(new byte[0]);
+
+    private final DataStore ds;
+    private PathFilter filter = PathFilter.ALL;
+
+    public TreeDiff(DataStore ds) {
+        this.ds = ds;
+    }
+
+    /**
+     * Limits the diff to the paths of the filter, and does not read directories outside of it.
+     */
+    public void setPathFilter(PathFilter filter) {
+        this.filter = filter;
+    }
+
+    public List<DiffEntry> diff(ObjectID oldTree, ObjectID newTree) throws IOException {
+        List<DiffEntry> result = new ArrayList<>();
+        diff(oldTree, newTree, result::add);
+        return result;
+    }
+
+    /**
+     * Passes the changes from one tree to another to {@code out} as they are found, in path order. A null
+     * tree is an empty one.
+     */
+    public void diff(ObjectID oldTree, ObjectID newTree, Consumer<DiffEntry> out) throws IOException {
+        if(oldTree != null && oldTree.equals(newTree)) {
+            return;
+        }
+        diffTrees("", readTree(oldTree), readTree(newTree), filter.includesAll(), out);
+    }
+
+    public List<DiffEntry> diff(ObjectID tree, Index index) throws IOException {
+        List<DiffEntry> result = new ArrayList<>();
+        diff(tree, index, result::add);
+        return result;
+    }
+
+    /**
+     * Passes the changes from a tree to the index to {@code out}, in path order. Like git an entry only
+     * intended to be added shows as the empty file it is in the index, and an unmerged path is reported
+     * once, without IDs.
+     */
+    public void diff(ObjectID tree, Index index, Consumer<DiffEntry> out) throws IOException {
+        CacheTree cached = index.getCacheTree();
+        if(tree != null && cached != null && cached.isValid() && cached.getEntryCount() == index.size()
+                && tree.equals(cached.getId())) {
+            return;
+        }
+        diffIndex("", readTree(tree), index, 0, index.size(), cached, filter.includesAll(), out);
+    }
+
+    private void diffTrees(String prefix, Tree a, Tree b, boolean included, Consumer<DiffEntry> out)
+            throws IOException {
+        int i = 0;
+        int j = 0;
+        while(i < a.size() || j < b.size()) {
+            int cmp = i == a.size() ? 1 : j == b.size() ? -1 : Tree.compare(a, i, b, j);
+            if(cmp < 0) {
+                deleted(prefix, a, i++, included, out);
+            } else if(cmp > 0) {
+                added(prefix, b, j++, included, out);
+            } else {
+                if(!Tree.sameEntry(a, i, b, j)) {
+                    changed(prefix, a, i, b, j, included, out);
+                }
+                i++;
+                j++;
+            }
+        }
+    }
+
+    private void changed(String prefix, Tree a, int i, Tree b, int j, boolean included, Consumer<DiffEntry> out)
+            throws IOException {
+        String path = prefix + a.name(i);
+        int oldMode = (int)a.mode(i);
+        int newMode = (int)b.mode(j);
+        ObjectID oldId = a.id(i);
+        ObjectID newId = b.id(j);
+        if(oldMode == newMode && oldId.equals(newId)) {
+            // the same mode written differently, like "040000"
+            return;
+        }
+        if(a.type(i) == TreeFileType.DIRECTORY) {
+            boolean includesAll = included || filter.includes(path);
+            if(includesAll || filter.includesAnythingIn(path)) {
+                diffTrees(path + "/", ds.getTree(oldId), ds.getTree(newId), includesAll, out);
+            }
+        } else if(included || filter.includes(path)) {
+            out.accept(modified(path, oldMode, oldId, newMode, newId));
+        }
+    }
+
+    private void deleted(String prefix, Tree tree, int i, boolean included, Consumer<DiffEntry> out)
+            throws IOException {
+        String path = prefix + tree.name(i);
+        if(tree.type(i) == TreeFileType.DIRECTORY) {
+            boolean includesAll = included || filter.includes(path);
+            if(includesAll || filter.includesAnythingIn(path)) {
+                diffTrees(path + "/", ds.getTree(tree.id(i)), EMPTY_TREE, includesAll, out);
+            }
+        } else if(included || filter.includes(path)) {
+            out.accept(new DiffEntry(ChangeType.DELETE, path, (int)tree.mode(i), tree.id(i), null, 0, null));
+        }
+    }
+
+    private void added(String prefix, Tree tree, int i, boolean included, Consumer<DiffEntry> out)
+            throws IOException {
+        String path = prefix + tree.name(i);
+        if(tree.type(i) == TreeFileType.DIRECTORY) {
+            boolean includesAll = included || filter.includes(path);
+            if(includesAll || filter.includesAnythingIn(path)) {
+                diffTrees(path + "/", EMPTY_TREE, ds.getTree(tree.id(i)), includesAll, out);
+            }
+        } else if(included || filter.includes(path)) {
+            out.accept(new DiffEntry(ChangeType.ADD, null, 0, null, path, (int)tree.mode(i), tree.id(i)));
+        }
+    }
+
+    /**
+     * Compares a tree with the index entries from {@code start} to {@code end}, which are the ones in the
+     * directory with the given prefix, empty for the root or ending in '/'.
+     */
+    private void diffIndex(String prefix, Tree tree, Index index, int start, int end, CacheTree cached,
+                           boolean included, Consumer<DiffEntry> out) throws IOException {
+        int i = 0;
+        int k = start;
+        while(i < tree.size() || k < end) {
+            String path = k < end ? index.getPathName(k) : null;
+            int slash = path == null ? -1 : path.indexOf('/', prefix.length());
+            String name = path == null ? null : path.substring(prefix.length(), slash < 0 ? path.length() : slash);
+            int cmp = i == tree.size() ? 1 : k == end ? -1
+                    : tree.compare(i, name.getBytes(StandardCharsets.UTF_8), slash >= 0);
+            if(cmp < 0) {
+                deleted(prefix, tree, i++, included, out);
+                continue;
+            }
+
+            if(slash >= 0) {
+                String directory = path.substring(0, slash);
+                int subEnd = lowerBound(index, directory + "0");
+                boolean includesAll = included || filter.includes(directory);
+                if(includesAll || filter.includesAnythingIn(directory)) {
+                    CacheTree child = cached == null ? null : cached.getChild(name);
+                    if(cmp > 0) {
+                        diffIndex(directory + "/", EMPTY_TREE, index, k, subEnd, null, includesAll, out);
+                    } else if(child == null || !child.isValid() || child.getEntryCount() != subEnd - k
+                            || !tree.idEquals(i, child.getId())) {
+                        diffIndex(directory + "/", ds.getTree(tree.id(i)), index, k, subEnd, child, includesAll, out);
+                    }
+                }
+                k = subEnd;
+                i += cmp == 0 ? 1 : 0;
+                continue;
+            }
+
+            int next = k + 1;
+            while(next < end && index.getPathName(next).equals(path)) {
+                next++;
+            }
+            if(included || filter.includes(path)) {
+                indexEntry(tree, cmp == 0 ? i : -1, index, k, next, out);
+            }
+            k = next;
+            i += cmp == 0 ? 1 : 0;
+        }
+    }
+
+    /**
+     * Compares the stages of one path, from {@code k} to {@code next}, with entry {@code i} of the tree, or
+     * with nothing if i is -1.
+     */
+    private static void indexEntry(Tree tree, int i, Index index, int k, int next, Consumer<DiffEntry> out) {
+        String path = index.getPathName(k);
+        if(index.getStage(k) != 0) {
+            out.accept(new DiffEntry(ChangeType.UNMERGED, path, 0, null, path, 0, null));
+            return;
+        }
+        if(i < 0) {
+            out.accept(new DiffEntry(ChangeType.ADD, null, 0, null, path, index.getMode(k), index.getId(k)));
+            return;
+        }
+        int oldMode = (int)tree.mode(i);
+        ObjectID oldId = tree.id(i);
+        if(oldMode != index.getMode(k) || !index.idEquals(k, oldId)) {
+            out.accept(modified(path, oldMode, oldId, index.getMode(k), index.getId(k)));
+        }
+    }
+
+    private static DiffEntry modified(String path, int oldMode, ObjectID oldId, int newMode, ObjectID newId) {
+        // only the permissions of a regular file changing is still a modification
+        ChangeType type = (oldMode & 0170000) == (newMode & 0170000) ? ChangeType.MODIFY : ChangeType.TYPE_CHANGE;
+        return new DiffEntry(type, path, oldMode, oldId, path, newMode, newId);
+    }
+
+    private static int lowerBound(Index index, String path) {
+        int position = index.findPosition(path.getBytes(StandardCharsets.UTF_8), 0);
+        return position >= 0 ? position : -position - 1;
+    }
+
+    private Tree readTree(ObjectID id) throws IOException {
+        return id == null ? EMPTY_TREE : ds.getTree(id);
+    }
+}
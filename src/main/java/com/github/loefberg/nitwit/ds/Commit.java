@@ -1,4 +1,166 @@
 package com.github.loefberg.nitwit.ds;
 
+import com.github.loefberg.nitwit.ObjectID;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A commit object, kept as the raw inflated bytes.
+ *
+ * <pre>
+ * tree {hex}
+ * parent {hex}        (zero or more)
+ * author {ident}
+ * committer {ident}
+ * encoding {name}     (optional)
+ * gpgsig ...          (optional, continuation lines start with a space)
+ *
+ * {message}
+ * </pre>
+ *
+ * The tree and parent lines are parsed up front since walks need them for every commit. The author and
+ * committer lines are only located, and parsed when asked for, and the message is not decoded until
+ * {@link #getMessage()} is called.
+ */
 public class Commit {
+    private final byte[] content;
+    private final ObjectID tree;
+    private final List<ObjectID> parents;
+    private final int authorOffset;
+    private final int committerOffset;
+    private final int encodingOffset;
+    private final int messageOffset;
+
+    public Commit(byte[] content) {
+        this.content = content;
+
+        ObjectID tree = null;
+        List<ObjectID> parents = new ArrayList<>(1);
+        int authorOffset = -1;
+        int committerOffset = -1;
+        int encodingOffset = -1;
+        int pos = 0;
+        while(pos < content.length && content[pos] != '\n') {
+            int end = lineEnd(pos);
+            if(startsWith(pos, "tree ")) {
+                tree = new ObjectID(new String(content, pos + 5, ObjectID.HEX_LENGTH, StandardCharsets.US_ASCII));
+            } else if(startsWith(pos, "parent ")) {
+                parents.add(new ObjectID(new String(content, pos + 7, ObjectID.HEX_LENGTH, StandardCharsets.US_ASCII)));
+            } else if(startsWith(pos, "author ")) {
+                authorOffset = pos + 7;
+            } else if(startsWith(pos, "committer ")) {
+                committerOffset = pos + 10;
+            } else if(startsWith(pos, "encoding ")) {
+                encodingOffset = pos + 9;
+            }
+            pos = end + 1;
+        }
+
+        if(tree == null) {
+            throw new RuntimeException("Invalid commit, no tree header");
+        }
+        this.tree = tree;
+        this.parents = Collections.unmodifiableList(parents);
+        this.authorOffset = authorOffset;
+        this.committerOffset = committerOffset;
+        this.encodingOffset = encodingOffset;
+        this.messageOffset = Math.min(pos + 1, content.length);
+    }
+
+    public ObjectID getTree() {
+        return tree;
+    }
+
+    public List<ObjectID> getParents() {
+        return parents;
+    }
+
+    public PersonIdent getAuthor() {
+        return authorOffset < 0 ? null : PersonIdent.parse(headerValue(authorOffset));
+    }
+
+    public PersonIdent getCommitter() {
+        return committerOffset < 0 ? null : PersonIdent.parse(headerValue(committerOffset));
+    }
+
+    /**
+     * The committer time in seconds since the epoch, without building the whole committer identity.
+     */
+    public long getCommitTime() {
+        if(committerOffset < 0) {
+            return 0;
+        }
+
+        int end = lineEnd(committerOffset);
+        int emailEnd = end;
+        while(emailEnd > committerOffset && content[emailEnd] != '>') {
+            emailEnd--;
+        }
+
+        long time = 0;
+        for(int pos = emailEnd + 2; pos < end && content[pos] >= '0' && content[pos] <= '9'; pos++) {
+            time = time * 10 + (content[pos] - '0');
+        }
+        return time;
+    }
+
+    public String getMessage() {
+        return new String(content, messageOffset, content.length - messageOffset, getEncoding());
+    }
+
+    /**
+     * The first line of the message.
+     */
+    public String getShortMessage() {
+        int end = messageOffset;
+        while(end < content.length && content[end] != '\n') {
+            end++;
+        }
+        return new String(content, messageOffset, end - messageOffset, getEncoding());
+    }
+
+    /**
+     * An estimate of the heap this commit holds.
+     */
+    long getWeight() {
+        return 96 + content.length + 16 + parents.size() * 40L;
+    }
+
+    private Charset getEncoding() {
+        if(encodingOffset < 0) {
+            return StandardCharsets.UTF_8;
+        }
+        try {
+            return Charset.forName(headerValue(encodingOffset));
+        } catch(IllegalArgumentException ex) {
+            return StandardCharsets.UTF_8;
+        }
+    }
+
+    private String headerValue(int offset) {
+        return new String(content, offset, lineEnd(offset) - offset, StandardCharsets.UTF_8);
+    }
+
+    private boolean startsWith(int pos, String prefix) {
+        if(pos + prefix.length() > content.length) {
+            return false;
+        }
+        for(int i = 0; i < prefix.length(); i++) {
+            if(content[pos + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int lineEnd(int pos) {
+        while(pos < content.length && content[pos] != '\n') {
+            pos++;
+        }
+        return pos;
+    }
 }
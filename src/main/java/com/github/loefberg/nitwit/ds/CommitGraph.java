@@ -0,0 +1,369 @@
+package com.github.loefberg.nitwit.ds;
+
+import com.github.loefberg.nitwit.ObjectID;
+import com.github.loefberg.nitwit.util.Hex;
+import com.github.loefberg.nitwit.util.MappedFile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A memory-mapped reader for objects/info/commit-graph.
+ *
+ * <pre>
+ * - 4-byte signature { 'C', 'G', 'P', 'H' }
+ * - 1-byte version (1), 1-byte hash version (1 = SHA-1), 1-byte number of chunks, 1-byte number of base graphs
+ * - chunk lookup: (chunks + 1) entries of a 4-byte chunk id and an 8-byte offset, the last one has id 0
+ * - OIDF: 256 4-byte fan-out entries
+ * - OIDL: the sorted commit IDs
+ * - CDAT: per commit the root tree ID, two 4-byte parent positions and 8 bytes of generation and time
+ * - GDA2: optional, per commit a 4-byte corrected commit date offset
+ * - GDO2: optional, 8-byte corrected commit date offsets that did not fit
+ * - EDGE: optional, parent positions of octopus merges
+ * - trailing checksum
+ * </pre>
+ *
+ * Commits are addressed by their position in the sorted ID table, so parents can be followed without looking
+ * anything up.
+ *
+ * Instead of the single file there can be a chain of incremental layers, listed base first in
+ * objects/info/commit-graphs/commit-graph-chain, each one a graph-{checksum}.graph file. A layer only holds
+ * the commits not in the layers below it, and positions count from the bottom of the chain.
+ */
+public class CommitGraph {
+    private static final int SIGNATURE = ('C' << 24) | ('G' << 16) | ('P' << 8) | 'H';
+
+    static final int CHUNK_OIDF = ('O' << 24) | ('I' << 16) | ('D' << 8) | 'F';
+    static final int CHUNK_OIDL = ('O' << 24) | ('I' << 16) | ('D' << 8) | 'L';
+    static final int CHUNK_CDAT = ('C' << 24) | ('D' << 16) | ('A' << 8) | 'T';
+    static final int CHUNK_GDA2 = ('G' << 24) | ('D' << 16) | ('A' << 8) | '2';
+    static final int CHUNK_GDO2 = ('G' << 24) | ('D' << 16) | ('O' << 8) | '2';
+    static final int CHUNK_EDGE = ('E' << 24) | ('D' << 16) | ('G' << 8) | 'E';
+    static final int CHUNK_BASE = ('B' << 24) | ('A' << 16) | ('S' << 8) | 'E';
+
+    /** Parent value meaning there is no parent. */
+    static final int PARENT_NONE = 0x70000000;
+
+    /** Set on the second parent when the rest of the parents are in the EDGE chunk. */
+    static final int PARENT_EXTRA_EDGES = 0x80000000;
+
+    /** Set on the last parent of an octopus merge in the EDGE chunk. */
+    static final int LAST_EDGE = 0x80000000;
+
+    /** Set on a GDA2 value when it is an index into GDO2. */
+    static final int GENERATION_OVERFLOW = 0x80000000;
+
+    static final int CDAT_ENTRY_SIZE = ObjectID.RAW_LENGTH + 16;
+
+    private final List<GraphFile> layers;
+    private final int commitCount;
+    private final boolean correctedCommitDates;
+
+    /**
+     * Opens objects/info/commit-graph, or the commit-graph chain if there is no single file, or returns null
+     * if the repository has neither.
+     */
+    public static CommitGraph open(Path objectsDir) throws IOException {
+        Path file = getGraphFile(objectsDir);
+        if(Files.isRegularFile(file)) {
+            return new CommitGraph(List.of(new GraphFile(file, 0)));
+        }
+
+        Path chain = getChainFile(objectsDir);
+        if(!Files.isRegularFile(chain)) {
+            return null;
+        }
+
+        List<GraphFile> layers = new ArrayList<>();
+        int base = 0;
+        for(String line: Files.readAllLines(chain, StandardCharsets.US_ASCII)) {
+            if(line.isBlank()) {
+                continue;
+            }
+            GraphFile layer = new GraphFile(getLayerFile(objectsDir, line.trim()), base);
+            if(layer.baseGraphCount != layers.size()) {
+                throw new IOException("Commit-graph layer " + layer.path + " expects " + layer.baseGraphCount +
+                        " base graphs, but is number " + layers.size() + " in the chain");
+            }
+            layers.add(layer);
+            base += layer.commitCount;
+        }
+        return layers.isEmpty() ? null : new CommitGraph(layers);
+    }
+
+    static Path getGraphFile(Path objectsDir) {
+        return objectsDir.resolve("info/commit-graph");
+    }
+
+    static Path getChainFile(Path objectsDir) {
+        return objectsDir.resolve("info/commit-graphs/commit-graph-chain");
+    }
+
+    static Path getLayerFile(Path objectsDir, String checksum) {
+        return objectsDir.resolve("info/commit-graphs/graph-" + checksum + ".graph");
+    }
+
+    /**
+     * The modification times of the files a graph is opened from, to tell when it has to be opened again.
+     */
+    static List<FileTime> getModificationTimes(Path objectsDir) throws IOException {
+        List<FileTime> result = new ArrayList<>(2);
+        for(Path file: List.of(getGraphFile(objectsDir), getChainFile(objectsDir))) {
+            result.add(Files.exists(file) ? Files.getLastModifiedTime(file) : null);
+        }
+        return result;
+    }
+
+    CommitGraph(List<GraphFile> layers) {
+        this.layers = layers;
+        GraphFile top = layers.get(layers.size() - 1);
+        this.commitCount = top.base + top.commitCount;
+
+        // generation numbers from different versions cannot be compared, so v2 is only used if every layer has it
+        boolean corrected = true;
+        for(GraphFile layer: layers) {
+            corrected &= layer.gda2 >= 0;
+        }
+        this.correctedCommitDates = corrected;
+    }
+
+    public int getCommitCount() {
+        return commitCount;
+    }
+
+    /**
+     * Returns the position of the commit, or -1 if it is not in the graph.
+     */
+    public int findPosition(ObjectID id) {
+        for(GraphFile layer: layers) {
+            int local = layer.findPosition(id);
+            if(local >= 0) {
+                return layer.base + local;
+            }
+        }
+        return -1;
+    }
+
+    public ObjectID getObjectID(int position) {
+        GraphFile layer = layerOf(position);
+        return new ObjectID(layer.names, (position - layer.base) * ObjectID.RAW_LENGTH);
+    }
+
+    public ObjectID getTree(int position) {
+        GraphFile layer = layerOf(position);
+        long offset = layer.cdatOffset(position);
+        byte[] tree = new byte[ObjectID.RAW_LENGTH];
+        layer.file.get(offset, tree, 0, tree.length);
+        return new ObjectID(tree);
+    }
+
+    /**
+     * Returns the positions of the parents, in order.
+     */
+    public int[] getParents(int position) {
+        GraphFile layer = layerOf(position);
+        long offset = layer.cdatOffset(position) + ObjectID.RAW_LENGTH;
+        int parent1 = layer.file.getInt(offset);
+        int parent2 = layer.file.getInt(offset + 4);
+
+        if(parent1 == PARENT_NONE) {
+            return new int[0];
+        }
+        if(parent2 == PARENT_NONE) {
+            return new int[] { parent1 };
+        }
+        if((parent2 & PARENT_EXTRA_EDGES) == 0) {
+            return new int[] { parent1, parent2 };
+        }
+
+        // octopus merge, the second parent onwards are in the EDGE chunk
+        long edge = layer.edge + 4L * (parent2 & ~PARENT_EXTRA_EDGES);
+        int count = 1;
+        while((layer.file.getInt(edge + 4L * (count - 1)) & LAST_EDGE) == 0) {
+            count++;
+        }
+        int[] parents = new int[count + 1];
+        parents[0] = parent1;
+        for(int i = 0; i < count; i++) {
+            parents[i + 1] = layer.file.getInt(edge + 4L * i) & ~LAST_EDGE;
+        }
+        return parents;
+    }
+
+    /**
+     * The commit time in seconds since the epoch, 34 bits.
+     */
+    public long getCommitTime(int position) {
+        GraphFile layer = layerOf(position);
+        long offset = layer.cdatOffset(position) + ObjectID.RAW_LENGTH + 8;
+        long high = layer.file.getInt(offset) & 0x3L;
+        return (high << 32) | layer.file.getUnsignedInt(offset + 4);
+    }
+
+    /**
+     * Generation number v1: 1 for a root commit, otherwise one more than the highest of the parents.
+     */
+    public int getTopologicalLevel(int position) {
+        GraphFile layer = layerOf(position);
+        long offset = layer.cdatOffset(position) + ObjectID.RAW_LENGTH + 8;
+        return layer.file.getInt(offset) >>> 2;
+    }
+
+    /**
+     * The generation number used for reachability cut-offs: the corrected commit date (v2) if every layer
+     * of the graph has it, otherwise the topological level (v1). Either way a commit's generation is
+     * strictly greater than that of each of its parents.
+     */
+    public long getGeneration(int position) {
+        if(!correctedCommitDates) {
+            return getTopologicalLevel(position);
+        }
+        return getCorrectedCommitDate(position);
+    }
+
+    /**
+     * The corrected commit date from the GDA2 chunk of the layer the commit is in, whether or not the other
+     * layers have one.
+     *
+     * @throws IllegalStateException if the layer of the commit has no corrected commit dates
+     */
+    long getCorrectedCommitDate(int position) {
+        GraphFile layer = layerOf(position);
+        if(layer.gda2 < 0) {
+            throw new IllegalStateException("No corrected commit dates in commit-graph layer " + layer.checksum);
+        }
+        int local = position - layer.base;
+        int offset = layer.file.getInt(layer.gda2 + 4L * local);
+        long correction;
+        if((offset & GENERATION_OVERFLOW) != 0) {
+            correction = layer.file.getLong(layer.gdo2 + 8L * (offset & ~GENERATION_OVERFLOW));
+        } else {
+            correction = offset & 0xffffffffL;
+        }
+        return getCommitTime(position) + correction;
+    }
+
+    public boolean hasCorrectedCommitDates() {
+        return correctedCommitDates;
+    }
+
+    /**
+     * The number of files the graph is made of, 1 unless it is an incremental chain.
+     */
+    public int getLayerCount() {
+        return layers.size();
+    }
+
+    List<GraphFile> getLayers() {
+        return layers;
+    }
+
+    private GraphFile layerOf(int position) {
+        if(position < 0 || position >= commitCount) {
+            throw new IndexOutOfBoundsException("Commit graph position " + position + ", size " + commitCount);
+        }
+        for(int i = layers.size() - 1; i > 0; i--) {
+            GraphFile layer = layers.get(i);
+            if(position >= layer.base) {
+                return layer;
+            }
+        }
+        return layers.get(0);
+    }
+
+    /**
+     * One commit-graph file, a layer of a chain or the only one.
+     */
+    static class GraphFile {
+        final Path path;
+        final MappedFile file;
+
+        /** Number of commits in the layers below this one. */
+        final int base;
+        final int commitCount;
+        final String checksum;
+        final int baseGraphCount;
+        final ByteBuffer names;
+        final long oidf;
+        final long cdat;
+        final long gda2;
+        final long gdo2;
+        final long edge;
+
+        GraphFile(Path path, int base) throws IOException {
+            this.path = path;
+            this.file = MappedFile.open(path);
+            this.base = base;
+
+            if(file.getInt(0) != SIGNATURE) {
+                throw new IOException("Invalid commit-graph, magic signature wrong: " + path);
+            }
+            int version = file.getUnsignedByte(4);
+            if(version != 1) {
+                throw new IOException("Unsupported commit-graph version=" + version + ": " + path);
+            }
+            int hashVersion = file.getUnsignedByte(5);
+            if(hashVersion != 1) {
+                throw new IOException("Unsupported commit-graph hash version=" + hashVersion + ": " + path);
+            }
+            int chunkCount = file.getUnsignedByte(6);
+            this.baseGraphCount = file.getUnsignedByte(7);
+
+            long oidf = -1, oidl = -1, cdat = -1, gda2 = -1, gdo2 = -1, edge = -1;
+            for(int i = 0; i < chunkCount; i++) {
+                long entry = 8 + 12L * i;
+                int id = file.getInt(entry);
+                long offset = file.getLong(entry + 4);
+                if(id == CHUNK_OIDF) oidf = offset;
+                else if(id == CHUNK_OIDL) oidl = offset;
+                else if(id == CHUNK_CDAT) cdat = offset;
+                else if(id == CHUNK_GDA2) gda2 = offset;
+                else if(id == CHUNK_GDO2) gdo2 = offset;
+                else if(id == CHUNK_EDGE) edge = offset;
+            }
+            if(oidf < 0 || oidl < 0 || cdat < 0) {
+                throw new IOException("Invalid commit-graph, required chunk missing: " + path);
+            }
+
+            this.oidf = oidf;
+            this.cdat = cdat;
+            this.gda2 = gda2;
+            this.gdo2 = gdo2;
+            this.edge = edge;
+            this.commitCount = file.getInt(oidf + 255 * 4);
+            this.names = file.slice(oidl, commitCount * ObjectID.RAW_LENGTH);
+
+            byte[] trailer = new byte[ObjectID.RAW_LENGTH];
+            file.get(file.size() - trailer.length, trailer, 0, trailer.length);
+            this.checksum = Hex.toHex(trailer);
+        }
+
+        int findPosition(ObjectID id) {
+            int first = id.getFirstByte();
+            int low = first == 0 ? 0 : file.getInt(oidf + (first - 1) * 4L);
+            int high = file.getInt(oidf + first * 4L);
+            while(low < high) {
+                int mid = (low + high) >>> 1;
+                int cmp = id.compareTo(names, mid * ObjectID.RAW_LENGTH);
+                if(cmp > 0) {
+                    low = mid + 1;
+                } else if(cmp < 0) {
+                    high = mid;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        long cdatOffset(int position) {
+            return cdat + (long)CDAT_ENTRY_SIZE * (position - base);
+        }
+    }
+}
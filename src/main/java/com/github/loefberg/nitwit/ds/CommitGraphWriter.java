@@ -0,0 +1,476 @@
+package com.github.loefberg.nitwit.ds;
+
+import com.github.loefberg.nitwit.ObjectID;
+import com.github.loefberg.nitwit.util.Hex;
+import com.github.loefberg.nitwit.util.Parallel;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Writes the commit-graph read by {@link CommitGraph}, either as the single file objects/info/commit-graph or
+ * as a new layer on top of the commit-graph chain.
+ *
+ * The commits reachable from the given tips are loaded a generation of the walk at a time, all commits of
+ * the frontier in parallel. Generation numbers are then computed in waves: a commit is ready once all its
+ * parents in the new file have theirs, and every commit of a wave is independent of the others in it.
+ *
+ * An incremental write only adds the commits not in the existing graph. Like git's default split strategy
+ * the new layer swallows the layers below it for as long as they are no more than twice its size, so the
+ * chain stays logarithmic in the number of commits.
+ */
+public class CommitGraphWriter {
+    /** The largest topological level that fits in CDAT, higher levels are stored as this. */
+    static final int MAX_TOPOLOGICAL_LEVEL = 0x3FFFFFFF;
+
+    /** The largest corrected commit date offset stored directly in GDA2. */
+    static final long MAX_GENERATION_OFFSET = 0x7FFFFFFFL;
+
+    private static final int SIZE_MULTIPLE = 2;
+
+    private final DataStore ds;
+    private final ForkJoinPool pool;
+    private boolean correctedCommitDates = true;
+
+    public CommitGraphWriter(DataStore ds) {
+        this(ds, ForkJoinPool.commonPool());
+    }
+
+    public CommitGraphWriter(DataStore ds, ForkJoinPool pool) {
+        this.ds = ds;
+        this.pool = pool;
+    }
+
+    /**
+     * Whether to write corrected commit dates (generation number v2), git's commitGraph.generationVersion.
+     * On by default. An incremental layer only gets them if every layer below it has them.
+     */
+    public void setCorrectedCommitDates(boolean correctedCommitDates) {
+        this.correctedCommitDates = correctedCommitDates;
+    }
+
+    /**
+     * Writes all commits reachable from the tips to objects/info/commit-graph, replacing any existing graph
+     * and chain. Returns the file written, or null if there were no commits.
+     */
+    public Path write(Collection<ObjectID> tips) throws IOException {
+        Path objectsDir = ds.getObjectsDirectory();
+        Map<ObjectID, Node> commits = collect(tips, null);
+        if(commits.isEmpty()) {
+            return null;
+        }
+
+        Path file = CommitGraph.getGraphFile(objectsDir);
+        Files.createDirectories(file.getParent());
+        writeLayer(file.getParent(), file, commits.values(), null, 0);
+
+        Path chain = CommitGraph.getChainFile(objectsDir);
+        if(Files.exists(chain)) {
+            List<String> checksums = Files.readAllLines(chain, StandardCharsets.US_ASCII);
+            Files.delete(chain);
+            for(String checksum: checksums) {
+                if(!checksum.isBlank()) {
+                    Files.deleteIfExists(CommitGraph.getLayerFile(objectsDir, checksum.trim()));
+                }
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Adds the commits reachable from the tips that are not yet in the graph as a new layer of the chain.
+     * A single commit-graph file becomes the bottom layer of the chain. Returns the layer written, or null
+     * if the graph already had all the commits.
+     */
+    public Path writeIncremental(Collection<ObjectID> tips) throws IOException {
+        Path objectsDir = ds.getObjectsDirectory();
+        Path single = CommitGraph.getGraphFile(objectsDir);
+        CommitGraph existing = CommitGraph.open(objectsDir);
+
+        Map<ObjectID, Node> commits = collect(tips, existing);
+        if(commits.isEmpty()) {
+            return null;
+        }
+
+        List<CommitGraph.GraphFile> layers = existing == null ? List.of() : existing.getLayers();
+        int kept = layers.size();
+        int count = commits.size();
+        while(kept > 0 && layers.get(kept - 1).commitCount <= (long)SIZE_MULTIPLE * count) {
+            kept--;
+            count += layers.get(kept).commitCount;
+        }
+
+        // the commits of the merged layers move into the new one
+        int baseCount = kept == 0 ? 0 : layers.get(kept - 1).base + layers.get(kept - 1).commitCount;
+        for(int position = baseCount; position < (existing == null ? 0 : existing.getCommitCount()); position++) {
+            Node node = new Node(existing.getObjectID(position), existing.getTree(position),
+                    existing.getCommitTime(position), toIds(existing, existing.getParents(position)));
+            commits.put(node.id, node);
+        }
+
+        Path graphsDir = CommitGraph.getChainFile(objectsDir).getParent();
+        Files.createDirectories(graphsDir);
+
+        List<CommitGraph.GraphFile> base = layers.subList(0, kept);
+        Path written = writeLayer(graphsDir, null, commits.values(), existing, kept);
+
+        // a single file kept as the bottom layer has to be renamed to where the chain expects it
+        List<String> chain = new ArrayList<>();
+        for(CommitGraph.GraphFile layer: base) {
+            Path target = CommitGraph.getLayerFile(objectsDir, layer.checksum);
+            if(!layer.path.equals(target)) {
+                Files.copy(layer.path, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            chain.add(layer.checksum);
+        }
+        chain.add(checksumOf(written));
+
+        Path chainFile = CommitGraph.getChainFile(objectsDir);
+        Path tmp = Files.createTempFile(graphsDir, "tmp_chain_", null);
+        try {
+            Files.write(tmp, chain, StandardCharsets.US_ASCII);
+            DataStore.moveIntoPlace(tmp, chainFile, true);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+
+        for(CommitGraph.GraphFile layer: layers.subList(kept, layers.size())) {
+            Files.deleteIfExists(layer.path);
+        }
+        Files.deleteIfExists(single);
+        return written;
+    }
+
+    /**
+     * Loads the commits reachable from the tips that are not in the existing graph.
+     */
+    private Map<ObjectID, Node> collect(Collection<ObjectID> tips, CommitGraph existing) throws IOException {
+        Map<ObjectID, Node> result = new ConcurrentHashMap<>();
+        Set<ObjectID> seen = ConcurrentHashMap.newKeySet();
+        List<ObjectID> frontier = new ArrayList<>();
+        for(ObjectID tip: tips) {
+            if(seen.add(tip) && (existing == null || existing.findPosition(tip) < 0)) {
+                frontier.add(tip);
+            }
+        }
+
+        while(!frontier.isEmpty()) {
+            List<ObjectID> current = frontier;
+            Collection<ObjectID> next = new ConcurrentLinkedQueue<>();
+            Parallel.forEach(pool, current.size(), i -> {
+                ObjectID id = current.get(i);
+                Commit commit = ds.getCommit(id);
+                List<ObjectID> parents = commit.getParents();
+                result.put(id, new Node(id, commit.getTree(), commit.getCommitTime(),
+                        parents.toArray(new ObjectID[0])));
+                for(ObjectID parent: parents) {
+                    if(seen.add(parent) && (existing == null || existing.findPosition(parent) < 0)) {
+                        next.add(parent);
+                    }
+                }
+            });
+            frontier = new ArrayList<>(next);
+        }
+        return result;
+    }
+
+    private static ObjectID[] toIds(CommitGraph graph, int[] positions) {
+        ObjectID[] result = new ObjectID[positions.length];
+        for(int i = 0; i < positions.length; i++) {
+            result[i] = graph.getObjectID(positions[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Writes one graph file with the given commits on top of the first {@code baseLayers} layers of
+     * {@code graph}. With a null target the file is named after its checksum.
+     */
+    private Path writeLayer(Path dir, Path target, Collection<Node> commits, CommitGraph graph, int baseLayers)
+            throws IOException {
+        List<CommitGraph.GraphFile> base = graph == null ? List.of() : graph.getLayers().subList(0, baseLayers);
+        int baseCount = base.isEmpty() ? 0 : base.get(base.size() - 1).base + base.get(base.size() - 1).commitCount;
+
+        Node[] nodes = commits.toArray(new Node[0]);
+        Arrays.sort(nodes, (a, b) -> a.id.compareTo(b.id));
+        Map<ObjectID, Integer> positions = new HashMap<>(nodes.length * 2);
+        for(int i = 0; i < nodes.length; i++) {
+            positions.put(nodes[i].id, baseCount + i);
+        }
+        for(Node node: nodes) {
+            node.parentPositions = new int[node.parents.length];
+            for(int p = 0; p < node.parents.length; p++) {
+                Integer position = positions.get(node.parents[p]);
+                if(position == null) {
+                    int found = graph == null ? -1 : graph.findPosition(node.parents[p]);
+                    if(found < 0 || found >= baseCount) {
+                        throw new IOException("Parent " + node.parents[p] + " of " + node.id + " not in commit-graph");
+                    }
+                    position = found;
+                }
+                node.parentPositions[p] = position;
+            }
+        }
+
+        boolean corrected = correctedCommitDates;
+        for(CommitGraph.GraphFile layer: base) {
+            corrected &= layer.gda2 >= 0;
+        }
+        computeGenerations(nodes, baseCount, graph, corrected);
+
+        Path tmp = Files.createTempFile(dir, "tmp_graph_", null);
+        try {
+            byte[] checksum = writeFile(tmp, nodes, base, corrected);
+            Path file = target != null ? target
+                    : CommitGraph.getLayerFile(ds.getObjectsDirectory(), Hex.toHex(checksum));
+            DataStore.moveIntoPlace(tmp, file, true);
+            return file;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Fills in the topological level and corrected commit date of every node, one wave of nodes whose
+     * parents are all done at a time.
+     */
+    private void computeGenerations(Node[] nodes, int baseCount, CommitGraph graph, boolean corrected)
+            throws IOException {
+        int n = nodes.length;
+        AtomicIntegerArray pending = new AtomicIntegerArray(n);
+        int[] childCount = new int[n];
+        for(int i = 0; i < n; i++) {
+            for(int parent: nodes[i].parentPositions) {
+                if(parent >= baseCount) {
+                    pending.incrementAndGet(i);
+                    childCount[parent - baseCount]++;
+                }
+            }
+        }
+        int[][] children = new int[n][];
+        for(int i = 0; i < n; i++) {
+            children[i] = new int[childCount[i]];
+            childCount[i] = 0;
+        }
+        for(int i = 0; i < n; i++) {
+            for(int parent: nodes[i].parentPositions) {
+                if(parent >= baseCount) {
+                    int local = parent - baseCount;
+                    children[local][childCount[local]++] = i;
+                }
+            }
+        }
+
+        int[] wave = new int[n];
+        int waveSize = 0;
+        for(int i = 0; i < n; i++) {
+            if(pending.get(i) == 0) {
+                wave[waveSize++] = i;
+            }
+        }
+
+        int done = 0;
+        int[] nextWave = new int[n];
+        while(waveSize > 0) {
+            int[] current = wave;
+            int[] next = nextWave;
+            AtomicInteger nextSize = new AtomicInteger();
+            Parallel.forEach(pool, waveSize, k -> {
+                Node node = nodes[current[k]];
+                int level = 0;
+                long date = 0;
+                for(int parent: node.parentPositions) {
+                    if(parent >= baseCount) {
+                        Node p = nodes[parent - baseCount];
+                        level = Math.max(level, p.level);
+                        date = Math.max(date, p.correctedDate + 1);
+                    } else {
+                        level = Math.max(level, graph.getTopologicalLevel(parent));
+                        if(corrected) {
+                            // from the kept layer itself, the chain as a whole may still fall back to levels
+                            date = Math.max(date, graph.getCorrectedCommitDate(parent) + 1);
+                        }
+                    }
+                }
+                node.level = Math.min(level + 1, MAX_TOPOLOGICAL_LEVEL);
+                node.correctedDate = Math.max(node.time, date);
+
+                for(int child: children[current[k]]) {
+                    if(pending.decrementAndGet(child) == 0) {
+                        next[nextSize.getAndIncrement()] = child;
+                    }
+                }
+            });
+            done += waveSize;
+            waveSize = nextSize.get();
+            nextWave = wave;
+            wave = next;
+        }
+        if(done != n) {
+            throw new IOException("Commit history has a cycle, " + (n - done) + " commits left without a generation");
+        }
+    }
+
+    private byte[] writeFile(Path file, Node[] nodes, List<CommitGraph.GraphFile> base, boolean corrected)
+            throws IOException {
+        int n = nodes.length;
+
+        int edgeCount = 0;
+        int overflowCount = 0;
+        for(Node node: nodes) {
+            if(node.parents.length > 2) {
+                edgeCount += node.parents.length - 1;
+            }
+            if(node.correctedDate - node.time > MAX_GENERATION_OFFSET) {
+                overflowCount++;
+            }
+        }
+
+        List<Integer> ids = new ArrayList<>();
+        List<Long> sizes = new ArrayList<>();
+        ids.add(CommitGraph.CHUNK_OIDF); sizes.add(256 * 4L);
+        ids.add(CommitGraph.CHUNK_OIDL); sizes.add((long)n * ObjectID.RAW_LENGTH);
+        ids.add(CommitGraph.CHUNK_CDAT); sizes.add((long)n * CommitGraph.CDAT_ENTRY_SIZE);
+        if(corrected) {
+            ids.add(CommitGraph.CHUNK_GDA2); sizes.add(n * 4L);
+            if(overflowCount > 0) {
+                ids.add(CommitGraph.CHUNK_GDO2); sizes.add(overflowCount * 8L);
+            }
+        }
+        if(edgeCount > 0) {
+            ids.add(CommitGraph.CHUNK_EDGE); sizes.add(edgeCount * 4L);
+        }
+        if(!base.isEmpty()) {
+            ids.add(CommitGraph.CHUNK_BASE); sizes.add((long)base.size() * ObjectID.RAW_LENGTH);
+        }
+
+        MessageDigest digest = DataStore.newSha1();
+        try(OutputStream fileOut = Files.newOutputStream(file);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DigestOutputStream(fileOut, digest), 64 * 1024))) {
+            out.writeBytes("CGPH");
+            out.writeByte(1);
+            out.writeByte(1);
+            out.writeByte(ids.size());
+            out.writeByte(base.size());
+
+            long offset = 8 + 12L * (ids.size() + 1);
+            for(int i = 0; i < ids.size(); i++) {
+                out.writeInt(ids.get(i));
+                out.writeLong(offset);
+                offset += sizes.get(i);
+            }
+            out.writeInt(0);
+            out.writeLong(offset);
+
+            // OIDF
+            int next = 0;
+            for(int b = 0; b < 256; b++) {
+                while(next < n && nodes[next].id.getFirstByte() <= b) {
+                    next++;
+                }
+                out.writeInt(next);
+            }
+
+            // OIDL
+            byte[] raw = new byte[ObjectID.RAW_LENGTH];
+            for(Node node: nodes) {
+                node.id.copyTo(raw, 0);
+                out.write(raw);
+            }
+
+            // CDAT
+            int edge = 0;
+            for(Node node: nodes) {
+                node.tree.copyTo(raw, 0);
+                out.write(raw);
+                int[] parents = node.parentPositions;
+                out.writeInt(parents.length > 0 ? parents[0] : CommitGraph.PARENT_NONE);
+                if(parents.length <= 2) {
+                    out.writeInt(parents.length == 2 ? parents[1] : CommitGraph.PARENT_NONE);
+                } else {
+                    out.writeInt(CommitGraph.PARENT_EXTRA_EDGES | edge);
+                    edge += parents.length - 1;
+                }
+                out.writeInt((node.level << 2) | (int)((node.time >>> 32) & 0x3));
+                out.writeInt((int)node.time);
+            }
+
+            if(corrected) {
+                // GDA2
+                int overflow = 0;
+                for(Node node: nodes) {
+                    long correction = node.correctedDate - node.time;
+                    out.writeInt(correction > MAX_GENERATION_OFFSET
+                            ? CommitGraph.GENERATION_OVERFLOW | overflow++ : (int)correction);
+                }
+                // GDO2
+                for(Node node: nodes) {
+                    long correction = node.correctedDate - node.time;
+                    if(correction > MAX_GENERATION_OFFSET) {
+                        out.writeLong(correction);
+                    }
+                }
+            }
+
+            // EDGE
+            for(Node node: nodes) {
+                int[] parents = node.parentPositions;
+                for(int p = 1; parents.length > 2 && p < parents.length; p++) {
+                    out.writeInt(p == parents.length - 1 ? parents[p] | CommitGraph.LAST_EDGE : parents[p]);
+                }
+            }
+
+            // BASE
+            for(CommitGraph.GraphFile layer: base) {
+                out.write(Hex.fromHex(layer.checksum));
+            }
+
+            out.flush();
+            byte[] checksum = digest.digest();
+            fileOut.write(checksum);
+            return checksum;
+        }
+    }
+
+    private static String checksumOf(Path layerFile) {
+        String name = layerFile.getFileName().toString();
+        return name.substring("graph-".length(), name.length() - ".graph".length());
+    }
+
+    private static class Node {
+        final ObjectID id;
+        final ObjectID tree;
+        final long time;
+        final ObjectID[] parents;
+        int[] parentPositions;
+        int level;
+        long correctedDate;
+
+        Node(ObjectID id, ObjectID tree, long time, ObjectID[] parents) {
+            this.id = id;
+            this.tree = tree;
+            this.time = time;
+            this.parents = parents;
+        }
+    }
+}
@@ -2,28 +2,93 @@ package com.github.loefberg.nitwit.ds;
 
 import com.github.loefberg.nitwit.ObjectID;
 
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Function;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 
 public class DataStore {
-    private static final char[] HEX_ARRAY = "0123456789abcdef".toCharArray();
+    /** Size of the one buffer a streaming write reads into, hashes from and deflates from. */
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
     private final Path objectsDir;
+    private final Path packDir;
+    private final DeltaBaseCache deltaBaseCache = new DeltaBaseCache(DeltaBaseCache.DEFAULT_LIMIT);
+    private volatile ObjectCache objectCache;
+    private Optional<CommitGraph> commitGraph;
+    private List<FileTime> commitGraphModified;
+
+    /** The transaction loose objects are written in, or null to write them straight into place. */
+    private volatile ObjectTransaction transaction;
+    /** The loose objects being written by some thread, completed once they can be found. */
+    private final ConcurrentMap<ObjectID, CompletableFuture<Void>> writing = new ConcurrentHashMap<>();
+
+    /** The open packs, newest first. Replaced as a whole when the pack directory changes. */
+    private volatile List<PackFile> packs;
+    /** When the pack directory was modified as the packs were scanned. Set after the packs, read before them. */
+    private volatile FileTime packDirModified;
 
     public DataStore(Path gitDir) {
         this.objectsDir = gitDir.resolve("objects");
+        this.packDir = objectsDir.resolve("pack");
+    }
+
+    /**
+     * Sets the number of bytes of inflated delta bases kept in memory, like git's core.deltaBaseCacheLimit.
+     * The default is 96 MiB.
+     */
+    public void setDeltaBaseCacheLimit(long bytes) {
+        deltaBaseCache.setLimit(bytes);
+    }
+
+    /**
+     * Sets a cache for parsed trees and commits, or null to not cache them, which is the default. The same cache can be
+     * shared by several data stores of the same repository.
+     */
+    public void setObjectCache(ObjectCache objectCache) {
+        this.objectCache = objectCache;
+    }
+
+    public ObjectCache getObjectCache() {
+        return objectCache;
+    }
+
+    Path getObjectsDirectory() {
+        return objectsDir;
     }
 
     public void getObjects() throws IOException {
@@ -31,43 +96,328 @@ public class DataStore {
     }
 
     public String getType(ObjectID key) throws IOException {
-        Path objectFile = requireRegularFile(getObjectPath(key));
+        PackFile pack = findPack(key);
+        if(pack != null) {
+            return pack.getType(key).typeName();
+        }
 
-        try(var input = new InflaterInputStream(Files.newInputStream(objectFile))) {
-            byte[] head = new byte[7];
-            int read = input.read(head);
-            int length = 0;
-            while(length < read && head[length] != ' ') {
-                length++;
-            }
+        try(ObjectStream input = openLooseObject(key)) {
+            return input.getType().typeName();
+        }
+    }
 
-            return new String(head, 0, length, StandardCharsets.UTF_8);
+    /**
+     * Opens an object for reading. The header is parsed up front, the content is inflated as the returned
+     * stream is read.
+     */
+    public ObjectStream openObject(ObjectID key) throws IOException {
+        PackFile pack = findPack(key);
+        if(pack != null) {
+            return pack.openObject(key);
         }
+        return openLooseObject(key);
+    }
+
+    /**
+     * Opens a blob for reading without loading its content into memory.
+     */
+    public StreamingBlob openBlob(ObjectID key) throws IOException {
+        ObjectStream input = openObject(key);
+        if(input.getType() != ObjectType.BLOB) {
+            input.close();
+            throw new RuntimeException("Failed to load object, expected 'blob' got '" + input.getType().typeName() + "'");
+        }
+        return new StreamingBlob(input);
     }
 
     public String putBlob(Blob blob) throws IOException {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        out.write(String.format("blob %s\0", blob.getSize()).getBytes(StandardCharsets.UTF_8));
-        blob.write(out);
-        out.close();
+        return putBlob(new ByteArrayInputStream(blob.getContent()), blob.getSize());
+    }
 
-        return put(out.toByteArray());
+    public String putBlob(Path file) throws IOException {
+        try(InputStream input = Files.newInputStream(file)) {
+            return putBlob(input, Files.size(file));
+        }
+    }
+
+    /**
+     * Writes exactly {@code size} bytes from {@code input} as a blob, without holding the content in memory.
+     *
+     * The header and content are fed through one bounded buffer to both the SHA-1 digest and the deflater,
+     * which writes to a temporary file in the objects directory. Once the hash is known the temporary file is
+     * renamed into place, or dropped if the object already exists.
+     */
+    public String putBlob(InputStream input, long size) throws IOException {
+        byte[] header = ("blob " + size + "\0").getBytes(StandardCharsets.UTF_8);
+        MessageDigest md = newSha1();
+        md.update(header);
+
+        Path tmp = createTempObjectFile();
+        try {
+            Deflater deflater = new Deflater(GIT_DEFAULT_COMPRESSION);
+            try(DeflaterOutputStream out = new DeflaterOutputStream(Files.newOutputStream(tmp), deflater, STREAM_BUFFER_SIZE)) {
+                out.write(header);
+
+                byte[] buf = new byte[STREAM_BUFFER_SIZE];
+                long remaining = size;
+                while(remaining > 0) {
+                    int read = input.read(buf, 0, (int)Math.min(buf.length, remaining));
+                    if(read < 0) {
+                        throw new EOFException("Blob ended after " + (size - remaining) + " of " + size + " bytes");
+                    }
+                    md.update(buf, 0, read);
+                    out.write(buf, 0, read);
+                    remaining -= read;
+                }
+
+                if(input.read() != -1) {
+                    throw new IOException("Blob is larger than the expected " + size + " bytes");
+                }
+            } finally {
+                deflater.end();
+            }
+
+            ObjectID id = new ObjectID(md.digest());
+            finishObject(id, tmp);
+            return id.getHashString();
+        } catch(IOException | RuntimeException ex) {
+            Files.deleteIfExists(tmp);
+            throw ex;
+        }
+    }
+
+    /**
+     * The ID the file would get as a blob, computed without writing it. A symbolic link is hashed as its
+     * target, like git stores it.
+     */
+    public static ObjectID hashBlob(Path file) throws IOException {
+        if(Files.isSymbolicLink(file)) {
+            return hashBlob(Files.readSymbolicLink(file).toString().getBytes(StandardCharsets.UTF_8));
+        }
+        try(InputStream input = Files.newInputStream(file)) {
+            long size = Files.size(file);
+            MessageDigest md = newSha1();
+            md.update(("blob " + size + "\0").getBytes(StandardCharsets.UTF_8));
+            byte[] buf = new byte[STREAM_BUFFER_SIZE];
+            long total = 0;
+            int read;
+            while((read = input.read(buf)) != -1) {
+                md.update(buf, 0, read);
+                total += read;
+            }
+            if(total != size) {
+                throw new IOException("File changed while it was hashed: " + file);
+            }
+            return new ObjectID(md.digest());
+        }
+    }
+
+    public static ObjectID hashBlob(byte[] content) {
+        MessageDigest md = newSha1();
+        md.update(("blob " + content.length + "\0").getBytes(StandardCharsets.UTF_8));
+        return new ObjectID(md.digest(content));
+    }
+
+    /**
+     * Writes a blob whose ID the caller has already computed from the content, typically to find out whether
+     * it has to be written at all. Nothing is written if the object exists as a loose object.
+     */
+    public void putBlob(ObjectID id, byte[] content) throws IOException {
+        writeLooseObject(id, ("blob " + content.length + "\0").getBytes(StandardCharsets.UTF_8), content);
+    }
+
+    /**
+     * Starts writing loose objects in a transaction: they are written to temporary files, and only synced
+     * to disk and renamed into place when it is committed. Until then they can be read from this data
+     * store, but not from others. Only one transaction can be open at a time.
+     */
+    public ObjectTransaction beginTransaction() throws IOException {
+        return beginTransaction(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Starts a transaction that syncs the objects on the threads of the pool when it is committed.
+     */
+    public synchronized ObjectTransaction beginTransaction(ForkJoinPool pool) throws IOException {
+        if(transaction != null) {
+            throw new IllegalStateException("A transaction is already open");
+        }
+        transaction = new ObjectTransaction(this, Files.createTempDirectory(objectsDir, "tmp_objdir-"), pool);
+        return transaction;
+    }
+
+    synchronized void endTransaction(ObjectTransaction ended) {
+        if(transaction == ended) {
+            transaction = null;
+        }
+    }
+
+    /**
+     * Whether the object is in a pack or loose.
+     */
+    public boolean hasObject(ObjectID key) throws IOException {
+        return findPack(key, getPacks()) != null || Files.exists(findLooseObject(key))
+                || findPack(key, rescanPacks()) != null;
+    }
+
+    /**
+     * The IDs of the loose objects.
+     */
+    public List<ObjectID> getLooseObjects() throws IOException {
+        List<ObjectID> result = new ArrayList<>();
+        try(DirectoryStream<Path> dirs = Files.newDirectoryStream(objectsDir, "[0-9a-f][0-9a-f]")) {
+            for(Path dir: dirs) {
+                try(DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                    for(Path file: files) {
+                        String hash = dir.getFileName().toString() + file.getFileName();
+                        if(hash.length() == ObjectID.HEX_LENGTH && hash.chars().allMatch(c -> Character.digit(c, 16) >= 0)) {
+                            result.add(new ObjectID(hash));
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Packs the loose objects into a new pack and deletes them, like git gc does with git repack -d and git
+     * prune-packed. Returns the pack written, or null if there were no loose objects.
+     */
+    public Path packLooseObjects() throws IOException {
+        return packLooseObjects(ForkJoinPool.commonPool());
+    }
+
+    public Path packLooseObjects(ForkJoinPool pool) throws IOException {
+        List<ObjectID> loose = getLooseObjects();
+        // the writer syncs the pack, its index and the pack directory, so the loose objects can go
+        Path pack = new PackWriter(this, pool).write(loose);
+        if(pack == null) {
+            return null;
+        }
+
+        // the pack directory may have been written in the same tick as it was last scanned
+        synchronized(this) {
+            packDirModified = null;
+        }
+        List<PackFile> current = rescanPacks();
+        for(ObjectID id: loose) {
+            for(PackFile packFile: current) {
+                if(packFile.contains(id)) {
+                    Files.deleteIfExists(getObjectPath(id));
+                    break;
+                }
+            }
+        }
+        try(DirectoryStream<Path> dirs = Files.newDirectoryStream(objectsDir, "[0-9a-f][0-9a-f]")) {
+            for(Path dir: dirs) {
+                try {
+                    Files.delete(dir);
+                } catch(DirectoryNotEmptyException ex) {
+                    // an object that was not packed, or one written since
+                }
+            }
+        }
+        return pack;
+    }
+
+    /**
+     * The delta the object is stored as in a pack, or null if it is loose or not a delta.
+     */
+    PackFile.StoredDelta findStoredDelta(ObjectID key) throws IOException {
+        for(PackFile pack: getPacks()) {
+            if(pack.contains(key)) {
+                return pack.getStoredDelta(key);
+            }
+        }
+        return null;
     }
 
     public Blob getBlob(ObjectID key) throws IOException {
         return get(key, "blob", Blob::new);
     }
 
-    public String putTree(Tree tree) {
-        throw new UnsupportedOperationException("Not yet implemented");
+    /**
+     * Writes the tree as a loose object, unless it exists, and returns its ID.
+     */
+    public String putTree(Tree tree) throws IOException {
+        byte[] content = tree.getContent();
+        byte[] header = ("tree " + content.length + "\0").getBytes(StandardCharsets.UTF_8);
+        MessageDigest md = newSha1();
+        md.update(header);
+        ObjectID id = new ObjectID(md.digest(content));
+        if(!hasObject(id)) {
+            writeLooseObject(id, header, content);
+        }
+        return id.getHashString();
     }
 
     public Tree getTree(ObjectID key) throws IOException {
-        return get(key, "tree", Tree::new);
+        ObjectCache cache = objectCache;
+        if(cache == null) {
+            return get(key, "tree", Tree::new);
+        }
+
+        Tree tree = cache.get(key, Tree.class);
+        if(tree == null) {
+            tree = get(key, "tree", Tree::new);
+            cache.put(key, tree, tree.getWeight());
+        }
+        return tree;
+    }
+
+    /**
+     * Looks up a slash separated path like "a/b/c/d.txt" starting at the given tree, or returns null if it
+     * does not exist. Every level is a binary search in one tree, no sibling entries are decoded.
+     */
+    public Tree.TreeEntry findEntry(ObjectID treeId, String path) throws IOException {
+        Tree tree = getTree(treeId);
+        int start = 0;
+        while(true) {
+            int end = path.indexOf('/', start);
+            String name = end < 0 ? path.substring(start) : path.substring(start, end);
+            int i = tree.find(name);
+            if(i < 0) {
+                return null;
+            }
+            if(end < 0) {
+                return tree.get(i);
+            }
+            if(tree.type(i) != TreeFileType.DIRECTORY) {
+                return null;
+            }
+            tree = getTree(tree.id(i));
+            start = end + 1;
+        }
     }
 
     public Commit getCommit(ObjectID key) throws IOException {
-        throw new UnsupportedOperationException("Not yet implemented");
+        ObjectCache cache = objectCache;
+        if(cache == null) {
+            return get(key, "commit", Commit::new);
+        }
+
+        Commit commit = cache.get(key, Commit.class);
+        if(commit == null) {
+            commit = get(key, "commit", Commit::new);
+            cache.put(key, commit, commit.getWeight());
+        }
+        return commit;
+    }
+
+    /**
+     * Returns the commit-graph of the repository, or null if it has none. The graph is opened again if it has
+     * been rewritten since it was last opened.
+     */
+    public CommitGraph getCommitGraph() throws IOException {
+        List<FileTime> modified = CommitGraph.getModificationTimes(objectsDir);
+        synchronized(this) {
+            if(commitGraph == null || !modified.equals(commitGraphModified)) {
+                commitGraph = Optional.ofNullable(CommitGraph.open(objectsDir));
+                commitGraphModified = modified;
+            }
+            return commitGraph.orElse(null);
+        }
     }
 
     private void put(Entry entry) {
@@ -75,30 +425,66 @@ public class DataStore {
     }
 
     private <T> T get(ObjectID key, String expectedType, Function<byte[], T> ctor) throws IOException {
-        Path objectFile = requireRegularFile(getObjectPath(key));
-        byte[] uncompressed = inflate(objectFile);
-        int idx = indexOf(uncompressed, 0);
-        String header = new String(uncompressed, 0, idx, StandardCharsets.UTF_8);
-        // Header: tree 612
-        // Header: commit 231
+        PackFile pack = findPack(key);
+        if(pack != null) {
+            PackFile.PackedObject packed = pack.load(key);
+            if(!packed.type.typeName().equals(expectedType)) {
+                throw new RuntimeException("Failed to load object, expected '" + expectedType + "' got '" + packed.type.typeName() + "'");
+            }
+            return ctor.apply(packed.content);
+        }
 
-        String[] headerColumns = header.split(" ");
-        String type = headerColumns[0];
-        long length = Long.parseLong(headerColumns[1]);
+        try(ObjectStream input = openLooseObject(key)) {
+            String type = input.getType().typeName();
+            if(!type.equals(expectedType)) {
+                throw new RuntimeException("Failed to load object, expected '" + expectedType + "' got '" + type + "'");
+            }
+            if(input.getSize() > Integer.MAX_VALUE - 8) {
+                throw new IOException("Object too large to load into memory (" + input.getSize() + " bytes): " + key.getHashString());
+            }
+
+            // TODO: validate hash
 
-        if(!type.equals(expectedType)) {
-            throw new RuntimeException("Failed to load object, expected '" + expectedType + "' got '" + type + "'");
+            // the size is known from the header, so the content is read into an array of the right size
+            return ctor.apply(input.readNBytes((int)input.getSize()));
         }
+    }
 
-        // TODO: validate hash
+    private ObjectStream openLooseObject(ObjectID key) throws IOException {
+        Path objectFile = requireRegularFile(findLooseObject(key));
+        InputStream input = new InflaterInputStream(Files.newInputStream(objectFile), new Inflater(), STREAM_BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                inf.end();
+            }
+        };
 
-        return ctor.apply(Arrays.copyOfRange(uncompressed, idx + 1, uncompressed.length));
-    }
+        try {
+            // Header: tree 612
+            // Header: commit 231
+            StringBuilder type = new StringBuilder();
+            int ch;
+            while((ch = input.read()) != ' ') {
+                if(ch < 0 || type.length() > 6) {
+                    throw new IOException("Invalid object header: " + objectFile);
+                }
+                type.append((char)ch);
+            }
+
+            long size = 0;
+            while((ch = input.read()) != 0) {
+                if(ch < '0' || ch > '9') {
+                    throw new IOException("Invalid object header: " + objectFile);
+                }
+                size = size * 10 + (ch - '0');
+            }
 
-    private String put(byte[] content) throws IOException {
-        String hash = hash(content);
-        deflate(content, createObjectPath(hash));
-        return hash;
+            return new ObjectStream(ObjectType.fromTypeName(type.toString()), size, input);
+        } catch(IOException | RuntimeException ex) {
+            input.close();
+            throw ex;
+        }
     }
 
 //    private byte[] get(String key) throws IOException {
@@ -118,28 +504,18 @@ public class DataStore {
 //        return Arrays.copyOfRange(uncompressed, idx + 1, uncompressed.length);
 //    }
 
-    private static String hash(byte[] content) {
-        byte[] hash;
+    static MessageDigest newSha1() {
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            hash = md.digest(content);
+            return MessageDigest.getInstance("SHA-1");
         } catch (NoSuchAlgorithmException ex) {
             throw new RuntimeException(ex);
         }
-        char[] hexChars = new char[hash.length * 2];
-        for (int j = 0; j < hash.length; j++) {
-            int v = hash[j] & 0xFF;
-            hexChars[j * 2] = HEX_ARRAY[v >>> 4];
-            hexChars[j * 2 + 1] = HEX_ARRAY[v & 0x0F];
-        }
-        return new String(hexChars);
     }
 
-    private Path createObjectPath(String hash) throws IOException {
+    Path createObjectPath(String hash) throws IOException {
         Path parent = objectsDir.resolve(hash.substring(0, 2));
-        if(!Files.exists(parent)) {
-            Files.createDirectory(parent);
-        }
+        // unlike createDirectory this does not fail when another thread created it first
+        Files.createDirectories(parent);
         return parent.resolve(hash.substring(2));
     }
 
@@ -149,31 +525,241 @@ public class DataStore {
      */
     private static final int GIT_DEFAULT_COMPRESSION = 1;
 
-    private static void deflate(byte[] content, Path file) throws IOException {
-        Deflater deflate = new Deflater(GIT_DEFAULT_COMPRESSION);
-        try(DeflaterOutputStream out = new DeflaterOutputStream(Files.newOutputStream(file), deflate)) {
-            out.write(content);
+    /**
+     * Deflates the parts, the header and the content, of an object whose ID is known to a temporary file,
+     * which then goes into place, or into the open transaction.
+     *
+     * Nothing is deflated for an object that exists. When another thread is writing the same object, this
+     * one waits for it instead, and only writes the object itself if that thread failed.
+     */
+    private void writeLooseObject(ObjectID id, byte[]... parts) throws IOException {
+        while(!Files.exists(findLooseObject(id))) {
+            CompletableFuture<Void> write = new CompletableFuture<>();
+            CompletableFuture<Void> running = writing.putIfAbsent(id, write);
+            if(running == null) {
+                try {
+                    // it may have been finished between the check and claiming it
+                    if(!Files.exists(findLooseObject(id))) {
+                        deflateLooseObject(id, parts);
+                    }
+                    write.complete(null);
+                } catch(IOException | RuntimeException ex) {
+                    write.completeExceptionally(ex);
+                    throw ex;
+                } finally {
+                    writing.remove(id, write);
+                }
+                return;
+            }
+
+            try {
+                running.get();
+                return;
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + id.getHashString() + " to be written");
+            } catch(ExecutionException ex) {
+                // the other writer failed, try again
+            }
         }
     }
 
-    private Path getObjectPath(ObjectID key) {
-        String hash = key.getHashString();
-        return objectsDir.resolve(hash.substring(0, 2)).resolve(hash.substring(2));
+    private void deflateLooseObject(ObjectID id, byte[]... parts) throws IOException {
+        Path tmp = createTempObjectFile();
+        try {
+            Deflater deflater = new Deflater(GIT_DEFAULT_COMPRESSION);
+            try(DeflaterOutputStream out = new DeflaterOutputStream(Files.newOutputStream(tmp), deflater, STREAM_BUFFER_SIZE)) {
+                for(byte[] part: parts) {
+                    out.write(part);
+                }
+            } finally {
+                deflater.end();
+            }
+            finishObject(id, tmp);
+        } catch(IOException | RuntimeException ex) {
+            Files.deleteIfExists(tmp);
+            throw ex;
+        }
+    }
+
+    private Path createTempObjectFile() throws IOException {
+        ObjectTransaction tx = transaction;
+        return tx != null ? tx.createTempFile() : Files.createTempFile(objectsDir, "tmp_obj_", "");
+    }
+
+    /**
+     * Renames a written temporary object file into place, or drops it if the object exists. In a
+     * transaction the file is only handed over to it. Another thread may put the same object in place at
+     * the same time, which is fine, the content is the same.
+     */
+    private void finishObject(ObjectID id, Path tmp) throws IOException {
+        ObjectTransaction tx = transaction;
+        if(tx != null) {
+            tx.add(id, tmp);
+            return;
+        }
+        Path target = createObjectPath(id.getHashString());
+        if(Files.exists(target)) {
+            Files.delete(tmp);
+            return;
+        }
+        try {
+            moveIntoPlace(tmp, target, false);
+        } catch(FileAlreadyExistsException ex) {
+            Files.delete(tmp);
+        }
+    }
+
+    /**
+     * Syncs the content of a written file to disk.
+     */
+    static void sync(Path file) throws IOException {
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Syncs a directory, which makes the files renamed into it durable.
+     */
+    static void syncDirectory(Path directory) {
+        try(FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch(IOException ex) {
+            // not every platform can open a directory, the renames are then as durable as it makes them
+        }
+    }
+
+    /**
+     * Renames a finished temporary file to its name, atomically where the file system can. Without
+     * {@code replaceExisting} an existing target is an error, though some platforms replace it anyway.
+     */
+    static void moveIntoPlace(Path source, Path target, boolean replaceExisting) throws IOException {
+        CopyOption[] options = replaceExisting
+                ? new CopyOption[] { StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING }
+                : new CopyOption[] { StandardCopyOption.ATOMIC_MOVE };
+        try {
+            Files.move(source, target, options);
+        } catch(AtomicMoveNotSupportedException ex) {
+            if(replaceExisting) {
+                Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.move(source, target);
+            }
+        }
+    }
+
+    /**
+     * Returns the pack holding the object, or null if it is not packed. Packs are checked before loose
+     * objects since that is where almost all objects of a gc'd repository live. If the object is neither
+     * packed nor loose the pack directory is scanned again, someone may have repacked since we looked.
+     */
+    private PackFile findPack(ObjectID key) throws IOException {
+        PackFile pack = findPack(key, getPacks());
+        if(pack == null && !Files.exists(findLooseObject(key))) {
+            pack = findPack(key, rescanPacks());
+        }
+        return pack;
+    }
+
+    private static PackFile findPack(ObjectID key, List<PackFile> packs) throws IOException {
+        for(PackFile pack: packs) {
+            if(pack.contains(key)) {
+                return pack;
+            }
+        }
+        return null;
+    }
+
+    private List<PackFile> getPacks() throws IOException {
+        List<PackFile> result = packs;
+        return result != null ? result : rescanPacks();
     }
 
-    private static byte[] inflate(Path file) throws IOException {
-        try(var input = new InflaterInputStream(Files.newInputStream(file))) {
-            return input.readAllBytes();
+    /**
+     * The packs, scanned again if the pack directory changed. Looking is done without the lock, since a miss
+     * in {@link #hasObject} ends here and is the normal case when objects are written from many threads.
+     */
+    private List<PackFile> rescanPacks() throws IOException {
+        FileTime modified;
+        try {
+            modified = Files.getLastModifiedTime(packDir);
+        } catch(NoSuchFileException ex) {
+            modified = null;
+        }
+        FileTime scanned = packDirModified;
+        List<PackFile> current = packs;
+        if(current != null && modified != null && modified.equals(scanned)) {
+            return current;
         }
+        return scanPacks(modified);
     }
 
-    private static int indexOf(byte[] arr, int searchElement) {
-        for(int i = 0; i < arr.length; i++) {
-            if(arr[i] == searchElement) {
-                return i;
+    private synchronized List<PackFile> scanPacks(FileTime modified) throws IOException {
+        if(modified == null) {
+            packs = List.of();
+            return packs;
+        }
+        if(packs != null && modified.equals(packDirModified)) {
+            return packs;
+        }
+
+        Map<Path, PackFile> open = new HashMap<>();
+        if(packs != null) {
+            for(PackFile pack: packs) {
+                open.put(pack.getIndexPath(), pack);
             }
         }
-        return -1;
+
+        List<PackFile> result = new ArrayList<>();
+        Map<PackFile, FileTime> packModified = new HashMap<>();
+        try(var stream = Files.newDirectoryStream(packDir, "*.idx")) {
+            for(Path idxFile: stream) {
+                PackFile pack = open.get(idxFile);
+                if(pack == null) {
+                    String name = idxFile.getFileName().toString();
+                    Path packFile = idxFile.resolveSibling(name.substring(0, name.length() - ".idx".length()) + ".pack");
+                    if(!Files.exists(packFile)) {
+                        // the .idx is written after the .pack, but be defensive about half deleted packs
+                        continue;
+                    }
+                    pack = new PackFile(idxFile, deltaBaseCache);
+                }
+                open.remove(idxFile);
+                result.add(pack);
+                packModified.put(pack, Files.getLastModifiedTime(pack.getPackPath()));
+            }
+        }
+        result.sort(Comparator.comparing(packModified::get, Comparator.reverseOrder()));
+
+        // whatever is left was removed from disk, e.g. by a repack
+        for(PackFile removed: open.values()) {
+            deltaBaseCache.remove(removed);
+        }
+
+        packs = List.copyOf(result);
+        packDirModified = modified;
+        return packs;
+    }
+
+    private Path getObjectPath(ObjectID key) {
+        String hash = key.getHashString();
+        return objectsDir.resolve(hash.substring(0, 2)).resolve(hash.substring(2));
+    }
+
+    /**
+     * The file of a loose object: in place, or written in the open transaction.
+     */
+    private Path findLooseObject(ObjectID key) {
+        Path path = getObjectPath(key);
+        ObjectTransaction tx = transaction;
+        if(tx != null && !Files.exists(path)) {
+            Path pending = tx.getPendingFile(key);
+            if(pending != null) {
+                return pending;
+            }
+        }
+        return path;
     }
 
     private static Path requireRegularFile(Path path) throws IOException {
@@ -0,0 +1,106 @@
+package com.github.loefberg.nitwit.ds;
+
+import java.io.IOException;
+
+/**
+ * Applies git's binary deltas as found in OFS_DELTA and REF_DELTA pack entries.
+ *
+ * <pre>
+ * - varint base size
+ * - varint result size
+ * - instructions:
+ *   1xxxxxxx  copy from base, the low 4 bits say which offset bytes follow, the next 3 bits which
+ *             size bytes follow. A size of 0 means 0x10000.
+ *   0xxxxxxx  insert the next xxxxxxx (1-127) bytes from the delta itself. 0 is reserved.
+ * </pre>
+ */
+class Delta {
+    private Delta() {
+    }
+
+    static long getResultSize(byte[] delta) throws IOException {
+        long[] base = readVarint(delta, 0, delta.length);
+        return readVarint(delta, (int)base[1], delta.length)[0];
+    }
+
+    /**
+     * Applies the first {@code deltaLength} bytes of {@code delta} to the first {@code baseLength} bytes of
+     * {@code base}. The delta buffer can be a reused scratch buffer that is larger than the delta. Every
+     * read is checked against {@code deltaLength}, so a truncated delta is reported as corrupt.
+     */
+    static byte[] apply(byte[] base, int baseLength, byte[] delta, int deltaLength) throws IOException {
+        long[] varint = readVarint(delta, 0, deltaLength);
+        if(varint[0] != baseLength) {
+            throw new IOException("Delta base size mismatch, expected=" + varint[0] + ", was=" + baseLength);
+        }
+
+        varint = readVarint(delta, (int)varint[1], deltaLength);
+        long resultSize = varint[0];
+        if(resultSize > Integer.MAX_VALUE - 8) {
+            throw new IOException("Delta result too large to load into memory: " + resultSize);
+        }
+
+        byte[] result = new byte[(int)resultSize];
+        int out = 0;
+        int pos = (int)varint[1];
+        while(pos < deltaLength) {
+            int cmd = delta[pos++] & 0xff;
+            if((cmd & 0x80) != 0) {
+                if(pos + Integer.bitCount(cmd & 0x7f) > deltaLength) {
+                    throw new IOException("Corrupt delta, copy operands past the end of the delta");
+                }
+                long copyOffset = 0;
+                if((cmd & 0x01) != 0) copyOffset = delta[pos++] & 0xff;
+                if((cmd & 0x02) != 0) copyOffset |= (delta[pos++] & 0xff) << 8;
+                if((cmd & 0x04) != 0) copyOffset |= (delta[pos++] & 0xff) << 16;
+                if((cmd & 0x08) != 0) copyOffset |= (long)(delta[pos++] & 0xff) << 24;
+
+                int copySize = 0;
+                if((cmd & 0x10) != 0) copySize = delta[pos++] & 0xff;
+                if((cmd & 0x20) != 0) copySize |= (delta[pos++] & 0xff) << 8;
+                if((cmd & 0x40) != 0) copySize |= (delta[pos++] & 0xff) << 16;
+                if(copySize == 0) {
+                    copySize = 0x10000;
+                }
+
+                if(copyOffset + copySize > baseLength || out + copySize > result.length) {
+                    throw new IOException("Corrupt delta, copy outside of base or result");
+                }
+                System.arraycopy(base, (int)copyOffset, result, out, copySize);
+                out += copySize;
+            } else if(cmd != 0) {
+                if(pos + cmd > deltaLength || out + cmd > result.length) {
+                    throw new IOException("Corrupt delta, insert outside of delta or result");
+                }
+                System.arraycopy(delta, pos, result, out, cmd);
+                pos += cmd;
+                out += cmd;
+            } else {
+                throw new IOException("Corrupt delta, unexpected delta opcode 0");
+            }
+        }
+
+        if(out != result.length) {
+            throw new IOException("Corrupt delta, result size mismatch, expected=" + result.length + ", was=" + out);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the value and the position after it, which must not go past {@code length}.
+     */
+    private static long[] readVarint(byte[] buf, int pos, int length) throws IOException {
+        long value = 0;
+        int shift = 0;
+        int c;
+        do {
+            if(pos >= length || shift > 63) {
+                throw new IOException("Corrupt delta, size header past the end of the delta");
+            }
+            c = buf[pos++] & 0xff;
+            value |= (long)(c & 0x7f) << shift;
+            shift += 7;
+        } while((c & 0x80) != 0);
+        return new long[] { value, pos };
+    }
+}
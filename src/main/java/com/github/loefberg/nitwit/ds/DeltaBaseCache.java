@@ -0,0 +1,106 @@
+package com.github.loefberg.nitwit.ds;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * An LRU cache of inflated delta bases, keyed by pack and offset and bounded by the total number of
+ * bytes held. This is git's core.deltaBaseCacheLimit: without it every object at the end of a long
+ * delta chain re-inflates and re-applies the whole chain.
+ */
+class DeltaBaseCache {
+    /** Same as git's default core.deltaBaseCacheLimit. */
+    static final long DEFAULT_LIMIT = 96L * 1024 * 1024;
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long limit;
+    private long size;
+
+    DeltaBaseCache(long limit) {
+        this.limit = limit;
+    }
+
+    synchronized void setLimit(long limit) {
+        this.limit = limit;
+        evict();
+    }
+
+    synchronized Entry get(PackFile pack, long offset) {
+        return entries.get(new Key(pack, offset));
+    }
+
+    synchronized void put(PackFile pack, long offset, ObjectType type, byte[] content) {
+        if(content.length > limit) {
+            return;
+        }
+
+        Entry previous = entries.put(new Key(pack, offset), new Entry(type, content));
+        if(previous != null) {
+            size -= previous.content.length;
+        }
+        size += content.length;
+        evict();
+    }
+
+    /**
+     * Drops every entry of a pack, used when a pack is closed or replaced.
+     */
+    synchronized void remove(PackFile pack) {
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<Key, Entry> e = it.next();
+            if(e.getKey().pack == pack) {
+                size -= e.getValue().content.length;
+                it.remove();
+            }
+        }
+    }
+
+    synchronized long size() {
+        return size;
+    }
+
+    private void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        while(size > limit && it.hasNext()) {
+            size -= it.next().content.length;
+            it.remove();
+        }
+    }
+
+    static class Entry {
+        final ObjectType type;
+        final byte[] content;
+
+        Entry(ObjectType type, byte[] content) {
+            this.type = type;
+            this.content = content;
+        }
+    }
+
+    private static class Key {
+        private final PackFile pack;
+        private final long offset;
+
+        Key(PackFile pack, long offset) {
+            this.pack = pack;
+            this.offset = offset;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)o;
+            return pack == other.pack && offset == other.offset;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(pack), offset);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.github.loefberg.nitwit.ds;
+
+import java.util.Arrays;
+
+/**
+ * An index of a delta base, to create deltas of other objects against it in the format {@link Delta} applies.
+ *
+ * Like git's diff-delta the base is cut into blocks of 16 bytes, each found by a hash of its content. The
+ * target is scanned with a rolling hash of the same width, and where it hits a block of the base the match
+ * is extended in both directions and encoded as a copy. Whatever matches nothing is inserted. A bucket keeps
+ * at most 64 blocks, so content that repeats itself cannot make the scan quadratic.
+ */
+class DeltaIndex {
+    private static final int BLOCK_SIZE = 16;
+    private static final int MAX_BUCKET_SIZE = 64;
+    private static final int HASH_MULTIPLIER = 0x01000193;
+    /** HASH_MULTIPLIER to the power of BLOCK_SIZE - 1, the weight of the byte that leaves the window. */
+    private static final int OUTGOING_WEIGHT;
+    static {
+        int weight = 1;
+        for(int i = 1; i < BLOCK_SIZE; i++) {
+            weight *= HASH_MULTIPLIER;
+        }
+        OUTGOING_WEIGHT = weight;
+    }
+
+    /** The largest copy git writes, larger ones are split. */
+    private static final int MAX_COPY_SIZE = 0x10000;
+    private static final int MAX_INSERT_SIZE = 127;
+
+    private final byte[] base;
+    private final int mask;
+    private final int[] heads;
+    private final int[] next;
+    private final int[] hashes;
+
+    DeltaIndex(byte[] base) {
+        this.base = base;
+        int blocks = base.length / BLOCK_SIZE;
+        int tableSize = Integer.highestOneBit(Math.max(blocks, 1)) << 1;
+        this.mask = tableSize - 1;
+        this.heads = new int[tableSize];
+        this.next = new int[blocks];
+        this.hashes = new int[blocks];
+        Arrays.fill(heads, -1);
+
+        int[] bucketSizes = new int[tableSize];
+        for(int block = 0; block < blocks; block++) {
+            int hash = hash(base, block * BLOCK_SIZE);
+            int bucket = hash & mask;
+            if(bucketSizes[bucket] == MAX_BUCKET_SIZE) {
+                continue;
+            }
+            bucketSizes[bucket]++;
+            hashes[block] = hash;
+            next[block] = heads[bucket];
+            heads[bucket] = block;
+        }
+    }
+
+    /**
+     * Creates a delta that turns the base into {@code target}, or returns null if it would be larger than
+     * {@code maxSize} bytes.
+     */
+    byte[] createDelta(byte[] target, int maxSize) {
+        Output out = new Output(Math.min(maxSize, target.length / 2 + 64) + 1, maxSize);
+        out.writeVarint(base.length);
+        out.writeVarint(target.length);
+
+        int position = 0;
+        int insertStart = 0;
+        int hash = target.length >= BLOCK_SIZE ? hash(target, 0) : 0;
+        while(position + BLOCK_SIZE <= target.length) {
+            int matchOffset = 0;
+            int matchLength = 0;
+            for(int block = heads[hash & mask]; block >= 0; block = next[block]) {
+                if(hashes[block] != hash) {
+                    continue;
+                }
+                int length = matchLength(block * BLOCK_SIZE, target, position);
+                if(length > matchLength) {
+                    matchOffset = block * BLOCK_SIZE;
+                    matchLength = length;
+                }
+            }
+
+            if(matchLength < BLOCK_SIZE) {
+                if(position + BLOCK_SIZE < target.length) {
+                    hash = (hash - target[position] * OUTGOING_WEIGHT) * HASH_MULTIPLIER + target[position + BLOCK_SIZE];
+                }
+                position++;
+                continue;
+            }
+
+            // the bytes before the match that were about to be inserted may match the base as well
+            while(position > insertStart && matchOffset > 0 && base[matchOffset - 1] == target[position - 1]) {
+                matchOffset--;
+                matchLength++;
+                position--;
+            }
+            if(!out.insert(target, insertStart, position) || !out.copy(matchOffset, matchLength)) {
+                return null;
+            }
+            position += matchLength;
+            insertStart = position;
+            if(position + BLOCK_SIZE <= target.length) {
+                hash = hash(target, position);
+            }
+        }
+        if(!out.insert(target, insertStart, target.length)) {
+            return null;
+        }
+        return out.toByteArray();
+    }
+
+    private int matchLength(int baseOffset, byte[] target, int position) {
+        int limit = Math.min(base.length - baseOffset, target.length - position);
+        int length = 0;
+        while(length < limit && base[baseOffset + length] == target[position + length]) {
+            length++;
+        }
+        return length;
+    }
+
+    private static int hash(byte[] buf, int offset) {
+        int hash = 0;
+        for(int i = 0; i < BLOCK_SIZE; i++) {
+            hash = hash * HASH_MULTIPLIER + buf[offset + i];
+        }
+        return hash;
+    }
+
+    /**
+     * The delta being written, which gives up as soon as it grows beyond its limit.
+     */
+    private static final class Output {
+        private final int limit;
+        private byte[] buf;
+        private int size;
+
+        Output(int capacity, int limit) {
+            this.buf = new byte[Math.max(capacity, 16)];
+            this.limit = limit;
+        }
+
+        void writeVarint(long value) {
+            ensure(10);
+            while(value >= 0x80) {
+                buf[size++] = (byte)(value | 0x80);
+                value >>>= 7;
+            }
+            buf[size++] = (byte)value;
+        }
+
+        boolean insert(byte[] data, int from, int to) {
+            while(from < to) {
+                int length = Math.min(MAX_INSERT_SIZE, to - from);
+                if(size + 1 + length > limit) {
+                    return false;
+                }
+                ensure(1 + length);
+                buf[size++] = (byte)length;
+                System.arraycopy(data, from, buf, size, length);
+                size += length;
+                from += length;
+            }
+            return true;
+        }
+
+        boolean copy(int offset, int length) {
+            while(length > 0) {
+                int chunk = Math.min(MAX_COPY_SIZE, length);
+                if(size + 8 > limit && size + copySize(offset, chunk) > limit) {
+                    return false;
+                }
+                ensure(8);
+                int command = size++;
+                int bits = 0x80;
+                for(int i = 0; i < 4; i++) {
+                    int b = (offset >>> (8 * i)) & 0xff;
+                    if(b != 0) {
+                        bits |= 1 << i;
+                        buf[size++] = (byte)b;
+                    }
+                }
+                // a size of 0x10000 is written as no size bytes at all
+                for(int i = 0; i < 3 && chunk != MAX_COPY_SIZE; i++) {
+                    int b = (chunk >>> (8 * i)) & 0xff;
+                    if(b != 0) {
+                        bits |= 0x10 << i;
+                        buf[size++] = (byte)b;
+                    }
+                }
+                buf[command] = (byte)bits;
+                offset += chunk;
+                length -= chunk;
+            }
+            return true;
+        }
+
+        private static int copySize(int offset, int length) {
+            int size = 1;
+            for(int i = 0; i < 4; i++) {
+                size += ((offset >>> (8 * i)) & 0xff) != 0 ? 1 : 0;
+            }
+            for(int i = 0; i < 3 && length != MAX_COPY_SIZE; i++) {
+                size += ((length >>> (8 * i)) & 0xff) != 0 ? 1 : 0;
+            }
+            return size;
+        }
+
+        private void ensure(int extra) {
+            if(size + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + extra));
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, size);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.github.loefberg.nitwit.ds;
+
+import com.github.loefberg.nitwit.ObjectID;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A cache of parsed objects keyed by their ID and bounded by an estimate of the bytes they hold.
+ *
+ * Objects are immutable and content addressed, so a cached object never goes stale and needs no
+ * invalidation, only eviction. The cache is split into segments, each one an LRU list behind its own lock,
+ * so concurrent readers of different objects rarely contend. Every segment gets an equal share of the
+ * byte budget.
+ */
+public class ObjectCache {
+    private static final int SEGMENT_COUNT = 16;
+
+    private final Segment[] segments = new Segment[SEGMENT_COUNT];
+    private final long maxBytes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ObjectCache(long maxBytes) {
+        if(maxBytes < 0) {
+            throw new IllegalArgumentException("Cache size must not be negative: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        for(int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(maxBytes / SEGMENT_COUNT);
+        }
+    }
+
+    /**
+     * Returns the cached object if there is one and it is of the given type, otherwise null.
+     */
+    <T> T get(ObjectID id, Class<T> type) {
+        Object value = segmentFor(id).get(id);
+        if(type.isInstance(value)) {
+            hits.increment();
+            return type.cast(value);
+        }
+        misses.increment();
+        return null;
+    }
+
+    void put(ObjectID id, Object value, long weight) {
+        segmentFor(id).put(id, value, weight);
+    }
+
+    public void clear() {
+        for(Segment segment: segments) {
+            segment.clear();
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * The estimated number of bytes held by the cached objects.
+     */
+    public long getBytes() {
+        long bytes = 0;
+        for(Segment segment: segments) {
+            bytes += segment.bytes();
+        }
+        return bytes;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    private Segment segmentFor(ObjectID id) {
+        // the low bits of the hash code are as random as the high ones
+        return segments[id.hashCode() & (SEGMENT_COUNT - 1)];
+    }
+
+    private class Segment {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final LinkedHashMap<ObjectID, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+        private final long maxBytes;
+        private long bytes;
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        Object get(ObjectID id) {
+            lock.lock();
+            try {
+                Entry entry = entries.get(id);
+                return entry != null ? entry.value : null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void put(ObjectID id, Object value, long weight) {
+            if(weight > maxBytes) {
+                return;
+            }
+
+            lock.lock();
+            try {
+                Entry previous = entries.put(id, new Entry(value, weight));
+                if(previous != null) {
+                    bytes -= previous.weight;
+                }
+                bytes += weight;
+
+                Iterator<Entry> it = entries.values().iterator();
+                while(bytes > maxBytes && it.hasNext()) {
+                    bytes -= it.next().weight;
+                    it.remove();
+                    evictions.increment();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void clear() {
+            lock.lock();
+            try {
+                entries.clear();
+                bytes = 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long bytes() {
+            lock.lock();
+            try {
+                return bytes;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static class Entry {
+        final Object value;
+        final long weight;
+
+        Entry(Object value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.github.loefberg.nitwit.ds;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The content of an object as a stream, positioned after the header. The type and size come from the
+ * header, the content is inflated lazily as it is read, so large blobs never have to fit in memory.
+ */
+public class ObjectStream extends InputStream {
+    private final ObjectType type;
+    private final long size;
+    private final InputStream input;
+    private long remaining;
+
+    ObjectStream(ObjectType type, long size, InputStream input) {
+        this.type = type;
+        this.size = size;
+        this.input = input;
+        this.remaining = size;
+    }
+
+    public ObjectType getType() {
+        return type;
+    }
+
+    /**
+     * The size of the content, not counting the header.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if(remaining <= 0) {
+            return -1;
+        }
+        int b = input.read();
+        if(b < 0) {
+            throw new IOException("Object content ended " + remaining + " bytes early");
+        }
+        remaining--;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0) {
+            return 0;
+        }
+        if(remaining <= 0) {
+            return -1;
+        }
+        int read = input.read(b, off, (int)Math.min(len, remaining));
+        if(read < 0) {
+            throw new IOException("Object content ended " + remaining + " bytes early");
+        }
+        remaining -= read;
+        return read;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int)Math.min(remaining, input.available());
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+}
@@ -0,0 +1,116 @@
+package com.github.loefberg.nitwit.ds;
+
+import com.github.loefberg.nitwit.ObjectID;
+import com.github.loefberg.nitwit.util.Parallel;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A batch of loose object writes that become durable together, like git's core.fsync=batch.
+ *
+ * Syncing every object as it is written makes each write wait for the disk. In a transaction the objects
+ * are instead written to temporary files in a directory of their own, and nothing is synced until the
+ * commit. The commit syncs all the files, on several threads so the file system can combine them, and
+ * only then renames them into place. A crash can therefore lose the objects of a transaction that has not
+ * been committed, but never leave a truncated object behind under its name. Finally the directories that
+ * got objects are synced, where the platform allows it, to make the renames durable as well.
+ *
+ * Closing a transaction that was not committed drops its objects.
+ */
+public class ObjectTransaction implements AutoCloseable {
+    private final DataStore ds;
+    private final Path dir;
+    private final ForkJoinPool pool;
+    private final Map<ObjectID, Path> pending = new ConcurrentHashMap<>();
+    private volatile boolean finished;
+
+    ObjectTransaction(DataStore ds, Path dir, ForkJoinPool pool) {
+        this.ds = ds;
+        this.dir = dir;
+        this.pool = pool;
+    }
+
+    Path createTempFile() throws IOException {
+        if(finished) {
+            throw new IllegalStateException("The transaction is finished");
+        }
+        return Files.createTempFile(dir, "obj_", "");
+    }
+
+    /**
+     * Takes over a written temporary file with the object, or deletes it if the object is already pending.
+     */
+    void add(ObjectID id, Path tmp) throws IOException {
+        if(pending.putIfAbsent(id, tmp) != null) {
+            Files.delete(tmp);
+        }
+    }
+
+    Path getPendingFile(ObjectID id) {
+        return pending.get(id);
+    }
+
+    /**
+     * The number of objects written in the transaction.
+     */
+    public int size() {
+        return pending.size();
+    }
+
+    /**
+     * Syncs the objects to disk and moves them into place.
+     */
+    public void commit() throws IOException {
+        if(finished) {
+            throw new IllegalStateException("The transaction is finished");
+        }
+        finished = true;
+        try {
+            List<Map.Entry<ObjectID, Path>> objects = new ArrayList<>(pending.entrySet());
+            Parallel.forEach(pool, objects.size(), i -> {
+                DataStore.sync(objects.get(i).getValue());
+            });
+
+            Set<Path> directories = new LinkedHashSet<>();
+            for(Map.Entry<ObjectID, Path> object: objects) {
+                Path target = ds.createObjectPath(object.getKey().getHashString());
+                if(!Files.exists(target)) {
+                    DataStore.moveIntoPlace(object.getValue(), target, false);
+                    directories.add(target.getParent());
+                }
+            }
+            for(Path directory: directories) {
+                DataStore.syncDirectory(directory);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Ends the transaction. Objects not committed are deleted.
+     */
+    @Override
+    public void close() throws IOException {
+        finished = true;
+        ds.endTransaction(this);
+        if(Files.exists(dir)) {
+            try(DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for(Path file: files) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(dir);
+        }
+    }
+}
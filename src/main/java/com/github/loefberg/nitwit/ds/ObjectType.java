@@ -0,0 +1,52 @@
+package com.github.loefberg.nitwit.ds;
+
+/**
+ * The four object types. The values are the type codes used in pack entry headers.
+ */
+public enum ObjectType {
+    COMMIT(1, "commit"),
+    TREE(2, "tree"),
+    BLOB(3, "blob"),
+    TAG(4, "tag");
+
+    private final int value;
+    private final String typeName;
+
+    private ObjectType(int value, String typeName) {
+        this.value = value;
+        this.typeName = typeName;
+    }
+
+    public int value() {
+        return value;
+    }
+
+    /**
+     * The name used in the header of loose objects, e.g. "blob" in "blob 14\0".
+     */
+    public String typeName() {
+        return typeName;
+    }
+
+    public static ObjectType fromValue(int value) {
+        switch(value) {
+            case 1: return COMMIT;
+            case 2: return TREE;
+            case 3: return BLOB;
+            case 4: return TAG;
+        }
+
+        throw new IllegalArgumentException("Unknown object type value: " + value);
+    }
+
+    public static ObjectType fromTypeName(String typeName) {
+        switch(typeName) {
+            case "commit": return COMMIT;
+            case "tree": return TREE;
+            case "blob": return BLOB;
+            case "tag": return TAG;
+        }
+
+        throw new IllegalArgumentException("Unknown object type: " + typeName);
+    }
+}
@@ -0,0 +1,451 @@
+package com.github.loefberg.nitwit.ds;
+
+import com.github.loefberg.nitwit.ObjectID;
+import com.github.loefberg.nitwit.util.MappedFile;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A memory-mapped pack file (.pack) together with its index (.idx).
+ *
+ * <pre>
+ * - A 4-byte signature { 'P', 'A', 'C', 'K' }
+ * - A 4-byte version number (2 or 3)
+ * - A 4-byte number of objects
+ * - The object entries, each one a variable length header followed by the zlib deflated data
+ * - A trailing SHA-1 of all of the above
+ * </pre>
+ */
+class PackFile {
+    private static final int MAGIC = ('P' << 24) | ('A' << 16) | ('C' << 8) | ('K' << 0);
+
+    static final int OBJ_OFS_DELTA = 6;
+    static final int OBJ_REF_DELTA = 7;
+
+    /** Guards against cycles of REF_DELTA entries in corrupt packs, git itself writes at most 4095. */
+    private static final int MAX_DELTA_CHAIN = 10_000;
+
+    private final Path packPath;
+    private final Path idxPath;
+    private final PackIndex index;
+    private final MappedFile pack;
+    private final DeltaBaseCache deltaBaseCache;
+
+    PackFile(Path idxFile, DeltaBaseCache deltaBaseCache) throws IOException {
+        this.deltaBaseCache = deltaBaseCache;
+        String idxName = idxFile.getFileName().toString();
+        this.idxPath = idxFile;
+        this.packPath = idxFile.resolveSibling(idxName.substring(0, idxName.length() - ".idx".length()) + ".pack");
+        this.index = new PackIndex(idxFile);
+        this.pack = MappedFile.open(packPath);
+
+        int signature = pack.getInt(0);
+        if(signature != MAGIC) {
+            throw new IOException("Invalid pack file format, magic signature wrong: " + packPath);
+        }
+
+        int version = pack.getInt(4);
+        if(version != 2 && version != 3) {
+            throw new IOException("Unsupported pack version=" + version + ": " + packPath);
+        }
+
+        long objectCount = pack.getUnsignedInt(8);
+        if(objectCount != index.getObjectCount()) {
+            throw new IOException("Pack file and index disagree on object count, pack=" + objectCount +
+                    ", index=" + index.getObjectCount() + ": " + packPath);
+        }
+    }
+
+    Path getPackPath() {
+        return packPath;
+    }
+
+    Path getIndexPath() {
+        return idxPath;
+    }
+
+    boolean contains(ObjectID id) {
+        return index.findOffset(id) >= 0;
+    }
+
+    /**
+     * Returns the type of the object, or null if it is not in this pack. For deltified objects the
+     * chain is followed to the base, only reading entry headers.
+     */
+    ObjectType getType(ObjectID id) throws IOException {
+        long offset = index.findOffset(id);
+        if(offset < 0) {
+            return null;
+        }
+
+        EntryHeader header = readHeader(offset);
+        for(int depth = 0; isDelta(header.type); depth++) {
+            if(depth > MAX_DELTA_CHAIN) {
+                throw new IOException("Delta chain too long at offset " + offset + " in " + packPath);
+            }
+            header = readHeader(getBaseOffset(header));
+        }
+        return ObjectType.fromValue(header.type);
+    }
+
+    /**
+     * Returns the inflated object, or null if it is not in this pack.
+     */
+    PackedObject load(ObjectID id) throws IOException {
+        long offset = index.findOffset(id);
+        if(offset < 0) {
+            return null;
+        }
+        return load(offset);
+    }
+
+    /**
+     * Loads the entry at {@code offset}, reconstructing it if it is deltified. The chain is followed down
+     * until an undeltified entry or a cached base is found, then the deltas are applied on the way back up.
+     * Every intermediate result is a base for the one above it, so those are put in the delta base cache.
+     */
+    PackedObject load(long offset) throws IOException {
+        Deque<EntryHeader> deltas = new ArrayDeque<>();
+        EntryHeader header = readHeader(offset);
+        ObjectType type;
+        byte[] content;
+        while(true) {
+            if(!isDelta(header.type)) {
+                type = ObjectType.fromValue(header.type);
+                content = inflate(header.dataOffset, header.size);
+                if(!deltas.isEmpty()) {
+                    deltaBaseCache.put(this, header.offset, type, content);
+                }
+                break;
+            }
+
+            deltas.push(header);
+            if(deltas.size() > MAX_DELTA_CHAIN) {
+                throw new IOException("Delta chain too long at offset " + offset + " in " + packPath);
+            }
+
+            long baseOffset = getBaseOffset(header);
+            DeltaBaseCache.Entry cached = deltaBaseCache.get(this, baseOffset);
+            if(cached != null) {
+                type = cached.type;
+                content = cached.content;
+                break;
+            }
+            header = readHeader(baseOffset);
+        }
+
+        // one scratch buffer for the inflated deltas, grown as needed
+        byte[] scratch = new byte[0];
+        while(!deltas.isEmpty()) {
+            EntryHeader delta = deltas.pop();
+            if(delta.size > Integer.MAX_VALUE - 8) {
+                throw new IOException("Delta too large to load into memory (" + delta.size + " bytes) in " + packPath);
+            }
+            if(scratch.length < delta.size) {
+                scratch = new byte[(int)Math.max(delta.size, scratch.length * 2L)];
+            }
+            inflate(delta.dataOffset, (int)delta.size, scratch);
+            content = Delta.apply(content, content.length, scratch, (int)delta.size);
+            if(!deltas.isEmpty()) {
+                deltaBaseCache.put(this, delta.offset, type, content);
+            }
+        }
+        return new PackedObject(type, content);
+    }
+
+    /**
+     * Opens the object as a stream, or returns null if it is not in this pack. Undeltified entries are
+     * inflated lazily from the mapped region as the stream is read. A deltified entry has to be
+     * reconstructed in memory before any of it can be read, so it is loaded whole.
+     */
+    ObjectStream openObject(ObjectID id) throws IOException {
+        long offset = index.findOffset(id);
+        if(offset < 0) {
+            return null;
+        }
+
+        EntryHeader header = readHeader(offset);
+        if(isDelta(header.type)) {
+            PackedObject packed = load(offset);
+            return new ObjectStream(packed.type, packed.content.length, new ByteArrayInputStream(packed.content));
+        }
+        return new ObjectStream(ObjectType.fromValue(header.type), header.size, new EntryInputStream(header.dataOffset));
+    }
+
+    /**
+     * Returns the object as it is stored if it is a delta, to be copied as is into another pack, or null if
+     * it is not a delta in this pack.
+     */
+    StoredDelta getStoredDelta(ObjectID id) throws IOException {
+        int position = index.findPosition(id);
+        if(position < 0) {
+            return null;
+        }
+        long offset = index.getOffset(position);
+        EntryHeader header = readHeader(offset);
+        if(!isDelta(header.type)) {
+            return null;
+        }
+
+        ObjectID base = header.baseId;
+        if(header.type == OBJ_OFS_DELTA) {
+            int basePosition = index.findPositionAt(header.baseOffset);
+            if(basePosition < 0) {
+                throw new IOException("No delta base at offset " + header.baseOffset + " in " + packPath);
+            }
+            base = index.getObjectID(basePosition);
+        }
+
+        return new StoredDelta(base, header.size, position, header);
+    }
+
+    static boolean isDelta(int type) {
+        return type == OBJ_OFS_DELTA || type == OBJ_REF_DELTA;
+    }
+
+    private long getBaseOffset(EntryHeader header) throws IOException {
+        if(header.type == OBJ_OFS_DELTA) {
+            return header.baseOffset;
+        }
+
+        long offset = index.findOffset(header.baseId);
+        if(offset < 0) {
+            throw new IOException("Delta base " + header.baseId.getHashString() + " not found in " + packPath);
+        }
+        return offset;
+    }
+
+    EntryHeader readHeader(long offset) throws IOException {
+        return readHeader(pack, offset);
+    }
+
+    static EntryHeader readHeader(MappedFile pack, long offset) throws IOException {
+        if(offset < 12 || offset >= pack.size() - 20) {
+            throw new IOException("Invalid pack offset " + offset + " in " + pack.getPath());
+        }
+
+        // 1-byte: bit 7 more bytes follow, bits 4-6 the type, bits 0-3 the lowest bits of the size.
+        // Following bytes: bit 7 more bytes follow, bits 0-6 the next bits of the size.
+        long position = offset;
+        int c = pack.getUnsignedByte(position++);
+        int type = (c >> 4) & 0x7;
+        long size = c & 0xf;
+        int shift = 4;
+        while((c & 0x80) != 0) {
+            c = pack.getUnsignedByte(position++);
+            size |= (long)(c & 0x7f) << shift;
+            shift += 7;
+        }
+
+        EntryHeader header = new EntryHeader(offset, type, size);
+        if(type == OBJ_OFS_DELTA) {
+            // The base is at a negative offset from this entry, encoded as a big endian number
+            // where every continuation adds 1 before shifting, so there are no redundant encodings.
+            c = pack.getUnsignedByte(position++);
+            long distance = c & 0x7f;
+            while((c & 0x80) != 0) {
+                c = pack.getUnsignedByte(position++);
+                distance = ((distance + 1) << 7) | (c & 0x7f);
+            }
+            header.baseOffset = offset - distance;
+        } else if(type == OBJ_REF_DELTA) {
+            byte[] baseId = new byte[20];
+            pack.get(position, baseId, 0, 20);
+            position += 20;
+            header.baseId = new ObjectID(baseId);
+        }
+        header.dataOffset = position;
+        return header;
+    }
+
+    /**
+     * Inflates the zlib stream at {@code dataOffset}, feeding the inflater straight from the mapped region.
+     */
+    byte[] inflate(long dataOffset, long size) throws IOException {
+        if(size > Integer.MAX_VALUE - 8) {
+            throw new IOException("Object too large to load into memory (" + size + " bytes) in " + packPath);
+        }
+        return inflate(dataOffset, (int)size, new byte[(int)size]);
+    }
+
+    /**
+     * Inflates exactly {@code size} bytes into the start of {@code out}, which may be a larger, reused buffer.
+     */
+    byte[] inflate(long dataOffset, int size, byte[] out) throws IOException {
+        return inflate(pack, dataOffset, size, out);
+    }
+
+    static byte[] inflate(MappedFile pack, long dataOffset, int size, byte[] out) throws IOException {
+        Path packPath = pack.getPath();
+        byte[] overflow = new byte[1];
+        Inflater inflater = new Inflater();
+        try {
+            long position = dataOffset;
+            int length = 0;
+            while(!inflater.finished()) {
+                if(inflater.needsInput()) {
+                    if(position >= pack.size()) {
+                        throw new EOFException("Unexpected end of pack file " + packPath);
+                    }
+                    var input = pack.slice(position, Integer.MAX_VALUE);
+                    position += input.remaining();
+                    inflater.setInput(input);
+                }
+
+                if(length < size) {
+                    length += inflater.inflate(out, length, size - length);
+                } else if(inflater.inflate(overflow) != 0) {
+                    throw new IOException("Pack entry at " + dataOffset + " is larger than its header says in " + packPath);
+                }
+
+                if(inflater.needsDictionary()) {
+                    throw new IOException("Pack entry at " + dataOffset + " requires a zlib dictionary in " + packPath);
+                }
+            }
+
+            if(length != size) {
+                throw new IOException("Pack entry at " + dataOffset + " is smaller than its header says in " + packPath);
+            }
+            return out;
+        } catch(DataFormatException ex) {
+            throw new IOException("Corrupt pack entry at " + dataOffset + " in " + packPath, ex);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Inflates an entry straight from the mapped region as it is read.
+     */
+    private class EntryInputStream extends InputStream {
+        private final Inflater inflater = new Inflater();
+        private long position;
+
+        EntryInputStream(long dataOffset) {
+            this.position = dataOffset;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+            try {
+                while(!inflater.finished()) {
+                    if(inflater.needsInput()) {
+                        if(position >= pack.size()) {
+                            throw new EOFException("Unexpected end of pack file " + packPath);
+                        }
+                        var input = pack.slice(position, Integer.MAX_VALUE);
+                        position += input.remaining();
+                        inflater.setInput(input);
+                    }
+
+                    int read = inflater.inflate(b, off, len);
+                    if(read > 0) {
+                        return read;
+                    }
+                    if(inflater.needsDictionary()) {
+                        throw new IOException("Pack entry requires a zlib dictionary in " + packPath);
+                    }
+                }
+                return -1;
+            } catch(DataFormatException ex) {
+                throw new IOException("Corrupt pack entry in " + packPath, ex);
+            }
+        }
+
+        @Override
+        public void close() {
+            inflater.end();
+        }
+    }
+
+    static class EntryHeader {
+        /** Offset of the entry in the pack. */
+        final long offset;
+
+        /** The pack type code, 1-4 for the object types, 6 and 7 for deltas. */
+        final int type;
+
+        /** Size of the inflated data, for deltas this is the size of the delta itself. */
+        final long size;
+
+        /** Offset of the zlib stream. */
+        long dataOffset;
+
+        /** For OFS_DELTA, the offset of the base entry. */
+        long baseOffset = -1;
+
+        /** For REF_DELTA, the name of the base object. */
+        ObjectID baseId;
+
+        EntryHeader(long offset, int type, long size) {
+            this.offset = offset;
+            this.type = type;
+            this.size = size;
+        }
+    }
+
+    class StoredDelta {
+        final ObjectID base;
+
+        /** Size of the inflated delta. */
+        final long size;
+
+        private final int position;
+        private final EntryHeader header;
+
+        StoredDelta(ObjectID base, long size, int position, EntryHeader header) {
+            this.base = base;
+            this.size = size;
+            this.position = position;
+            this.header = header;
+        }
+
+        /**
+         * Reads the deflated delta. Returns null if the entry does not match the CRC in the index, in which
+         * case the object is better made again from its content.
+         */
+        byte[] readData() {
+            long end = index.getEndOffset(header.offset, pack.size() - 20);
+            if(end - header.offset > Integer.MAX_VALUE - 8) {
+                return null;
+            }
+            byte[] entry = new byte[(int)(end - header.offset)];
+            pack.get(header.offset, entry, 0, entry.length);
+            CRC32 crc = new CRC32();
+            crc.update(entry);
+            if(crc.getValue() != index.getCRC32(position)) {
+                return null;
+            }
+            return Arrays.copyOfRange(entry, (int)(header.dataOffset - header.offset), entry.length);
+        }
+    }
+
+    static class PackedObject {
+        final ObjectType type;
+        final byte[] content;
+
+        PackedObject(ObjectType type, byte[] content) {
+            this.type = type;
+            this.content = content;
+        }
+    }
+}
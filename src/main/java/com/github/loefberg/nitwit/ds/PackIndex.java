@@ -0,0 +1,170 @@
+package com.github.loefberg.nitwit.ds;
+
+import com.github.loefberg.nitwit.ObjectID;
+import com.github.loefberg.nitwit.util.MappedFile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * A memory-mapped pack index (.idx), version 2.
+ *
+ * <pre>
+ * - A 4-byte magic number \377tOc
+ * - A 4-byte version number (= 2)
+ * - A 256-entry fan-out table. Entry N is the number of objects whose first byte is less than
+ *   or equal to N.
+ * - A table of sorted object names (20 bytes each).
+ * - A table of 4-byte CRC32 values of the packed object data.
+ * - A table of 4-byte offset values. If the most significant bit is set, the remaining 31 bits
+ *   are an index into the next table.
+ * - A table of 8-byte offset entries (empty for pack files less than 2 GiB).
+ * - The pack checksum and the index checksum.
+ * </pre>
+ */
+class PackIndex {
+    private static final int MAGIC = 0xff744f63;
+    private static final int FANOUT_OFFSET = 8;
+    private static final int NAMES_OFFSET = FANOUT_OFFSET + 256 * 4;
+
+    private final MappedFile file;
+    private final ByteBuffer names;
+    private final int objectCount;
+    private final long crcOffset;
+    private final long offsetsOffset;
+    private final long largeOffsetsOffset;
+    /** The positions in the order of their offsets in the pack, like git's .rev file, built when needed. */
+    private volatile int[] positionsByOffset;
+
+    PackIndex(Path idxFile) throws IOException {
+        this.file = MappedFile.open(idxFile);
+
+        int magic = file.getInt(0);
+        if(magic != MAGIC) {
+            throw new IOException("Unsupported pack index, only version 2 is supported: " + idxFile);
+        }
+
+        int version = file.getInt(4);
+        if(version != 2) {
+            throw new IOException("Unsupported pack index version=" + version + ": " + idxFile);
+        }
+
+        this.objectCount = file.getInt(FANOUT_OFFSET + 255 * 4);
+        this.names = file.slice(NAMES_OFFSET, ObjectID.RAW_LENGTH * objectCount);
+        if(names.remaining() != ObjectID.RAW_LENGTH * objectCount) {
+            throw new IOException("Pack index too large: " + idxFile);
+        }
+        this.crcOffset = NAMES_OFFSET + 20L * objectCount;
+        this.offsetsOffset = crcOffset + 4L * objectCount;
+        this.largeOffsetsOffset = offsetsOffset + 4L * objectCount;
+    }
+
+    int getObjectCount() {
+        return objectCount;
+    }
+
+    /**
+     * Returns the pack offset of the object, or -1 if it is not in this pack.
+     */
+    long findOffset(ObjectID id) {
+        int position = findPosition(id);
+        return position < 0 ? -1 : getOffset(position);
+    }
+
+    /**
+     * Returns the position of the object in the sorted name table, or -1 if it is not in this pack.
+     */
+    int findPosition(ObjectID id) {
+        int first = id.getFirstByte();
+        int low = first == 0 ? 0 : file.getInt(FANOUT_OFFSET + (first - 1) * 4);
+        int high = file.getInt(FANOUT_OFFSET + first * 4);
+
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            int cmp = id.compareTo(names, mid * ObjectID.RAW_LENGTH);
+            if(cmp > 0) {
+                low = mid + 1;
+            } else if(cmp < 0) {
+                high = mid;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    ObjectID getObjectID(int position) {
+        return new ObjectID(names, position * ObjectID.RAW_LENGTH);
+    }
+
+    long getCRC32(int position) {
+        return file.getUnsignedInt(crcOffset + 4L * position);
+    }
+
+    long getOffset(int position) {
+        int offset = file.getInt(offsetsOffset + 4L * position);
+        if((offset & 0x80000000) == 0) {
+            return offset;
+        }
+        return file.getLong(largeOffsetsOffset + 8L * (offset & 0x7fffffff));
+    }
+
+    /**
+     * Returns the position of the object whose entry starts at {@code offset}, or -1 if no entry starts there.
+     */
+    int findPositionAt(long offset) {
+        int[] positions = getPositionsByOffset();
+        int index = findIndexAt(positions, offset);
+        return index < 0 ? -1 : positions[index];
+    }
+
+    /**
+     * Returns where the entry at {@code offset} ends: at the next entry, or at {@code packEnd} for the last one.
+     */
+    long getEndOffset(long offset, long packEnd) {
+        int[] positions = getPositionsByOffset();
+        int index = findIndexAt(positions, offset);
+        if(index < 0) {
+            throw new IllegalArgumentException("No entry at offset " + offset);
+        }
+        return index + 1 < positions.length ? getOffset(positions[index + 1]) : packEnd;
+    }
+
+    private int findIndexAt(int[] positions, long offset) {
+        int low = 0;
+        int high = positions.length;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            long midOffset = getOffset(positions[mid]);
+            if(midOffset < offset) {
+                low = mid + 1;
+            } else if(midOffset > offset) {
+                high = mid;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int[] getPositionsByOffset() {
+        int[] positions = positionsByOffset;
+        if(positions == null) {
+            long[] offsets = new long[objectCount];
+            Integer[] sorted = new Integer[objectCount];
+            for(int i = 0; i < objectCount; i++) {
+                offsets[i] = getOffset(i);
+                sorted[i] = i;
+            }
+            Arrays.sort(sorted, (a, b) -> Long.compare(offsets[a], offsets[b]));
+            positions = new int[objectCount];
+            for(int i = 0; i < objectCount; i++) {
+                positions[i] = sorted[i];
+            }
+            positionsByOffset = positions;
+        }
+        return positions;
+    }
+}
@@ -0,0 +1,73 @@
+package com.github.loefberg.nitwit.ds;
+
+import com.github.loefberg.nitwit.ObjectID;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+
+/**
+ * Writes a pack index (.idx), version 2, in the format {@link PackIndex} reads.
+ */
+class PackIndexWriter {
+    private static final int MAGIC = 0xff744f63;
+
+    private PackIndexWriter() {
+    }
+
+    /**
+     * Writes the index of a pack. The arrays hold one object each at the same position, sorted by ID.
+     * Returns the checksum of the index.
+     */
+    static byte[] write(Path file, ObjectID[] ids, long[] offsets, int[] crcs, byte[] packChecksum) throws IOException {
+        int n = ids.length;
+        MessageDigest digest = DataStore.newSha1();
+        try(OutputStream fileOut = Files.newOutputStream(file);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DigestOutputStream(fileOut, digest), 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(2);
+
+            int next = 0;
+            for(int b = 0; b < 256; b++) {
+                while(next < n && ids[next].getFirstByte() <= b) {
+                    next++;
+                }
+                out.writeInt(next);
+            }
+
+            byte[] raw = new byte[ObjectID.RAW_LENGTH];
+            for(int i = 0; i < n; i++) {
+                if(i > 0 && ids[i - 1].compareTo(ids[i]) >= 0) {
+                    throw new IllegalArgumentException("Objects not sorted, or duplicated: " + ids[i]);
+                }
+                ids[i].copyTo(raw, 0);
+                out.write(raw);
+            }
+            for(int i = 0; i < n; i++) {
+                out.writeInt(crcs[i]);
+            }
+
+            // offsets that do not fit in 31 bits go into the table of 8-byte offsets
+            int large = 0;
+            for(int i = 0; i < n; i++) {
+                out.writeInt(offsets[i] <= Integer.MAX_VALUE ? (int)offsets[i] : 0x80000000 | large++);
+            }
+            for(int i = 0; i < n; i++) {
+                if(offsets[i] > Integer.MAX_VALUE) {
+                    out.writeLong(offsets[i]);
+                }
+            }
+
+            out.write(packChecksum);
+            out.flush();
+            byte[] checksum = digest.digest();
+            fileOut.write(checksum);
+            return checksum;
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package com.github.loefberg.nitwit.ds;
+
+import com.github.loefberg.nitwit.ObjectID;
+import com.github.loefberg.nitwit.util.MappedFile;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Builds the index (.idx) of a pack that came without one, like git index-pack.
+ *
+ * The pack is read once from start to end, which is the only way to find where its entries end. On the way
+ * the CRC32 of every entry is computed, and the ID of every object that is not a delta. The deltas are then
+ * resolved on the threads of a fork/join pool: every object stored whole is the root of a tree of the deltas
+ * on it, found by offset for OFS_DELTA and by ID for REF_DELTA, and every delta is a task of its own. A base
+ * is inflated once and stays in memory, shared by the tasks of the deltas on it, until they are all done.
+ *
+ * Optionally the reverse index (.rev) is written as well, which lists the objects in the order of the pack.
+ */
+public class PackIndexer {
+    private static final int MAGIC = ('P' << 24) | ('A' << 16) | ('C' << 8) | 'K';
+    private static final int REV_MAGIC = ('R' << 24) | ('I' << 16) | ('D' << 8) | 'X';
+    private static final int HASH_SHA1 = 1;
+
+    private final ForkJoinPool pool;
+    private boolean reverseIndex;
+
+    public PackIndexer() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public PackIndexer(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Whether to write the reverse index (.rev) as well, like git index-pack --rev-index. Off by default.
+     */
+    public void setReverseIndex(boolean reverseIndex) {
+        this.reverseIndex = reverseIndex;
+    }
+
+    /**
+     * Writes the index of the pack next to it, with the same name ending in .idx instead of .pack, and
+     * returns it. Fails if the pack is corrupt or refers to delta bases outside of it.
+     */
+    public Path index(Path packFile) throws IOException {
+        String name = packFile.getFileName().toString();
+        if(!name.endsWith(".pack")) {
+            throw new IOException("Not a pack file: " + packFile);
+        }
+        String baseName = name.substring(0, name.length() - ".pack".length());
+
+        MappedFile pack = MappedFile.open(packFile);
+        Entries entries = scan(pack);
+        byte[] packChecksum = new byte[ObjectID.RAW_LENGTH];
+        pack.get(pack.size() - ObjectID.RAW_LENGTH, packChecksum, 0, packChecksum.length);
+        resolve(pack, entries);
+
+        // the objects sorted by ID, as the index has them
+        int n = entries.count;
+        Integer[] sorted = new Integer[n];
+        for(int i = 0; i < n; i++) {
+            sorted[i] = i;
+        }
+        Arrays.sort(sorted, (a, b) -> entries.ids[a].compareTo(entries.ids[b]));
+        ObjectID[] ids = new ObjectID[n];
+        long[] offsets = new long[n];
+        int[] crcs = new int[n];
+        int[] positions = new int[n];
+        for(int i = 0; i < n; i++) {
+            int entry = sorted[i];
+            if(i > 0 && entries.ids[entry].equals(ids[i - 1])) {
+                throw new IOException("Object " + ids[i - 1].getHashString() + " is in the pack twice: " + packFile);
+            }
+            ids[i] = entries.ids[entry];
+            offsets[i] = entries.offsets[entry];
+            crcs[i] = entries.crcs[entry];
+            positions[entry] = i;
+        }
+
+        Path dir = packFile.toAbsolutePath().getParent();
+        Path idxFile = dir.resolve(baseName + ".idx");
+        Path tmpIdx = Files.createTempFile(dir, "tmp_idx_", null);
+        Path tmpRev = reverseIndex ? Files.createTempFile(dir, "tmp_rev_", null) : null;
+        try {
+            PackIndexWriter.write(tmpIdx, ids, offsets, crcs, packChecksum);
+            DataStore.sync(tmpIdx);
+            if(tmpRev != null) {
+                writeReverseIndex(tmpRev, positions, packChecksum);
+                DataStore.sync(tmpRev);
+                DataStore.moveIntoPlace(tmpRev, dir.resolve(baseName + ".rev"), true);
+            }
+            // the index last, readers only look for packs that have one
+            DataStore.moveIntoPlace(tmpIdx, idxFile, true);
+            DataStore.syncDirectory(dir);
+            return idxFile;
+        } finally {
+            Files.deleteIfExists(tmpIdx);
+            if(tmpRev != null) {
+                Files.deleteIfExists(tmpRev);
+            }
+        }
+    }
+
+    /**
+     * Reads the pack from start to end: where every entry is, its CRC32, and the IDs of the objects that
+     * are not deltas. The checksum at the end is verified on the way.
+     */
+    private static Entries scan(MappedFile pack) throws IOException {
+        Path packPath = pack.getPath();
+        if(pack.size() < 12 + ObjectID.RAW_LENGTH || pack.getInt(0) != MAGIC) {
+            throw new IOException("Invalid pack file format, magic signature wrong: " + packPath);
+        }
+        int version = pack.getInt(4);
+        if(version != 2 && version != 3) {
+            throw new IOException("Unsupported pack version=" + version + ": " + packPath);
+        }
+        long count = pack.getUnsignedInt(8);
+        if(count > (pack.size() - 12) / 2) {
+            throw new IOException("Pack claims more objects than it can hold (" + count + "): " + packPath);
+        }
+
+        Entries entries = new Entries((int)count);
+        byte[] buf = new byte[64 * 1024];
+        long position = 12;
+        for(int i = 0; i < count; i++) {
+            PackFile.EntryHeader header = PackFile.readHeader(pack, position);
+            entries.offsets[i] = position;
+            entries.dataOffsets[i] = header.dataOffset;
+            entries.types[i] = (byte)header.type;
+            entries.sizes[i] = header.size;
+            if(header.type == PackFile.OBJ_OFS_DELTA) {
+                entries.baseOffsets[i] = header.baseOffset;
+            } else if(header.type == PackFile.OBJ_REF_DELTA) {
+                entries.refChildren.computeIfAbsent(header.baseId, id -> new ArrayList<>()).add(i);
+            } else if(header.type < 1 || header.type > 4) {
+                throw new IOException("Unknown pack entry type " + header.type + " at offset " + position + " in " + packPath);
+            }
+
+            MessageDigest md = null;
+            if(!PackFile.isDelta(header.type)) {
+                md = DataStore.newSha1();
+                md.update(objectHeader(ObjectType.fromValue(header.type), header.size));
+            }
+            long end = header.dataOffset + inflate(pack, header.dataOffset, header.size, buf, md);
+
+            CRC32 crc = new CRC32();
+            for(long from = position; from < end; ) {
+                ByteBuffer slice = pack.slice(from, (int)Math.min(end - from, Integer.MAX_VALUE));
+                from += slice.remaining();
+                crc.update(slice);
+            }
+            entries.crcs[i] = (int)crc.getValue();
+            if(md != null) {
+                entries.ids[i] = new ObjectID(md.digest());
+            }
+            position = end;
+        }
+        if(position != pack.size() - ObjectID.RAW_LENGTH) {
+            throw new IOException("Pack has " + (pack.size() - ObjectID.RAW_LENGTH - position) +
+                    " bytes after its last object: " + packPath);
+        }
+
+        MessageDigest md = DataStore.newSha1();
+        for(long from = 0; from < position; ) {
+            ByteBuffer slice = pack.slice(from, (int)Math.min(position - from, Integer.MAX_VALUE));
+            from += slice.remaining();
+            md.update(slice);
+        }
+        byte[] trailer = new byte[ObjectID.RAW_LENGTH];
+        pack.get(position, trailer, 0, trailer.length);
+        if(!Arrays.equals(md.digest(), trailer)) {
+            throw new IOException("Pack checksum mismatch: " + packPath);
+        }
+        return entries;
+    }
+
+    /**
+     * Inflates the zlib stream at {@code dataOffset}, feeding what comes out to the digest, if any. Returns
+     * the length of the deflated stream.
+     */
+    private static long inflate(MappedFile pack, long dataOffset, long size, byte[] buf, MessageDigest md)
+            throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            long position = dataOffset;
+            long length = 0;
+            while(!inflater.finished()) {
+                if(inflater.needsInput()) {
+                    if(position >= pack.size() - ObjectID.RAW_LENGTH) {
+                        throw new EOFException("Unexpected end of pack file " + pack.getPath());
+                    }
+                    ByteBuffer input = pack.slice(position, Integer.MAX_VALUE);
+                    position += input.remaining();
+                    inflater.setInput(input);
+                }
+                int read = inflater.inflate(buf);
+                if(md != null) {
+                    md.update(buf, 0, read);
+                }
+                length += read;
+                if(read == 0 && inflater.needsDictionary()) {
+                    throw new IOException("Pack entry at " + dataOffset + " requires a zlib dictionary in " + pack.getPath());
+                }
+            }
+            if(length != size) {
+                throw new IOException("Pack entry at " + dataOffset + " has " + length + " bytes, its header says " +
+                        size + " in " + pack.getPath());
+            }
+            return inflater.getBytesRead();
+        } catch(DataFormatException ex) {
+            throw new IOException("Corrupt pack entry at " + dataOffset + " in " + pack.getPath(), ex);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Finds the IDs of the deltas, a tree of deltas on one base at a time.
+     */
+    private void resolve(MappedFile pack, Entries entries) throws IOException {
+        int n = entries.count;
+
+        // the OFS_DELTA children of every entry, in one array ordered by base
+        int[] childStart = new int[n + 1];
+        int[] baseOf = new int[n];
+        for(int i = 0; i < n; i++) {
+            baseOf[i] = -1;
+            if(entries.types[i] == PackFile.OBJ_OFS_DELTA) {
+                int base = Arrays.binarySearch(entries.offsets, 0, i, entries.baseOffsets[i]);
+                if(base < 0) {
+                    throw new IOException("No delta base at offset " + entries.baseOffsets[i] +
+                            " for the entry at " + entries.offsets[i] + " in " + pack.getPath());
+                }
+                baseOf[i] = base;
+                childStart[base + 1]++;
+            }
+        }
+        for(int i = 0; i < n; i++) {
+            childStart[i + 1] += childStart[i];
+        }
+        int[] children = new int[childStart[n]];
+        int[] filled = Arrays.copyOf(childStart, n);
+        for(int i = 0; i < n; i++) {
+            if(baseOf[i] >= 0) {
+                children[filled[baseOf[i]]++] = i;
+            }
+        }
+        entries.childStart = childStart;
+        entries.children = children;
+
+        List<ResolveTask> roots = new ArrayList<>();
+        for(int i = 0; i < n; i++) {
+            if(!PackFile.isDelta(entries.types[i])
+                    && (childStart[i + 1] > childStart[i] || entries.refChildren.containsKey(entries.ids[i]))) {
+                roots.add(new ResolveTask(pack, entries, i, null, ObjectType.fromValue(entries.types[i])));
+            }
+        }
+        try {
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(roots);
+                }
+            });
+        } catch(UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+
+        for(int i = 0; i < n; i++) {
+            if(entries.ids[i] == null) {
+                throw new IOException("Delta at offset " + entries.offsets[i] + " has no base in the pack, " +
+                        "thin packs are not supported: " + pack.getPath());
+            }
+        }
+    }
+
+    /**
+     * Resolves one object, and then the deltas on it.
+     */
+    private static class ResolveTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final MappedFile pack;
+        private final Entries entries;
+        private final int entry;
+        private final byte[] base;
+        private final ObjectType type;
+
+        /**
+         * @param base the content of the delta base, or null for an object stored whole
+         */
+        ResolveTask(MappedFile pack, Entries entries, int entry, byte[] base, ObjectType type) {
+            this.pack = pack;
+            this.entries = entries;
+            this.entry = entry;
+            this.base = base;
+            this.type = type;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                byte[] content = load();
+                List<ResolveTask> tasks = new ArrayList<>();
+                for(int i = entries.childStart[entry]; i < entries.childStart[entry + 1]; i++) {
+                    tasks.add(new ResolveTask(pack, entries, entries.children[i], content, type));
+                }
+                for(int child: entries.refChildren.getOrDefault(entries.ids[entry], List.of())) {
+                    tasks.add(new ResolveTask(pack, entries, child, content, type));
+                }
+                invokeAll(tasks);
+            } catch(IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        private byte[] load() throws IOException {
+            long size = entries.sizes[entry];
+            if(size > Integer.MAX_VALUE - 8) {
+                throw new IOException("Object too large to load into memory (" + size + " bytes) at offset " +
+                        entries.offsets[entry] + " in " + pack.getPath());
+            }
+            byte[] data = PackFile.inflate(pack, entries.dataOffsets[entry], (int)size, new byte[(int)size]);
+            if(base == null) {
+                return data;
+            }
+
+            byte[] content = Delta.apply(base, base.length, data, data.length);
+            MessageDigest md = DataStore.newSha1();
+            md.update(objectHeader(type, content.length));
+            entries.ids[entry] = new ObjectID(md.digest(content));
+            return content;
+        }
+    }
+
+    private static void writeReverseIndex(Path file, int[] positions, byte[] packChecksum) throws IOException {
+        MessageDigest digest = DataStore.newSha1();
+        try(OutputStream fileOut = Files.newOutputStream(file);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DigestOutputStream(fileOut, digest), 64 * 1024))) {
+            out.writeInt(REV_MAGIC);
+            out.writeInt(1);
+            out.writeInt(HASH_SHA1);
+            for(int position: positions) {
+                out.writeInt(position);
+            }
+            out.write(packChecksum);
+            out.flush();
+            fileOut.write(digest.digest());
+        }
+    }
+
+    private static byte[] objectHeader(ObjectType type, long size) {
+        return (type.typeName() + " " + size + "\0").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * What is known about the entries of the pack, each in the order of the pack.
+     */
+    private static final class Entries {
+        final int count;
+        final long[] offsets;
+        final long[] dataOffsets;
+        final byte[] types;
+        final long[] sizes;
+        final long[] baseOffsets;
+        final int[] crcs;
+        final ObjectID[] ids;
+        final Map<ObjectID, List<Integer>> refChildren = new HashMap<>();
+        int[] childStart;
+        int[] children;
+
+        Entries(int count) {
+            this.count = count;
+            this.offsets = new long[count];
+            this.dataOffsets = new long[count];
+            this.types = new byte[count];
+            this.sizes = new long[count];
+            this.baseOffsets = new long[count];
+            this.crcs = new int[count];
+            this.ids = new ObjectID[count];
+        }
+    }
+}
@@ -0,0 +1,522 @@
+package com.github.loefberg.nitwit.ds;
+
+import com.github.loefberg.nitwit.ObjectID;
+import com.github.loefberg.nitwit.util.Hex;
+import com.github.loefberg.nitwit.util.Parallel;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes objects into a new pack (.pack) with its index (.idx), version 2, in objects/pack, like git
+ * pack-objects.
+ *
+ * Objects are stored as deltas against similar ones. Like in git the candidates are sorted by type, by a
+ * hash of the name the object has in the trees being packed, and by size, largest first, so that the
+ * versions of a file end up next to each other. Every object is then tried against the ones in a sliding
+ * window before it, and the smallest delta wins. The sorted list is cut into segments that are searched
+ * on the threads of a fork/join pool, each with a window of its own. Delta chains are kept at most
+ * {@link #setDepth depth} long, since every link makes reading the object slower.
+ *
+ * An object that is a delta in an existing pack, whose base is packed as well, keeps its delta: the
+ * deflated bytes are copied as they are, and the object is not searched at all.
+ */
+public class PackWriter {
+    public static final int DEFAULT_WINDOW = 10;
+    public static final int DEFAULT_DEPTH = 50;
+
+    /** Objects smaller than this are not worth a delta. */
+    private static final int MIN_DELTA_SIZE = 50;
+
+    /** Objects larger than this are stored whole, git's core.bigFileThreshold. */
+    private static final long BIG_FILE_THRESHOLD = 512L * 1024 * 1024;
+
+    private static final int MIN_SEGMENT_SIZE = 256;
+    private static final int WRITE_BATCH_SIZE = 256;
+
+    /** The depth of a reused delta whose chain has not been followed yet, and of one being followed. */
+    private static final int DEPTH_UNKNOWN = -1;
+    private static final int DEPTH_RESOLVING = -2;
+
+    private final DataStore ds;
+    private final ForkJoinPool pool;
+    private int window = DEFAULT_WINDOW;
+    private int depth = DEFAULT_DEPTH;
+    private boolean reuseDeltas = true;
+
+    public PackWriter(DataStore ds) {
+        this(ds, ForkJoinPool.commonPool());
+    }
+
+    public PackWriter(DataStore ds, ForkJoinPool pool) {
+        this.ds = ds;
+        this.pool = pool;
+    }
+
+    /**
+     * The number of objects before an object that it is tried against, git's pack.window. 0 turns the
+     * search for deltas off.
+     */
+    public void setWindow(int window) {
+        this.window = Math.max(0, window);
+    }
+
+    /**
+     * The longest delta chain, git's pack.depth.
+     */
+    public void setDepth(int depth) {
+        this.depth = Math.max(0, depth);
+    }
+
+    /**
+     * Whether to copy the deltas of existing packs. On by default, like git's pack.reuseDelta.
+     */
+    public void setReuseDeltas(boolean reuseDeltas) {
+        this.reuseDeltas = reuseDeltas;
+    }
+
+    /**
+     * Writes the objects into a new pack in objects/pack. Returns the pack file, or null if there were no
+     * objects. The index is put in place after the pack, so that readers never find a pack without one.
+     */
+    public Path write(Collection<ObjectID> ids) throws IOException {
+        Map<ObjectID, ObjectToPack> byId = new HashMap<>();
+        List<ObjectToPack> objects = new ArrayList<>();
+        for(ObjectID id: ids) {
+            if(!byId.containsKey(id)) {
+                ObjectToPack object = new ObjectToPack(id);
+                byId.put(id, object);
+                objects.add(object);
+            }
+        }
+        if(objects.isEmpty()) {
+            return null;
+        }
+
+        Map<ObjectID, String> names = new ConcurrentHashMap<>();
+        Parallel.forEach(pool, objects.size(), i -> describe(objects.get(i), names));
+        List<ObjectToPack> dropped = new ArrayList<>();
+        for(ObjectToPack object: objects) {
+            object.nameHash = nameHash(names.get(object.id));
+            if(object.stored != null) {
+                // a base outside of the pack would make it thin
+                object.base = byId.get(object.stored.base);
+                if(object.base == null) {
+                    object.stored = null;
+                    dropped.add(object);
+                } else {
+                    object.depth = DEPTH_UNKNOWN;
+                }
+            }
+        }
+        // only the size of the delta was known, the size of the object makes it a candidate for a new one
+        Parallel.forEach(pool, dropped.size(), i -> readSize(dropped.get(i)));
+
+        searchDeltas(objects);
+        for(ObjectToPack object: objects) {
+            resolveDepth(object);
+        }
+        return writePack(order(objects));
+    }
+
+    /**
+     * Finds the type and size of the object, and the names of what is in it if it is a tree.
+     */
+    private void describe(ObjectToPack object, Map<ObjectID, String> names) throws IOException {
+        if(reuseDeltas) {
+            object.stored = ds.findStoredDelta(object.id);
+        }
+        if(object.stored != null) {
+            object.type = ObjectType.fromTypeName(ds.getType(object.id));
+        } else {
+            try(ObjectStream input = ds.openObject(object.id)) {
+                object.type = input.getType();
+                object.size = input.getSize();
+            }
+        }
+
+        if(object.type == ObjectType.TREE) {
+            Tree tree = ds.getTree(object.id);
+            for(int i = 0; i < tree.size(); i++) {
+                names.putIfAbsent(tree.id(i), tree.name(i));
+            }
+        }
+    }
+
+    private void readSize(ObjectToPack object) throws IOException {
+        try(ObjectStream input = ds.openObject(object.id)) {
+            object.size = input.getSize();
+        }
+    }
+
+    /**
+     * git's pack_name_hash, which mostly depends on the last characters, so that files with the same
+     * extension sort close to each other.
+     */
+    static int nameHash(String name) {
+        if(name == null) {
+            return 0;
+        }
+        int hash = 0;
+        for(int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if(!Character.isWhitespace(c)) {
+                hash = (hash >>> 2) + (c << 24);
+            }
+        }
+        return hash;
+    }
+
+    private void searchDeltas(List<ObjectToPack> objects) throws IOException {
+        if(window == 0 || depth == 0) {
+            return;
+        }
+
+        List<ObjectToPack> candidates = new ArrayList<>();
+        for(ObjectToPack object: objects) {
+            if(object.stored == null && object.size >= MIN_DELTA_SIZE && object.size <= BIG_FILE_THRESHOLD) {
+                candidates.add(object);
+            }
+        }
+        candidates.sort((a, b) -> {
+            if(a.type != b.type) {
+                return a.type.compareTo(b.type);
+            }
+            if(a.nameHash != b.nameHash) {
+                return Integer.compareUnsigned(a.nameHash, b.nameHash);
+            }
+            return Long.compare(b.size, a.size);
+        });
+
+        int segmentSize = Math.max(MIN_SEGMENT_SIZE, candidates.size() / (pool.getParallelism() * 4) + 1);
+        List<int[]> segments = new ArrayList<>();
+        int start = 0;
+        while(start < candidates.size()) {
+            int end = Math.min(candidates.size(), start + segmentSize);
+            // the versions of one file are kept in the same segment
+            while(end < candidates.size() && candidates.get(end).nameHash != 0
+                    && candidates.get(end).nameHash == candidates.get(end - 1).nameHash) {
+                end++;
+            }
+            segments.add(new int[] { start, end });
+            start = end;
+        }
+        Parallel.forEach(pool, segments.size(), i -> searchSegment(candidates, segments.get(i)[0], segments.get(i)[1]));
+    }
+
+    private void searchSegment(List<ObjectToPack> candidates, int from, int to) throws IOException {
+        WindowEntry[] entries = new WindowEntry[window];
+        int next = 0;
+        for(int i = from; i < to; i++) {
+            ObjectToPack target = candidates.get(i);
+            byte[] content = load(target);
+            for(int k = 1; k <= window; k++) {
+                WindowEntry entry = entries[(next - k + window) % window];
+                if(entry == null || entry.object.type != target.type) {
+                    // sorted by type, so everything before is of another type as well
+                    break;
+                }
+                tryDelta(target, content, entry);
+            }
+            entries[next] = new WindowEntry(target, content);
+            next = (next + 1) % window;
+        }
+    }
+
+    /**
+     * Makes the base of the entry the delta base of the target, if that gives a smaller delta than it has.
+     * Like in git, the delta may be smaller the longer the chain it makes.
+     */
+    private void tryDelta(ObjectToPack target, byte[] content, WindowEntry entry) {
+        ObjectToPack base = entry.object;
+        if(base.depth >= depth) {
+            return;
+        }
+        long maxSize;
+        int referenceDepth;
+        if(target.delta == null) {
+            maxSize = target.size / 2 - ObjectID.RAW_LENGTH;
+            referenceDepth = 1;
+        } else {
+            maxSize = target.delta.length - 1;
+            referenceDepth = target.depth;
+        }
+        maxSize = maxSize * (depth - base.depth) / (depth - referenceDepth + 1);
+        if(maxSize <= 0 || Math.max(0, target.size - base.size) >= maxSize || target.size < base.size / 32) {
+            return;
+        }
+
+        byte[] delta = entry.getIndex().createDelta(content, (int)Math.min(maxSize, Integer.MAX_VALUE));
+        if(delta != null && delta.length <= maxSize) {
+            target.base = base;
+            target.delta = delta;
+            target.depth = base.depth + 1;
+        }
+    }
+
+    /**
+     * Follows the chain of a reused delta, and stores it whole if the chain got too long.
+     */
+    private int resolveDepth(ObjectToPack object) throws IOException {
+        if(object.stored == null || object.depth >= 0) {
+            return object.depth;
+        }
+        if(object.depth == DEPTH_RESOLVING) {
+            throw new IOException("Delta chain of " + object.id.getHashString() + " is a cycle");
+        }
+        object.depth = DEPTH_RESOLVING;
+        int chainDepth = resolveDepth(object.base) + 1;
+        if(chainDepth > depth) {
+            object.stored = null;
+            object.base = null;
+            chainDepth = 0;
+        }
+        object.depth = chainDepth;
+        return chainDepth;
+    }
+
+    /**
+     * The order the objects are written in: commits, tags, trees and then blobs, with every delta base
+     * before the deltas on it, as an OFS_DELTA can only point backwards.
+     */
+    private static List<ObjectToPack> order(List<ObjectToPack> objects) {
+        List<ObjectToPack> sorted = new ArrayList<>(objects);
+        sorted.sort(Comparator.comparingInt(object -> writeOrder(object.type)));
+        List<ObjectToPack> result = new ArrayList<>(objects.size());
+        Deque<ObjectToPack> chain = new ArrayDeque<>();
+        for(ObjectToPack object: sorted) {
+            for(ObjectToPack link = object; link != null && !link.ordered; link = link.base) {
+                link.ordered = true;
+                chain.push(link);
+            }
+            while(!chain.isEmpty()) {
+                result.add(chain.pop());
+            }
+        }
+        return result;
+    }
+
+    private static int writeOrder(ObjectType type) {
+        switch(type) {
+            case COMMIT: return 0;
+            case TAG: return 1;
+            case TREE: return 2;
+            default: return 3;
+        }
+    }
+
+    private Path writePack(List<ObjectToPack> objects) throws IOException {
+        Path packDir = ds.getObjectsDirectory().resolve("pack");
+        Files.createDirectories(packDir);
+        Path tmpPack = Files.createTempFile(packDir, "tmp_pack_", null);
+        Path tmpIdx = Files.createTempFile(packDir, "tmp_idx_", null);
+        try {
+            byte[] packChecksum;
+            MessageDigest digest = DataStore.newSha1();
+            try(OutputStream fileOut = Files.newOutputStream(tmpPack);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DigestOutputStream(fileOut, digest), 64 * 1024))) {
+                out.writeBytes("PACK");
+                out.writeInt(2);
+                out.writeInt(objects.size());
+
+                // the objects are deflated in parallel a batch at a time, and written in order
+                long position = 12;
+                for(int from = 0; from < objects.size(); from += WRITE_BATCH_SIZE) {
+                    List<ObjectToPack> batch = objects.subList(from, Math.min(objects.size(), from + WRITE_BATCH_SIZE));
+                    Parallel.forEach(pool, batch.size(), i -> prepare(batch.get(i)));
+                    for(ObjectToPack object: batch) {
+                        object.offset = position;
+                        byte[] header = entryHeader(object);
+                        CRC32 crc = new CRC32();
+                        crc.update(header);
+                        crc.update(object.data);
+                        object.crc = (int)crc.getValue();
+                        out.write(header);
+                        out.write(object.data);
+                        position += header.length + object.data.length;
+                        object.data = null;
+                        object.delta = null;
+                    }
+                }
+
+                out.flush();
+                packChecksum = digest.digest();
+                fileOut.write(packChecksum);
+            }
+
+            ObjectToPack[] sorted = objects.toArray(new ObjectToPack[0]);
+            Arrays.sort(sorted, (a, b) -> a.id.compareTo(b.id));
+            ObjectID[] ids = new ObjectID[sorted.length];
+            long[] offsets = new long[sorted.length];
+            int[] crcs = new int[sorted.length];
+            for(int i = 0; i < sorted.length; i++) {
+                ids[i] = sorted[i].id;
+                offsets[i] = sorted[i].offset;
+                crcs[i] = sorted[i].crc;
+            }
+            PackIndexWriter.write(tmpIdx, ids, offsets, crcs, packChecksum);
+
+            // the pack must be on disk before anything relies on it, like deleting the loose objects
+            DataStore.sync(tmpPack);
+            DataStore.sync(tmpIdx);
+            String name = "pack-" + Hex.toHex(packChecksum);
+            Path packFile = packDir.resolve(name + ".pack");
+            DataStore.moveIntoPlace(tmpPack, packFile, true);
+            DataStore.moveIntoPlace(tmpIdx, packDir.resolve(name + ".idx"), true);
+            DataStore.syncDirectory(packDir);
+            return packFile;
+        } finally {
+            Files.deleteIfExists(tmpPack);
+            Files.deleteIfExists(tmpIdx);
+        }
+    }
+
+    /**
+     * Deflates what is written for the object: its delta, or the whole content.
+     */
+    private void prepare(ObjectToPack object) throws IOException {
+        if(object.stored != null) {
+            object.data = object.stored.readData();
+            if(object.data != null) {
+                object.inflatedSize = object.stored.size;
+                return;
+            }
+            // corrupt in the old pack, the object is read again, which verifies it
+            object.stored = null;
+            object.base = null;
+        }
+        if(object.delta != null) {
+            object.data = deflate(object.delta);
+            object.inflatedSize = object.delta.length;
+        } else {
+            byte[] content = load(object);
+            object.data = deflate(content);
+            object.inflatedSize = content.length;
+        }
+    }
+
+    private byte[] load(ObjectToPack object) throws IOException {
+        try(ObjectStream input = ds.openObject(object.id)) {
+            if(input.getSize() > Integer.MAX_VALUE - 8) {
+                throw new IOException("Object too large to pack (" + input.getSize() + " bytes): " + object.id.getHashString());
+            }
+            return input.readNBytes((int)input.getSize());
+        }
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+            byte[] buf = new byte[64 * 1024];
+            while(!deflater.finished()) {
+                int length = deflater.deflate(buf);
+                out.write(buf, 0, length);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * The header of a pack entry, see {@link PackFile#readHeader}: the type and inflated size, and for a
+     * delta the distance back to its base.
+     */
+    private static byte[] entryHeader(ObjectToPack object) {
+        byte[] header = new byte[32];
+        int length = 0;
+        int type = object.base != null ? PackFile.OBJ_OFS_DELTA : object.type.value();
+        long size = object.inflatedSize;
+        int c = (type << 4) | (int)(size & 0x0f);
+        size >>>= 4;
+        while(size != 0) {
+            header[length++] = (byte)(c | 0x80);
+            c = (int)(size & 0x7f);
+            size >>>= 7;
+        }
+        header[length++] = (byte)c;
+
+        if(object.base != null) {
+            // big endian, every continuation takes away 1 before shifting, the reverse of the reader
+            long distance = object.offset - object.base.offset;
+            byte[] encoded = new byte[10];
+            int start = encoded.length - 1;
+            encoded[start] = (byte)(distance & 0x7f);
+            while((distance >>>= 7) != 0) {
+                encoded[--start] = (byte)(0x80 | (--distance & 0x7f));
+            }
+            System.arraycopy(encoded, start, header, length, encoded.length - start);
+            length += encoded.length - start;
+        }
+        return Arrays.copyOf(header, length);
+    }
+
+    private static final class ObjectToPack {
+        final ObjectID id;
+        ObjectType type;
+        long size;
+        int nameHash;
+
+        /** The delta in an existing pack to copy, or null. */
+        PackFile.StoredDelta stored;
+
+        /** The delta base, whether the delta is reused or found. */
+        ObjectToPack base;
+        byte[] delta;
+        int depth;
+
+        boolean ordered;
+        byte[] data;
+        long inflatedSize;
+        long offset;
+        int crc;
+
+        ObjectToPack(ObjectID id) {
+            this.id = id;
+        }
+    }
+
+    private static final class WindowEntry {
+        final ObjectToPack object;
+        final byte[] content;
+        private DeltaIndex index;
+
+        WindowEntry(ObjectToPack object, byte[] content) {
+            this.object = object;
+            this.content = content;
+        }
+
+        /**
+         * The index of the content, made the first time the entry is tried as a base.
+         */
+        DeltaIndex getIndex() {
+            if(index == null) {
+                index = new DeltaIndex(content);
+            }
+            return index;
+        }
+    }
+}
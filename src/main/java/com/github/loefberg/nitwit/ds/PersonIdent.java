@@ -0,0 +1,79 @@
+package com.github.loefberg.nitwit.ds;
+
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * The author or committer of a commit, "Name &lt;email&gt; 1639738877 +0100".
+ */
+public class PersonIdent {
+    private final String name;
+    private final String email;
+    private final long when;
+    private final ZoneOffset zone;
+
+    public PersonIdent(String name, String email, long when, ZoneOffset zone) {
+        this.name = name;
+        this.email = email;
+        this.when = when;
+        this.zone = zone;
+    }
+
+    /**
+     * Parses the value of an author or committer header line.
+     */
+    public static PersonIdent parse(String value) {
+        int emailStart = value.indexOf('<');
+        int emailEnd = value.indexOf('>', emailStart + 1);
+        if(emailStart < 0 || emailEnd < 0) {
+            throw new IllegalArgumentException("Invalid person identity: " + value);
+        }
+
+        String name = value.substring(0, emailStart).trim();
+        String email = value.substring(emailStart + 1, emailEnd);
+
+        String[] time = value.substring(emailEnd + 1).trim().split(" ");
+        long when = time.length > 0 && !time[0].isEmpty() ? Long.parseLong(time[0]) : 0;
+        ZoneOffset zone = time.length > 1 ? parseZone(time[1]) : ZoneOffset.UTC;
+        return new PersonIdent(name, email, when, zone);
+    }
+
+    private static ZoneOffset parseZone(String zone) {
+        // +hhmm or -hhmm
+        int sign = zone.charAt(0) == '-' ? -1 : 1;
+        int hours = Integer.parseInt(zone.substring(1, 3));
+        int minutes = Integer.parseInt(zone.substring(3, 5));
+        return ZoneOffset.ofTotalSeconds(sign * (hours * 3600 + minutes * 60));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    /**
+     * Seconds since the epoch.
+     */
+    public long getWhen() {
+        return when;
+    }
+
+    public ZoneOffset getZone() {
+        return zone;
+    }
+
+    public OffsetDateTime getDateTime() {
+        return Instant.ofEpochSecond(when).atOffset(zone);
+    }
+
+    @Override
+    public String toString() {
+        int offset = zone.getTotalSeconds() / 60;
+        return String.format("%s <%s> %d %c%02d%02d", name, email, when,
+                offset < 0 ? '-' : '+', Math.abs(offset) / 60, Math.abs(offset) % 60);
+    }
+}
@@ -0,0 +1,37 @@
+package com.github.loefberg.nitwit.ds;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A blob whose content is read from the data store as it is consumed, for callers like checkout, cat-file
+ * and archive that copy the content somewhere and never need all of it in memory.
+ *
+ * The content can only be read once.
+ */
+public class StreamingBlob implements Closeable {
+    private final ObjectStream content;
+
+    StreamingBlob(ObjectStream content) {
+        this.content = content;
+    }
+
+    public long getSize() {
+        return content.getSize();
+    }
+
+    public InputStream getInputStream() {
+        return content;
+    }
+
+    public void write(OutputStream out) throws IOException {
+        content.transferTo(out);
+    }
+
+    @Override
+    public void close() throws IOException {
+        content.close();
+    }
+}
@@ -2,46 +2,304 @@ package com.github.loefberg.nitwit.ds;
 
 import com.github.loefberg.nitwit.ObjectID;
 
+import java.io.ByteArrayOutputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.RandomAccess;
 
+/**
+ * A tree object, kept as the raw inflated bytes.
+ *
+ * Each entry is "{octal mode} {name}\0{20 byte hash}". The offsets of the entries are indexed the first time
+ * they are needed, and the mode, name and ID of an entry are only decoded when asked for. Entries are sorted
+ * the way git sorts them, by name compared as unsigned bytes where directories have an implicit trailing
+ * '/', so {@link #find(String)} is a binary search that never decodes the siblings it passes.
+ */
 public class Tree {
-    private final List<TreeEntry> entries = new ArrayList<>();
+    private final byte[] content;
+
+    /** For every entry the offset of its name and the offset of its hash, built on first use. */
+    private volatile int[] index;
 
     public Tree(byte[] content) {
-        for(int idx = 0; idx < content.length;) {
-            int modeOffset = idx;
-            int modeLength = 0;
+        this.content = content;
+    }
+
+    public int size() {
+        return index().length / 2;
+    }
+
+    public long mode(int i) {
+        int[] index = index();
+        int end = index[i * 2] - 1;
+        long mode = 0;
+        for(int pos = entryStart(index, i); pos < end; pos++) {
+            mode = (mode << 3) | (content[pos] - '0');
+        }
+        return mode;
+    }
+
+    public TreeFileType type(int i) {
+        return TreeFileType.fromValue((byte)((mode(i) & 0xf000) >> 12));
+    }
+
+    public String name(int i) {
+        int[] index = index();
+        int nameOffset = index[i * 2];
+        return new String(content, nameOffset, index[i * 2 + 1] - 1 - nameOffset, StandardCharsets.UTF_8);
+    }
+
+    public ObjectID id(int i) {
+        return new ObjectID(content, index()[i * 2 + 1]);
+    }
+
+    /**
+     * Compares the ID of entry {@code i} with {@code id} without creating an object for it.
+     */
+    public boolean idEquals(int i, ObjectID id) {
+        return id.compareTo(content, index()[i * 2 + 1]) == 0;
+    }
+
+    public TreeEntry get(int i) {
+        return new TreeEntry(mode(i), name(i), id(i));
+    }
+
+    /**
+     * Returns the position of the entry with the given name, or -1 if there is none.
+     */
+    public int find(String name) {
+        return find(name.getBytes(StandardCharsets.UTF_8));
+    }
 
-            while (content[modeOffset + modeLength] != ' ') {
-                modeLength++;
+    public int find(byte[] name) {
+        // A file sorts as its name, a directory as its name followed by '/', so look for both.
+        int found = search(name, 0);
+        return found >= 0 ? found : search(name, '/');
+    }
+
+    /**
+     * Returns the entry with the given name, or null if there is none.
+     */
+    public TreeEntry findEntry(String name) {
+        int i = find(name);
+        return i < 0 ? null : get(i);
+    }
+
+    /**
+     * A view of the entries, each one decoded when it is accessed.
+     */
+    public List<TreeEntry> getEntries() {
+        return new Entries();
+    }
+
+    /**
+     * The raw entries, the content of the object without its header.
+     */
+    byte[] getContent() {
+        return content;
+    }
+
+    /**
+     * An estimate of the heap this tree holds.
+     */
+    long getWeight() {
+        return 16 + content.length + 16 + index().length * 4L;
+    }
+
+    /**
+     * Compares entry {@code i} with a name in tree order, where a directory sorts as its name followed by '/'.
+     */
+    public int compare(int i, byte[] name, boolean directory) {
+        return compare(index(), i, name, directory ? '/' : 0);
+    }
+
+    /**
+     * Compares entry {@code i} of one tree with entry {@code j} of another in tree order, without decoding
+     * either of them.
+     */
+    public static int compare(Tree a, int i, Tree b, int j) {
+        int[] aIndex = a.index();
+        int[] bIndex = b.index();
+        int aOffset = aIndex[i * 2];
+        int aLength = aIndex[i * 2 + 1] - 1 - aOffset;
+        int bOffset = bIndex[j * 2];
+        int bLength = bIndex[j * 2 + 1] - 1 - bOffset;
+        int length = Math.min(aLength, bLength);
+        int cmp = Arrays.compareUnsigned(a.content, aOffset, aOffset + length, b.content, bOffset, bOffset + length);
+        if(cmp != 0) {
+            return cmp;
+        }
+        int c1 = aLength > length ? a.content[aOffset + length] & 0xff : (a.isDirectory(aIndex, i) ? '/' : 0);
+        int c2 = bLength > length ? b.content[bOffset + length] & 0xff : (b.isDirectory(bIndex, j) ? '/' : 0);
+        return c1 - c2;
+    }
+
+    /**
+     * Whether entry {@code i} of one tree and entry {@code j} of another have the same mode and ID.
+     */
+    public static boolean sameEntry(Tree a, int i, Tree b, int j) {
+        int[] aIndex = a.index();
+        int[] bIndex = b.index();
+        int aHash = aIndex[i * 2 + 1];
+        int bHash = bIndex[j * 2 + 1];
+        int aStart = entryStart(aIndex, i);
+        int bStart = entryStart(bIndex, j);
+        return Arrays.equals(a.content, aHash, aHash + ObjectID.RAW_LENGTH, b.content, bHash, bHash + ObjectID.RAW_LENGTH)
+                && Arrays.equals(a.content, aStart, aIndex[i * 2] - 1, b.content, bStart, bIndex[j * 2] - 1);
+    }
+
+    private int search(byte[] name, int terminator) {
+        int[] index = index();
+        int low = 0;
+        int high = index.length / 2;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compare(index, mid, name, terminator);
+            if(cmp < 0) {
+                low = mid + 1;
+            } else if(cmp > 0) {
+                high = mid;
+            } else {
+                return mid;
             }
+        }
+        return -1;
+    }
+
+    /**
+     * git's base_name_compare: names are compared as unsigned bytes, and when one is a prefix of the other
+     * the next character is taken to be '/' for a directory and NUL for anything else.
+     */
+    private int compare(int[] index, int i, byte[] name, int terminator) {
+        int nameOffset = index[i * 2];
+        int nameLength = index[i * 2 + 1] - 1 - nameOffset;
+        int length = Math.min(nameLength, name.length);
+        for(int k = 0; k < length; k++) {
+            int cmp = (content[nameOffset + k] & 0xff) - (name[k] & 0xff);
+            if(cmp != 0) {
+                return cmp;
+            }
+        }
+
+        int c1 = nameLength > length ? content[nameOffset + length] & 0xff : (isDirectory(index, i) ? '/' : 0);
+        int c2 = name.length > length ? name[length] & 0xff : terminator;
+        return c1 - c2;
+    }
 
-            long mode = Long.parseLong(new String(content, modeOffset, modeLength, StandardCharsets.UTF_8), 8);
+    private boolean isDirectory(int[] index, int i) {
+        // a directory is the only mode starting with '4', "40000"
+        return content[entryStart(index, i)] == '4';
+    }
 
-            int nameOffset = modeOffset + modeLength + 1;
-            int nameLength = 0;
-            while (content[nameOffset + nameLength] != 0) {
-                nameLength++;
+    private static int entryStart(int[] index, int i) {
+        return i == 0 ? 0 : index[i * 2 - 1] + ObjectID.RAW_LENGTH;
+    }
+
+    private int[] index() {
+        int[] result = index;
+        if(result == null) {
+            result = buildIndex();
+            index = result;
+        }
+        return result;
+    }
+
+    private int[] buildIndex() {
+        int[] result = new int[16];
+        int count = 0;
+        for(int idx = 0; idx < content.length;) {
+            int nameOffset = idx;
+            while(content[nameOffset] != ' ') {
+                nameOffset++;
             }
+            nameOffset++;
 
-            String name = new String(content, nameOffset, nameLength, StandardCharsets.UTF_8);
+            int hashOffset = nameOffset;
+            while(content[hashOffset] != 0) {
+                hashOffset++;
+            }
+            hashOffset++;
 
-            int hashFrom = nameOffset + nameLength + 1;
-            int hashTo = hashFrom + 20;
+            if(count * 2 == result.length) {
+                result = Arrays.copyOf(result, result.length * 2);
+            }
+            result[count * 2] = nameOffset;
+            result[count * 2 + 1] = hashOffset;
+            count++;
 
-            ObjectID id = new ObjectID(Arrays.copyOfRange(content, hashFrom, hashTo));
+            idx = hashOffset + ObjectID.RAW_LENGTH;
+        }
+        return Arrays.copyOf(result, count * 2);
+    }
 
-            entries.add(new TreeEntry(mode, name, id));
+    private class Entries extends AbstractList<TreeEntry> implements RandomAccess {
+        @Override
+        public TreeEntry get(int i) {
+            if(i < 0 || i >= size()) {
+                throw new IndexOutOfBoundsException("Index: " + i + ", size: " + size());
+            }
+            return Tree.this.get(i);
+        }
 
-            idx = hashTo;
+        @Override
+        public int size() {
+            return Tree.this.size();
         }
     }
 
-    public List<TreeEntry> getEntries() {
-        return entries;
+    /**
+     * Collects entries in any order and serializes them sorted the way git sorts them, with the mode in
+     * octal without leading zeros, "40000" for a directory and "100644" for a file.
+     */
+    public static class Builder {
+        private final List<TreeEntry> entries = new ArrayList<>();
+
+        public Builder add(long mode, String name, ObjectID id) {
+            entries.add(new TreeEntry(mode, name, id));
+            return this;
+        }
+
+        public int size() {
+            return entries.size();
+        }
+
+        public Tree build() {
+            List<byte[]> names = new ArrayList<>(entries.size());
+            Integer[] order = new Integer[entries.size()];
+            for(int i = 0; i < order.length; i++) {
+                names.add(entries.get(i).name.getBytes(StandardCharsets.UTF_8));
+                order[i] = i;
+            }
+            Arrays.sort(order, (x, y) -> compareNames(names.get(x), entries.get(x).type == TreeFileType.DIRECTORY,
+                    names.get(y), entries.get(y).type == TreeFileType.DIRECTORY));
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(entries.size() * 48);
+            for(int i: order) {
+                TreeEntry entry = entries.get(i);
+                out.writeBytes((Long.toOctalString(entry.mode) + " ").getBytes(StandardCharsets.US_ASCII));
+                out.writeBytes(names.get(i));
+                out.write(0);
+                out.writeBytes(entry.id.toByteArray());
+            }
+            return new Tree(out.toByteArray());
+        }
+
+        /**
+         * base_name_compare, where a directory sorts as if its name ended with '/'.
+         */
+        private static int compareNames(byte[] a, boolean aDirectory, byte[] b, boolean bDirectory) {
+            int length = Math.min(a.length, b.length);
+            int cmp = Arrays.compareUnsigned(a, 0, length, b, 0, length);
+            if(cmp != 0) {
+                return cmp;
+            }
+            int c1 = a.length > length ? a[length] & 0xff : aDirectory ? '/' : 0;
+            int c2 = b.length > length ? b[length] & 0xff : bDirectory ? '/' : 0;
+            return c1 - c2;
+        }
     }
 
     public static class TreeEntry {
@@ -78,6 +336,10 @@ public class Tree {
             return permissions;
         }
 
+        public long mode() {
+            return mode;
+        }
+
         @Override
         public String toString() {
             return String.format("%06o %s %s    %s", mode, getTypeColumn(), id.getHashString(), name);
@@ -88,6 +350,7 @@ public class Tree {
                 case DIRECTORY: return "tree";
                 case REGULAR_FILE: return "blob";
                 case SYMBOLIC_LINK: return "blob";
+                case GIT_LINK: return "commit";
             }
             throw new RuntimeException("Not yet implemented: " + type);
         }
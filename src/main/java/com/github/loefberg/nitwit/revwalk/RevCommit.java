@@ -0,0 +1,98 @@
+package com.github.loefberg.nitwit.revwalk;
+
+import com.github.loefberg.nitwit.ObjectID;
+import com.github.loefberg.nitwit.ds.Commit;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A commit as seen by a {@link RevWalk}.
+ *
+ * A walk only needs the parents, commit time and generation of a commit, and takes them from the
+ * commit-graph when the commit is in it, without reading the commit object at all. The rest of the commit
+ * is loaded the first time {@link #getCommit()} is called.
+ */
+public class RevCommit {
+    /** Generation of a commit that is not in the commit-graph, higher than any real one. */
+    public static final long GENERATION_INFINITY = Long.MAX_VALUE;
+
+    private final RevWalk walk;
+    private final ObjectID id;
+
+    /** Position in the commit-graph, -1 if it is not in it. */
+    int graphPosition;
+    int flags;
+
+    RevCommit[] parents;
+    long commitTime;
+    long generation = GENERATION_INFINITY;
+    Commit commit;
+
+    RevCommit(RevWalk walk, ObjectID id, int graphPosition) {
+        this.walk = walk;
+        this.id = id;
+        this.graphPosition = graphPosition;
+    }
+
+    public ObjectID getId() {
+        return id;
+    }
+
+    public List<RevCommit> getParents() {
+        return Collections.unmodifiableList(Arrays.asList(parents));
+    }
+
+    public int getParentCount() {
+        return parents.length;
+    }
+
+    public RevCommit getParent(int i) {
+        return parents[i];
+    }
+
+    /**
+     * The committer time in seconds since the epoch.
+     */
+    public long getCommitTime() {
+        return commitTime;
+    }
+
+    /**
+     * The generation number from the commit-graph, or {@link #GENERATION_INFINITY} if the commit is not in it.
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * The parsed commit, read from the object store the first time it is asked for.
+     */
+    public Commit getCommit() throws IOException {
+        if(commit == null) {
+            commit = walk.getDataStore().getCommit(id);
+        }
+        return commit;
+    }
+
+    boolean isParsed() {
+        return parents != null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof RevCommit && id.equals(((RevCommit)o).id);
+    }
+
+    @Override
+    public int hashCode() {
+        return id.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return id.toString();
+    }
+}
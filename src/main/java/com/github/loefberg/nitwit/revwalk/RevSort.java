@@ -0,0 +1,12 @@
+package com.github.loefberg.nitwit.revwalk;
+
+/**
+ * The order a {@link RevWalk} returns commits in.
+ */
+public enum RevSort {
+    /** Newest commit time first, like git log. */
+    DATE,
+
+    /** No parent before all of its children, like git log --topo-order. */
+    TOPO
+}
@@ -0,0 +1,427 @@
+package com.github.loefberg.nitwit.revwalk;
+
+import com.github.loefberg.nitwit.ObjectID;
+import com.github.loefberg.nitwit.ds.Commit;
+import com.github.loefberg.nitwit.ds.CommitGraph;
+import com.github.loefberg.nitwit.ds.DataStore;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Walks the history from one or more start commits, like git rev-list.
+ *
+ * Commits are taken from a priority queue, newest first for {@link RevSort#DATE} and highest generation
+ * first for {@link RevSort#TOPO}, and only the parents of a commit that has been returned are read. With
+ * a commit-graph no commit object is read at all; without one each returned commit costs one read, so the
+ * first 20 commits of a long history cost about 20 reads.
+ *
+ * Commits reachable from an uninteresting commit (the A of A..B) are left out. They are painted from a
+ * second queue ordered by generation: before a commit is returned, every uninteresting commit with a
+ * generation at least as high is processed, which is enough since only those can reach it. Commits that are
+ * not in the commit-graph have an infinite generation, so without a graph all of A's history is painted
+ * before the first commit is returned.
+ *
+ * A walk is not thread safe and runs once; {@link #reset()} clears it for another one.
+ */
+public class RevWalk implements Iterable<RevCommit> {
+    private static final int SEEN = 1;
+    private static final int UNINTERESTING = 1 << 1;
+    private static final int PARENT1 = 1 << 2;
+    private static final int PARENT2 = 1 << 3;
+    private static final int STALE = 1 << 4;
+    private static final int RESULT = 1 << 5;
+
+    /** Highest generation first, then newest first. */
+    private static final Comparator<RevCommit> GENERATION_ORDER = Comparator
+            .comparingLong(RevCommit::getGeneration).reversed()
+            .thenComparing(Comparator.comparingLong(RevCommit::getCommitTime).reversed());
+
+    private static final Comparator<RevCommit> DATE_ORDER = Comparator
+            .comparingLong(RevCommit::getCommitTime).reversed();
+
+    private final DataStore ds;
+    private final CommitGraph graph;
+    private final Map<ObjectID, RevCommit> commits = new HashMap<>();
+    private final List<RevCommit> starts = new ArrayList<>();
+    private RevSort sort = RevSort.DATE;
+
+    private PriorityQueue<RevCommit> pending;
+    private PriorityQueue<RevCommit> uninteresting = new PriorityQueue<>(GENERATION_ORDER);
+
+    /** The result of a limited topological walk, when the generation numbers cannot be trusted. */
+    private ArrayDeque<RevCommit> sorted;
+
+    public RevWalk(DataStore ds) throws IOException {
+        this.ds = ds;
+        this.graph = ds.getCommitGraph();
+    }
+
+    DataStore getDataStore() {
+        return ds;
+    }
+
+    public void setSort(RevSort sort) {
+        if(pending != null) {
+            throw new IllegalStateException("Walk already started");
+        }
+        this.sort = sort;
+    }
+
+    /**
+     * Returns the commit with the given ID, with its parents, time and generation loaded.
+     */
+    public RevCommit parseCommit(ObjectID id) throws IOException {
+        RevCommit commit = lookup(id, -2);
+        parseHeaders(commit);
+        return commit;
+    }
+
+    public void markStart(ObjectID id) throws IOException {
+        if(pending != null) {
+            throw new IllegalStateException("Walk already started");
+        }
+        RevCommit commit = parseCommit(id);
+        if((commit.flags & SEEN) == 0) {
+            commit.flags |= SEEN;
+            starts.add(commit);
+        }
+    }
+
+    /**
+     * Leaves out the commit and everything reachable from it.
+     */
+    public void markUninteresting(ObjectID id) throws IOException {
+        if(pending != null) {
+            throw new IllegalStateException("Walk already started");
+        }
+        RevCommit commit = parseCommit(id);
+        if((commit.flags & UNINTERESTING) == 0) {
+            commit.flags |= UNINTERESTING;
+            uninteresting.add(commit);
+        }
+    }
+
+    /**
+     * Returns the next commit of the walk, or null when there are no more.
+     */
+    public RevCommit next() throws IOException {
+        if(pending == null) {
+            start();
+        }
+        if(sorted != null) {
+            return sorted.poll();
+        }
+        return nextIncremental();
+    }
+
+    /**
+     * Forgets the start and uninteresting commits, keeping the commits already loaded.
+     */
+    public void reset() {
+        for(RevCommit commit: commits.values()) {
+            commit.flags = 0;
+        }
+        starts.clear();
+        pending = null;
+        uninteresting = new PriorityQueue<>(GENERATION_ORDER);
+        sorted = null;
+    }
+
+    @Override
+    public Iterator<RevCommit> iterator() {
+        return new Iterator<>() {
+            private RevCommit next;
+
+            @Override
+            public boolean hasNext() {
+                if(next == null) {
+                    try {
+                        next = RevWalk.this.next();
+                    } catch(IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public RevCommit next() {
+                if(!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                RevCommit result = next;
+                next = null;
+                return result;
+            }
+        };
+    }
+
+    /**
+     * The walk as a stream, commits are only read as the stream is consumed.
+     */
+    public Stream<RevCommit> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(),
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Returns true if {@code base} is {@code tip} or one of its ancestors. Commits with a generation no
+     * higher than that of {@code base} cannot reach it, so the search never goes below it.
+     */
+    public boolean isMergedInto(ObjectID base, ObjectID tip) throws IOException {
+        RevCommit target = parseCommit(base);
+        Set<RevCommit> seen = new HashSet<>();
+        ArrayDeque<RevCommit> stack = new ArrayDeque<>();
+        stack.push(parseCommit(tip));
+        while(!stack.isEmpty()) {
+            RevCommit commit = stack.pop();
+            if(commit == target) {
+                return true;
+            }
+            if(commit.generation <= target.generation && target.generation != RevCommit.GENERATION_INFINITY) {
+                continue;
+            }
+            for(RevCommit parent: commit.parents) {
+                if(seen.add(parent)) {
+                    parseHeaders(parent);
+                    stack.push(parent);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the best common ancestors of the two commits, like git merge-base --all.
+     *
+     * Both sides are painted down from a queue ordered by generation, so a commit is only taken once every
+     * commit above it that could reach it has been, and the walk stops as soon as everything left in the
+     * queue is below a common ancestor already found. This does not disturb the flags of a walk in progress.
+     */
+    public List<RevCommit> getMergeBases(ObjectID a, ObjectID b) throws IOException {
+        RevCommit one = parseCommit(a);
+        RevCommit two = parseCommit(b);
+        if(one == two) {
+            return List.of(one);
+        }
+
+        List<RevCommit> touched = new ArrayList<>();
+        List<RevCommit> result = new ArrayList<>();
+        PriorityQueue<RevCommit> queue = new PriorityQueue<>(GENERATION_ORDER);
+        one.flags |= PARENT1;
+        two.flags |= PARENT2;
+        touched.add(one);
+        touched.add(two);
+        queue.add(one);
+        queue.add(two);
+
+        while(hasNonStale(queue)) {
+            RevCommit commit = queue.poll();
+            int flags = commit.flags & (PARENT1 | PARENT2 | STALE);
+            if(flags == (PARENT1 | PARENT2)) {
+                if((commit.flags & RESULT) == 0) {
+                    commit.flags |= RESULT;
+                    result.add(commit);
+                }
+                flags |= STALE;
+            }
+            for(RevCommit parent: commit.parents) {
+                if((parent.flags & flags) == flags) {
+                    continue;
+                }
+                parseHeaders(parent);
+                if((parent.flags & (PARENT1 | PARENT2 | STALE)) == 0) {
+                    touched.add(parent);
+                }
+                parent.flags |= flags;
+                queue.add(parent);
+            }
+        }
+
+        for(RevCommit commit: touched) {
+            commit.flags &= ~(PARENT1 | PARENT2 | STALE | RESULT);
+        }
+
+        // without generation numbers a base can be an ancestor of another one
+        if(result.size() > 1) {
+            List<RevCommit> redundant = new ArrayList<>();
+            for(RevCommit candidate: result) {
+                for(RevCommit other: result) {
+                    if(other != candidate && !redundant.contains(other)
+                            && isMergedInto(candidate.getId(), other.getId())) {
+                        redundant.add(candidate);
+                        break;
+                    }
+                }
+            }
+            result.removeAll(redundant);
+        }
+        result.sort(GENERATION_ORDER);
+        return result;
+    }
+
+    private static boolean hasNonStale(PriorityQueue<RevCommit> queue) {
+        for(RevCommit commit: queue) {
+            if((commit.flags & STALE) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void start() throws IOException {
+        boolean incrementalTopo = true;
+        for(RevCommit commit: starts) {
+            incrementalTopo &= commit.generation != RevCommit.GENERATION_INFINITY;
+        }
+
+        pending = new PriorityQueue<>(sort == RevSort.TOPO ? GENERATION_ORDER : DATE_ORDER);
+        pending.addAll(starts);
+
+        if(sort == RevSort.TOPO && !incrementalTopo) {
+            sorted = topoSort();
+        }
+    }
+
+    private RevCommit nextIncremental() throws IOException {
+        RevCommit commit;
+        while((commit = pending.poll()) != null) {
+            paintUninteresting(commit.generation);
+            if((commit.flags & UNINTERESTING) != 0) {
+                continue;
+            }
+
+            for(RevCommit parent: commit.parents) {
+                if((parent.flags & (SEEN | UNINTERESTING)) == 0) {
+                    parent.flags |= SEEN;
+                    parseHeaders(parent);
+                    pending.add(parent);
+                }
+            }
+            return commit;
+        }
+        return null;
+    }
+
+    /**
+     * Paints everything reachable from the uninteresting commits down to the given generation.
+     */
+    private void paintUninteresting(long generation) throws IOException {
+        while(!uninteresting.isEmpty() && uninteresting.peek().generation >= generation) {
+            RevCommit commit = uninteresting.poll();
+            for(RevCommit parent: commit.parents) {
+                if((parent.flags & UNINTERESTING) == 0) {
+                    parent.flags |= UNINTERESTING;
+                    parseHeaders(parent);
+                    uninteresting.add(parent);
+                }
+            }
+        }
+    }
+
+    /**
+     * Collects the whole walk and sorts it so children come before parents, taking the newest of the
+     * commits whose children are all done first, the way git --topo-order does without a commit-graph.
+     */
+    private ArrayDeque<RevCommit> topoSort() throws IOException {
+        pending = new PriorityQueue<>(DATE_ORDER);
+        pending.addAll(starts);
+        List<RevCommit> all = new ArrayList<>();
+        RevCommit commit;
+        while((commit = nextIncremental()) != null) {
+            all.add(commit);
+        }
+
+        Map<RevCommit, Integer> children = new HashMap<>();
+        for(RevCommit c: all) {
+            for(RevCommit parent: c.parents) {
+                if((parent.flags & UNINTERESTING) == 0) {
+                    children.merge(parent, 1, Integer::sum);
+                }
+            }
+        }
+
+        PriorityQueue<RevCommit> ready = new PriorityQueue<>(DATE_ORDER);
+        for(RevCommit c: all) {
+            if(!children.containsKey(c)) {
+                ready.add(c);
+            }
+        }
+
+        ArrayDeque<RevCommit> result = new ArrayDeque<>(all.size());
+        while((commit = ready.poll()) != null) {
+            result.add(commit);
+            for(RevCommit parent: commit.parents) {
+                Integer count = children.get(parent);
+                if(count == null) {
+                    continue;
+                }
+                if(count == 1) {
+                    children.remove(parent);
+                    ready.add(parent);
+                } else {
+                    children.put(parent, count - 1);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param graphPosition the position in the commit-graph, -1 if not in it, -2 if not known yet
+     */
+    private RevCommit lookup(ObjectID id, int graphPosition) {
+        RevCommit commit = commits.get(id);
+        if(commit == null) {
+            if(graphPosition == -2) {
+                graphPosition = graph == null ? -1 : graph.findPosition(id);
+            }
+            commit = new RevCommit(this, id, graphPosition);
+            commits.put(id, commit);
+        }
+        return commit;
+    }
+
+    private void parseHeaders(RevCommit commit) throws IOException {
+        if(commit.isParsed()) {
+            return;
+        }
+
+        int position = commit.graphPosition;
+        if(position >= 0) {
+            int[] parents = graph.getParents(position);
+            commit.parents = new RevCommit[parents.length];
+            for(int i = 0; i < parents.length; i++) {
+                commit.parents[i] = lookup(graph.getObjectID(parents[i]), parents[i]);
+            }
+            commit.commitTime = graph.getCommitTime(position);
+            commit.generation = graph.getGeneration(position);
+            return;
+        }
+
+        Commit parsed = ds.getCommit(commit.getId());
+        List<ObjectID> parents = parsed.getParents();
+        commit.parents = new RevCommit[parents.size()];
+        for(int i = 0; i < commit.parents.length; i++) {
+            commit.parents[i] = lookup(parents.get(i), -2);
+        }
+        commit.commitTime = parsed.getCommitTime();
+        commit.commit = parsed;
+    }
+}
@@ -0,0 +1,63 @@
+package com.github.loefberg.nitwit.util;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * Decodes the EWAH compressed bitmaps git stores in the index extensions.
+ *
+ * <pre>
+ * - 32-bit number of bits
+ * - 32-bit number of 64-bit words
+ * - the words
+ * - 32-bit position of the last run length word
+ * </pre>
+ *
+ * The words are a sequence of a run length word followed by literal words. A run length word holds the
+ * running bit in bit 0, the number of 64-bit words filled with the running bit in bits 1-32 and the number
+ * of literal words that follow in bits 33-63.
+ */
+public final class Ewah {
+    private Ewah() {
+    }
+
+    /**
+     * Reads a bitmap at the position of the buffer and leaves the position after it.
+     */
+    public static BitSet decode(ByteBuffer buf) {
+        int bitCount = buf.getInt();
+        int wordCount = buf.getInt();
+        BitSet result = new BitSet(bitCount);
+
+        int bit = 0;
+        int read = 0;
+        while(read < wordCount) {
+            long marker = buf.getLong();
+            read++;
+            boolean running = (marker & 1) != 0;
+            long runLength = (marker >>> 1) & 0xffffffffL;
+            int literals = (int)(marker >>> 33);
+
+            long runBits = runLength * 64;
+            if(running) {
+                result.set(bit, (int)Math.min(bit + runBits, bitCount));
+            }
+            bit += (int)runBits;
+
+            for(int i = 0; i < literals && read < wordCount; i++, read++) {
+                long word = buf.getLong();
+                while(word != 0) {
+                    int offset = Long.numberOfTrailingZeros(word);
+                    if(bit + offset < bitCount) {
+                        result.set(bit + offset);
+                    }
+                    word &= word - 1;
+                }
+                bit += 64;
+            }
+        }
+
+        buf.getInt();
+        return result;
+    }
+}
@@ -1,14 +1,77 @@
 package com.github.loefberg.nitwit.util;
 
-import java.math.BigInteger;
+import java.util.Arrays;
 
+/**
+ * Table driven hex encoding and decoding, lower case like git.
+ */
 public class Hex {
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+    private static final byte[] VALUES = new byte['f' + 1];
+
+    static {
+        Arrays.fill(VALUES, (byte)-1);
+        for(int i = 0; i < 10; i++) {
+            VALUES['0' + i] = (byte)i;
+        }
+        for(int i = 0; i < 6; i++) {
+            VALUES['a' + i] = (byte)(10 + i);
+            VALUES['A' + i] = (byte)(10 + i);
+        }
+    }
+
     public static String toHex(byte[] array) {
-        BigInteger bi = new BigInteger(1, array);
-        String hex = bi.toString(16);
-        int paddingLength = (array.length * 2) - hex.length();
-        return paddingLength > 0
-                ? String.format("%0" + paddingLength + "d", 0) + hex
-                : hex;
+        return toHex(array, 0, array.length);
+    }
+
+    public static String toHex(byte[] array, int offset, int length) {
+        char[] chars = new char[length * 2];
+        for(int i = 0; i < length; i++) {
+            int v = array[offset + i] & 0xff;
+            chars[i * 2] = DIGITS[v >>> 4];
+            chars[i * 2 + 1] = DIGITS[v & 0x0f];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Writes the {@code digits} lowest nibbles of {@code value} as hex, most significant first.
+     */
+    public static void encode(long value, int digits, char[] dst, int offset) {
+        for(int i = digits - 1; i >= 0; i--) {
+            dst[offset + i] = DIGITS[(int)(value & 0xf)];
+            value >>>= 4;
+        }
+    }
+
+    /**
+     * Decodes {@code digits} hex characters starting at {@code offset}, at most 16.
+     */
+    public static long decode(CharSequence hex, int offset, int digits) {
+        long value = 0;
+        for(int i = 0; i < digits; i++) {
+            value = (value << 4) | digit(hex, offset + i);
+        }
+        return value;
+    }
+
+    public static byte[] fromHex(String hex) {
+        if(hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Invalid hex string length: " + hex.length());
+        }
+        byte[] result = new byte[hex.length() / 2];
+        for(int i = 0; i < result.length; i++) {
+            result[i] = (byte)((digit(hex, i * 2) << 4) | digit(hex, i * 2 + 1));
+        }
+        return result;
+    }
+
+    private static int digit(CharSequence hex, int index) {
+        char ch = hex.charAt(index);
+        int value = ch < VALUES.length ? VALUES[ch] : -1;
+        if(value < 0) {
+            throw new IllegalArgumentException("Invalid hex character '" + ch + "' in: " + hex);
+        }
+        return value;
     }
 }
@@ -0,0 +1,118 @@
+package com.github.loefberg.nitwit.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read-only view of a whole file, memory-mapped in segments of 1 GiB so that files larger than
+ * what a single {@link ByteBuffer} can address (2 GiB) can be read too.
+ *
+ * File systems that do not support mapping (for example the zip file system used by the tests) are
+ * read into heap buffers instead.
+ */
+public class MappedFile {
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+    private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private final Path file;
+    private final ByteBuffer[] segments;
+    private final long size;
+
+    public static MappedFile open(Path file) throws IOException {
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int count = (int)Math.max(1, (size + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+            ByteBuffer[] segments = new ByteBuffer[count];
+            for(int i = 0; i < count; i++) {
+                long position = (long)i << SEGMENT_SHIFT;
+                long length = Math.min(SEGMENT_SIZE, size - position);
+                segments[i] = map(channel, position, (int)length);
+            }
+            return new MappedFile(file, segments, size);
+        }
+    }
+
+    private static ByteBuffer map(FileChannel channel, long position, int length) throws IOException {
+        try {
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        } catch(UnsupportedOperationException ex) {
+            ByteBuffer buf = ByteBuffer.allocate(length);
+            while(buf.hasRemaining()) {
+                if(channel.read(buf, position + buf.position()) < 0) {
+                    throw new EOFException("Unexpected end of file at " + (position + buf.position()));
+                }
+            }
+            return buf.flip();
+        }
+    }
+
+    private MappedFile(Path file, ByteBuffer[] segments, long size) {
+        this.file = file;
+        this.segments = segments;
+        this.size = size;
+    }
+
+    public Path getPath() {
+        return file;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public byte get(long position) {
+        return segments[(int)(position >>> SEGMENT_SHIFT)].get((int)(position & SEGMENT_MASK));
+    }
+
+    public int getUnsignedByte(long position) {
+        return get(position) & 0xff;
+    }
+
+    public int getInt(long position) {
+        ByteBuffer segment = segments[(int)(position >>> SEGMENT_SHIFT)];
+        int offset = (int)(position & SEGMENT_MASK);
+        if(offset + 4 <= segment.limit()) {
+            return segment.getInt(offset);
+        }
+        return (getUnsignedByte(position) << 24)
+                | (getUnsignedByte(position + 1) << 16)
+                | (getUnsignedByte(position + 2) << 8)
+                | getUnsignedByte(position + 3);
+    }
+
+    public long getUnsignedInt(long position) {
+        return getInt(position) & 0xffffffffL;
+    }
+
+    public long getLong(long position) {
+        return ((long)getInt(position) << 32) | getUnsignedInt(position + 4);
+    }
+
+    public void get(long position, byte[] dst, int offset, int length) {
+        while(length > 0) {
+            ByteBuffer segment = segments[(int)(position >>> SEGMENT_SHIFT)];
+            int segmentOffset = (int)(position & SEGMENT_MASK);
+            int n = Math.min(length, segment.limit() - segmentOffset);
+            segment.get(segmentOffset, dst, offset, n);
+            position += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Returns a read-only buffer starting at {@code position} holding at most {@code maxLength} bytes. The
+     * buffer never spans two segments, so it can be shorter than requested even when the file is not.
+     */
+    public ByteBuffer slice(long position, int maxLength) {
+        ByteBuffer segment = segments[(int)(position >>> SEGMENT_SHIFT)];
+        int offset = (int)(position & SEGMENT_MASK);
+        int length = (int)Math.min(maxLength, Math.min(segment.limit() - offset, size - position));
+        return segment.slice(offset, length).asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,65 @@
+package com.github.loefberg.nitwit.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Runs I/O bound loops on a fork/join pool.
+ *
+ * Streams cannot throw checked exceptions, so an IOException thrown by the action is carried out of the
+ * pool wrapped and thrown again as itself. The first failure wins, the remaining work is not waited for.
+ */
+public final class Parallel {
+    private Parallel() {
+    }
+
+    @FunctionalInterface
+    public interface IOIntConsumer {
+        void accept(int i) throws IOException;
+    }
+
+    /**
+     * Calls {@code action} for every i in [0, count) on the threads of the pool and waits for all of them.
+     */
+    public static void forEach(ForkJoinPool pool, int count, IOIntConsumer action) throws IOException {
+        if(count == 0) {
+            return;
+        }
+        if(count == 1 || pool.getParallelism() == 1) {
+            for(int i = 0; i < count; i++) {
+                action.accept(i);
+            }
+            return;
+        }
+
+        try {
+            // a parallel stream started from inside a pool runs on that pool instead of the common one
+            pool.submit(() -> IntStream.range(0, count).parallel().forEach(i -> {
+                try {
+                    action.accept(i);
+                } catch(IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            })).get();
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for parallel work");
+        } catch(ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if(cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException)cause).getCause();
+            }
+            if(cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if(cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.github.loefberg.nitwit;
+
+import com.github.loefberg.nitwit.ds.DataStore;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BulkAdderTest {
+    private final NativeGit ngit = NativeGit.newInstance();
+    private Path workingDir;
+
+    @BeforeEach
+    public void initRepository() throws Exception {
+        workingDir = ngit.init("nitwit-add-test-");
+        Files.writeString(workingDir.resolve(".gitignore"), "*.log\n");
+        Files.writeString(workingDir.resolve("tracked.txt"), "tracked\n");
+        Files.writeString(workingDir.resolve("deleted.txt"), "deleted\n");
+        ngit.commit(workingDir, "initial");
+    }
+
+    @AfterEach
+    public void cleanupRepository() throws Exception {
+        FileUtils.deleteDirectory(workingDir.toFile());
+    }
+
+    @Test
+    public void testAddSameAsGit() throws Exception {
+        for(int i = 0; i < 500; i++) {
+            Path dir = workingDir.resolve("gen/dir" + (i % 13));
+            Files.createDirectories(dir);
+            // many files share content
+            Files.writeString(dir.resolve("file" + i + ".txt"), "generated " + (i % 50) + "\n");
+        }
+        Files.writeString(workingDir.resolve("gen/debug.log"), "ignored\n");
+        Files.writeString(workingDir.resolve("tracked.txt"), "changed\n");
+        Files.delete(workingDir.resolve("deleted.txt"));
+        Files.writeString(workingDir.resolve("run.sh"), "#!/bin/sh\n");
+        workingDir.resolve("run.sh").toFile().setExecutable(true);
+        Files.createSymbolicLink(workingDir.resolve("link"), Paths.get("tracked.txt"));
+        Files.write(workingDir.resolve("large.bin"), new byte[100_000]);
+
+        Index index = Index.read(workingDir.resolve(".git/index"));
+        BulkAdder adder = new BulkAdder(workingDir, new DataStore(workingDir.resolve(".git")), new ForkJoinPool(4));
+        adder.setMemoryLimit(4096);
+        index = adder.add(index, Files.getLastModifiedTime(workingDir.resolve(".git/index")), List.of(Paths.get("")));
+        new IndexWriter().write(index, workingDir.resolve(".git/index"));
+
+        List<String> ours = lsFiles();
+        assertEquals(505, ours.size());
+        ngit.run(workingDir, "add", "-A");
+        assertEquals(lsFiles(), ours);
+        ngit.run(workingDir, "fsck", "--no-dangling");
+    }
+
+    @Test
+    public void testAddPaths() throws Exception {
+        Files.createDirectories(workingDir.resolve("a/b"));
+        Files.writeString(workingDir.resolve("a/b/one.txt"), "one\n");
+        Files.writeString(workingDir.resolve("a/two.txt"), "two\n");
+        Files.writeString(workingDir.resolve("three.txt"), "three\n");
+        Files.delete(workingDir.resolve("deleted.txt"));
+
+        Workspace workspace = new Workspace(workingDir);
+        workspace.add(List.of(Paths.get("a/b"), Paths.get("three.txt"), Paths.get("deleted.txt")));
+        assertEquals(List.of(".gitignore", "a/b/one.txt", "three.txt", "tracked.txt"), lsFileNames());
+        assertTrue(workspace.status().getUntracked().contains("a/two.txt"));
+
+        Files.delete(workingDir.resolve("three.txt"));
+        assertThrows(NoSuchFileException.class, () -> workspace.add(List.of(Paths.get("missing.txt"))));
+        workspace.add(List.of(Paths.get("three.txt")));
+        assertEquals(List.of(".gitignore", "a/b/one.txt", "tracked.txt"), lsFileNames());
+        ngit.run(workingDir, "fsck", "--no-dangling");
+    }
+
+    @Test
+    public void testTrackedInIgnoredDirectory() throws Exception {
+        Files.writeString(workingDir.resolve(".gitignore"), "*.log\nbuild/\n");
+        Files.createDirectories(workingDir.resolve("build/sub"));
+        Files.writeString(workingDir.resolve("build/keep.txt"), "keep\n");
+        Files.writeString(workingDir.resolve("build/sub/deep.txt"), "deep\n");
+        ngit.run(workingDir, "add", "-f", ".gitignore", "build");
+        ngit.runAsCommitter(workingDir, "commit", "-q", "-m", "build");
+
+        Files.writeString(workingDir.resolve("build/keep.txt"), "changed\n");
+        Files.writeString(workingDir.resolve("build/sub/deep.txt"), "changed too\n");
+        Files.writeString(workingDir.resolve("build/output.txt"), "ignored\n");
+        Files.createDirectories(workingDir.resolve("build/generated"));
+        Files.writeString(workingDir.resolve("build/generated/out.txt"), "ignored\n");
+
+        new Workspace(workingDir).add(List.of(Paths.get("")));
+        List<String> ours = lsFiles();
+        assertTrue(lsFileNames().contains("build/keep.txt"));
+        assertFalse(lsFileNames().contains("build/output.txt"));
+        ngit.run(workingDir, "add", ".");
+        assertEquals(lsFiles(), ours);
+        assertEquals("", ngit.run(workingDir, "diff", "--stat").stdout);
+    }
+
+    @Test
+    public void testFileReplacedByDirectory() throws Exception {
+        Files.delete(workingDir.resolve("tracked.txt"));
+        Files.createDirectories(workingDir.resolve("tracked.txt/sub"));
+        Files.writeString(workingDir.resolve("tracked.txt/sub/file.txt"), "file\n");
+        Files.delete(workingDir.resolve("deleted.txt"));
+        Files.createDirectories(workingDir.resolve("deleted.txt"));
+        Files.writeString(workingDir.resolve("deleted.txt/other.txt"), "other\n");
+
+        // the first by its own path, the second from the top
+        Workspace workspace = new Workspace(workingDir);
+        workspace.add(List.of(Paths.get("tracked.txt/sub/file.txt")));
+        assertEquals(List.of(".gitignore", "deleted.txt", "tracked.txt/sub/file.txt"), lsFileNames());
+        workspace.add(List.of(Paths.get("")));
+        assertEquals(List.of(".gitignore", "deleted.txt/other.txt", "tracked.txt/sub/file.txt"), lsFileNames());
+        workspace.writeTree();
+        ngit.run(workingDir, "fsck", "--no-dangling");
+    }
+
+    @Test
+    public void testDirectoryReplacedByFile() throws Exception {
+        Files.createDirectories(workingDir.resolve("dir/sub"));
+        Files.writeString(workingDir.resolve("dir/one.txt"), "one\n");
+        Files.writeString(workingDir.resolve("dir/sub/two.txt"), "two\n");
+        ngit.commit(workingDir, "dir");
+        FileUtils.deleteDirectory(workingDir.resolve("dir").toFile());
+        Files.writeString(workingDir.resolve("dir"), "file\n");
+
+        Workspace workspace = new Workspace(workingDir);
+        workspace.add(List.of(Paths.get("dir")));
+        assertEquals(List.of(".gitignore", "deleted.txt", "dir", "tracked.txt"), lsFileNames());
+        workspace.writeTree();
+        ngit.run(workingDir, "fsck", "--no-dangling");
+    }
+
+    private List<String> lsFiles() throws Exception {
+        List<String> lines = new ArrayList<>();
+        for(String line: ngit.run(workingDir, "ls-files", "-s").stdout.split("\n")) {
+            if(!line.isBlank()) {
+                lines.add(line.trim());
+            }
+        }
+        return lines;
+    }
+
+    private List<String> lsFileNames() throws Exception {
+        List<String> names = new ArrayList<>();
+        for(String line: lsFiles()) {
+            names.add(line.substring(line.indexOf('\t') + 1));
+        }
+        return names;
+    }
+}
@@ -0,0 +1,151 @@
+package com.github.loefberg.nitwit;
+
+import com.github.loefberg.nitwit.ds.DataStore;
+import com.github.loefberg.nitwit.ds.Tree;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CheckoutTest {
+    private final NativeGit ngit = NativeGit.newInstance();
+    private Path workingDir;
+
+    @BeforeEach
+    public void initRepository() throws Exception {
+        workingDir = ngit.init("nitwit-checkout-test-");
+        for(int i = 0; i < 300; i++) {
+            Path dir = workingDir.resolve("gen/dir" + (i % 11) + "/sub" + (i % 3));
+            Files.createDirectories(dir);
+            Files.writeString(dir.resolve("file" + i + ".txt"), "generated " + (i % 40) + "\n");
+        }
+        Files.writeString(workingDir.resolve("run.sh"), "#!/bin/sh\n");
+        workingDir.resolve("run.sh").toFile().setExecutable(true);
+        Files.createSymbolicLink(workingDir.resolve("link"), Paths.get("gen/dir0/sub0/file0.txt"));
+        Files.write(workingDir.resolve("large.bin"), new byte[300_000]);
+        ngit.commit(workingDir, "initial");
+    }
+
+    @AfterEach
+    public void cleanupRepository() throws Exception {
+        FileUtils.deleteDirectory(workingDir.toFile());
+    }
+
+    @Test
+    public void testSameAsGit() throws Exception {
+        String staged = ngit.run(workingDir, "ls-files", "-s").stdout;
+        ngit.run(workingDir, "read-tree", "HEAD");
+        String cacheTree = format(Index.read(workingDir.resolve(".git/index")).getCacheTree());
+
+        FileUtils.deleteDirectory(workingDir.resolve("gen").toFile());
+        Files.delete(workingDir.resolve(".git/index"));
+        Files.delete(workingDir.resolve("link"));
+        // files in the way are replaced, a symbolic link is not written through
+        Files.writeString(workingDir.resolve("run.sh"), "changed\n");
+        Files.delete(workingDir.resolve("large.bin"));
+        Files.createSymbolicLink(workingDir.resolve("large.bin"), Paths.get("run.sh"));
+
+        ObjectID tree = new ObjectID(ngit.run(workingDir, "rev-parse", "HEAD^{tree}").stdout.trim());
+        Index index = new Workspace(workingDir).checkout(tree, new ForkJoinPool(4));
+
+        assertEquals(303, index.size());
+        assertEquals(staged, ngit.run(workingDir, "ls-files", "-s").stdout);
+        assertEquals(cacheTree, format(index.getCacheTree()));
+        assertEquals("#!/bin/sh\n", Files.readString(workingDir.resolve("run.sh")));
+        assertTrue(Files.isExecutable(workingDir.resolve("run.sh")));
+        assertTrue(Files.isSymbolicLink(workingDir.resolve("link")));
+        assertTrue(Files.isRegularFile(workingDir.resolve("large.bin"), LinkOption.NOFOLLOW_LINKS));
+
+        // the stat data is there, so git sees no change without refreshing the index
+        assertEquals("", ngit.run(workingDir, "diff-files").stdout);
+        assertEquals("", ngit.run(workingDir, "status", "--porcelain").stdout);
+        assertTrue(new Workspace(workingDir).status().isClean());
+    }
+
+    @Test
+    public void testDirectoryWhereFileIs() throws Exception {
+        Files.delete(workingDir.resolve("run.sh"));
+        Files.createDirectories(workingDir.resolve("run.sh/sub"));
+        Files.writeString(workingDir.resolve("run.sh/sub/file.txt"), "in the way\n");
+        Files.createSymbolicLink(workingDir.resolve("run.sh/link"), workingDir.resolve("large.bin"));
+
+        ObjectID tree = new ObjectID(ngit.run(workingDir, "rev-parse", "HEAD^{tree}").stdout.trim());
+        Index index = new Workspace(workingDir).checkout(tree, new ForkJoinPool(4));
+        assertEquals(303, index.size());
+        assertEquals("#!/bin/sh\n", Files.readString(workingDir.resolve("run.sh")));
+        assertTrue(Files.isRegularFile(workingDir.resolve("large.bin"), LinkOption.NOFOLLOW_LINKS));
+        assertTrue(new Workspace(workingDir).status().isClean());
+    }
+
+    @Test
+    public void testFileWhereDirectoryIs() throws Exception {
+        FileUtils.deleteDirectory(workingDir.resolve("gen/dir1").toFile());
+        Files.writeString(workingDir.resolve("gen/dir1"), "in the way\n");
+
+        ObjectID tree = new ObjectID(ngit.run(workingDir, "rev-parse", "HEAD^{tree}").stdout.trim());
+        Index index = new Workspace(workingDir).checkout(tree, new ForkJoinPool(4));
+        assertEquals(303, index.size());
+        assertTrue(Files.isDirectory(workingDir.resolve("gen/dir1/sub0"), LinkOption.NOFOLLOW_LINKS));
+        assertTrue(new Workspace(workingDir).status().isClean());
+    }
+
+    @Test
+    public void testRejectsPathsOutsideWorkTree() throws Exception {
+        DataStore ds = new DataStore(workingDir.resolve(".git"));
+        ObjectID hook = blob(ds, "#!/bin/sh\necho pwned\n");
+        ObjectID hooks = tree(ds, new Tree.Builder().add(0100755, "post-checkout", hook));
+        ObjectID dotGit = tree(ds, new Tree.Builder().add(040000, "hooks", hooks));
+        assertRejected(ds, tree(ds, new Tree.Builder().add(0100644, "first.txt", hook).add(040000, ".GIT", dotGit)));
+        assertFalse(Files.exists(workingDir.resolve(".git/hooks/post-checkout")));
+
+        ObjectID escaped = tree(ds, new Tree.Builder().add(0100644, "escaped.txt", hook));
+        ObjectID sub = tree(ds, new Tree.Builder().add(040000, "..", escaped));
+        assertRejected(ds, tree(ds, new Tree.Builder().add(040000, "sub", sub)));
+        assertFalse(Files.exists(workingDir.getParent().resolve("escaped.txt")));
+        assertFalse(Files.exists(workingDir.resolve("sub")));
+
+        // a file beyond a symbolic link of the same checkout would be written wherever the link points
+        ObjectID target = blob(ds, workingDir.getParent().toString());
+        ObjectID inside = tree(ds, new Tree.Builder().add(0100644, "escaped.txt", hook));
+        assertRejected(ds, tree(ds, new Tree.Builder().add(0120000, "outside", target).add(040000, "OUTSIDE", inside)));
+        assertFalse(Files.exists(workingDir.resolve("outside"), LinkOption.NOFOLLOW_LINKS));
+        assertFalse(Files.exists(workingDir.getParent().resolve("escaped.txt")));
+    }
+
+    private void assertRejected(DataStore ds, ObjectID tree) {
+        assertThrows(IOException.class, () -> new Checkout(workingDir, ds).checkout(tree, 2));
+        assertFalse(Files.exists(workingDir.resolve("first.txt")));
+    }
+
+    private static ObjectID blob(DataStore ds, String content) throws Exception {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        ObjectID id = DataStore.hashBlob(bytes);
+        ds.putBlob(id, bytes);
+        return id;
+    }
+
+    private static ObjectID tree(DataStore ds, Tree.Builder builder) throws Exception {
+        return new ObjectID(ds.putTree(builder.build()));
+    }
+
+    private static String format(CacheTree tree) {
+        StringBuilder result = new StringBuilder(tree.toString()).append('\n');
+        for(CacheTree child: tree.getChildren()) {
+            result.append(format(child));
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,173 @@
+package com.github.loefberg.nitwit;
+
+import com.github.loefberg.nitwit.Index.IndexEntry;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IndexTest {
+    private final NativeGit ngit = NativeGit.newInstance();
+    private Path workingDir;
+
+    @BeforeEach
+    public void initRepository() throws Exception {
+        workingDir = ngit.init("nitwit-index-test-");
+        for(String dir: List.of("a", "a/b", "c", "d")) {
+            Files.createDirectories(workingDir.resolve(dir));
+            for(int i = 0; i < 3; i++) {
+                Files.writeString(workingDir.resolve(dir + "/file" + i + ".txt"), dir + " " + i + "\n");
+            }
+        }
+        Files.writeString(workingDir.resolve("a-file.txt"), "a-file\n");
+        Files.writeString(workingDir.resolve("executable.sh"), "#!/bin/sh\n");
+        workingDir.resolve("executable.sh").toFile().setExecutable(true);
+        ngit.commit(workingDir, "initial");
+    }
+
+    @AfterEach
+    public void cleanupRepository() throws Exception {
+        FileUtils.deleteDirectory(workingDir.toFile());
+    }
+
+    @Test
+    public void testReadVersion2() throws Exception {
+        ngit.run(workingDir, "update-index", "--index-version", "2");
+        Index index = Index.read(workingDir.resolve(".git/index"));
+        assertEquals(2, index.getVersion());
+        assertEntriesMatchLsFiles(index);
+
+        // git commit leaves a valid cache tree behind
+        CacheTree tree = index.getCacheTree();
+        assertNotNull(tree);
+        assertTrue(tree.isValid());
+        assertEquals(index.getEntries().size(), tree.getEntryCount());
+        assertEquals(new ObjectID(ngit.run(workingDir, "rev-parse", "HEAD^{tree}").stdout.trim()), tree.getId());
+        assertEquals(new ObjectID(ngit.run(workingDir, "rev-parse", "HEAD:a/b").stdout.trim()),
+                tree.getChild("a").getChild("b").getId());
+    }
+
+    @Test
+    public void testReadVersion3() throws Exception {
+        ngit.run(workingDir, "update-index", "--skip-worktree", "c/file1.txt");
+        Files.writeString(workingDir.resolve("new.txt"), "new\n");
+        ngit.run(workingDir, "add", "-N", "new.txt");
+
+        Index index = Index.read(workingDir.resolve(".git/index"));
+        assertEquals(3, index.getVersion());
+        assertEntriesMatchLsFiles(index);
+        for(IndexEntry entry: index.getEntries()) {
+            assertEquals(entry.getPathName().equals("c/file1.txt"), entry.isSkipWorktree(), entry.getPathName());
+            assertEquals(entry.getPathName().equals("new.txt"), entry.isIntentToAdd(), entry.getPathName());
+        }
+
+        // adding a file invalidates the cache tree up to the root
+        CacheTree tree = index.getCacheTree();
+        assertFalse(tree.isValid());
+        assertTrue(tree.getChild("a").isValid());
+    }
+
+    @Test
+    public void testReadVersion4() throws Exception {
+        ngit.run(workingDir, "update-index", "--index-version", "4");
+        Index index = Index.read(workingDir.resolve(".git/index"));
+        assertEquals(4, index.getVersion());
+        assertEntriesMatchLsFiles(index);
+    }
+
+    @Test
+    public void testReadExtensions() throws Exception {
+        for(int i = 0; i < 2000; i++) {
+            Files.writeString(workingDir.resolve("a/b/many" + i + ".txt"), "many " + i + "\n");
+        }
+        ngit.run(workingDir, "-c", "index.threads=4", "-c", "index.recordOffsetTable=true",
+                "-c", "index.recordEndOfIndexEntries=true", "add", ".");
+        ngit.run(workingDir, "-c", "index.threads=4", "-c", "index.recordOffsetTable=true",
+                "-c", "index.recordEndOfIndexEntries=true", "-c", "core.untrackedCache=true", "status");
+
+        Index index = Index.read(workingDir.resolve(".git/index"));
+        assertEntriesMatchLsFiles(index);
+        assertTrue(index.getEndOfEntries() > 0);
+        assertTrue(index.getBlockCount() > 1);
+        assertTrue(index.getExtensions().stream().anyMatch(e -> e.getSignature().equals("UNTR")));
+    }
+
+    @Test
+    public void testParallelReadMatchesSequential() throws Exception {
+        for(int i = 0; i < 3000; i++) {
+            Path dir = workingDir.resolve("many/dir" + (i % 7));
+            Files.createDirectories(dir);
+            Files.writeString(dir.resolve("file" + i + ".txt"), "many " + i + "\n");
+        }
+        ngit.run(workingDir, "-c", "index.threads=4", "-c", "index.recordOffsetTable=true",
+                "-c", "index.recordEndOfIndexEntries=true", "add", ".");
+
+        for(String version: List.of("2", "4")) {
+            ngit.run(workingDir, "-c", "index.threads=4", "-c", "index.recordOffsetTable=true",
+                    "-c", "index.recordEndOfIndexEntries=true", "update-index", "--index-version", version);
+            Path file = workingDir.resolve(".git/index");
+
+            Index sequential = Index.read(file, 1);
+            Index parallel = Index.read(file, 4);
+            assertTrue(parallel.getBlockCount() > 1);
+            assertEquals(sequential.getEntries().size(), parallel.getEntries().size());
+            for(int i = 0; i < sequential.getEntries().size(); i++) {
+                assertEquals(sequential.getEntries().get(i).toString(), parallel.getEntries().get(i).toString());
+            }
+            assertEntriesMatchLsFiles(parallel);
+        }
+    }
+
+    @Test
+    public void testLookup() throws Exception {
+        Index index = Index.read(workingDir.resolve(".git/index"));
+        assertEquals(index.getEntries().size(), index.size());
+
+        IndexEntry entry = index.getEntry("a/b/file1.txt");
+        assertNotNull(entry);
+        assertEquals("a/b/file1.txt", entry.getPathName());
+        assertEquals(new ObjectID(ngit.run(workingDir, "rev-parse", "HEAD:a/b/file1.txt").stdout.trim()), entry.getId());
+        assertTrue(index.idEquals(entry.getPosition(), entry.getId()));
+        assertNull(index.getEntry("a/b"));
+        assertNull(index.getEntry("a/b/file9.txt"));
+        assertEquals(-1, index.findPosition(new byte[0], 0));
+
+        // "a-file.txt" sorts between "a" and "a/", and must not be taken for a path inside "a"
+        assertEquals(List.of("a/b/file0.txt", "a/b/file1.txt", "a/b/file2.txt",
+                        "a/file0.txt", "a/file1.txt", "a/file2.txt"),
+                index.getEntries("a").stream().map(IndexEntry::getPathName).collect(Collectors.toList()));
+        assertEquals(3, index.getEntries("a/b").size());
+        assertEquals(0, index.getEntries("a/b/file0.txt").size());
+        assertEquals(0, index.getEntries("e").size());
+        assertEquals(index.size(), index.getEntries("").size());
+    }
+
+    private void assertEntriesMatchLsFiles(Index index) throws Exception {
+        List<String> expected = new ArrayList<>();
+        for(String line: ngit.run(workingDir, "-c", "core.quotePath=false", "ls-files", "-s").stdout.split("\n")) {
+            expected.add(line.trim());
+        }
+
+        List<String> actual = new ArrayList<>();
+        for(IndexEntry entry: index.getEntries()) {
+            int mode = (entry.getObjectType() == IndexFileType.REGULAR_FILE ? 0100000 : 0)
+                    | (entry.getObjectType() == IndexFileType.SYMBOLIC_LINK ? 0120000 : 0)
+                    | (entry.getObjectType() == IndexFileType.GIT_LINK ? 0160000 : 0)
+                    | entry.getPermissions();
+            actual.add(String.format("%06o %s %d\t%s", mode, entry.getId(), entry.getStage(), entry.getPathName()));
+        }
+        assertEquals(expected, actual);
+    }
+}
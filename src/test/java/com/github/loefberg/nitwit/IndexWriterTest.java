@@ -0,0 +1,147 @@
+package com.github.loefberg.nitwit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IndexWriterTest {
+    private final NativeGit ngit = NativeGit.newInstance();
+    private Path workingDir;
+    private Path indexFile;
+
+    @BeforeEach
+    public void initRepository() throws Exception {
+        workingDir = ngit.init("nitwit-index-writer-test-");
+        indexFile = workingDir.resolve(".git/index");
+        for(String dir: List.of("a", "a/b", "c")) {
+            Files.createDirectories(workingDir.resolve(dir));
+            for(int i = 0; i < 50; i++) {
+                Files.writeString(workingDir.resolve(dir + "/file" + i + ".txt"), dir + " " + i + "\n");
+            }
+        }
+        Files.writeString(workingDir.resolve("a-file.txt"), "a-file\n");
+        ngit.commit(workingDir, "initial");
+    }
+
+    @AfterEach
+    public void cleanupRepository() throws Exception {
+        FileUtils.deleteDirectory(workingDir.toFile());
+    }
+
+    @Test
+    public void testWriteSameAsGit() throws Exception {
+        for(String version: List.of("2", "4")) {
+            ngit.run(workingDir, "update-index", "--index-version", version);
+            byte[] expected = Files.readAllBytes(indexFile);
+
+            IndexWriter writer = new IndexWriter();
+            writer.setIncremental(false);
+            Path copy = workingDir.resolve("index.copy");
+            writer.write(Index.read(indexFile), copy);
+            assertArrayEquals(expected, Files.readAllBytes(copy), "version " + version);
+        }
+    }
+
+    @Test
+    public void testWriteIncremental() throws Exception {
+        Files.writeString(workingDir.resolve("added.txt"), "added\n");
+        ObjectID added = new ObjectID(ngit.run(workingDir, "hash-object", "-w", "added.txt").stdout.trim());
+        for(String version: List.of("2", "4")) {
+            ngit.run(workingDir, "update-index", "--index-version", version);
+            ngit.run(workingDir, "read-tree", "HEAD");
+
+            Index index = new Index.Builder(Index.read(indexFile))
+                    .add("a/b/added.txt", added, 0100644)
+                    .add("a/b/file7.txt", added, 0100644)
+                    .remove("c/file3.txt")
+                    .build();
+            CacheTree cacheTree = index.getCacheTree();
+            assertFalse(cacheTree.isValid());
+            assertFalse(cacheTree.getChild("a").isValid());
+            assertFalse(cacheTree.getChild("a").getChild("b").isValid());
+            assertFalse(cacheTree.getChild("c").isValid());
+
+            // the entries copied from the old file are the same bytes encoding them would give
+            Path full = workingDir.resolve("index.full");
+            IndexWriter writer = new IndexWriter();
+            writer.setIncremental(false);
+            writer.write(index, full);
+            new IndexWriter().write(index, indexFile);
+            assertArrayEquals(Files.readAllBytes(full), Files.readAllBytes(indexFile), "version " + version);
+
+            List<String> lines = lsFiles();
+            assertEquals(151, lines.size());
+            assertTrue(lines.contains("100644 " + added + " 0\ta/b/added.txt"));
+            assertTrue(lines.contains("100644 " + added + " 0\ta/b/file7.txt"));
+            assertFalse(lines.stream().anyMatch(line -> line.endsWith("\tc/file3.txt")));
+
+            String tree = ngit.run(workingDir, "write-tree").stdout.trim();
+            assertEquals(151, ngit.run(workingDir, "ls-tree", "-r", tree).stdout.split("\n").length);
+        }
+    }
+
+    @Test
+    public void testWriteOffsetTable() throws Exception {
+        IndexWriter writer = new IndexWriter();
+        writer.setOffsetTableBlocks(4);
+        for(String version: List.of("2", "4")) {
+            ngit.run(workingDir, "update-index", "--index-version", version);
+            List<String> expected = lsFiles();
+            writer.write(Index.read(indexFile), indexFile);
+
+            Index index = Index.read(indexFile, 4);
+            assertEquals(4, index.getBlockCount());
+            assertEquals(expected, lsFiles());
+            ngit.run(workingDir, "-c", "index.threads=4", "status");
+        }
+    }
+
+    @Test
+    public void testWriteBuiltIndex() throws Exception {
+        ObjectID id = new ObjectID(ngit.run(workingDir, "rev-parse", "HEAD:a-file.txt").stdout.trim());
+        Index index = new Index.Builder(2)
+                .add("z.txt", id, 0100644)
+                .add("a-file.txt", id, 0100644)
+                .add("a/x.txt", id, 0100755)
+                .remove("z.txt")
+                .build();
+        assertNull(index.getCacheTree());
+        new IndexWriter().write(index, indexFile);
+
+        assertEquals(List.of("100644 " + id + " 0\ta-file.txt", "100755 " + id + " 0\ta/x.txt"), lsFiles());
+    }
+
+    @Test
+    public void testLocked() throws Exception {
+        Path lock = workingDir.resolve(".git/index.lock");
+        Files.writeString(lock, "");
+        byte[] before = Files.readAllBytes(indexFile);
+        assertThrows(IOException.class, () -> new IndexWriter().write(Index.read(indexFile), indexFile));
+        assertTrue(Files.exists(lock));
+        assertArrayEquals(before, Files.readAllBytes(indexFile));
+    }
+
+    private List<String> lsFiles() throws Exception {
+        List<String> lines = new ArrayList<>();
+        for(String line: ngit.run(workingDir, "ls-files", "-s").stdout.split("\n")) {
+            if(!line.isBlank()) {
+                lines.add(line.trim());
+            }
+        }
+        return lines;
+    }
+}
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
@@ -24,6 +25,33 @@ public class NativeGit {
     private NativeGit() {
     }
 
+    /**
+     * Creates a repository in a new temporary directory, with main as its initial branch.
+     */
+    public Path init(String prefix) throws IOException, InterruptedException {
+        Path workingDirectory = Files.createTempDirectory(prefix);
+        run(workingDirectory, "init", "-q", "-b", "main");
+        return workingDirectory;
+    }
+
+    /**
+     * Commits everything in the working tree.
+     */
+    public ExecutionResult commit(Path workingDirectory, String message) throws IOException, InterruptedException {
+        run(workingDirectory, "add", "-A");
+        return runAsCommitter(workingDirectory, "commit", "-q", "-m", message);
+    }
+
+    /**
+     * Runs git with a committer identity, for the commands that make commits, which fail where none is
+     * configured.
+     */
+    public ExecutionResult runAsCommitter(Path workingDirectory, String... arguments) throws IOException, InterruptedException {
+        List<String> commands = new ArrayList<>(List.of("-c", "user.name=Nitwit", "-c", "user.email=nitwit@example.com"));
+        commands.addAll(List.of(arguments));
+        return run(workingDirectory, commands.toArray(new String[0]));
+    }
+
     public ExecutionResult run(Path workingDirectory, String... arguments) throws IOException, InterruptedException {
         List<String> commands = new ArrayList<>();
         commands.add("git");
@@ -40,7 +68,6 @@ public class NativeGit {
 
         executorService.shutdown();
 
-
         String stdout;
         String stderr;
 
@@ -0,0 +1,73 @@
+package com.github.loefberg.nitwit;
+
+import com.github.loefberg.nitwit.util.Hex;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ObjectIDTest {
+    private static final String EMPTY_BLOB = "e69de29bb2d1d6434b8b29ae775ad8c2e48c5391";
+    private static final String HELLO = "af5626b4a114abcb82d63db7c8082c3c4756e51b";
+
+    @Test
+    public void testHexRoundTrip() {
+        assertEquals(EMPTY_BLOB, new ObjectID(EMPTY_BLOB).getHashString());
+        assertEquals(EMPTY_BLOB, new ObjectID(EMPTY_BLOB.toUpperCase()).getHashString());
+        assertEquals("0000000000000000000000000000000000000001",
+                new ObjectID("0000000000000000000000000000000000000001").getHashString());
+        assertEquals(EMPTY_BLOB, Hex.toHex(new ObjectID(EMPTY_BLOB).toByteArray()));
+    }
+
+    @Test
+    public void testRawConstructors() {
+        byte[] raw = Hex.fromHex(HELLO);
+        byte[] padded = new byte[raw.length + 7];
+        System.arraycopy(raw, 0, padded, 7, raw.length);
+
+        ObjectID id = new ObjectID(HELLO);
+        assertEquals(id, new ObjectID(raw));
+        assertEquals(id, new ObjectID(padded, 7));
+        assertEquals(id, new ObjectID(ByteBuffer.wrap(padded), 7));
+        assertEquals(0, id.compareTo(padded, 7));
+        assertEquals(0, id.compareTo(ByteBuffer.wrap(padded), 7));
+
+        byte[] copy = new byte[20];
+        id.copyTo(copy, 0);
+        assertArrayEquals(raw, copy);
+        assertEquals(0xaf, id.getFirstByte());
+    }
+
+    @Test
+    public void testEqualsAndHashCode() {
+        Set<ObjectID> set = new HashSet<>();
+        set.add(new ObjectID(EMPTY_BLOB));
+        assertTrue(set.contains(new ObjectID(EMPTY_BLOB)));
+        assertNotEquals(new ObjectID(EMPTY_BLOB), new ObjectID(HELLO));
+        assertEquals(new ObjectID(HELLO).hashCode(), new ObjectID(HELLO).hashCode());
+    }
+
+    @Test
+    public void testCompareIsUnsigned() {
+        ObjectID low = new ObjectID("7fffffffffffffffffffffffffffffffffffffff");
+        ObjectID high = new ObjectID("8000000000000000000000000000000000000000");
+        assertTrue(low.compareTo(high) < 0);
+        assertTrue(high.compareTo(low) > 0);
+        assertTrue(new ObjectID("ffffffffffffffffffffffffffffffffffffff00")
+                .compareTo(new ObjectID("ffffffffffffffffffffffffffffffffffffffff")) < 0);
+    }
+
+    @Test
+    public void testInvalid() {
+        assertThrows(IllegalArgumentException.class, () -> new ObjectID("abc"));
+        assertThrows(IllegalArgumentException.class, () -> new ObjectID("g69de29bb2d1d6434b8b29ae775ad8c2e48c5391"));
+        assertThrows(IllegalArgumentException.class, () -> new ObjectID(new byte[19]));
+    }
+}
@@ -0,0 +1,134 @@
+package com.github.loefberg.nitwit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StatusTest {
+    private final NativeGit ngit = NativeGit.newInstance();
+    private Path workingDir;
+
+    @BeforeEach
+    public void initRepository() throws Exception {
+        workingDir = ngit.init("nitwit-status-test-");
+        for(String dir: List.of("a", "a/b", "c", "build")) {
+            Files.createDirectories(workingDir.resolve(dir));
+            for(int i = 0; i < 20; i++) {
+                Files.writeString(workingDir.resolve(dir + "/file" + i + ".txt"), dir + " " + i + "\n");
+            }
+        }
+        Files.writeString(workingDir.resolve(".gitignore"), "*.log\n/build/\n!keep.log\n");
+        Files.writeString(workingDir.resolve("run.sh"), "#!/bin/sh\n");
+        ngit.commit(workingDir, "initial");
+    }
+
+    @AfterEach
+    public void cleanupRepository() throws Exception {
+        FileUtils.deleteDirectory(workingDir.toFile());
+    }
+
+    @Test
+    public void testClean() throws Exception {
+        ngit.run(workingDir, "status");
+        Status status = new Workspace(workingDir).status();
+        assertTrue(status.isClean(), status.toString());
+    }
+
+    @Test
+    public void testChanges() throws Exception {
+        ngit.run(workingDir, "status");
+        // the same size and a time far from the index, so only the content tells
+        Path sameSize = workingDir.resolve("a/file1.txt");
+        Files.writeString(sameSize, "A 1\n");
+        Files.setLastModifiedTime(sameSize, FileTime.from(Instant.now().minusSeconds(3600)));
+        Files.writeString(workingDir.resolve("a/b/file2.txt"), "longer content\n");
+        Files.delete(workingDir.resolve("c/file3.txt"));
+        workingDir.resolve("run.sh").toFile().setExecutable(true);
+        // touched but the same content
+        Files.setLastModifiedTime(workingDir.resolve("c/file4.txt"), FileTime.from(Instant.now().plusSeconds(10)));
+
+        Files.writeString(workingDir.resolve("new.txt"), "new\n");
+        Files.writeString(workingDir.resolve("a/debug.log"), "ignored\n");
+        Files.writeString(workingDir.resolve("a/keep.log"), "not ignored\n");
+        Files.createDirectories(workingDir.resolve("d/e"));
+        Files.writeString(workingDir.resolve("d/e/f.txt"), "untracked directory\n");
+        Files.createDirectories(workingDir.resolve("ignored"));
+        Files.writeString(workingDir.resolve("ignored/x.log"), "only ignored files\n");
+        Files.writeString(workingDir.resolve("build/new.txt"), "in an ignored directory\n");
+
+        Status status = new Workspace(workingDir).status(new ForkJoinPool(4));
+        assertEquals(List.of("a/b/file2.txt", "a/file1.txt", "run.sh"), status.getModified());
+        assertEquals(List.of("c/file3.txt"), status.getDeleted());
+        assertEquals(List.of("a/keep.log", "d/", "new.txt"), status.getUntracked());
+        assertEquals(nativeStatus(), ourStatus(status));
+    }
+
+    @Test
+    public void testRacilyClean() throws Exception {
+        // an entry whose stat data matches a file that changed in the same tick as the index was written
+        Path indexFile = workingDir.resolve(".git/index");
+        Path file = workingDir.resolve("a/file1.txt");
+        Files.writeString(file, "A 1\n");
+        FileTime time = FileTime.from(Instant.now().minusSeconds(3600));
+        Files.setLastModifiedTime(file, time);
+        Index index = Index.read(indexFile);
+        index = new Index.Builder(index)
+                .add("a/file1.txt", index.getEntry("a/file1.txt").getId(), FileStat.lstat(file))
+                .build();
+        new IndexWriter().write(index, indexFile);
+
+        Files.setLastModifiedTime(indexFile, time);
+        assertEquals(List.of("a/file1.txt"), new Workspace(workingDir).status().getModified());
+
+        // written later, the stat data is trusted
+        Files.setLastModifiedTime(indexFile, FileTime.from(time.toInstant().plusSeconds(1)));
+        assertEquals(List.of(), new Workspace(workingDir).status().getModified());
+    }
+
+    @Test
+    public void testRacyEntryWrittenWithoutSize() throws Exception {
+        // modified after the index was read, so it may change again without its stat data showing it
+        Path indexFile = workingDir.resolve(".git/index");
+        Index index = Index.read(indexFile);
+        Path file = workingDir.resolve("a/file1.txt");
+        Files.setLastModifiedTime(file, FileTime.from(Instant.now().plusSeconds(5)));
+        new IndexWriter().write(new Index.Builder(index)
+                .add("a/file1.txt", index.getEntry("a/file1.txt").getId(), FileStat.lstat(file))
+                .build(), indexFile);
+
+        assertEquals(0, Index.read(indexFile).getEntry("a/file1.txt").getSize());
+        assertTrue(new Workspace(workingDir).status().isClean());
+    }
+
+    private List<String> ourStatus(Status status) {
+        List<String> lines = new ArrayList<>();
+        status.getModified().forEach(path -> lines.add(" M " + path));
+        status.getDeleted().forEach(path -> lines.add(" D " + path));
+        status.getUntracked().forEach(path -> lines.add("?? " + path));
+        lines.sort(null);
+        return lines;
+    }
+
+    private List<String> nativeStatus() throws Exception {
+        List<String> lines = new ArrayList<>();
+        for(String line: ngit.run(workingDir, "status", "--porcelain").stdout.split("\n")) {
+            if(!line.isEmpty()) {
+                lines.add(line);
+            }
+        }
+        lines.sort(null);
+        return lines;
+    }
+}
@@ -0,0 +1,149 @@
+package com.github.loefberg.nitwit;
+
+import com.github.loefberg.nitwit.ds.DataStore;
+import com.github.loefberg.nitwit.ds.Tree;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TreeWriterTest {
+    private final NativeGit ngit = NativeGit.newInstance();
+    private Path workingDir;
+    private Path indexFile;
+
+    @BeforeEach
+    public void initRepository() throws Exception {
+        workingDir = ngit.init("nitwit-tree-writer-test-");
+        indexFile = workingDir.resolve(".git/index");
+        for(String dir: List.of("a", "a/b", "a/b/c", "a-b", "d", "d/e")) {
+            Files.createDirectories(workingDir.resolve(dir));
+            for(int i = 0; i < 5; i++) {
+                Files.writeString(workingDir.resolve(dir + "/file" + i + ".txt"), dir + " " + i + "\n");
+            }
+        }
+        Files.writeString(workingDir.resolve("a.txt"), "a\n");
+        Files.writeString(workingDir.resolve("run.sh"), "#!/bin/sh\n");
+        workingDir.resolve("run.sh").toFile().setExecutable(true);
+        Files.createSymbolicLink(workingDir.resolve("link"), workingDir.resolve("a.txt").getFileName());
+        ngit.run(workingDir, "add", ".");
+    }
+
+    @AfterEach
+    public void cleanupRepository() throws Exception {
+        FileUtils.deleteDirectory(workingDir.toFile());
+    }
+
+    @Test
+    public void testSameAsGit() throws Exception {
+        Index index = Index.read(indexFile);
+        assertNull(index.getCacheTree());
+        ObjectID root = new Workspace(workingDir).writeTree();
+
+        Path nitwitIndex = workingDir.resolve(".git/index.nitwit");
+        Files.copy(indexFile, nitwitIndex);
+        Files.delete(indexFile);
+        ngit.run(workingDir, "read-tree", "--empty");
+        ngit.run(workingDir, "add", ".");
+        assertEquals(ngit.run(workingDir, "write-tree").stdout.trim(), root.getHashString());
+        ngit.run(workingDir, "fsck", "--strict", "--no-dangling");
+
+        // git puts the same cache tree into the index as we did
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        Index.read(indexFile).getCacheTree().write(expected);
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        Index.read(nitwitIndex).getCacheTree().write(actual);
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+    }
+
+    @Test
+    public void testRewritesOnlyChangedPath() throws Exception {
+        CountingDataStore ds = new CountingDataStore(workingDir.resolve(".git"));
+        TreeWriter treeWriter = new TreeWriter(ds);
+        Index index = treeWriter.write(Index.read(indexFile));
+        assertEquals(7, ds.trees);
+        assertSame(index, treeWriter.write(index));
+        assertEquals(7, ds.trees);
+
+        Files.writeString(workingDir.resolve("a/b/c/file3.txt"), "changed\n");
+        ObjectID changed = new ObjectID(ngit.run(workingDir, "hash-object", "-w", "a/b/c/file3.txt").stdout.trim());
+        Index updated = treeWriter.write(new Index.Builder(index).add("a/b/c/file3.txt", changed, 0100644).build());
+        assertEquals(7 + 4, ds.trees);
+        assertTrue(updated.getCacheTree().isValid());
+        assertSame(index.getCacheTree().getChild("d"), updated.getCacheTree().getChild("d"));
+
+        ngit.run(workingDir, "add", "a/b/c/file3.txt");
+        assertEquals(ngit.run(workingDir, "write-tree").stdout.trim(), updated.getCacheTree().getId().getHashString());
+    }
+
+    @Test
+    public void testIntentToAdd() throws Exception {
+        Files.createDirectory(workingDir.resolve("f"));
+        Files.writeString(workingDir.resolve("f/new.txt"), "new\n");
+        Files.writeString(workingDir.resolve("d/new.txt"), "new\n");
+        ngit.run(workingDir, "add", "-N", "f/new.txt", "d/new.txt");
+        String expected = ngit.run(workingDir, "write-tree").stdout.trim();
+
+        Index index = new TreeWriter(new DataStore(workingDir.resolve(".git"))).write(Index.read(indexFile));
+        assertEquals(expected, index.getCacheTree().getId().getHashString());
+        assertEquals(-1, index.getCacheTree().getEntryCount());
+        assertEquals(-1, index.getCacheTree().getChild("d").getEntryCount());
+        assertTrue(index.getCacheTree().getChild("a").isValid());
+    }
+
+    @Test
+    public void testFileAndDirectory() throws Exception {
+        TreeWriter treeWriter = new TreeWriter(new DataStore(workingDir.resolve(".git")));
+        Index index = Index.read(indexFile);
+        ObjectID id = index.getEntry("a.txt").getId();
+        Index nested = new Index.Builder(index).add("a/b/file0.txt/inner.txt", id, FileStat.MODE_REGULAR).build();
+        assertThrows(IllegalStateException.class, () -> treeWriter.write(nested));
+
+        // "a-b" and "a.txt" sort between the file "a" and the entries under "a/"
+        Index apart = new Index.Builder(index).add("a", id, FileStat.MODE_REGULAR).build();
+        assertThrows(IllegalStateException.class, () -> treeWriter.write(apart));
+    }
+
+    @Test
+    public void testUnmerged() throws Exception {
+        ngit.runAsCommitter(workingDir, "commit", "-q", "-m", "initial");
+        ngit.run(workingDir, "checkout", "-q", "-b", "other");
+        Files.writeString(workingDir.resolve("a.txt"), "other\n");
+        ngit.runAsCommitter(workingDir, "commit", "-q", "-a", "-m", "other");
+        ngit.run(workingDir, "checkout", "-q", "-");
+        Files.writeString(workingDir.resolve("a.txt"), "this\n");
+        ngit.runAsCommitter(workingDir, "commit", "-q", "-a", "-m", "this");
+        assertThrows(IOException.class, () -> ngit.runAsCommitter(workingDir, "merge", "-q", "other"));
+
+        TreeWriter treeWriter = new TreeWriter(new DataStore(workingDir.resolve(".git")));
+        Index index = Index.read(indexFile);
+        assertThrows(IllegalStateException.class, () -> treeWriter.write(index));
+    }
+
+    private static class CountingDataStore extends DataStore {
+        private int trees;
+
+        CountingDataStore(Path gitDir) {
+            super(gitDir);
+        }
+
+        @Override
+        public String putTree(Tree tree) throws IOException {
+            trees++;
+            return super.putTree(tree);
+        }
+    }
+}
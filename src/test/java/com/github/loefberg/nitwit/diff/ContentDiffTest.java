@@ -0,0 +1,167 @@
+package com.github.loefberg.nitwit.diff;
+
+import com.github.loefberg.nitwit.NativeGit;
+import com.github.loefberg.nitwit.ObjectID;
+import com.github.loefberg.nitwit.ds.DataStore;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ContentDiffTest {
+    private final NativeGit ngit = NativeGit.newInstance();
+    private Path workingDir;
+
+    @BeforeEach
+    public void initRepository() throws Exception {
+        workingDir = ngit.init("nitwit-content-diff-test-");
+    }
+
+    @AfterEach
+    public void cleanupRepository() throws Exception {
+        FileUtils.deleteDirectory(workingDir.toFile());
+    }
+
+    @Test
+    public void testSameAsGit() throws Exception {
+        StringBuilder old = new StringBuilder();
+        StringBuilder changed = new StringBuilder();
+        for(int i = 0; i < 200; i++) {
+            if(i % 37 != 5) {
+                old.append("line ").append(i).append('\n');
+            }
+            if(i % 29 == 3) {
+                changed.append("inserted before ").append(i).append('\n');
+            }
+            if(i % 41 != 7) {
+                changed.append("line ").append(i).append(i == 100 || i == 104 ? " changed" : "").append('\n');
+            }
+        }
+        changed.append("no newline at the end");
+        ObjectID a = blob("a.txt", old.toString());
+        ObjectID b = blob("b.txt", changed.toString());
+
+        ContentDiff diff = new ContentDiff(new DataStore(workingDir.resolve(".git")));
+        for(DiffAlgorithm algorithm: DiffAlgorithm.values()) {
+            diff.setAlgorithm(algorithm);
+            FileDiff fileDiff = diff.diff(a, b);
+            assertTrue(fileDiff.differs());
+            for(int context: new int[] { 0, 1, 3, 10 }) {
+                String expected = gitDiff(algorithm, context, a, b);
+                assertEquals(expected, fileDiff.format(context), algorithm + " with context " + context);
+            }
+            assertEquals(gitDiff(algorithm, 3, b, a), diff.diff(b, a).format(3));
+            assertEquals(gitDiff(algorithm, 3, null, b), diff.diff(null, b).format(3));
+        }
+        assertFalse(diff.diff(a, a).differs());
+    }
+
+    @Test
+    public void testEdits() {
+        Random random = new Random(7);
+        ContentDiff diff = new ContentDiff(null);
+        for(int round = 0; round < 300; round++) {
+            byte[] a = randomLines(random);
+            byte[] b = randomLines(random);
+            int shortest = shortestEditScript(new RawText(a), new RawText(b));
+            for(DiffAlgorithm algorithm: DiffAlgorithm.values()) {
+                diff.setAlgorithm(algorithm);
+                List<Edit> edits = diff.diff(a, b).getEdits();
+                int length = assertTransforms(new RawText(a), new RawText(b), edits);
+                if(algorithm == DiffAlgorithm.MYERS) {
+                    assertEquals(shortest, length, "round " + round);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBinaryAndLarge() throws Exception {
+        ObjectID text = blob("text.txt", "text\n".repeat(100));
+        ObjectID binary = blob("binary.bin", "text\n\0binary\n");
+        ContentDiff diff = new ContentDiff(new DataStore(workingDir.resolve(".git")));
+        FileDiff fileDiff = diff.diff(text, binary);
+        assertTrue(fileDiff.isBinary());
+        assertTrue(fileDiff.differs());
+        assertEquals(List.of(), fileDiff.getEdits());
+        assertEquals("Binary files differ\n", fileDiff.format(3));
+
+        diff.setBigFileThreshold(100);
+        fileDiff = diff.diff(text, blob("other.txt", "other\n"));
+        assertTrue(fileDiff.isTooLarge());
+        assertTrue(fileDiff.differs());
+        assertFalse(diff.diff(text, text).differs());
+    }
+
+    /**
+     * Checks that the lines outside the edits are the same on both sides, and returns the lines changed.
+     */
+    private static int assertTransforms(RawText a, RawText b, List<Edit> edits) {
+        int i = 0;
+        int j = 0;
+        int changed = 0;
+        for(Edit edit: edits) {
+            assertEquals(edit.getBeginA() - i, edit.getBeginB() - j);
+            for(; i < edit.getBeginA(); i++, j++) {
+                assertEquals(a.getLine(i), b.getLine(j));
+            }
+            assertTrue(edit.getEndA() > edit.getBeginA() || edit.getEndB() > edit.getBeginB());
+            changed += edit.getEndA() - edit.getBeginA() + edit.getEndB() - edit.getBeginB();
+            i = edit.getEndA();
+            j = edit.getEndB();
+        }
+        assertEquals(a.size() - i, b.size() - j);
+        for(; i < a.size(); i++, j++) {
+            assertEquals(a.getLine(i), b.getLine(j));
+        }
+        return changed;
+    }
+
+    /**
+     * The length of the shortest edit script, from the longest common subsequence.
+     */
+    private static int shortestEditScript(RawText a, RawText b) {
+        int[][] lcs = new int[a.size() + 1][b.size() + 1];
+        for(int i = a.size() - 1; i >= 0; i--) {
+            for(int j = b.size() - 1; j >= 0; j--) {
+                lcs[i][j] = a.getLine(i).equals(b.getLine(j)) ? lcs[i + 1][j + 1] + 1
+                        : Math.max(lcs[i + 1][j], lcs[i][j + 1]);
+            }
+        }
+        return a.size() + b.size() - 2 * lcs[0][0];
+    }
+
+    private static byte[] randomLines(Random random) {
+        StringBuilder result = new StringBuilder();
+        for(int i = random.nextInt(40); i > 0; i--) {
+            result.append((char)('a' + random.nextInt(4))).append('\n');
+        }
+        return result.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private ObjectID blob(String name, String content) throws Exception {
+        Files.writeString(workingDir.resolve(name), content);
+        return new ObjectID(ngit.run(workingDir, "hash-object", "-w", name).stdout.trim());
+    }
+
+    /**
+     * The hunks of git diff, without the file header.
+     */
+    private String gitDiff(DiffAlgorithm algorithm, int context, ObjectID a, ObjectID b) throws Exception {
+        String empty = blob("empty.txt", "").getHashString();
+        String output = ngit.run(workingDir, "diff", "--no-color", "--no-indent-heuristic",
+                "--diff-algorithm=" + algorithm.name().toLowerCase(), "-U" + context,
+                a == null ? empty : a.getHashString(), b.getHashString()).stdout;
+        return output.substring(output.indexOf("@@"));
+    }
+}
@@ -0,0 +1,120 @@
+package com.github.loefberg.nitwit.diff;
+
+import com.github.loefberg.nitwit.NativeGit;
+import com.github.loefberg.nitwit.ObjectID;
+import com.github.loefberg.nitwit.ds.DataStore;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RenameDetectorTest {
+    private final NativeGit ngit = NativeGit.newInstance();
+    private Path workingDir;
+
+    @BeforeEach
+    public void initRepository() throws Exception {
+        workingDir = ngit.init("nitwit-rename-test-");
+        Files.createDirectories(workingDir.resolve("a"));
+        Files.writeString(workingDir.resolve("a/exact.txt"), lines("exact", 40, -1));
+        Files.writeString(workingDir.resolve("edited.txt"), lines("edited", 100, -1));
+        Files.writeString(workingDir.resolve("gone.txt"), lines("gone", 30, -1));
+        Files.writeString(workingDir.resolve("source.txt"), lines("source", 60, -1));
+        Files.writeString(workingDir.resolve("empty.txt"), "");
+        ngit.commit(workingDir, "initial");
+
+        Files.createDirectories(workingDir.resolve("b"));
+        Files.move(workingDir.resolve("a/exact.txt"), workingDir.resolve("b/exact.txt"));
+        Files.writeString(workingDir.resolve("b/edited-moved.txt"), lines("edited", 100, 7));
+        Files.delete(workingDir.resolve("edited.txt"));
+        Files.delete(workingDir.resolve("gone.txt"));
+        Files.writeString(workingDir.resolve("fresh.txt"), lines("fresh", 30, -1));
+        Files.writeString(workingDir.resolve("source.txt"), lines("source", 60, 3));
+        Files.writeString(workingDir.resolve("copy.txt"), lines("source", 60, 11));
+        Files.move(workingDir.resolve("empty.txt"), workingDir.resolve("b/empty.txt"));
+        ngit.commit(workingDir, "renames");
+    }
+
+    @AfterEach
+    public void cleanupRepository() throws Exception {
+        FileUtils.deleteDirectory(workingDir.toFile());
+    }
+
+    @Test
+    public void testRenames() throws Exception {
+        RenameDetector detector = new RenameDetector(new DataStore(workingDir.resolve(".git")), new ForkJoinPool(4));
+        String expected = ngit.run(workingDir, "diff-tree", "-r", "-M", "--raw", "--no-abbrev", "HEAD~", "HEAD").stdout;
+        assertEquals(expected, TreeDiffTest.format(detector.compute(diff())));
+        assertFalse(detector.isOverRenameLimit());
+    }
+
+    @Test
+    public void testCopies() throws Exception {
+        RenameDetector detector = new RenameDetector(new DataStore(workingDir.resolve(".git")));
+        detector.setDetectCopies(true);
+        String expected = ngit.run(workingDir, "diff-tree", "-r", "-C", "--raw", "--no-abbrev", "HEAD~", "HEAD").stdout;
+        assertEquals(expected, TreeDiffTest.format(detector.compute(diff())));
+    }
+
+    @Test
+    public void testScoreAndLimit() throws Exception {
+        RenameDetector detector = new RenameDetector(new DataStore(workingDir.resolve(".git")));
+        detector.setRenameScore(95);
+        String expected = ngit.run(workingDir, "diff-tree", "-r", "-M95%", "--raw", "--no-abbrev", "HEAD~", "HEAD").stdout;
+        assertEquals(expected, TreeDiffTest.format(detector.compute(diff())));
+
+        // too many candidates to compare content, but the exact renames are still found
+        detector.setRenameScore(50);
+        detector.setRenameLimit(1);
+        List<DiffEntry> changes = detector.compute(diff());
+        assertTrue(detector.isOverRenameLimit());
+        List<String> renames = new ArrayList<>();
+        for(DiffEntry entry: changes) {
+            if(entry.getChangeType() == ChangeType.RENAME) {
+                renames.add(entry.getOldPath() + " -> " + entry.getNewPath() + " " + entry.getScore());
+            }
+        }
+        assertEquals(List.of("empty.txt -> b/empty.txt 100", "a/exact.txt -> b/exact.txt 100"), renames);
+    }
+
+    @Test
+    public void testSimilarity() {
+        byte[] unix = lines("line", 50, -1).getBytes();
+        byte[] windows = lines("line", 50, -1).replace("\n", "\r\n").getBytes();
+        SimilarityIndex index = new SimilarityIndex(unix);
+        assertEquals(SimilarityIndex.MAX_SCORE, index.score(new SimilarityIndex(unix)));
+        // the CRs are not counted, but the size of the larger file is
+        assertEquals(SimilarityIndex.MAX_SCORE * unix.length / windows.length, index.score(new SimilarityIndex(windows)));
+        assertEquals(0, index.score(new SimilarityIndex(lines("other", 50, -1).getBytes())));
+    }
+
+    private List<DiffEntry> diff() throws Exception {
+        return new TreeDiff(new DataStore(workingDir.resolve(".git"))).diff(tree("HEAD~"), tree("HEAD"));
+    }
+
+    /**
+     * Numbered lines starting with a word, every {@code changeEvery} line changed.
+     */
+    private static String lines(String word, int count, int changeEvery) {
+        StringBuilder result = new StringBuilder();
+        for(int i = 0; i < count; i++) {
+            result.append(word).append(" line ").append(i)
+                    .append(changeEvery > 0 && i % changeEvery == 0 ? " changed" : "").append('\n');
+        }
+        return result.toString();
+    }
+
+    private ObjectID tree(String revision) throws Exception {
+        return new ObjectID(ngit.run(workingDir, "rev-parse", revision + "^{tree}").stdout.trim());
+    }
+}
@@ -0,0 +1,149 @@
+package com.github.loefberg.nitwit.diff;
+
+import com.github.loefberg.nitwit.Index;
+import com.github.loefberg.nitwit.NativeGit;
+import com.github.loefberg.nitwit.ObjectID;
+import com.github.loefberg.nitwit.ds.DataStore;
+import com.github.loefberg.nitwit.ds.Tree;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TreeDiffTest {
+    private final NativeGit ngit = NativeGit.newInstance();
+    private Path workingDir;
+
+    @BeforeEach
+    public void initRepository() throws Exception {
+        workingDir = ngit.init("nitwit-tree-diff-test-");
+        for(String dir: List.of("a", "a/b", "a/b/c", "a-b", "d", "d/e")) {
+            Files.createDirectories(workingDir.resolve(dir));
+            for(int i = 0; i < 5; i++) {
+                Files.writeString(workingDir.resolve(dir + "/file" + i + ".txt"), dir + " " + i + "\n");
+            }
+        }
+        Files.writeString(workingDir.resolve("a.txt"), "a\n");
+        Files.writeString(workingDir.resolve("x"), "becomes a directory\n");
+        Files.writeString(workingDir.resolve("run.sh"), "#!/bin/sh\n");
+        Files.writeString(workingDir.resolve("link"), "becomes a link\n");
+        ngit.commit(workingDir, "initial");
+    }
+
+    @AfterEach
+    public void cleanupRepository() throws Exception {
+        FileUtils.deleteDirectory(workingDir.toFile());
+    }
+
+    @Test
+    public void testSameAsGit() throws Exception {
+        Files.writeString(workingDir.resolve("a/b/c/file1.txt"), "changed\n");
+        Files.delete(workingDir.resolve("d/e/file2.txt"));
+        Files.writeString(workingDir.resolve("d/new.txt"), "new\n");
+        FileUtils.deleteDirectory(workingDir.resolve("a-b").toFile());
+        Files.delete(workingDir.resolve("x"));
+        Files.createDirectory(workingDir.resolve("x"));
+        Files.writeString(workingDir.resolve("x/inside.txt"), "inside\n");
+        workingDir.resolve("run.sh").toFile().setExecutable(true);
+        Files.delete(workingDir.resolve("link"));
+        Files.createSymbolicLink(workingDir.resolve("link"), Path.of("a.txt"));
+        ngit.commit(workingDir, "changes");
+
+        TreeDiff diff = new TreeDiff(new DataStore(workingDir.resolve(".git")));
+        String expected = ngit.run(workingDir, "diff-tree", "-r", "--raw", "--no-abbrev", "HEAD~", "HEAD").stdout;
+        assertEquals(expected, format(diff.diff(tree("HEAD~"), tree("HEAD"))));
+        expected = ngit.run(workingDir, "diff-tree", "-r", "--raw", "--no-abbrev", "HEAD", "HEAD~").stdout;
+        assertEquals(expected, format(diff.diff(tree("HEAD"), tree("HEAD~"))));
+
+        assertEquals(0, diff.diff(tree("HEAD"), tree("HEAD")).size());
+        assertEquals(29, diff.diff(null, tree("HEAD")).size());
+
+        diff.setPathFilter(new PathFilter(List.of("d/e", "x", "a.txt", "run.sh")));
+        expected = ngit.run(workingDir, "diff-tree", "-r", "--raw", "--no-abbrev", "HEAD~", "HEAD",
+                "--", "d/e", "x", "a.txt", "run.sh").stdout;
+        assertEquals(expected, format(diff.diff(tree("HEAD~"), tree("HEAD"))));
+    }
+
+    @Test
+    public void testSkipsSameSubtrees() throws Exception {
+        Files.writeString(workingDir.resolve("a/b/c/file1.txt"), "changed\n");
+        ngit.commit(workingDir, "one file");
+
+        CountingDataStore ds = new CountingDataStore(workingDir.resolve(".git"));
+        TreeDiff diff = new TreeDiff(ds);
+        ObjectID oldTree = tree("HEAD~");
+        ObjectID newTree = tree("HEAD");
+        assertEquals(1, diff.diff(oldTree, newTree).size());
+        // the root, a, a/b and a/b/c of both sides
+        assertEquals(8, ds.trees);
+
+        // directories outside of the filter are not read
+        ds.trees = 0;
+        diff.setPathFilter(new PathFilter(List.of("d")));
+        assertEquals(0, diff.diff(oldTree, newTree).size());
+        assertEquals(2, ds.trees);
+    }
+
+    @Test
+    public void testIndex() throws Exception {
+        Files.writeString(workingDir.resolve("a/b/c/file1.txt"), "changed\n");
+        Files.writeString(workingDir.resolve("d/new.txt"), "new\n");
+        Files.writeString(workingDir.resolve("d/e/intended.txt"), "intended\n");
+        Files.delete(workingDir.resolve("x"));
+        Files.createDirectory(workingDir.resolve("x"));
+        Files.writeString(workingDir.resolve("x/inside.txt"), "inside\n");
+        ngit.run(workingDir, "add", "a", "d/new.txt", "x");
+        ngit.run(workingDir, "rm", "-q", "--cached", "a-b/file3.txt");
+        ngit.run(workingDir, "add", "-N", "d/e/intended.txt");
+
+        CountingDataStore ds = new CountingDataStore(workingDir.resolve(".git"));
+        TreeDiff diff = new TreeDiff(ds);
+        Index index = Index.read(workingDir.resolve(".git/index"));
+        String expected = ngit.run(workingDir, "diff-index", "--cached", "-r", "--raw", "--no-abbrev", "HEAD").stdout;
+        assertEquals(expected, format(diff.diff(tree("HEAD"), index)));
+
+        // with a cache tree the directories that did not change are skipped
+        ngit.run(workingDir, "read-tree", "HEAD");
+        Files.writeString(workingDir.resolve("d/e/file4.txt"), "changed\n");
+        ngit.run(workingDir, "add", "d/e/file4.txt");
+        index = Index.read(workingDir.resolve(".git/index"));
+        ds.trees = 0;
+        expected = ngit.run(workingDir, "diff-index", "--cached", "-r", "--raw", "--no-abbrev", "HEAD").stdout;
+        assertEquals(expected, format(diff.diff(tree("HEAD"), index)));
+        // the root, d and d/e
+        assertEquals(3, ds.trees);
+    }
+
+    static String format(List<DiffEntry> entries) {
+        StringBuilder result = new StringBuilder();
+        for(DiffEntry entry: entries) {
+            result.append(entry).append('\n');
+        }
+        return result.toString();
+    }
+
+    private ObjectID tree(String revision) throws Exception {
+        return new ObjectID(ngit.run(workingDir, "rev-parse", revision + "^{tree}").stdout.trim());
+    }
+
+    private static class CountingDataStore extends DataStore {
+        private int trees;
+
+        CountingDataStore(Path gitDir) {
+            super(gitDir);
+        }
+
+        @Override
+        public Tree getTree(ObjectID key) throws IOException {
+            trees++;
+            return super.getTree(key);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.github.loefberg.nitwit.ds;
+
+import com.github.loefberg.nitwit.NativeGit;
+import com.github.loefberg.nitwit.ObjectID;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CommitGraphTest {
+    private final NativeGit ngit = NativeGit.newInstance();
+    private Path workingDir;
+
+    @BeforeEach
+    public void initRepository() throws Exception {
+        workingDir = ngit.init("nitwit-commit-graph-test-");
+        for(int i = 0; i < 5; i++) {
+            commitFile("main.txt", "main " + i);
+        }
+
+        // three branches merged back with an octopus merge, then a regular merge
+        for(int b = 1; b <= 3; b++) {
+            ngit.run(workingDir, "checkout", "-q", "-b", "b" + b, "main");
+            commitFile("b" + b + ".txt", "branch " + b);
+        }
+        ngit.run(workingDir, "checkout", "-q", "main");
+        ngit.runAsCommitter(workingDir, "merge", "-q", "--no-ff", "--no-edit", "b1", "b2", "b3");
+
+        ngit.run(workingDir, "checkout", "-q", "-b", "side", "main~1");
+        commitFile("side.txt", "side");
+        ngit.run(workingDir, "checkout", "-q", "main");
+        ngit.runAsCommitter(workingDir, "merge", "-q", "--no-edit", "side");
+        commitFile("main.txt", "after merges");
+    }
+
+    @AfterEach
+    public void cleanupRepository() throws Exception {
+        FileUtils.deleteDirectory(workingDir.toFile());
+    }
+
+    @Test
+    public void testNoCommitGraph() throws Exception {
+        assertNull(new DataStore(workingDir.resolve(".git")).getCommitGraph());
+    }
+
+    @Test
+    public void testReadCorrectedCommitDates() throws Exception {
+        ngit.run(workingDir, "-c", "commitGraph.generationVersion=2", "commit-graph", "write", "--reachable");
+        CommitGraph graph = new DataStore(workingDir.resolve(".git")).getCommitGraph();
+        assertNotNull(graph);
+        assertTrue(graph.hasCorrectedCommitDates());
+        assertGraphMatchesLog(graph);
+    }
+
+    @Test
+    public void testReadTopologicalLevels() throws Exception {
+        ngit.run(workingDir, "-c", "commitGraph.generationVersion=1", "commit-graph", "write", "--reachable");
+        CommitGraph graph = new DataStore(workingDir.resolve(".git")).getCommitGraph();
+        assertFalse(graph.hasCorrectedCommitDates());
+        assertGraphMatchesLog(graph);
+    }
+
+    @Test
+    public void testParseCommit() throws Exception {
+        DataStore ds = new DataStore(workingDir.resolve(".git"));
+        String[] log = ngit.run(workingDir, "log", "-1", "--format=%H%n%T%n%P%n%an%n%ae%n%cn%n%ct%n%s").stdout.split("\n");
+        Commit commit = ds.getCommit(new ObjectID(log[0]));
+        assertEquals(new ObjectID(log[1]), commit.getTree());
+        assertEquals(List.of(new ObjectID(log[2])), commit.getParents());
+        assertEquals(log[3], commit.getAuthor().getName());
+        assertEquals(log[4], commit.getAuthor().getEmail());
+        assertEquals(log[5], commit.getCommitter().getName());
+        assertEquals(Long.parseLong(log[6]), commit.getCommitTime());
+        assertEquals(Long.parseLong(log[6]), commit.getCommitter().getWhen());
+        assertEquals(log[7], commit.getShortMessage());
+        assertEquals(log[7] + "\n", commit.getMessage());
+
+        Commit octopus = ds.getCommit(new ObjectID(ngit.run(workingDir, "rev-parse", "main~2").stdout.trim()));
+        assertEquals(4, octopus.getParents().size());
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+        DataStore ds = new DataStore(workingDir.resolve(".git"));
+        Path file = new CommitGraphWriter(ds).write(refs());
+        assertEquals(workingDir.resolve(".git/objects/info/commit-graph"), file);
+        ngit.run(workingDir, "commit-graph", "verify");
+
+        CommitGraph graph = ds.getCommitGraph();
+        assertTrue(graph.hasCorrectedCommitDates());
+        assertGraphMatchesLog(graph);
+    }
+
+    @Test
+    public void testWriteTopologicalLevels() throws Exception {
+        DataStore ds = new DataStore(workingDir.resolve(".git"));
+        CommitGraphWriter writer = new CommitGraphWriter(ds);
+        writer.setCorrectedCommitDates(false);
+        writer.write(refs());
+        ngit.run(workingDir, "commit-graph", "verify");
+
+        CommitGraph graph = ds.getCommitGraph();
+        assertFalse(graph.hasCorrectedCommitDates());
+        assertGraphMatchesLog(graph);
+    }
+
+    @Test
+    public void testWriteIncremental() throws Exception {
+        DataStore ds = new DataStore(workingDir.resolve(".git"));
+        CommitGraphWriter writer = new CommitGraphWriter(ds);
+        assertNotNull(writer.writeIncremental(refs()));
+        assertEquals(1, ds.getCommitGraph().getLayerCount());
+
+        // a small layer on top of a large one is kept as a layer of its own
+        commitFile("main.txt", "incremental");
+        assertNotNull(writer.writeIncremental(refs()));
+        assertNull(writer.writeIncremental(refs()));
+        ngit.run(workingDir, "commit-graph", "verify");
+
+        CommitGraph graph = ds.getCommitGraph();
+        assertEquals(2, graph.getLayerCount());
+        assertGraphMatchesLog(graph);
+
+        // a write of the whole graph replaces the chain
+        writer.write(refs());
+        assertFalse(Files.exists(workingDir.resolve(".git/objects/info/commit-graphs/commit-graph-chain")));
+        assertEquals(1, ds.getCommitGraph().getLayerCount());
+        assertGraphMatchesLog(ds.getCommitGraph());
+    }
+
+    @Test
+    public void testWriteIncrementalOverLayerWithoutCorrectedDates() throws Exception {
+        DataStore ds = new DataStore(workingDir.resolve(".git"));
+        new CommitGraphWriter(ds).writeIncremental(refs());
+        commitFile("main.txt", "levels only");
+        CommitGraphWriter levels = new CommitGraphWriter(ds);
+        levels.setCorrectedCommitDates(false);
+        levels.writeIncremental(refs());
+        assertFalse(ds.getCommitGraph().hasCorrectedCommitDates());
+
+        // the layer without GDA2 is merged away, the dates of the parents come from the layer kept below
+        commitFile("main.txt", "corrected again");
+        new CommitGraphWriter(ds).writeIncremental(refs());
+        ngit.run(workingDir, "commit-graph", "verify");
+
+        CommitGraph graph = ds.getCommitGraph();
+        assertEquals(2, graph.getLayerCount());
+        assertTrue(graph.hasCorrectedCommitDates());
+        assertGraphMatchesLog(graph);
+    }
+
+    @Test
+    public void testWriteIncrementalOnNativeGraph() throws Exception {
+        ngit.run(workingDir, "commit-graph", "write", "--reachable");
+        commitFile("main.txt", "incremental");
+
+        DataStore ds = new DataStore(workingDir.resolve(".git"));
+        new CommitGraphWriter(ds).writeIncremental(refs());
+        assertFalse(Files.exists(workingDir.resolve(".git/objects/info/commit-graph")));
+        ngit.run(workingDir, "commit-graph", "verify");
+
+        CommitGraph graph = ds.getCommitGraph();
+        assertEquals(2, graph.getLayerCount());
+        assertGraphMatchesLog(graph);
+
+        // git can add its own layer on top of ours
+        commitFile("main.txt", "native layer");
+        ngit.run(workingDir, "commit-graph", "write", "--reachable", "--split=no-merge");
+        graph = ds.getCommitGraph();
+        assertEquals(3, graph.getLayerCount());
+        assertGraphMatchesLog(graph);
+    }
+
+    private List<ObjectID> refs() throws Exception {
+        List<ObjectID> result = new ArrayList<>();
+        for(String line: ngit.run(workingDir, "for-each-ref", "--format=%(objectname)").stdout.split("\n")) {
+            result.add(new ObjectID(line.trim()));
+        }
+        return result;
+    }
+
+    private void assertGraphMatchesLog(CommitGraph graph) throws Exception {
+        Map<ObjectID, CommitInfo> commits = readLog();
+        assertEquals(commits.size(), graph.getCommitCount());
+
+        Map<ObjectID, Integer> levels = new HashMap<>();
+        Map<ObjectID, Long> corrected = new HashMap<>();
+        for(CommitInfo info: commits.values()) {
+            int position = graph.findPosition(info.id);
+            assertTrue(position >= 0, "commit not in graph: " + info.id);
+            assertEquals(info.id, graph.getObjectID(position));
+            assertEquals(info.tree, graph.getTree(position));
+            assertEquals(info.time, graph.getCommitTime(position));
+
+            int[] parents = graph.getParents(position);
+            List<ObjectID> parentIds = new ArrayList<>();
+            for(int parent: parents) {
+                parentIds.add(graph.getObjectID(parent));
+            }
+            assertEquals(info.parents, parentIds);
+
+            assertEquals(level(info.id, commits, levels), graph.getTopologicalLevel(position));
+            long expectedGeneration = graph.hasCorrectedCommitDates()
+                    ? correctedDate(info.id, commits, corrected)
+                    : level(info.id, commits, levels);
+            assertEquals(expectedGeneration, graph.getGeneration(position));
+        }
+
+        assertEquals(-1, graph.findPosition(new ObjectID("0000000000000000000000000000000000000001")));
+    }
+
+    private static int level(ObjectID id, Map<ObjectID, CommitInfo> commits, Map<ObjectID, Integer> levels) {
+        Integer cached = levels.get(id);
+        if(cached != null) {
+            return cached;
+        }
+        int level = 1;
+        for(ObjectID parent: commits.get(id).parents) {
+            level = Math.max(level, level(parent, commits, levels) + 1);
+        }
+        levels.put(id, level);
+        return level;
+    }
+
+    private static long correctedDate(ObjectID id, Map<ObjectID, CommitInfo> commits, Map<ObjectID, Long> dates) {
+        Long cached = dates.get(id);
+        if(cached != null) {
+            return cached;
+        }
+        long date = commits.get(id).time;
+        for(ObjectID parent: commits.get(id).parents) {
+            date = Math.max(date, correctedDate(parent, commits, dates) + 1);
+        }
+        dates.put(id, date);
+        return date;
+    }
+
+    private Map<ObjectID, CommitInfo> readLog() throws Exception {
+        Map<ObjectID, CommitInfo> result = new HashMap<>();
+        for(String line: ngit.run(workingDir, "log", "--all", "--format=%H %T %ct %P").stdout.split("\n")) {
+            String[] columns = line.trim().split(" ");
+            CommitInfo info = new CommitInfo();
+            info.id = new ObjectID(columns[0]);
+            info.tree = new ObjectID(columns[1]);
+            info.time = Long.parseLong(columns[2]);
+            for(int i = 3; i < columns.length; i++) {
+                info.parents.add(new ObjectID(columns[i]));
+            }
+            result.put(info.id, info);
+        }
+        return result;
+    }
+
+    private void commitFile(String name, String content) throws Exception {
+        Files.writeString(workingDir.resolve(name), content + "\n");
+        ngit.run(workingDir, "add", name);
+        ngit.runAsCommitter(workingDir, "commit", "-q", "-m", "write " + name + ": " + content);
+    }
+
+    private static class CommitInfo {
+        ObjectID id;
+        ObjectID tree;
+        long time;
+        List<ObjectID> parents = new ArrayList<>();
+    }
+}
@@ -2,9 +2,13 @@ package com.github.loefberg.nitwit.ds;
 
 import com.github.loefberg.nitwit.ObjectID;
 import com.github.loefberg.nitwit.ds.Tree.TreeEntry;
+import com.github.loefberg.nitwit.util.Hex;
+import org.apache.commons.io.FileUtils;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
@@ -13,10 +17,20 @@ import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
 class DataStoreTest {
@@ -55,6 +69,21 @@ class DataStoreTest {
         assertEquals("hello.txt", new String(b.getContent(), StandardCharsets.UTF_8));
     }
 
+    @Test
+    public void testOpenObject() throws Exception {
+        DataStore ds = new DataStore(GIT_DIR);
+        try(ObjectStream input = ds.openObject(new ObjectID("af5626b4a114abcb82d63db7c8082c3c4756e51b"))) {
+            assertEquals(ObjectType.BLOB, input.getType());
+            assertEquals(14, input.getSize());
+            assertEquals("Hello, world!\n", new String(input.readAllBytes(), StandardCharsets.UTF_8));
+        }
+
+        try(ObjectStream input = ds.openObject(new ObjectID("4f83f3fcc9fc67e784d0348900c420b0a3bee799"))) {
+            assertEquals(ObjectType.TREE, input.getType());
+            assertEquals(input.getSize(), input.readAllBytes().length);
+        }
+    }
+
     //@Test
     public void testGetBlobBinary() throws Exception {
         fail("Not yet implemented");
@@ -130,4 +159,197 @@ class DataStoreTest {
         assertEquals(Integer.parseInt("000", 8), entries.get(idx).permissions());
         assertEquals(TreeFileType.SYMBOLIC_LINK, entries.get(idx).type());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testTreeFind() throws Exception {
+        DataStore ds = new DataStore(GIT_DIR);
+        Tree tree = ds.getTree(new ObjectID("4f83f3fcc9fc67e784d0348900c420b0a3bee799"));
+        assertEquals(6, tree.size());
+        assertEquals(0, tree.find("dir1"));
+        assertEquals(3, tree.find("hello.txt"));
+        assertEquals(5, tree.find("symlink-to-hello.txt"));
+        assertEquals(-1, tree.find("dir"));
+        assertEquals(-1, tree.find("hello"));
+        assertEquals(-1, tree.find("zzz"));
+        assertEquals(TreeFileType.DIRECTORY, tree.type(1));
+        assertEquals(Integer.parseInt("100644", 8), tree.mode(2));
+        assertEquals("empty.txt", tree.name(2));
+        assertEquals(new ObjectID("e69de29bb2d1d6434b8b29ae775ad8c2e48c5391"), tree.id(2));
+
+        ObjectID root = new ObjectID("4f83f3fcc9fc67e784d0348900c420b0a3bee799");
+        TreeEntry entry = ds.findEntry(root, "dir1/subdir1/file03.bin");
+        assertEquals("file03.bin", entry.name());
+        assertEquals(TreeFileType.REGULAR_FILE, entry.type());
+        assertEquals(TreeFileType.DIRECTORY, ds.findEntry(root, "dir1/subdir1").type());
+        assertEquals(null, ds.findEntry(root, "dir1/missing/file03.bin"));
+        assertEquals(null, ds.findEntry(root, "hello.txt/file03.bin"));
+    }
+
+    /**
+     * Directories sort as if their name had a trailing '/', so "a-b" comes before "a" the directory but after
+     * "a" the file would.
+     */
+    @Test
+    public void testTreeFindGitOrder() {
+        byte[] content = concat(
+                entry("100644", "a-b"),
+                entry("40000", "a"),
+                entry("100644", "a0"));
+        Tree tree = new Tree(content);
+        assertEquals(0, tree.find("a-b"));
+        assertEquals(1, tree.find("a"));
+        assertEquals(2, tree.find("a0"));
+        assertEquals(-1, tree.find("a."));
+    }
+
+    private static byte[] entry(String mode, String name) {
+        byte[] head = (mode + " " + name + "\0").getBytes(StandardCharsets.UTF_8);
+        byte[] result = new byte[head.length + 20];
+        System.arraycopy(head, 0, result, 0, head.length);
+        result[head.length] = (byte)name.length();
+        return result;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for(byte[] part: parts) {
+            length += part.length;
+        }
+        byte[] result = new byte[length];
+        int offset = 0;
+        for(byte[] part: parts) {
+            System.arraycopy(part, 0, result, offset, part.length);
+            offset += part.length;
+        }
+        return result;
+    }
+
+    @Test
+    public void testTreeCache() throws Exception {
+        DataStore ds = new DataStore(GIT_DIR);
+        ObjectCache cache = new ObjectCache(1024 * 1024);
+        ds.setObjectCache(cache);
+
+        ObjectID root = new ObjectID("4f83f3fcc9fc67e784d0348900c420b0a3bee799");
+        Tree tree = ds.getTree(root);
+        assertSame(tree, ds.getTree(root));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testPutBlobStreaming() throws Exception {
+        Path gitDir = Files.createTempDirectory("nitwit-ds-test-");
+        try {
+            Files.createDirectory(gitDir.resolve("objects"));
+            byte[] content = new byte[3 * 1024 * 1024 + 17];
+            new Random(42).nextBytes(content);
+
+            DataStore ds = new DataStore(gitDir);
+            String hash = ds.putBlob(new ByteArrayInputStream(content), content.length);
+
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update(("blob " + content.length + "\0").getBytes(StandardCharsets.UTF_8));
+            assertEquals(Hex.toHex(md.digest(content)), hash);
+            assertArrayEquals(content, ds.getBlob(new ObjectID(hash)).getContent());
+
+            // writing it again keeps the existing object and leaves no temporary file behind
+            assertEquals(hash, ds.putBlob(new ByteArrayInputStream(content), content.length));
+            try(var stream = Files.list(gitDir.resolve("objects"))) {
+                assertEquals(1, stream.count());
+            }
+        } finally {
+            FileUtils.deleteDirectory(gitDir.toFile());
+        }
+    }
+
+    @Test
+    public void testPutBlobStreamingShortInput() throws Exception {
+        Path gitDir = Files.createTempDirectory("nitwit-ds-test-");
+        try {
+            Files.createDirectory(gitDir.resolve("objects"));
+            DataStore ds = new DataStore(gitDir);
+            assertThrows(EOFException.class, () -> ds.putBlob(new ByteArrayInputStream(new byte[10]), 11));
+            try(var stream = Files.list(gitDir.resolve("objects"))) {
+                assertEquals(0, stream.count());
+            }
+        } finally {
+            FileUtils.deleteDirectory(gitDir.toFile());
+        }
+    }
+
+    @Test
+    public void testTransaction() throws Exception {
+        Path gitDir = Files.createTempDirectory("nitwit-ds-test-");
+        try {
+            Files.createDirectory(gitDir.resolve("objects"));
+            DataStore ds = new DataStore(gitDir);
+            byte[] content = "in a transaction\n".getBytes(StandardCharsets.UTF_8);
+            ObjectID id = DataStore.hashBlob(content);
+            Path objectFile = gitDir.resolve("objects/" + id.getHashString().substring(0, 2) + "/" + id.getHashString().substring(2));
+
+            try(ObjectTransaction transaction = ds.beginTransaction()) {
+                assertThrows(IllegalStateException.class, ds::beginTransaction);
+                ds.putBlob(id, content);
+                String streamed = ds.putBlob(new ByteArrayInputStream(new byte[100]), 100);
+                assertEquals(2, transaction.size());
+
+                // readable here, but not in place until committed
+                assertArrayEquals(content, ds.getBlob(id).getContent());
+                assertTrue(ds.hasObject(new ObjectID(streamed)));
+                assertFalse(Files.exists(objectFile));
+
+                transaction.commit();
+            }
+            assertTrue(Files.exists(objectFile));
+            assertArrayEquals(content, new DataStore(gitDir).getBlob(id).getContent());
+
+            // not committed, nothing is left
+            ObjectID dropped;
+            try(ObjectTransaction transaction = ds.beginTransaction()) {
+                dropped = new ObjectID(ds.putBlob(new ByteArrayInputStream(new byte[7]), 7));
+                assertEquals(1, transaction.size());
+            }
+            assertFalse(ds.hasObject(dropped));
+            try(var stream = Files.list(gitDir.resolve("objects"))) {
+                assertEquals(2, stream.count());
+            }
+        } finally {
+            FileUtils.deleteDirectory(gitDir.toFile());
+        }
+    }
+
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        Path gitDir = Files.createTempDirectory("nitwit-ds-test-");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            Files.createDirectory(gitDir.resolve("objects"));
+            DataStore ds = new DataStore(gitDir);
+            // few distinct objects, so the threads write the same ones and into the same directories
+            List<Future<ObjectID>> written = new ArrayList<>();
+            for(int i = 0; i < 400; i++) {
+                byte[] content = ("object " + (i % 40) + "\n").getBytes(StandardCharsets.UTF_8);
+                boolean streamed = i % 3 == 0;
+                written.add(executor.submit(() -> {
+                    if(streamed) {
+                        return new ObjectID(ds.putBlob(new ByteArrayInputStream(content), content.length));
+                    }
+                    ObjectID id = DataStore.hashBlob(content);
+                    ds.putBlob(id, content);
+                    return id;
+                }));
+            }
+            for(int i = 0; i < written.size(); i++) {
+                String expected = "object " + (i % 40) + "\n";
+                assertEquals(expected, new String(ds.getBlob(written.get(i).get()).getContent(), StandardCharsets.UTF_8));
+            }
+            try(var stream = Files.list(gitDir.resolve("objects"))) {
+                assertTrue(stream.noneMatch(path -> path.getFileName().toString().startsWith("tmp_")));
+            }
+        } finally {
+            executor.shutdownNow();
+            FileUtils.deleteDirectory(gitDir.toFile());
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.github.loefberg.nitwit.ds;
+
+import com.github.loefberg.nitwit.ObjectID;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ObjectCacheTest {
+    @Test
+    public void testHitsAndMisses() {
+        ObjectCache cache = new ObjectCache(1024 * 1024);
+        ObjectID id = id(1);
+        assertNull(cache.get(id, String.class));
+        cache.put(id, "value", 100);
+        assertEquals("value", cache.get(id, String.class));
+        assertNull(cache.get(id, Integer.class), "wrong type is a miss");
+
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(100, cache.getBytes());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedWithinBudget() {
+        // 16 segments of 1000 bytes each
+        ObjectCache cache = new ObjectCache(16 * 1000);
+        List<ObjectID> ids = new ArrayList<>();
+        for(int i = 0; i < 1000; i++) {
+            ObjectID id = id(i);
+            ids.add(id);
+            cache.put(id, i, 300);
+            // keep the first one hot
+            cache.get(ids.get(0), Integer.class);
+        }
+
+        assertTrue(cache.getBytes() <= cache.getMaxBytes());
+        assertTrue(cache.getEvictionCount() > 0);
+        assertEquals(0, cache.get(ids.get(0), Integer.class));
+    }
+
+    @Test
+    public void testTooLargeIsNotCached() {
+        ObjectCache cache = new ObjectCache(16 * 100);
+        cache.put(id(1), "big", 101);
+        assertNull(cache.get(id(1), String.class));
+    }
+
+    @Test
+    public void testConcurrentReaders() throws Exception {
+        ObjectCache cache = new ObjectCache(1024 * 1024);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for(int t = 0; t < 8; t++) {
+                futures.add(executor.submit(() -> {
+                    for(int i = 0; i < 10_000; i++) {
+                        ObjectID id = id(i % 500);
+                        Integer value = cache.get(id, Integer.class);
+                        if(value == null) {
+                            cache.put(id, i % 500, 64);
+                        } else {
+                            assertEquals(i % 500, value);
+                        }
+                    }
+                }));
+            }
+            for(Future<?> future: futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(8 * 10_000, cache.getHitCount() + cache.getMissCount());
+        assertEquals(500 * 64, cache.getBytes());
+    }
+
+    private static ObjectID id(int i) {
+        byte[] raw = new byte[20];
+        // spread over the segments through the bytes the hash code is taken from
+        raw[0] = (byte)(i * 31);
+        raw[1] = (byte)(i >>> 8);
+        raw[2] = (byte)i;
+        raw[3] = (byte)(i * 7);
+        return new ObjectID(raw);
+    }
+}
@@ -0,0 +1,172 @@
+package com.github.loefberg.nitwit.ds;
+
+import com.github.loefberg.nitwit.NativeGit;
+import com.github.loefberg.nitwit.ObjectID;
+import com.github.loefberg.nitwit.ds.Tree.TreeEntry;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PackFileTest {
+    private final NativeGit ngit = NativeGit.newInstance();
+    private Path workingDir;
+
+    @BeforeEach
+    public void initRepository() throws Exception {
+        workingDir = ngit.init("nitwit-pack-test-");
+        Files.writeString(workingDir.resolve("hello.txt"), "Hello, world!\n");
+        Files.createDirectory(workingDir.resolve("dir1"));
+        Files.writeString(workingDir.resolve("dir1/a.txt"), "a\n".repeat(1000));
+        Files.write(workingDir.resolve("dir1/empty.bin"), new byte[0]);
+        ngit.commit(workingDir, "initial");
+    }
+
+    @AfterEach
+    public void cleanupRepository() throws Exception {
+        FileUtils.deleteDirectory(workingDir.toFile());
+    }
+
+    @Test
+    public void testReadUndeltifiedPack() throws Exception {
+        ngit.run(workingDir, "repack", "-a", "-d", "--window=0");
+        assertNoLooseObjects();
+
+        DataStore ds = new DataStore(workingDir.resolve(".git"));
+        ObjectID treeId = revParse("HEAD^{tree}");
+        assertEquals("tree", ds.getType(treeId));
+
+        Tree tree = ds.getTree(treeId);
+        List<TreeEntry> entries = tree.getEntries();
+        assertEquals(2, entries.size());
+        assertEquals("dir1", entries.get(0).name());
+        assertEquals("hello.txt", entries.get(1).name());
+
+        Blob hello = ds.getBlob(entries.get(1).id());
+        assertEquals("Hello, world!\n", new String(hello.getContent(), StandardCharsets.UTF_8));
+
+        Tree dir1 = ds.getTree(entries.get(0).id());
+        assertEquals("a.txt", dir1.getEntries().get(0).name());
+        assertArrayEquals("a\n".repeat(1000).getBytes(StandardCharsets.UTF_8),
+                ds.getBlob(dir1.getEntries().get(0).id()).getContent());
+        assertEquals(0, ds.getBlob(dir1.getEntries().get(1).id()).getSize());
+        assertEquals("commit", ds.getType(revParse("HEAD")));
+
+        try(StreamingBlob blob = ds.openBlob(dir1.getEntries().get(0).id())) {
+            assertEquals(2000, blob.getSize());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            blob.write(out);
+            assertEquals("a\n".repeat(1000), out.toString(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testPackWrittenAfterOpen() throws Exception {
+        DataStore ds = new DataStore(workingDir.resolve(".git"));
+        ObjectID treeId = revParse("HEAD^{tree}");
+        assertEquals(2, ds.getTree(treeId).getEntries().size());
+
+        Files.writeString(workingDir.resolve("new.txt"), "new\n");
+        ngit.commit(workingDir, "second");
+        ngit.run(workingDir, "repack", "-a", "-d", "--window=0");
+        assertNoLooseObjects();
+
+        assertEquals(3, ds.getTree(revParse("HEAD^{tree}")).getEntries().size());
+    }
+
+    @Test
+    public void testReadOfsDeltaChain() throws Exception {
+        assertDeltaChainReadable("repack", "-a", "-d", "-f", "--depth=50", "--window=50");
+    }
+
+    @Test
+    public void testReadRefDeltaChain() throws Exception {
+        assertDeltaChainReadable("-c", "repack.useDeltaBaseOffset=false",
+                "repack", "-a", "-d", "-f", "--depth=50", "--window=50");
+    }
+
+    @Test
+    public void testSmallDeltaBaseCache() throws Exception {
+        writeVersions(20);
+        ngit.run(workingDir, "repack", "-a", "-d", "-f", "--depth=50", "--window=50");
+
+        DataStore ds = new DataStore(workingDir.resolve(".git"));
+        ds.setDeltaBaseCacheLimit(0);
+        for(int i = 0; i < 20; i++) {
+            assertArrayEquals(version(i), ds.getBlob(revParse("HEAD~" + (19 - i) + ":versions.txt")).getContent());
+        }
+    }
+
+    private void assertDeltaChainReadable(String... repack) throws Exception {
+        writeVersions(30);
+        ngit.run(workingDir, repack);
+        assertNoLooseObjects();
+
+        String verify = ngit.run(workingDir, "verify-pack", "-v",
+                findIdx().toString()).stdout;
+        assertTrue(verify.contains("chain length"), "expected deltas in the pack:\n" + verify);
+
+        DataStore ds = new DataStore(workingDir.resolve(".git"));
+        // newest first, then oldest first, to walk the chains in both directions through the cache
+        for(int i = 29; i >= 0; i--) {
+            assertArrayEquals(version(i), ds.getBlob(revParse("HEAD~" + (29 - i) + ":versions.txt")).getContent());
+        }
+        for(int i = 0; i < 30; i++) {
+            assertArrayEquals(version(i), ds.getBlob(revParse("HEAD~" + (29 - i) + ":versions.txt")).getContent());
+            assertEquals(3, ds.getTree(revParse("HEAD~" + (29 - i) + "^{tree}")).getEntries().size());
+            try(ObjectStream input = ds.openObject(revParse("HEAD~" + (29 - i) + ":versions.txt"))) {
+                assertEquals(ObjectType.BLOB, input.getType());
+                assertEquals(version(i).length, input.getSize());
+                assertArrayEquals(version(i), input.readAllBytes());
+            }
+        }
+    }
+
+    private void writeVersions(int count) throws Exception {
+        for(int i = 0; i < count; i++) {
+            Files.write(workingDir.resolve("versions.txt"), version(i));
+            ngit.commit(workingDir, "version " + i);
+        }
+    }
+
+    static byte[] version(int i) {
+        StringBuilder builder = new StringBuilder();
+        for(int line = 0; line < 500; line++) {
+            builder.append("line ").append(line).append(line % 37 == i ? " changed in " + i : "").append('\n');
+        }
+        for(int line = 0; line < i; line++) {
+            builder.append("appended ").append(line).append('\n');
+        }
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private Path findIdx() throws Exception {
+        try(var stream = Files.list(workingDir.resolve(".git/objects/pack"))) {
+            return stream.filter(p -> p.getFileName().toString().endsWith(".idx")).findFirst().orElseThrow();
+        }
+    }
+
+    private void assertNoLooseObjects() throws Exception {
+        try(var stream = Files.list(workingDir.resolve(".git/objects"))) {
+            assertFalse(stream.anyMatch(p -> p.getFileName().toString().length() == 2));
+        }
+        try(var stream = Files.list(workingDir.resolve(".git/objects/pack"))) {
+            assertTrue(stream.anyMatch(p -> p.getFileName().toString().endsWith(".idx")));
+        }
+    }
+
+    private ObjectID revParse(String revision) throws Exception {
+        return new ObjectID(ngit.run(workingDir, "rev-parse", revision).stdout.trim());
+    }
+}
@@ -0,0 +1,116 @@
+package com.github.loefberg.nitwit.ds;
+
+import com.github.loefberg.nitwit.NativeGit;
+import com.github.loefberg.nitwit.ObjectID;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PackIndexerTest {
+    private final NativeGit ngit = NativeGit.newInstance();
+    private Path workingDir;
+    private Path received;
+
+    @BeforeEach
+    public void initRepository() throws Exception {
+        workingDir = Files.createTempDirectory("nitwit-index-pack-test-");
+        received = Files.createDirectory(workingDir.resolve("received"));
+        Path repo = Files.createDirectory(workingDir.resolve("repo"));
+        ngit.run(repo, "init", "-q");
+        for(int i = 0; i < 30; i++) {
+            StringBuilder content = new StringBuilder();
+            for(int line = 0; line < 300; line++) {
+                content.append("line ").append(line).append(line % 31 == i ? " changed in " + i : "").append('\n');
+            }
+            Files.writeString(repo.resolve("versions.txt"), content.toString());
+            Files.writeString(repo.resolve("other" + (i % 3) + ".txt"), content.reverse().toString());
+            ngit.commit(repo, "version " + i);
+        }
+    }
+
+    @AfterEach
+    public void cleanupRepository() throws Exception {
+        FileUtils.deleteDirectory(workingDir.toFile());
+    }
+
+    @Test
+    public void testOfsDeltas() throws Exception {
+        assertSameAsNative(repack());
+    }
+
+    @Test
+    public void testRefDeltas() throws Exception {
+        assertSameAsNative(repack("-c", "repack.useDeltaBaseOffset=false"));
+    }
+
+    @Test
+    public void testOwnPack() throws Exception {
+        DataStore ds = new DataStore(workingDir.resolve("repo/.git"));
+        Path pack = ds.packLooseObjects();
+        assertSameAsNative(Files.copy(pack, received.resolve(pack.getFileName())));
+    }
+
+    @Test
+    public void testCorruptPack() throws Exception {
+        Path pack = repack();
+        byte[] content = Files.readAllBytes(pack);
+        content[content.length / 2] ^= 1;
+        Files.write(pack, content);
+        assertThrows(IOException.class, () -> new PackIndexer().index(pack));
+        assertFalse(Files.exists(received.resolve(pack.getFileName().toString().replace(".pack", ".idx"))));
+    }
+
+    /**
+     * Indexes the pack with native git and with us, which have to write the same bytes.
+     */
+    private void assertSameAsNative(Path pack) throws Exception {
+        String name = pack.getFileName().toString();
+        String baseName = name.substring(0, name.length() - ".pack".length());
+        Path nativeDir = Files.createDirectory(workingDir.resolve("native"));
+        Path nativePack = Files.copy(pack, nativeDir.resolve(name));
+        ngit.run(nativeDir, "index-pack", "--rev-index", nativePack.toString());
+
+        PackIndexer indexer = new PackIndexer(new ForkJoinPool(4));
+        indexer.setReverseIndex(true);
+        Path idx = indexer.index(pack);
+        assertArrayEquals(Files.readAllBytes(nativeDir.resolve(baseName + ".idx")), Files.readAllBytes(idx));
+        assertArrayEquals(Files.readAllBytes(nativeDir.resolve(baseName + ".rev")),
+                Files.readAllBytes(received.resolve(baseName + ".rev")));
+
+        // and the pack can be read with it
+        Path gitDir = Files.createDirectories(workingDir.resolve("reader/.git/objects/pack"));
+        Files.copy(pack, gitDir.resolve(name));
+        Files.copy(idx, gitDir.resolve(baseName + ".idx"));
+        DataStore ds = new DataStore(workingDir.resolve("reader/.git"));
+        String head = ngit.run(workingDir.resolve("repo"), "rev-parse", "HEAD:versions.txt").stdout.trim();
+        String expected = ngit.run(workingDir.resolve("repo"), "cat-file", "blob", head).stdout;
+        assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8), ds.getBlob(new ObjectID(head)).getContent());
+    }
+
+    /**
+     * Packs everything with native git and copies the pack, without its index, to the received directory.
+     */
+    private Path repack(String... config) throws Exception {
+        Path repo = workingDir.resolve("repo");
+        String[] arguments = new String[config.length + 6];
+        System.arraycopy(config, 0, arguments, 0, config.length);
+        System.arraycopy(new String[] { "repack", "-a", "-d", "-f", "--depth=50", "--window=50" }, 0,
+                arguments, config.length, 6);
+        ngit.run(repo, arguments);
+        try(var stream = Files.list(repo.resolve(".git/objects/pack"))) {
+            Path pack = stream.filter(p -> p.getFileName().toString().endsWith(".pack")).findFirst().orElseThrow();
+            return Files.copy(pack, received.resolve(pack.getFileName()));
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.github.loefberg.nitwit.ds;
+
+import com.github.loefberg.nitwit.NativeGit;
+import com.github.loefberg.nitwit.ObjectID;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PackWriterTest {
+    private static final Pattern NON_DELTA = Pattern.compile("non delta: (\\d+) objects?");
+    private static final Pattern CHAIN_LENGTH = Pattern.compile("chain length = (\\d+): (\\d+) objects?");
+
+    private final NativeGit ngit = NativeGit.newInstance();
+    private Path workingDir;
+
+    @BeforeEach
+    public void initRepository() throws Exception {
+        workingDir = ngit.init("nitwit-pack-writer-test-");
+        for(int i = 0; i < 30; i++) {
+            Files.write(workingDir.resolve("versions.txt"), PackFileTest.version(i));
+            Files.writeString(workingDir.resolve("small.txt"), "small " + i + "\n");
+            ngit.commit(workingDir, "version " + i);
+        }
+    }
+
+    @AfterEach
+    public void cleanupRepository() throws Exception {
+        FileUtils.deleteDirectory(workingDir.toFile());
+    }
+
+    @Test
+    public void testPackLooseObjects() throws Exception {
+        DataStore ds = new DataStore(workingDir.resolve(".git"));
+        int loose = ds.getLooseObjects().size();
+        assertEquals(120, loose);
+
+        Path pack = ds.packLooseObjects(new ForkJoinPool(4));
+        assertNotNull(pack);
+        assertEquals(List.of(), ds.getLooseObjects());
+        try(var stream = Files.list(workingDir.resolve(".git/objects"))) {
+            assertFalse(stream.anyMatch(p -> p.getFileName().toString().length() == 2));
+        }
+
+        ngit.run(workingDir, "fsck", "--strict", "--no-dangling");
+        String verify = verifyPack(pack);
+        assertTrue(chainLengths(verify)[1] > 0, "expected deltas in the pack:\n" + verify);
+        assertTrue(Files.size(pack) < 30 * PackFileTest.version(29).length / 4, "pack too large: " + Files.size(pack));
+
+        DataStore reopened = new DataStore(workingDir.resolve(".git"));
+        for(int i = 0; i < 30; i++) {
+            assertArrayEquals(PackFileTest.version(i), reopened.getBlob(revParse("HEAD~" + (29 - i) + ":versions.txt")).getContent());
+        }
+        assertEquals(2, reopened.getTree(revParse("HEAD^{tree}")).size());
+    }
+
+    @Test
+    public void testReuseDeltas() throws Exception {
+        ngit.run(workingDir, "repack", "-a", "-d", "-f", "--depth=50", "--window=50");
+        List<ObjectID> ids = allObjects();
+
+        // without a window every delta in the new pack is one copied from the old
+        DataStore ds = new DataStore(workingDir.resolve(".git"));
+        PackWriter writer = new PackWriter(ds);
+        writer.setWindow(0);
+        Path pack = writer.write(ids);
+        int[] chains = chainLengths(verifyPack(pack));
+        assertTrue(chains[1] > 0, "expected reused deltas");
+
+        writer.setReuseDeltas(false);
+        assertEquals(0, chainLengths(verifyPack(writer.write(ids)))[1]);
+    }
+
+    @Test
+    public void testDeltasOnBasesLeftOut() throws Exception {
+        ngit.run(workingDir, "repack", "-a", "-d", "-f", "--depth=50", "--window=50");
+        // every other version, most of their deltas in the old pack are on versions left out
+        List<ObjectID> ids = new ArrayList<>();
+        for(int i = 0; i < 30; i += 2) {
+            ids.add(revParse("HEAD~" + (29 - i) + ":versions.txt"));
+        }
+
+        Path pack = new PackWriter(new DataStore(workingDir.resolve(".git"))).write(ids);
+        String verify = verifyPack(pack);
+        Matcher whole = NON_DELTA.matcher(verify);
+        assertTrue(whole.find(), verify);
+        assertTrue(Integer.parseInt(whole.group(1)) <= 2, "objects stored whole instead of as new deltas:\n" + verify);
+    }
+
+    @Test
+    public void testDepth() throws Exception {
+        ngit.run(workingDir, "repack", "-a", "-d", "-f", "--depth=50", "--window=50");
+        List<ObjectID> ids = allObjects();
+
+        DataStore ds = new DataStore(workingDir.resolve(".git"));
+        for(boolean reuse: new boolean[] { true, false }) {
+            PackWriter writer = new PackWriter(ds);
+            writer.setDepth(3);
+            writer.setReuseDeltas(reuse);
+            Path pack = writer.write(ids);
+            int[] chains = chainLengths(verifyPack(pack));
+            assertTrue(chains[1] > 0, "expected deltas");
+            for(int length = 4; length < chains.length; length++) {
+                assertEquals(0, chains[length], "chain of " + length + " with reuse=" + reuse);
+            }
+        }
+        ngit.run(workingDir, "fsck", "--strict", "--no-dangling");
+    }
+
+    @Test
+    public void testDeltaRoundTrip() throws Exception {
+        Random random = new Random(42);
+        for(int round = 0; round < 200; round++) {
+            byte[] base = new byte[random.nextInt(200_000)];
+            random.nextBytes(base);
+            byte[] target = mutate(base, random);
+
+            byte[] delta = new DeltaIndex(base).createDelta(target, Integer.MAX_VALUE);
+            assertNotNull(delta);
+            assertArrayEquals(target, Delta.apply(base, base.length, delta, delta.length), "round " + round);
+            if(target.length > 1000 && base.length > 1000) {
+                assertTrue(delta.length < target.length, "round " + round);
+            }
+        }
+
+        byte[] base = "a\n".repeat(100_000).getBytes(StandardCharsets.UTF_8);
+        byte[] target = ("b\n" + "a\n".repeat(100_001)).getBytes(StandardCharsets.UTF_8);
+        byte[] delta = new DeltaIndex(base).createDelta(target, 100);
+        assertNotNull(delta);
+        assertArrayEquals(target, Delta.apply(base, base.length, delta, delta.length));
+        assertNull(new DeltaIndex(new byte[1000]).createDelta(base, 100));
+    }
+
+    @Test
+    public void testTruncatedDelta() throws Exception {
+        byte[] base = PackFileTest.version(0);
+        byte[] delta = new DeltaIndex(base).createDelta(PackFileTest.version(29), Integer.MAX_VALUE);
+        assertNotNull(delta);
+        for(int length = 0; length < delta.length; length++) {
+            int truncated = length;
+            byte[] copy = Arrays.copyOf(delta, length);
+            assertThrows(IOException.class, () -> Delta.apply(base, base.length, copy, truncated), "length " + length);
+            // the bytes after the length left in place, like in a reused scratch buffer
+            assertThrows(IOException.class, () -> Delta.apply(base, base.length, delta, truncated), "length " + length);
+        }
+    }
+
+    private static byte[] mutate(byte[] base, Random random) {
+        List<Byte> bytes = new ArrayList<>(base.length);
+        for(byte b: base) {
+            bytes.add(b);
+        }
+        for(int edit = random.nextInt(20); edit > 0 && !bytes.isEmpty(); edit--) {
+            int position = random.nextInt(bytes.size());
+            int length = Math.min(bytes.size() - position, random.nextInt(500));
+            switch(random.nextInt(3)) {
+                case 0:
+                    bytes.subList(position, position + length).clear();
+                    break;
+                case 1:
+                    for(int i = 0; i < length; i++) {
+                        bytes.add(position, (byte)random.nextInt());
+                    }
+                    break;
+                default:
+                    // moved to the end
+                    List<Byte> moved = new ArrayList<>(bytes.subList(position, position + length));
+                    bytes.subList(position, position + length).clear();
+                    bytes.addAll(moved);
+            }
+        }
+        byte[] result = new byte[bytes.size()];
+        for(int i = 0; i < result.length; i++) {
+            result[i] = bytes.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * The number of objects with each delta chain length according to git verify-pack, which also checks
+     * the pack and its index.
+     */
+    private static int[] chainLengths(String verify) {
+        int[] result = new int[100];
+        Matcher matcher = CHAIN_LENGTH.matcher(verify);
+        while(matcher.find()) {
+            result[Integer.parseInt(matcher.group(1))] = Integer.parseInt(matcher.group(2));
+        }
+        return result;
+    }
+
+    private String verifyPack(Path pack) throws Exception {
+        String name = pack.getFileName().toString();
+        Path idx = pack.resolveSibling(name.substring(0, name.length() - ".pack".length()) + ".idx");
+        return ngit.run(workingDir, "verify-pack", "-v", idx.toString()).stdout;
+    }
+
+    private List<ObjectID> allObjects() throws Exception {
+        List<ObjectID> result = new ArrayList<>();
+        for(String line: ngit.run(workingDir, "rev-list", "--objects", "--all").stdout.split("\n")) {
+            if(!line.isBlank()) {
+                result.add(new ObjectID(line.substring(0, ObjectID.HEX_LENGTH)));
+            }
+        }
+        return result;
+    }
+
+    private ObjectID revParse(String revision) throws Exception {
+        return new ObjectID(ngit.run(workingDir, "rev-parse", revision).stdout.trim());
+    }
+}
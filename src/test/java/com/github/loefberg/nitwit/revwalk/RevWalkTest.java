@@ -0,0 +1,183 @@
+package com.github.loefberg.nitwit.revwalk;
+
+import com.github.loefberg.nitwit.NativeGit;
+import com.github.loefberg.nitwit.ObjectID;
+import com.github.loefberg.nitwit.ds.CommitGraphWriter;
+import com.github.loefberg.nitwit.ds.DataStore;
+import com.github.loefberg.nitwit.ds.ObjectCache;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RevWalkTest {
+    private final NativeGit ngit = NativeGit.newInstance();
+    private Path workingDir;
+
+    @BeforeEach
+    public void initRepository() throws Exception {
+        workingDir = ngit.init("nitwit-rev-walk-test-");
+        for(int i = 0; i < 20; i++) {
+            commitFile("main.txt", "main " + i);
+        }
+
+        ngit.run(workingDir, "checkout", "-q", "-b", "topic", "main~10");
+        for(int i = 0; i < 3; i++) {
+            commitFile("topic.txt", "topic " + i);
+        }
+        ngit.run(workingDir, "checkout", "-q", "-b", "other", "main~5");
+        commitFile("other.txt", "other");
+        ngit.runAsCommitter(workingDir, "merge", "-q", "--no-edit", "topic");
+
+        ngit.run(workingDir, "checkout", "-q", "main");
+        ngit.runAsCommitter(workingDir, "merge", "-q", "--no-edit", "topic");
+        commitFile("main.txt", "after merge");
+    }
+
+    @AfterEach
+    public void cleanupRepository() throws Exception {
+        FileUtils.deleteDirectory(workingDir.toFile());
+    }
+
+    @Test
+    public void testWalk() throws Exception {
+        assertWalks(new DataStore(workingDir.resolve(".git")));
+    }
+
+    @Test
+    public void testWalkWithCommitGraph() throws Exception {
+        DataStore ds = new DataStore(workingDir.resolve(".git"));
+        new CommitGraphWriter(ds).write(List.of(rev("main"), rev("other")));
+        assertWalks(ds);
+    }
+
+    @Test
+    public void testLimitedWalkReadsFewCommits() throws Exception {
+        DataStore ds = new DataStore(workingDir.resolve(".git"));
+        ObjectCache cache = new ObjectCache(1024 * 1024);
+        ds.setObjectCache(cache);
+
+        RevWalk walk = new RevWalk(ds);
+        walk.markStart(rev("main~5"));
+        List<RevCommit> first = walk.stream().limit(3).collect(Collectors.toList());
+        assertEquals(3, first.size());
+        // the three commits and the parent of the last one
+        assertEquals(4, cache.getMissCount());
+    }
+
+    @Test
+    public void testWalkWithCommitGraphReadsNoCommits() throws Exception {
+        DataStore ds = new DataStore(workingDir.resolve(".git"));
+        new CommitGraphWriter(ds).write(List.of(rev("main")));
+        ObjectCache cache = new ObjectCache(1024 * 1024);
+        ds.setObjectCache(cache);
+
+        RevWalk walk = new RevWalk(ds);
+        walk.markStart(rev("main"));
+        assertEquals(revList("main"), walk.stream().map(RevCommit::getId).collect(Collectors.toSet()));
+        assertEquals(0, cache.getMissCount());
+    }
+
+    private void assertWalks(DataStore ds) throws Exception {
+        RevWalk walk = new RevWalk(ds);
+        walk.markStart(rev("main"));
+        walk.markStart(rev("other"));
+        List<RevCommit> dateOrder = toList(walk);
+        assertEquals(revList("main", "other"), ids(dateOrder));
+        for(int i = 1; i < dateOrder.size(); i++) {
+            assertTrue(dateOrder.get(i - 1).getCommitTime() >= dateOrder.get(i).getCommitTime());
+        }
+
+        walk.reset();
+        walk.setSort(RevSort.TOPO);
+        walk.markStart(rev("main"));
+        walk.markStart(rev("other"));
+        assertTopological(toList(walk));
+
+        walk.reset();
+        walk.markStart(rev("other"));
+        walk.markUninteresting(rev("main"));
+        assertEquals(revList("other", "^main"), ids(toList(walk)));
+
+        walk.reset();
+        walk.setSort(RevSort.TOPO);
+        walk.markStart(rev("main"));
+        walk.markUninteresting(rev("topic"));
+        List<RevCommit> range = toList(walk);
+        assertEquals(revList("main", "^topic"), ids(range));
+        assertTopological(range);
+
+        walk.reset();
+        Set<ObjectID> bases = walk.getMergeBases(rev("main"), rev("other")).stream()
+                .map(RevCommit::getId).collect(Collectors.toSet());
+        Set<ObjectID> expected = new HashSet<>();
+        for(String line: ngit.run(workingDir, "merge-base", "--all", "main", "other").stdout.split("\n")) {
+            expected.add(new ObjectID(line.trim()));
+        }
+        assertEquals(expected, bases);
+
+        assertTrue(walk.isMergedInto(rev("topic"), rev("main")));
+        assertTrue(walk.isMergedInto(rev("main~12"), rev("other")));
+        assertFalse(walk.isMergedInto(rev("other"), rev("main")));
+        assertFalse(walk.isMergedInto(rev("main"), rev("topic")));
+    }
+
+    private static void assertTopological(List<RevCommit> commits) {
+        Set<RevCommit> done = new HashSet<>();
+        for(RevCommit commit: commits) {
+            done.add(commit);
+            for(RevCommit parent: commit.getParents()) {
+                assertFalse(done.contains(parent), "parent " + parent + " before child " + commit);
+            }
+        }
+    }
+
+    private static List<RevCommit> toList(RevWalk walk) throws Exception {
+        List<RevCommit> result = new ArrayList<>();
+        RevCommit commit;
+        while((commit = walk.next()) != null) {
+            result.add(commit);
+        }
+        return result;
+    }
+
+    private static Set<ObjectID> ids(List<RevCommit> commits) {
+        Set<ObjectID> result = commits.stream().map(RevCommit::getId).collect(Collectors.toSet());
+        assertEquals(commits.size(), result.size(), "commit returned twice");
+        return result;
+    }
+
+    private Set<ObjectID> revList(String... arguments) throws Exception {
+        List<String> commands = new ArrayList<>(List.of("rev-list"));
+        commands.addAll(List.of(arguments));
+        Set<ObjectID> result = new HashSet<>();
+        for(String line: ngit.run(workingDir, commands.toArray(new String[0])).stdout.split("\n")) {
+            if(!line.isBlank()) {
+                result.add(new ObjectID(line.trim()));
+            }
+        }
+        return result;
+    }
+
+    private ObjectID rev(String name) throws Exception {
+        return new ObjectID(ngit.run(workingDir, "rev-parse", name).stdout.trim());
+    }
+
+    private void commitFile(String name, String content) throws Exception {
+        Files.writeString(workingDir.resolve(name), content + "\n");
+        ngit.run(workingDir, "add", name);
+        ngit.runAsCommitter(workingDir, "commit", "-q", "-m", "write " + name + ": " + content);
+    }
+}